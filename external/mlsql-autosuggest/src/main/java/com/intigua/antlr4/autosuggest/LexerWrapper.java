@@ -3,8 +3,10 @@ package com.intigua.antlr4.autosuggest;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.atn.ATNState;
 import org.antlr.v4.runtime.misc.ParseCancellationException;
+import tech.mlsql.dsl.parser.TwoStageParser;
 
 import java.util.List;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 public class LexerWrapper {
@@ -29,6 +31,20 @@ public class LexerWrapper {
         return result;
     }
 
+    /**
+     * Parses the input with the two-stage SLL/LL strategy of {@link TwoStageParser}.
+     * Only available when the wrapper was created with a {@link LexerAndParserFactory}.
+     */
+    @SuppressWarnings("unchecked")
+    public <P extends Parser, T extends ParserRuleContext> T parse(String input, Function<P, T> entry) {
+        if (!(lexerFactory instanceof ParserFactory)) {
+            throw new IllegalStateException("LexerWrapper is not created with a LexerAndParserFactory");
+        }
+        Lexer lexer = this.createLexer(input);
+        P parser = (P) ((ParserFactory) lexerFactory).createParser(new CommonTokenStream(lexer));
+        return TwoStageParser.parse(parser, entry);
+    }
+
     public String[] getRuleNames() {
         return getCachedLexer().getRuleNames();
     }
@@ -0,0 +1,43 @@
+package com.intigua.antlr4.autosuggest
+
+import org.antlr.v4.runtime.atn.PredictionMode
+import org.scalatest.FunSuite
+import streaming.dsl.parser.DSLSQLParser.StatementContext
+import streaming.dsl.parser.{DSLSQLLexer, DSLSQLParser}
+import tech.mlsql.autosuggest.app.AutoSuggestController
+
+class LexerWrapperParseTest extends FunSuite {
+
+  private def statement = new java.util.function.Function[DSLSQLParser, StatementContext] {
+    override def apply(p: DSLSQLParser): StatementContext = p.statement()
+  }
+
+  test("parse a script with the two-stage SLL/LL parser") {
+    val script = "load parquet.`/tmp/a` as table1;\nselect a, b from table1 where a > 1 as output;\nsave overwrite output as json.`/tmp/b`;"
+    val tree = AutoSuggestController.mlsqlLexer.parse[DSLSQLParser, StatementContext](script, statement)
+    assert(tree.sql().size() == 3)
+    assert(tree.getText == script.replaceAll("\\s", ""))
+  }
+
+  test("leave the parser with its own prediction mode and error strategy") {
+    var parser: DSLSQLParser = null
+    AutoSuggestController.mlsqlLexer.parse[DSLSQLParser, StatementContext]("load parquet.`/tmp/a` as table1;",
+      new java.util.function.Function[DSLSQLParser, StatementContext] {
+        override def apply(p: DSLSQLParser): StatementContext = {
+          parser = p
+          p.statement()
+        }
+      })
+    assert(parser.getInterpreter.getPredictionMode == PredictionMode.LL)
+    assert(!parser.getErrorHandler.isInstanceOf[org.antlr.v4.runtime.BailErrorStrategy])
+  }
+
+  test("parse is only available with a parser factory") {
+    val lexerOnly = new LexerWrapper(new LexerFactory {
+      override def createLexer(input: org.antlr.v4.runtime.CharStream) = new DSLSQLLexer(input)
+    }, new DefaultToCharStream)
+    intercept[IllegalStateException] {
+      lexerOnly.parse[DSLSQLParser, StatementContext]("select 1 as a;", statement)
+    }
+  }
+}
@@ -0,0 +1,222 @@
+package tech.mlsql.indexer.impl
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.analysis.TypeCheckResult
+import org.apache.spark.sql.catalyst.expressions.codegen.Block._
+import org.apache.spark.sql.catalyst.expressions.codegen.{CodegenContext, ExprCode, FalseLiteral}
+import org.apache.spark.sql.catalyst.expressions.{Expression, UnaryExpression}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import tech.mlsql.tool.ZOrderingBytesUtil
+
+/**
+ * 计算z-ordering值，结果和对每个字段 xxxTo8Byte 后 interleaveMulti8Byte 一致。
+ * null 按全0处理(和字符串null按空字符串处理一致)。
+ * curve 为 hilbert 时用同样的8字节编码计算Hilbert曲线上的位置，见 [[ZOrderingBytesUtil.hilbertSortable]]。
+ */
+case class ZOrderingValue(children: Seq[Expression], curve: String = ZOrderingValue.Z_ORDER) extends Expression {
+
+  override def nullable: Boolean = false
+
+  override def dataType: DataType = BinaryType
+
+  override def checkInputDataTypes(): TypeCheckResult = {
+    children.find(c => !ZOrderingValue.supportedTypes.contains(c.dataType)) match {
+      case Some(c) => TypeCheckResult.TypeCheckFailure(s"z-ordering does not support ${c.dataType.simpleString} field ${c}")
+      case None => TypeCheckResult.TypeCheckSuccess
+    }
+  }
+
+  override def eval(input: InternalRow): Any = {
+    val values = new Array[Long](children.length)
+    var i = 0
+    while (i < children.length) {
+      values(i) = ZOrderingValue.sortable(children(i).dataType, children(i).eval(input))
+      i += 1
+    }
+    ZOrderingValue.key(curve, values)
+  }
+
+  override protected def doGenCode(ctx: CodegenContext, ev: ExprCode): ExprCode = {
+    val util = classOf[ZOrderingBytesUtil].getName
+    val values = ctx.freshName("zValues")
+    val evals = children.zipWithIndex.map { case (child, i) =>
+      val eval = child.genCode(ctx)
+      val v = eval.value
+      val sortable = child.dataType match {
+        case LongType => s"$util.longToSortable($v)"
+        case IntegerType => s"$util.intToSortable($v)"
+        case DoubleType => s"$util.doubleToSortable($v)"
+        case FloatType => s"$util.doubleToSortable((double) $v)"
+        case StringType => s"$util.utf8ToSortable($v.getBaseObject(), $v.getBaseOffset(), $v.numBytes())"
+      }
+      s"""
+         |${eval.code}
+         |$values[$i] = ${eval.isNull} ? 0L : $sortable;
+       """.stripMargin
+    }.mkString("\n")
+    val method = if (curve == ZOrderingValue.HILBERT) "hilbertSortable" else "interleaveSortable"
+
+    ev.copy(code =
+      code"""
+      long[] $values = new long[${children.length}];
+      $evals
+      byte[] ${ev.value} = $util.$method($values);
+      """, isNull = FalseLiteral)
+  }
+
+  override def prettyName: String = "z_ordering_value"
+}
+
+object ZOrderingValue {
+  val Z_ORDER = "zorder"
+  val HILBERT = "hilbert"
+
+  val supportedTypes: Set[DataType] = Set(LongType, IntegerType, DoubleType, FloatType, StringType)
+
+  def key(curve: String, sortables: Array[Long]): Array[Byte] = {
+    if (curve == HILBERT) ZOrderingBytesUtil.hilbertSortable(sortables) else ZOrderingBytesUtil.interleaveSortable(sortables)
+  }
+
+  def sortable(dataType: DataType, v: Any): Long = {
+    if (v == null) return 0L
+    dataType match {
+      case LongType => ZOrderingBytesUtil.longToSortable(v.asInstanceOf[Long])
+      case IntegerType => ZOrderingBytesUtil.intToSortable(v.asInstanceOf[Int])
+      case DoubleType => ZOrderingBytesUtil.doubleToSortable(v.asInstanceOf[Double])
+      case FloatType => ZOrderingBytesUtil.doubleToSortable(v.asInstanceOf[Float].toDouble)
+      case StringType =>
+        val s = v.asInstanceOf[UTF8String]
+        ZOrderingBytesUtil.utf8ToSortable(s.getBaseObject, s.getBaseOffset, s.numBytes())
+    }
+  }
+}
+
+/**
+ * z-ordering值的前8个字节，用有符号long表示且保持顺序，用来计算分位数。
+ */
+case class ZOrderingPrefix(child: Expression) extends UnaryExpression {
+  override def nullable: Boolean = false
+
+  override def dataType: DataType = LongType
+
+  override protected def nullSafeEval(input: Any): Any = {
+    ZOrderingBytesUtil.sortablePrefix(input.asInstanceOf[Array[Byte]])
+  }
+
+  override protected def doGenCode(ctx: CodegenContext, ev: ExprCode): ExprCode = {
+    defineCodeGen(ctx, ev, c => s"${classOf[ZOrderingBytesUtil].getName}.sortablePrefix($c)")
+  }
+}
+
+/**
+ * 按事先算好的分位点把z-ordering值分到第几个文件，返回的是该文件对应的hash分区key，
+ * 见 [[ZOrderingIndexer.partitionKeys]]。
+ */
+case class ZOrderingBucket(child: Expression, bounds: Array[Long], keys: Array[Int]) extends UnaryExpression {
+  override def nullable: Boolean = false
+
+  override def dataType: DataType = IntegerType
+
+  override protected def nullSafeEval(input: Any): Any = {
+    keys(ZOrderingBytesUtil.bucket(input.asInstanceOf[Array[Byte]], bounds))
+  }
+
+  override protected def doGenCode(ctx: CodegenContext, ev: ExprCode): ExprCode = {
+    val boundsRef = ctx.addReferenceObj("bounds", bounds, "long[]")
+    val keysRef = ctx.addReferenceObj("keys", keys, "int[]")
+    defineCodeGen(ctx, ev, c => s"$keysRef[${classOf[ZOrderingBytesUtil].getName}.bucket($c, $boundsRef)]")
+  }
+}
+
+/**
+ * rank模式下用字段值在采样分位点里的位置代替原始值参与z-ordering/Hilbert计算，
+ * 数据倾斜时每个取值区间分到的bit更均匀，字符串也不再只看前8个字节。null 为0。
+ * bounds 按字段类型分别是 long[](long/int), double[](double/float), UTF8String[](string)。
+ */
+case class ZOrderingRank(child: Expression, bounds: AnyRef) extends UnaryExpression {
+  override def nullable: Boolean = false
+
+  override def dataType: DataType = LongType
+
+  override def eval(input: InternalRow): Any = {
+    ZOrderingRank.rank(child.dataType, child.eval(input), bounds)
+  }
+
+  override protected def doGenCode(ctx: CodegenContext, ev: ExprCode): ExprCode = {
+    val util = classOf[ZOrderingBytesUtil].getName
+    val eval = child.genCode(ctx)
+    val (boundsType, value) = child.dataType match {
+      case LongType => ("long[]", s"${eval.value}")
+      case IntegerType => ("long[]", s"(long) ${eval.value}")
+      case DoubleType => ("double[]", s"${eval.value}")
+      case FloatType => ("double[]", s"(double) ${eval.value}")
+      case StringType => (s"${classOf[UTF8String].getName}[]", s"${eval.value}")
+    }
+    val boundsRef = ctx.addReferenceObj("rankBounds", bounds, boundsType)
+    ev.copy(code =
+      code"""
+      ${eval.code}
+      long ${ev.value} = ${eval.isNull} ? 0L : $util.rank($value, $boundsRef);
+      """, isNull = FalseLiteral)
+  }
+
+  override def prettyName: String = "z_ordering_rank"
+}
+
+object ZOrderingRank {
+  val RAW = "raw"
+  val RANK = "rank"
+
+  def metaKey(name: String): String = s"rankBounds_${name}"
+
+  /**
+   * v是catalyst内部的值(字符串为UTF8String)
+   */
+  def rank(dataType: DataType, v: Any, bounds: AnyRef): Long = {
+    if (v == null) return 0L
+    dataType match {
+      case LongType => ZOrderingBytesUtil.rank(v.asInstanceOf[Long], bounds.asInstanceOf[Array[Long]])
+      case IntegerType => ZOrderingBytesUtil.rank(v.asInstanceOf[Int].toLong, bounds.asInstanceOf[Array[Long]])
+      case DoubleType => ZOrderingBytesUtil.rank(v.asInstanceOf[Double], bounds.asInstanceOf[Array[Double]])
+      case FloatType => ZOrderingBytesUtil.rank(v.asInstanceOf[Float].toDouble, bounds.asInstanceOf[Array[Double]])
+      case StringType => ZOrderingBytesUtil.rank(v.asInstanceOf[UTF8String], bounds.asInstanceOf[Array[UTF8String]])
+    }
+  }
+
+  /**
+   * 从采样值(catalyst内部值，不含null)里取buckets-1个等距分位点，升序去重
+   */
+  def bounds(dataType: DataType, values: Seq[Any], buckets: Int): AnyRef = {
+    def pick[T](sorted: Array[T]): Seq[T] = {
+      if (sorted.isEmpty) Seq() else (1 until buckets).map(i => sorted((i.toLong * sorted.length / buckets).toInt))
+    }
+
+    dataType match {
+      case LongType | IntegerType =>
+        pick(values.map(_.toString.toLong).toArray.sorted).distinct.toArray
+      case DoubleType | FloatType =>
+        val doubles = values.map(_.toString.toDouble).map(v => if (v == 0.0) 0.0 else v).toArray
+        java.util.Arrays.sort(doubles)
+        pick(doubles).distinct.toArray
+      case StringType =>
+        pick(values.map(_.asInstanceOf[UTF8String]).sortWith(_.compareTo(_) < 0).toArray).distinct.toArray
+    }
+  }
+
+  def toMetadata(builder: MetadataBuilder, name: String, dataType: DataType, bounds: AnyRef): MetadataBuilder = {
+    dataType match {
+      case LongType | IntegerType => builder.putLongArray(metaKey(name), bounds.asInstanceOf[Array[Long]])
+      case DoubleType | FloatType => builder.putDoubleArray(metaKey(name), bounds.asInstanceOf[Array[Double]])
+      case StringType => builder.putStringArray(metaKey(name), bounds.asInstanceOf[Array[UTF8String]].map(_.toString))
+    }
+  }
+
+  def fromMetadata(meta: Metadata, name: String, dataType: DataType): AnyRef = {
+    dataType match {
+      case LongType | IntegerType => meta.getLongArray(metaKey(name))
+      case DoubleType | FloatType => meta.getDoubleArray(metaKey(name))
+      case StringType => meta.getStringArray(metaKey(name)).map(UTF8String.fromString)
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package tech.mlsql.indexer.impl
+
+import java.net.URI
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.hadoop.fs.{FileStatus, Path}
+import org.apache.spark.sql.catalyst.expressions.{AttributeReference, Expression}
+import org.apache.spark.sql.catalyst.plans.Inner
+import org.apache.spark.sql.catalyst.plans.logical.{Filter, Join, LogicalPlan, Project, SubqueryAlias}
+import org.apache.spark.sql.execution.datasources.{FileIndex, HadoopFsRelation, LogicalRelation, PartitionDirectory}
+import org.apache.spark.sql.types.StructType
+import org.apache.spark.sql.{DataFrame, SparkSession, functions => F}
+import tech.mlsql.tool.ZOrderingBytesUtil
+
+/**
+ * 一个文件里z-ordering值的最小/最大值。path是解码后的绝对路径(URI.getPath)。
+ */
+case class ZOrderingFileStat(path: String, min: Array[Byte], max: Array[Byte], numRows: Long) {
+  def overlaps(ranges: Seq[(Array[Byte], Array[Byte])]): Boolean = {
+    ranges.exists { case (lower, upper) =>
+      ZOrderingFileIndex.compare(min, upper) <= 0 && ZOrderingFileIndex.compare(lower, max) <= 0
+    }
+  }
+}
+
+case class ZOrderingFileStats(column: String, files: Map[String, ZOrderingFileStat])
+
+/**
+ * 文件级的z-ordering索引，保存在表目录下的 _mlsql_zordering_index 目录里(spark列目录时会忽略_开头的文件)。
+ *
+ * 数据写完后通过 `run command as ZOrdering.`/tmp/table` where action="buildFileIndex"` 生成，
+ * 查询改写时用它在生成执行计划之前把和z-ordering区间不相交的文件去掉。
+ * 索引里没有的文件(比如后来追加的)总是保留。
+ */
+object ZOrderingFileIndex {
+  val INDEX_DIR = "_mlsql_zordering_index"
+
+  // key是索引目录，value是(目录修改时间, 索引)
+  private val cache = new ConcurrentHashMap[String, (Long, ZOrderingFileStats)]()
+
+  def compare(a: Array[Byte], b: Array[Byte]): Int = {
+    ZOrderingBytesUtil.compareTo(a, 0, a.length, b, 0, b.length)
+  }
+
+  def normalize(path: String): String = new URI(path).getPath
+
+  def build(session: SparkSession, path: String, format: String): DataFrame = {
+    val df = session.read.format(format).load(path)
+    val column = df.schema.fields.map(_.name).find(_.startsWith("__mlsql_indexer_zordering")).getOrElse {
+      throw new RuntimeException(s"${path} has no z-ordering column")
+    }
+    //只读z-ordering这一列
+    val stats = df.select(F.input_file_name().as("path"), F.col(column).as("z")).
+      groupBy("path").
+      agg(F.min("z"), F.max("z"), F.count(F.lit(1))).
+      collect().map { row =>
+      ZOrderingFileStat(normalize(row.getString(0)), row.getAs[Array[Byte]](1), row.getAs[Array[Byte]](2), row.getLong(3))
+    }
+    val indexDF = session.createDataFrame(stats.toSeq).withColumn("column", F.lit(column))
+    indexDF.write.mode("overwrite").parquet(new Path(path, INDEX_DIR).toString)
+    indexDF
+  }
+
+  def load(session: SparkSession, root: Path): Option[ZOrderingFileStats] = {
+    val dir = new Path(root, INDEX_DIR)
+    val fs = dir.getFileSystem(session.sessionState.newHadoopConf())
+    if (!fs.exists(dir)) return None
+    val modified = fs.getFileStatus(dir).getModificationTime
+    val cached = cache.get(dir.toString)
+    if (cached != null && cached._1 == modified) return Some(cached._2)
+
+    val rows = session.read.parquet(dir.toString).collect()
+    if (rows.isEmpty) return None
+    val stats = ZOrderingFileStats(rows.head.getAs[String]("column"), rows.map { row =>
+      val stat = ZOrderingFileStat(row.getAs[String]("path"), row.getAs[Array[Byte]]("min"),
+        row.getAs[Array[Byte]]("max"), row.getAs[Long]("numRows"))
+      (stat.path, stat)
+    }.toMap)
+    cache.put(dir.toString, (modified, stats))
+    Some(stats)
+  }
+
+  /**
+   * 把plan里包含indexerAttr的文件表替换成只列出相交文件的表。
+   * 只穿过不改变行集合语义的节点(确定性的Project, Filter, SubqueryAlias, inner join)，
+   * 其他节点(比如窗口函数，聚合)下面少了数据会改变结果。
+   */
+  def prune(plan: LogicalPlan, indexerAttr: AttributeReference, ranges: Seq[(Array[Byte], Array[Byte])]): LogicalPlan = {
+    plan match {
+      case p: Project if p.projectList.forall(_.deterministic) =>
+        p.withNewChildren(Seq(prune(p.child, indexerAttr, ranges)))
+      case f: Filter if f.condition.deterministic =>
+        f.withNewChildren(Seq(prune(f.child, indexerAttr, ranges)))
+      case a: SubqueryAlias =>
+        a.withNewChildren(Seq(prune(a.child, indexerAttr, ranges)))
+      case j: Join if j.joinType == Inner =>
+        j.withNewChildren(j.children.map(prune(_, indexerAttr, ranges)))
+      case l@LogicalRelation(fs: HadoopFsRelation, _, _, _)
+        if l.output.exists(_.exprId == indexerAttr.exprId) && fs.location.rootPaths.size == 1 =>
+        load(fs.sparkSession, fs.location.rootPaths.head) match {
+          case Some(stats) if stats.column == indexerAttr.name =>
+            val location = new ZOrderingPrunedFileIndex(fs.location, stats.files, ranges)
+            l.copy(relation = fs.copy(location = location)(fs.sparkSession))
+          case _ => l
+        }
+      case other => other
+    }
+  }
+}
+
+class ZOrderingPrunedFileIndex(delegate: FileIndex,
+                               stats: Map[String, ZOrderingFileStat],
+                               ranges: Seq[(Array[Byte], Array[Byte])]) extends FileIndex {
+
+  private def keep(path: String): Boolean = {
+    stats.get(path).forall(_.overlaps(ranges))
+  }
+
+  private def keepFile(file: FileStatus): Boolean = keep(file.getPath.toUri.getPath)
+
+  override def rootPaths: Seq[Path] = delegate.rootPaths
+
+  override def listFiles(partitionFilters: Seq[Expression], dataFilters: Seq[Expression]): Seq[PartitionDirectory] = {
+    delegate.listFiles(partitionFilters, dataFilters).map { partition =>
+      PartitionDirectory(partition.values, partition.files.filter(keepFile))
+    }.filter(_.files.nonEmpty)
+  }
+
+  override def inputFiles: Array[String] = delegate.inputFiles.filter(f => keep(new Path(f).toUri.getPath))
+
+  override def refresh(): Unit = delegate.refresh()
+
+  // 用于broadcast等基于大小的决策，只算保留下来的文件
+  override lazy val sizeInBytes: Long = listFiles(Nil, Nil).flatMap(_.files).map(_.getLen).sum
+
+  override def partitionSchema: StructType = delegate.partitionSchema
+}
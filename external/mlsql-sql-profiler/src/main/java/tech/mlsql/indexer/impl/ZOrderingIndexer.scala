@@ -1,17 +1,20 @@
 package tech.mlsql.indexer.impl
 
-import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, Cast, Descending, EqualTo, Expression, LessThanOrEqual, Literal, NullsLast, SortOrder}
+import org.apache.spark.sql.catalyst.CatalystTypeConverters
+import org.apache.spark.sql.catalyst.expressions.aggregate.ApproximatePercentile
+import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, Expression, LessThanOrEqual, Literal, Or}
 import org.apache.spark.sql.catalyst.plans.logical.{Filter, LogicalPlan}
 import org.apache.spark.sql.types._
-import org.apache.spark.sql.{DataFrame, Row, SparkAgent, functions => F}
+import org.apache.spark.sql.{Column, DataFrame, functions => F}
+import org.apache.spark.unsafe.hash.Murmur3_x86_32
 import streaming.dsl.ScriptSQLExec
 import tech.mlsql.common.utils.Md5
 import tech.mlsql.indexer.MLSQLIndexer
 import tech.mlsql.tool.LPUtils.splitConjunctivePredicates
-import tech.mlsql.tool.{LPUtils, ZOrderingBytesUtil}
+import tech.mlsql.tool.ZOrderingRangeUtil.ZBox
+import tech.mlsql.tool.{LPUtils, ZOrderingBytesUtil, ZOrderingRangeUtil}
 
 import scala.collection.mutable
-import scala.collection.mutable.ArrayBuffer
 
 /**
  * 31/12/2020 WilliamZhu(allwefantasy@gmail.com)
@@ -44,130 +47,54 @@ class ZOrderingIndexer extends MLSQLIndexer {
       val fields = meta.getStringArray("indexFields")
       //val nameToFiledMapping = schema.fields.map(item => (item.name, item))
       val zOrderingFields = fields.map(f => nameToFiledMapping(s"${table}#${f}")).map(item => ZOrderingField(item, meta))
-      ZOrderingInfo(table, zOrderingFields)
+      val curve = if (meta.contains("curve")) meta.getString("curve") else ZOrderingValue.Z_ORDER
+      ZOrderingInfo(table, zOrderingFields, curve)
     }
 
     if (zOrderingInfos.size == 0) return lp
 
+    val maxRanges = options.get("maxRanges").map(_.toInt).getOrElse(ZOrderingIndexer.DEFAULT_MAX_RANGES)
+
     //找到过滤条件，只关注and条件，处理完成后合并回去
     val newlp = lp transform {
       case Filter(condition: Expression, child: LogicalPlan) =>
         //展开所有and条件，获取所有属性
         val ands = splitConjunctivePredicates(condition)
 
-        val targetFields = ArrayBuffer[ZOrderingTargetField]();
-
-        //先抽取equal，必须是attributeRef + literal 且是在索引字段里的。缺失的用最大最小值补上。
-        //最后转化为z-ordering值 然后加一个and条件放到第一个位置
-        ands.foreach { item =>
-          item match {
-            case EqualTo(left@AttributeReference(name, _, _, _), right@Cast(Literal(v, _), _, _)) =>
-              targetFields += ZOrderingTargetField(left, v)
-            case EqualTo(left@AttributeReference(name, _, _, _), Literal(v, _)) =>
-              targetFields += ZOrderingTargetField(left, v)
-
-            case EqualTo(left@Cast(Literal(v, _), _, _), right@AttributeReference(name, _, _, _)) =>
-              targetFields += ZOrderingTargetField(right, v)
-
-            case EqualTo(Literal(v, _), right@AttributeReference(name, _, _, _)) =>
-              targetFields += ZOrderingTargetField(right, v)
-            case _ =>
-
-          }
-        }
-
-        val newAnds = zOrderingInfos.map { info =>
-          //构建索引查询
-          val fieldsWithValue = info.fields.map { item =>
-            val targetField = targetFields.filter(tf => tf.attribute.exprId == item.attribute.exprId).headOption
-            targetField.map { tf =>
-              val v = tf.attribute.dataType match {
-                case LongType =>
-                  tf.value.toString.toLong
-                case DoubleType =>
-                  tf.value.toString.toDouble
-
-                case IntegerType =>
-                  tf.value.toString.toLong
-
-                case FloatType =>
-                  tf.value.toString.toDouble
-
-                case StringType =>
-                  tf.value.toString
-              }
-              ZOrderingFieldWithMinMax(tf.attribute, v, v)
-            }.
-              getOrElse {
+        //抽取 attributeRef op literal 形式的条件(=, >, >=, <, <=, in, between)，每个索引字段转化为编码后的区间，
+        //没有条件的字段用最大最小值补上。然后把多维区间拆成有限个z-ordering区间，用or连接后放到第一个位置
+        val conditions = ZOrderingPredicates.extract(ands)
 
-                val (min, max) = item.attribute.dataType match {
-                  case LongType =>
-                    (item.meta.getLong("min_" + item.attribute.name),
-                      item.meta.getLong("max_" + item.attribute.name)
-                    )
-                  case DoubleType =>
-                    (item.meta.getDouble("min_" + item.attribute.name),
-                      item.meta.getDouble("max_" + item.attribute.name)
-                    )
-
-                  case IntegerType =>
-                    (item.meta.getLong("min_" + item.attribute.name),
-                      item.meta.getLong("max_" + item.attribute.name)
-                    )
-
-                  case FloatType =>
-                    (item.meta.getDouble("min_" + item.attribute.name),
-                      item.meta.getDouble("max_" + item.attribute.name)
-                    )
-
-                  case StringType =>
-                    (item.meta.getString("min_" + item.attribute.name),
-                      item.meta.getString("max_" + item.attribute.name)
-                    )
-
-                }
-                ZOrderingFieldWithMinMax(item.attribute, min, max)
-              }
+        val zRanges = zOrderingInfos.flatMap { info =>
+          val fieldConditions = info.fields.map { item =>
+            conditions.filter(_.attribute.exprId == item.attribute.exprId)
           }
-          val minMaxBytesZip = fieldsWithValue.map { item =>
-            item.attribute.dataType match {
-              case LongType =>
-                (
-                  ZOrderingBytesUtil.longTo8Byte(item.min.asInstanceOf[Long]),
-                  ZOrderingBytesUtil.longTo8Byte(item.max.asInstanceOf[Long])
-                )
-              case DoubleType =>
-                (
-                  ZOrderingBytesUtil.doubleTo8Byte(item.min.asInstanceOf[Double]),
-                  ZOrderingBytesUtil.doubleTo8Byte(item.max.asInstanceOf[Double])
-                )
-
-              case IntegerType =>
-                (
-                  ZOrderingBytesUtil.longTo8Byte(item.min.asInstanceOf[Long]),
-                  ZOrderingBytesUtil.longTo8Byte(item.max.asInstanceOf[Long])
-                )
-
-              case FloatType =>
-                (
-                  ZOrderingBytesUtil.doubleTo8Byte(item.min.asInstanceOf[Double]),
-                  ZOrderingBytesUtil.doubleTo8Byte(item.max.asInstanceOf[Double])
-                )
-
-              case StringType =>
-                (
-                  ZOrderingBytesUtil.utf8To8Byte(item.min.asInstanceOf[String]),
-                  ZOrderingBytesUtil.utf8To8Byte(item.max.asInstanceOf[String])
-                )
-
+          //索引字段上都没有条件时，索引过滤不掉任何数据
+          if (fieldConditions.forall(_.isEmpty)) {
+            None
+          } else {
+            val intervals = info.fields.zip(fieldConditions).map { case (item, cs) =>
+              ZOrderingPredicates.intervals(item, cs)
+            }
+            //条件本身不可能满足，交给原来的过滤条件
+            if (intervals.exists(_.isEmpty)) {
+              None
+            } else {
+              val indexerAttr = tableWithColumns(info.table).filter(_.name.startsWith("__mlsql_indexer_zordering")).head
+              Some((indexerAttr, ZOrderingIndexer.ranges(info.curve, intervals, maxRanges)))
             }
           }
-          val indexerAttr = tableWithColumns(info.table).filter(_.name.startsWith("__mlsql_indexer_zordering")).head
-          val minBytes = ZOrderingBytesUtil.interleaveMulti8Byte(minMaxBytesZip.map(_._1).toArray)
-          val maxBytes = ZOrderingBytesUtil.interleaveMulti8Byte(minMaxBytesZip.map(_._2).toArray)
-          And(LessThanOrEqual(indexerAttr, Literal(maxBytes, BinaryType)), LessThanOrEqual(Literal(minBytes, BinaryType), indexerAttr))
         }
-        Filter((newAnds ++ ands).reduce(And), child)
+        val newAnds = zRanges.map { case (indexerAttr, ranges) =>
+          ranges.map { case (minBytes, maxBytes) =>
+            And(LessThanOrEqual(indexerAttr, Literal(maxBytes, BinaryType)), LessThanOrEqual(Literal(minBytes, BinaryType), indexerAttr))
+          }.reduce[Expression](Or)
+        }
+        //有文件级索引时，在生成执行计划前就把z-ordering区间不相交的文件去掉
+        val prunedChild = zRanges.foldLeft(child) { case (plan, (indexerAttr, ranges)) =>
+          ZOrderingFileIndex.prune(plan, indexerAttr, ranges)
+        }
+        Filter((newAnds ++ ands).reduce(And), prunedChild)
       //        Filter((newAnds ).reduce(And), child)
     }
 
@@ -186,69 +113,160 @@ class ZOrderingIndexer extends MLSQLIndexer {
       val newitem = columnsMap(item)
       (df.schema.fields.indexOf(newitem), newitem)
     }
-    val fieldNum = df.schema.fields.length
-    val newRDD = df.rdd.map { row =>
-      val values = indexFields.map { case (index, field) =>
-        field.dataType match {
+    val output = df.queryExecution.analyzed.output
+    val indexColumns = indexFields.map { case (index, _) => output(index) }
+
+    //curve: zorder(默认)/hilbert，normalize: raw(默认，直接用8字节编码)/rank(用采样分位点里的位置)
+    val curve = options.getOrElse("curve", ZOrderingValue.Z_ORDER)
+    val normalize = options.getOrElse("normalize", ZOrderingRank.RAW)
+    if (curve != ZOrderingValue.Z_ORDER && curve != ZOrderingValue.HILBERT) {
+      throw new RuntimeException(s"curve should be ${ZOrderingValue.Z_ORDER} or ${ZOrderingValue.HILBERT}")
+    }
+    if (normalize != ZOrderingRank.RAW && normalize != ZOrderingRank.RANK) {
+      throw new RuntimeException(s"normalize should be ${ZOrderingRank.RAW} or ${ZOrderingRank.RANK}")
+    }
+    val rankMode = normalize == ZOrderingRank.RANK
+
+    //z-ordering值直接在UnsafeRow上计算(代码生成)，不再转换成RDD[Row]
+    val rawValue = ZOrderingValue(indexColumns, curve)
+    val fileNum = options.get("fileNum").map(_.toInt).getOrElse(df.sparkSession.sessionState.conf.numShufflePartitions)
+
+    //一次聚合同时收集每个字段的min/max/非null数，以及z-ordering值的分位点
+    val fieldStats = indexFields.flatMap(item => Seq(
+      F.min(new Column(output(item._1))), F.max(new Column(output(item._1))), F.count(new Column(output(item._1)))))
+    val percentages = (1 until fileNum).map(_.toDouble / fileNum)
+    //rank模式下z-ordering值依赖采样得到的分位点，文件的分位点也从采样里计算
+    val quantiles = if (percentages.isEmpty || rankMode) Seq() else Seq(new Column(new ApproximatePercentile(
+      ZOrderingPrefix(rawValue),
+      Literal.create(percentages.toArray, ArrayType(DoubleType)),
+      Literal(Math.max(ApproximatePercentile.DEFAULT_PERCENTILE_ACCURACY, fileNum * 100))).toAggregateExpression()))
+    val stats = fieldStats ++ Seq(F.count(F.lit(1))) ++ quantiles
+    val statsRow = df.agg(stats.head, stats.tail: _*).collect().head
+
+    val newFiledName = Md5.md5Hash(indexFields.map(_._2.name).mkString(""))
+    val metabuilder = new MetadataBuilder()
+
+    val total = statsRow.getLong(fieldStats.length)
+    val colStatGroups = statsRow.toSeq.take(fieldStats.length).grouped(3).toList
+    indexFields.zip(colStatGroups).foreach { case (field, Seq(min, max, count)) =>
+      //全部是null时没有min/max
+      if (min != null) {
+        field._2.dataType match {
           case LongType =>
-            ZOrderingBytesUtil.longTo8Byte(row.getLong(index))
+            metabuilder.putLong(s"min_${field._2.name}", min.asInstanceOf[Long])
+            metabuilder.putLong(s"max_${field._2.name}", max.asInstanceOf[Long])
           case DoubleType =>
-            ZOrderingBytesUtil.doubleTo8Byte(row.getDouble(index))
+            metabuilder.putDouble(s"min_${field._2.name}", min.asInstanceOf[Double])
+            metabuilder.putDouble(s"max_${field._2.name}", max.asInstanceOf[Double])
           case IntegerType =>
-            ZOrderingBytesUtil.intTo8Byte(row.getInt(index))
+            metabuilder.putLong(s"min_${field._2.name}", min.asInstanceOf[Int].toLong)
+            metabuilder.putLong(s"max_${field._2.name}", max.asInstanceOf[Int].toLong)
           case FloatType =>
-            ZOrderingBytesUtil.doubleTo8Byte(row.getFloat(index).toDouble)
+            metabuilder.putDouble(s"min_${field._2.name}", min.asInstanceOf[Float].toDouble)
+            metabuilder.putDouble(s"max_${field._2.name}", max.asInstanceOf[Float].toDouble)
           case StringType =>
-            ZOrderingBytesUtil.utf8To8Byte(row.getString(index))
+            metabuilder.putString(s"min_${field._2.name}", min.asInstanceOf[String])
+            metabuilder.putString(s"max_${field._2.name}", max.asInstanceOf[String])
         }
       }
-      val zOrderingValue = ZOrderingBytesUtil.interleaveMulti8Byte(values)
-      Row.fromSeq(row.toSeq ++ Seq(zOrderingValue))
+      //null的z-ordering编码是全0，查询时没有条件的字段需要包含它
+      metabuilder.putBoolean(s"hasNull_${field._2.name}", count.asInstanceOf[Long] < total)
     }
-    //.sortBy(x => ZOrderingBinarySort(x.getAs[Array[Byte]](fieldNum)))
 
-    val newFiledName = Md5.md5Hash(indexFields.map(_._2.name).mkString(""))
-    val metabuilder = new MetadataBuilder()
-
-    //collect min/max value in every field
-    val values = indexFields.flatMap(item => Seq(F.min(F.col(item._2.name)), F.max(F.col(item._2.name))))
-    val minMaxCols = df.agg(values(0), values.slice(1, values.length): _*).collect().head
-    val colMinMaxGroups = minMaxCols.toSeq.grouped(2).toList
-    indexFields.zip(colMinMaxGroups).foreach { case (field, minMax) =>
-      field._2.dataType match {
-        case LongType =>
-          metabuilder.putLong(s"min_${field._2.name}", minMax(0).asInstanceOf[Long])
-          metabuilder.putLong(s"max_${field._2.name}", minMax(1).asInstanceOf[Long])
-        case DoubleType =>
-          metabuilder.putDouble(s"min_${field._2.name}", minMax(0).asInstanceOf[Double])
-          metabuilder.putDouble(s"max_${field._2.name}", minMax(1).asInstanceOf[Double])
-        case IntegerType =>
-          metabuilder.putLong(s"min_${field._2.name}", minMax(0).asInstanceOf[Int].toLong)
-          metabuilder.putLong(s"max_${field._2.name}", minMax(1).asInstanceOf[Int].toLong)
-        case FloatType =>
-          metabuilder.putDouble(s"min_${field._2.name}", minMax(0).asInstanceOf[Float].toDouble)
-          metabuilder.putDouble(s"max_${field._2.name}", minMax(1).asInstanceOf[Float].toDouble)
-        case StringType =>
-          metabuilder.putString(s"min_${field._2.name}", minMax(0).asInstanceOf[String])
-          metabuilder.putString(s"max_${field._2.name}", minMax(1).asInstanceOf[String])
+    val (zOrderingValue, bounds) = if (rankMode) {
+      val buckets = options.get("rankBuckets").map(_.toInt).getOrElse(ZOrderingIndexer.DEFAULT_RANK_BUCKETS)
+      val sampleSize = options.get("rankSampleSize").map(_.toInt).getOrElse(ZOrderingIndexer.DEFAULT_RANK_SAMPLE_SIZE)
+      val fraction = if (total == 0) 1.0 else Math.min(1.0, sampleSize.toDouble / total)
+      val sample = df.select(indexColumns.map(new Column(_)): _*).sample(false, fraction).collect().map { row =>
+        indexFields.indices.map(i => CatalystTypeConverters.convertToCatalyst(row.get(i))).toArray
       }
+      val rankBounds = indexFields.zipWithIndex.map { case ((_, field), i) =>
+        val b = ZOrderingRank.bounds(field.dataType, sample.map(_ (i)).filter(_ != null), buckets)
+        ZOrderingRank.toMetadata(metabuilder, field.name, field.dataType, b)
+        b
+      }
+      val sampleKeys = sample.map { values =>
+        val sortables = indexFields.indices.map { i =>
+          ZOrderingBytesUtil.longToSortable(ZOrderingRank.rank(indexFields(i)._2.dataType, values(i), rankBounds(i)))
+        }.toArray
+        ZOrderingBytesUtil.sortablePrefix(ZOrderingValue.key(curve, sortables))
+      }.sorted
+      val fileBounds = if (sampleKeys.isEmpty) Array[Long]()
+      else (1 until fileNum).map(i => sampleKeys((i.toLong * sampleKeys.length / fileNum).toInt)).distinct.toArray
+      (ZOrderingValue(indexColumns.zip(rankBounds).map { case (c, b) => ZOrderingRank(c, b) }, curve), fileBounds)
+    } else {
+      val fileBounds = if (quantiles.isEmpty || statsRow.isNullAt(stats.length - 1)) Array[Long]()
+      else statsRow.getSeq[Long](stats.length - 1).distinct.sorted.toArray
+      (rawValue, fileBounds)
     }
 
-    val meta = metabuilder.putStringArray("indexFields", indexFields.map(_._2.name)).build()
-    var newDF = df.sparkSession.createDataFrame(newRDD, StructType(
-      df.schema.fields ++ Seq(
-        StructField(s"__mlsql_indexer_zordering_${newFiledName}",
-          BinaryType, false, meta))
-    ))
-    //    import df.sparkSession.implicits._
-    val sort = SparkAgent.createColumn(SortOrder(F.col(s"__mlsql_indexer_zordering_${newFiledName}").expr, Descending, NullsLast, Set.empty))
-    newDF = if (!options.contains("fileNum")) {
-      newDF.repartitionByRange(sort)
-    } else {
-      newDF.repartitionByRange(options("fileNum").toInt, sort)
+    val meta = metabuilder.putStringArray("indexFields", indexFields.map(_._2.name)).
+      putString("curve", curve).
+      putString("normalize", normalize).
+      build()
+    val zOrderingColumnName = s"__mlsql_indexer_zordering_${newFiledName}"
+    val newDF = df.select(output.map(new Column(_)) :+ new Column(zOrderingValue).as(zOrderingColumnName, meta): _*)
+
+    //按分位点把z-ordering值连续的数据放到同一个文件，文件内按z-ordering值排序，
+    //这样不需要repartitionByRange再扫描一遍数据做采样
+    val bucket = new Column(ZOrderingBucket(newDF.col(zOrderingColumnName).expr, bounds, ZOrderingIndexer.partitionKeys(fileNum)))
+    Option(newDF.repartition(fileNum, bucket).sortWithinPartitions(newDF.col(zOrderingColumnName)))
+  }
+}
+
+object ZOrderingIndexer {
+  // 索引过滤条件里最多包含的z-ordering区间数
+  val DEFAULT_MAX_RANGES = 16
+
+  // rank模式下每个字段的分位点个数以及采样的行数
+  val DEFAULT_RANK_BUCKETS = 1024
+  val DEFAULT_RANK_SAMPLE_SIZE = 100000
+
+  /**
+   * 各索引字段在编码空间里的区间转化为索引列(z-ordering或者Hilbert值)上的区间
+   */
+  def ranges(curve: String, intervals: Seq[Seq[(Long, Long)]], maxRanges: Int): Seq[(Array[Byte], Array[Byte])] = {
+    val zBoxes = boxes(intervals, maxRanges)
+    if (curve == ZOrderingValue.HILBERT) ZOrderingRangeUtil.hilbertRanges(zBoxes, maxRanges)
+    else ZOrderingRangeUtil.ranges(zBoxes, maxRanges)
+  }
+
+  /**
+   * repartition(n, col) 按 pmod(murmur3(col, 42), n) 分区(和bucket表一致)。
+   * 这里为每个分区找一个int key，这样第i个z-ordering区间刚好落在第i个分区，不会有hash冲突。
+   */
+  def partitionKeys(numPartitions: Int): Array[Int] = {
+    val keys = Array.fill(numPartitions)(-1)
+    var found = 0
+    var key = 0
+    while (found < numPartitions) {
+      val hash = Murmur3_x86_32.hashInt(key, 42) % numPartitions
+      val partition = if (hash < 0) hash + numPartitions else hash
+      if (keys(partition) == -1) {
+        keys(partition) = key
+        found += 1
+      }
+      key += 1
     }
+    keys
+  }
 
-    Option(newDF)
+  /**
+   * 各字段的区间做笛卡尔积得到box，个数超过maxRanges时把区间最多的字段合并成一个区间。
+   */
+  def boxes(intervals: Seq[Seq[(Long, Long)]], maxRanges: Int): Seq[ZBox] = {
+    val perField = intervals.toArray
+    while (perField.map(item => BigInt(item.size)).product > maxRanges) {
+      val widest = perField.indices.maxBy(perField(_).size)
+      val merged = perField(widest)
+      perField(widest) = Seq((
+        merged.map(_._1).reduce((a, b) => if (java.lang.Long.compareUnsigned(a, b) <= 0) a else b),
+        merged.map(_._2).reduce((a, b) => if (java.lang.Long.compareUnsigned(a, b) >= 0) a else b)
+      ))
+    }
+    perField.foldLeft(Seq(Seq[(Long, Long)]())) { (acc, item) =>
+      for (prefix <- acc; interval <- item) yield prefix :+ interval
+    }.map(item => ZBox(item.map(_._1).toArray, item.map(_._2).toArray))
   }
 }
 
@@ -262,8 +280,4 @@ case class ZOrderingBinarySort(v: Array[Byte]) extends Ordered[ZOrderingBinarySo
 
 case class ZOrderingField(attribute: AttributeReference, meta: Metadata)
 
-case class ZOrderingFieldWithMinMax(attribute: AttributeReference, min: Any, max: Any)
-
-case class ZOrderingInfo(table: String, fields: Seq[ZOrderingField])
-
-case class ZOrderingTargetField(attribute: AttributeReference, value: Any)
+case class ZOrderingInfo(table: String, fields: Seq[ZOrderingField], curve: String = ZOrderingValue.Z_ORDER)
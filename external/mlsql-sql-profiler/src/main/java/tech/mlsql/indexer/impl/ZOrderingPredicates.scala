@@ -0,0 +1,263 @@
+package tech.mlsql.indexer.impl
+
+import org.apache.spark.sql.catalyst.expressions.{AttributeReference, Cast, EqualTo, Expression, GreaterThan, GreaterThanOrEqual, In, InSet, LessThan, LessThanOrEqual, Literal}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import tech.mlsql.tool.{ZOrderingBytesUtil, ZOrderingRangeUtil}
+
+import scala.util.Try
+
+/**
+ * 索引字段上的一个查询条件。lower/upper的第二个值表示是否包含边界，points是in/equal给出的取值。
+ */
+case class ZOrderingCondition(attribute: AttributeReference,
+                              lower: Option[(Any, Boolean)],
+                              upper: Option[(Any, Boolean)],
+                              points: Option[Seq[Any]])
+
+object ZOrderingPredicates {
+
+  private object LiteralValue {
+    def unapply(e: Expression): Option[Any] = e match {
+      case Literal(v, _) if v != null => Some(v)
+      case Cast(Literal(v, _), _, _) if v != null => Some(v)
+      case _ => None
+    }
+  }
+
+  /**
+   * 从and条件中抽取 attributeRef op literal 形式的条件，支持 =, >, >=, <, <=, in。
+   * between 在解析时已经展开成 >= and <=
+   */
+  def extract(ands: Seq[Expression]): Seq[ZOrderingCondition] = {
+    ands.flatMap {
+      case EqualTo(a: AttributeReference, LiteralValue(v)) => Some(ZOrderingCondition(a, None, None, Some(Seq(v))))
+      case EqualTo(LiteralValue(v), a: AttributeReference) => Some(ZOrderingCondition(a, None, None, Some(Seq(v))))
+
+      case GreaterThan(a: AttributeReference, LiteralValue(v)) => Some(ZOrderingCondition(a, Some((v, false)), None, None))
+      case GreaterThan(LiteralValue(v), a: AttributeReference) => Some(ZOrderingCondition(a, None, Some((v, false)), None))
+      case GreaterThanOrEqual(a: AttributeReference, LiteralValue(v)) => Some(ZOrderingCondition(a, Some((v, true)), None, None))
+      case GreaterThanOrEqual(LiteralValue(v), a: AttributeReference) => Some(ZOrderingCondition(a, None, Some((v, true)), None))
+
+      case LessThan(a: AttributeReference, LiteralValue(v)) => Some(ZOrderingCondition(a, None, Some((v, false)), None))
+      case LessThan(LiteralValue(v), a: AttributeReference) => Some(ZOrderingCondition(a, Some((v, false)), None, None))
+      case LessThanOrEqual(a: AttributeReference, LiteralValue(v)) => Some(ZOrderingCondition(a, None, Some((v, true)), None))
+      case LessThanOrEqual(LiteralValue(v), a: AttributeReference) => Some(ZOrderingCondition(a, Some((v, true)), None, None))
+
+      case In(a: AttributeReference, list) if list.forall(LiteralValue.unapply(_).isDefined) =>
+        Some(ZOrderingCondition(a, None, None, Some(list.flatMap(LiteralValue.unapply))))
+      case InSet(a: AttributeReference, set) if !set.contains(null) =>
+        Some(ZOrderingCondition(a, None, None, Some(set.toSeq)))
+      case _ => None
+    }
+  }
+
+  /**
+   * 字段在编码空间(8字节，按无符号long比较)里的闭区间。返回空表示条件不可能满足。
+   */
+  def intervals(field: ZOrderingField, conditions: Seq[ZOrderingCondition]): Seq[(Long, Long)] = {
+    val result = if (field.meta.contains(ZOrderingRank.metaKey(field.attribute.name))) {
+      new RankDimension(field).intervals(field, conditions)
+    } else field.attribute.dataType match {
+      case LongType => LongDimension.intervals(field, conditions)
+      case IntegerType => IntDimension.intervals(field, conditions)
+      case DoubleType => DoubleDimension.intervals(field, conditions)
+      case FloatType => FloatDimension.intervals(field, conditions)
+      case StringType => StringDimension.intervals(field, conditions)
+    }
+    //null编码为全0，只有字段上没有任何条件时才可能命中
+    val hasNull = s"hasNull_${field.attribute.name}"
+    if (conditions.isEmpty && field.meta.contains(hasNull) && field.meta.getBoolean(hasNull)) {
+      result.map { case (_, upper) => (0L, upper) }
+    } else result
+  }
+}
+
+/**
+ * 各类型的编码只在部分区间上单调(比如负数和非负数分别单调)，所以一个值区间的编码范围
+ * 由区间端点以及落在区间里的分段点共同决定。
+ */
+private[impl] abstract class ZOrderingDimension[T](implicit ord: Ordering[T]) {
+
+  def parse(v: Any): T
+
+  def encode(v: T): Array[Byte]
+
+  def lowest(field: ZOrderingField): T
+
+  def highest(field: ZOrderingField): T
+
+  // 编码单调的各段的端点
+  protected def breakpoints(lower: T, upper: T): Seq[T] = Seq()
+
+  // 不含边界时的下界/上界，None 表示不存在这样的值
+  protected def after(v: T): Option[T] = Some(v)
+
+  protected def before(v: T): Option[T] = Some(v)
+
+  def hull(lower: T, upper: T): (Long, Long) = {
+    val encoded = (Seq(lower, upper) ++ breakpoints(lower, upper)).map(v => ZOrderingRangeUtil.toLong(encode(v)))
+    (encoded.reduce((a, b) => if (java.lang.Long.compareUnsigned(a, b) <= 0) a else b),
+      encoded.reduce((a, b) => if (java.lang.Long.compareUnsigned(a, b) >= 0) a else b))
+  }
+
+  def intervals(field: ZOrderingField, conditions: Seq[ZOrderingCondition]): Seq[(Long, Long)] = {
+    var lower: Option[T] = None
+    var upper: Option[T] = None
+    var points: Option[Seq[T]] = None
+    var empty = false
+
+    // 无法转换的字面量直接忽略该条件
+    conditions.foreach { c =>
+      c.lower.flatMap { case (v, inclusive) => Try(parse(v)).toOption.map(t => if (inclusive) Some(t) else after(t)) }.foreach {
+        case Some(t) => if (lower.forall(ord.lt(_, t))) lower = Some(t)
+        case None => empty = true
+      }
+      c.upper.flatMap { case (v, inclusive) => Try(parse(v)).toOption.map(t => if (inclusive) Some(t) else before(t)) }.foreach {
+        case Some(t) => if (upper.forall(ord.gt(_, t))) upper = Some(t)
+        case None => empty = true
+      }
+      c.points.flatMap(vs => Try(vs.map(parse)).toOption).foreach { ps =>
+        points = Some(points.map(_.filter(p => ps.exists(ord.equiv(_, p)))).getOrElse(ps))
+      }
+    }
+    if (empty) return Seq()
+
+    points match {
+      case Some(ps) =>
+        ps.filter(p => lower.forall(ord.lteq(_, p)) && upper.forall(ord.gteq(_, p)))
+          .distinct.map(p => hull(p, p))
+      case None =>
+        val l = lower.getOrElse(lowest(field))
+        val u = upper.getOrElse(highest(field))
+        if (ord.gt(l, u)) Seq() else Seq(hull(l, u))
+    }
+  }
+
+  protected def metaLong(field: ZOrderingField, key: String, default: Long): Long = {
+    val name = s"${key}_${field.attribute.name}"
+    if (field.meta.contains(name)) field.meta.getLong(name) else default
+  }
+
+  protected def metaDouble(field: ZOrderingField, key: String, default: Double): Double = {
+    val name = s"${key}_${field.attribute.name}"
+    if (field.meta.contains(name)) field.meta.getDouble(name) else default
+  }
+}
+
+private[impl] object LongDimension extends ZOrderingDimension[Long] {
+  override def parse(v: Any): Long = v.toString.toLong
+
+  override def encode(v: Long): Array[Byte] = ZOrderingBytesUtil.longTo8Byte(v)
+
+  override def lowest(field: ZOrderingField): Long = metaLong(field, "min", Long.MinValue)
+
+  override def highest(field: ZOrderingField): Long = metaLong(field, "max", Long.MaxValue)
+
+  // 负数按绝对值编码，在[-1, 0]处分段
+  override protected def breakpoints(lower: Long, upper: Long): Seq[Long] = {
+    Seq(-1L, 0L).filter(v => lower <= v && v <= upper)
+  }
+
+  override protected def after(v: Long): Option[Long] = if (v == Long.MaxValue) None else Some(v + 1)
+
+  override protected def before(v: Long): Option[Long] = if (v == Long.MinValue) None else Some(v - 1)
+}
+
+private[impl] object IntDimension extends ZOrderingDimension[Long] {
+  override def parse(v: Any): Long = v.toString.toLong
+
+  override def encode(v: Long): Array[Byte] = {
+    ZOrderingBytesUtil.intTo8Byte(Math.max(Int.MinValue, Math.min(Int.MaxValue, v)).toInt)
+  }
+
+  override def lowest(field: ZOrderingField): Long = metaLong(field, "min", Int.MinValue)
+
+  override def highest(field: ZOrderingField): Long = metaLong(field, "max", Int.MaxValue)
+
+  override protected def breakpoints(lower: Long, upper: Long): Seq[Long] = {
+    Seq(-1L, 0L).filter(v => lower <= v && v <= upper)
+  }
+
+  override protected def after(v: Long): Option[Long] = if (v == Long.MaxValue) None else Some(v + 1)
+
+  override protected def before(v: Long): Option[Long] = if (v == Long.MinValue) None else Some(v - 1)
+}
+
+/**
+ * 分段点按 java.lang.Double.compare 的全序取: -Infinity < ... < -0.0 < 0.0 < ... < Infinity < NaN
+ */
+private[impl] class DoubleDimension extends ZOrderingDimension[Double] {
+  override def parse(v: Any): Double = v.toString.toDouble
+
+  override def encode(v: Double): Array[Byte] = ZOrderingBytesUtil.doubleTo8Byte(v)
+
+  override def lowest(field: ZOrderingField): Double = metaDouble(field, "min", Double.NegativeInfinity)
+
+  // NaN 在spark里比任何值都大
+  override def highest(field: ZOrderingField): Double = metaDouble(field, "max", Double.NaN)
+
+  // 负数和正数分别单调，0.0/-0.0 的编码单独处理。spark认为 -0.0 = 0.0，所以区间包含任意一个0时两个都算上
+  override protected def breakpoints(lower: Double, upper: Double): Seq[Double] = {
+    val zeros = if (java.lang.Double.compare(lower, 0.0) <= 0 && java.lang.Double.compare(upper, -0.0) >= 0) Seq(-0.0, 0.0) else Seq()
+    zeros ++ Seq(-Double.MinPositiveValue, Double.MinPositiveValue, Double.NegativeInfinity, Double.PositiveInfinity)
+      .filter(v => java.lang.Double.compare(lower, v) <= 0 && java.lang.Double.compare(v, upper) <= 0)
+  }
+}
+
+private[impl] object DoubleDimension extends DoubleDimension
+
+/**
+ * float在写入时按 toDouble 编码，字面量也要先按float解析，比如 1.1f 编码的是 1.100000023841858 而不是 1.1
+ */
+private[impl] object FloatDimension extends DoubleDimension {
+  override def parse(v: Any): Double = v.toString.toFloat.toDouble
+}
+
+/**
+ * 字符串编码只保留前8个字节并且在左边补0，只有等值是精确的，范围条件不做过滤。
+ */
+private[impl] object StringDimension extends ZOrderingDimension[String] {
+  override def parse(v: Any): String = v.toString
+
+  override def encode(v: String): Array[Byte] = ZOrderingBytesUtil.utf8To8Byte(v)
+
+  // 没有等值条件时不会用到
+  override def lowest(field: ZOrderingField): String = ""
+
+  override def highest(field: ZOrderingField): String = ""
+
+  override def hull(lower: String, upper: String): (Long, Long) = {
+    if (lower == upper) super.hull(lower, upper) else (0L, -1L)
+  }
+
+  override def intervals(field: ZOrderingField, conditions: Seq[ZOrderingCondition]): Seq[(Long, Long)] = {
+    if (conditions.exists(_.points.isDefined)) super.intervals(field, conditions) else Seq((0L, -1L))
+  }
+}
+
+/**
+ * rank模式下字段的编码是值在分位点里的位置，对值单调，所以范围条件对所有类型(包括字符串)都有效。
+ * 不同的值可能落在同一个位置，不含边界的条件按含边界处理。
+ */
+private[impl] class RankDimension(field: ZOrderingField) extends ZOrderingDimension[Long] {
+  private val dataType = field.attribute.dataType
+  private val bounds = ZOrderingRank.fromMetadata(field.meta, field.attribute.name, dataType)
+
+  override def parse(v: Any): Long = {
+    val value = dataType match {
+      case LongType => v.toString.toLong
+      case IntegerType => v.toString.toInt
+      case DoubleType => v.toString.toDouble
+      case FloatType => v.toString.toFloat
+      case StringType => UTF8String.fromString(v.toString)
+    }
+    ZOrderingRank.rank(dataType, value, bounds)
+  }
+
+  override def encode(v: Long): Array[Byte] = ZOrderingBytesUtil.longTo8Byte(v)
+
+  override def lowest(field: ZOrderingField): Long = 1L
+
+  override def highest(field: ZOrderingField): Long = java.lang.reflect.Array.getLength(bounds) + 1L
+}
@@ -8,7 +8,7 @@ import streaming.dsl.mmlib.SQLAlg
 import streaming.dsl.mmlib.algs.param.WowParams
 import tech.mlsql.dsl.auth.ETAuth
 import tech.mlsql.dsl.auth.dsl.mmlib.ETMethod.ETMethod
-import tech.mlsql.indexer.impl.ZOrderingIndexer
+import tech.mlsql.indexer.impl.{ZOrderingFileIndex, ZOrderingIndexer}
 
 /**
  * 31/12/2020 WilliamZhu(allwefantasy@gmail.com)
@@ -21,6 +21,10 @@ class ZOrdering(override val uid: String) extends SQLAlg with ETAuth with WowPar
       import df.sparkSession.implicits._
       return df.sparkSession.createDataset[String](Seq(df.schema.json)).toDF("value")
     }
+    //数据写完后为path生成文件级索引
+    if (params.get("action").contains("buildFileIndex")) {
+      return ZOrderingFileIndex.build(df.sparkSession, path, params.getOrElse("format", "parquet"))
+    }
     if(!params.contains("indexFields")){
       throw new RuntimeException("indexFields is required")
     }
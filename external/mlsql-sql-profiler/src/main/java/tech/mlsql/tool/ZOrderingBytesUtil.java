@@ -17,9 +17,12 @@
  */
 package tech.mlsql.tool;
 
+import org.apache.spark.unsafe.Platform;
+import org.apache.spark.unsafe.types.UTF8String;
 import sun.misc.Unsafe;
 
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 /**
  * 所有列都表示为为8byte
@@ -191,6 +194,141 @@ public class ZOrderingBytesUtil {
         return result;
     }
 
+    /**
+     * 下面的xxxToSortable和对应的xxxTo8Byte编码完全一致，只是直接返回8字节对应的long(按无符号比较)，
+     * 不需要为每个值分配byte数组，供代码生成的ZOrderingValue使用。
+     */
+    public static long longToSortable(long a) {
+        long temp = a;
+        if (a < 0) {
+            temp = (~(a - 1)) ^ (1L << 63);
+        }
+        return temp ^ (1L << 63);
+    }
+
+    public static long intToSortable(int a) {
+        int temp = a;
+        if (a < 0) {
+            temp = (~(a - 1)) ^ (1 << 31);
+        }
+        temp = temp ^ (1 << 31);
+        return temp & 0xFFFFFFFFL;
+    }
+
+    public static long doubleToSortable(double a) {
+        long temp = Double.doubleToRawLongBits(a);
+        if (a > 0) {
+            return temp ^ (1L << 63);
+        }
+        if (a < 0) {
+            return ~temp;
+        }
+        return temp;
+    }
+
+    /**
+     * utf8字符串的前8个字节，不足8个字节时左边补0
+     */
+    public static long utf8ToSortable(Object base, long offset, int numBytes) {
+        int len = Math.min(numBytes, 8);
+        long result = 0L;
+        for (int i = 0; i < len; i++) {
+            result = (result << 8) | (Platform.getByte(base, offset + i) & 0xFF);
+        }
+        return result;
+    }
+
+    /**
+     * 和interleaveMulti8Byte结果一致，直接按bit从高到低交叉每个属性的long值
+     */
+    public static byte[] interleaveSortable(long[] values) {
+        int attributesNum = values.length;
+        byte[] result = new byte[8 * attributesNum];
+        int resBitPos = 0;
+        for (int bit = 63; bit >= 0; bit--) {
+            for (int i = 0; i < attributesNum; i++) {
+                if (((values[i] >>> bit) & 1L) != 0) {
+                    result[resBitPos >> 3] |= (byte) (0x80 >>> (resBitPos & 7));
+                }
+                resBitPos++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hilbert曲线上的位置，输入和interleaveSortable一样是每个属性按无符号比较的long，输出长度也一样。
+     * 算法来自 John Skilling, Programming the Hilbert curve(2004)：先把坐标原地转换成"转置"形式，
+     * 再按bit从高到低交叉就是Hilbert值。任何对齐的子立方体在曲线上都是连续的一段。
+     */
+    public static byte[] hilbertSortable(long[] values) {
+        int n = values.length;
+        long[] x = values.clone();
+        for (long q = 1L << 63; q != 1L; q >>>= 1) {
+            long p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    long t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        for (int i = 1; i < n; i++) {
+            x[i] ^= x[i - 1];
+        }
+        long t = 0;
+        for (long q = 1L << 63; q != 1L; q >>>= 1) {
+            if ((x[n - 1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] ^= t;
+        }
+        return interleaveSortable(x);
+    }
+
+    /**
+     * rank模式下字段值在升序且不重复的分位点里的位置：0表示null，否则是 1 + 小于等于该值的分位点个数。
+     * double按Double.compare的全序(和spark一致NaN最大)，-0.0当作0.0。
+     */
+    public static long rank(long v, long[] bounds) {
+        int i = Arrays.binarySearch(bounds, v);
+        return (i >= 0 ? i + 1 : -i - 1) + 1;
+    }
+
+    public static long rank(double v, double[] bounds) {
+        int i = Arrays.binarySearch(bounds, v == 0.0d ? 0.0d : v);
+        return (i >= 0 ? i + 1 : -i - 1) + 1;
+    }
+
+    public static long rank(UTF8String v, UTF8String[] bounds) {
+        int i = Arrays.binarySearch(bounds, v);
+        return (i >= 0 ? i + 1 : -i - 1) + 1;
+    }
+
+    /**
+     * z-ordering值的前8个字节，翻转符号位后按有符号long比较和字节序一致
+     */
+    public static long sortablePrefix(byte[] zValue) {
+        long result = 0L;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (zValue[i] & 0xFF);
+        }
+        return result ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * bounds 升序，返回z-ordering值所在的区间下标
+     */
+    public static int bucket(byte[] zValue, long[] bounds) {
+        int i = Arrays.binarySearch(bounds, sortablePrefix(zValue));
+        return i >= 0 ? i : -i - 1;
+    }
+
     /**
      * x在奇数位,y在偶数位
      */
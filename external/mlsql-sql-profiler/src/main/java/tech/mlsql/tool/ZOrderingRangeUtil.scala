@@ -0,0 +1,209 @@
+package tech.mlsql.tool
+
+import java.math.BigInteger
+import java.nio.ByteBuffer
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * 把多维查询区间转化为z-ordering值的区间。
+ *
+ * 每个维度都是8字节编码后(按无符号long比较)的闭区间[lower, upper]，所有维度构成一个box。
+ * box对应的最小/最大z值分别是lower/upper interleave的结果，但[zMin, zMax]里往往包含大量
+ * 不在box里的点。这里按照BIGMIN/LITMAX的思路，在zMin和zMax第一个不同的bit所属的维度上把box
+ * 一分为二：低半部分的上界是LITMAX，高半部分的下界是BIGMIN，中间的z值都不在box里。
+ * 每次挑选浪费(z区间长度-box体积)最大的box切分，直到区间数达到上限。
+ */
+object ZOrderingRangeUtil {
+
+  // 一个z-ordering区间不会切分太多次，防止box本身就很碎的时候空转
+  private val MAX_SPLITS = 1024
+
+  case class ZBox(lower: Array[Long], upper: Array[Long]) {
+    lazy val zMin: Array[Byte] = interleave(lower)
+    lazy val zMax: Array[Byte] = interleave(upper)
+
+    lazy val waste: BigInteger = {
+      val span = toBigInteger(zMax).subtract(toBigInteger(zMin)).add(BigInteger.ONE)
+      val volume = lower.zip(upper).map { case (l, u) =>
+        toBigInteger(u).subtract(toBigInteger(l)).add(BigInteger.ONE)
+      }.reduce(_.multiply(_))
+      span.subtract(volume)
+    }
+
+    /**
+     * 在zMin/zMax第一个不同的bit处切分，低半部分的zMax即LITMAX，高半部分的zMin即BIGMIN。
+     */
+    def split: Option[(ZBox, ZBox)] = {
+      val dims = lower.length
+      var dim = -1
+      var bit = 64
+      var pos = Int.MaxValue
+      (0 until dims).foreach { d =>
+        val diff = lower(d) ^ upper(d)
+        if (diff != 0) {
+          val b = java.lang.Long.numberOfLeadingZeros(diff)
+          if (b * dims + d < pos) {
+            pos = b * dims + d
+            dim = d
+            bit = b
+          }
+        }
+      }
+      if (dim < 0) return None
+
+      val highBit = 1L << (63 - bit)
+      val lowMask = if (bit == 63) 0L else -1L >>> (bit + 1)
+      val prefix = lower(dim) & ~(highBit | lowMask)
+
+      val litMax = upper.clone()
+      litMax(dim) = prefix | lowMask
+      val bigMin = lower.clone()
+      bigMin(dim) = prefix | highBit
+      Some((ZBox(lower, litMax), ZBox(bigMin, upper)))
+    }
+  }
+
+  def interleave(values: Array[Long]): Array[Byte] = {
+    ZOrderingBytesUtil.interleaveMulti8Byte(values.map(v => ZOrderingBytesUtil.toBytes(v)))
+  }
+
+  /**
+   * 8字节编码转为long，按无符号比较时和字节序一致
+   */
+  def toLong(bytes: Array[Byte]): Long = ByteBuffer.wrap(bytes).getLong
+
+  def toBigInteger(bytes: Array[Byte]): BigInteger = new BigInteger(1, bytes)
+
+  def toBigInteger(v: Long): BigInteger = toBigInteger(ZOrderingBytesUtil.toBytes(v))
+
+  /**
+   * 返回覆盖所有box的z值闭区间，按起点排序且互不相邻，个数不超过maxRanges(除非box本身就更多)。
+   */
+  def ranges(boxes: Seq[ZBox], maxRanges: Int): Seq[(Array[Byte], Array[Byte])] = {
+    val current = ArrayBuffer[ZBox](boxes: _*)
+    var result = merge(current)
+    var splits = 0
+    var done = false
+    while (!done && splits < MAX_SPLITS) {
+      val candidates = current.filter(_.waste.signum() > 0)
+      if (candidates.isEmpty) {
+        done = true
+      } else {
+        val target = candidates.maxBy(b => BigInt(b.waste))
+        val (low, high) = target.split.get
+        val next = current.filterNot(_ eq target) ++ Seq(low, high)
+        val nextResult = merge(next)
+        if (nextResult.size > maxRanges) {
+          done = true
+        } else {
+          current.clear()
+          current ++= next
+          result = nextResult
+          splits += 1
+        }
+      }
+    }
+    result
+  }
+
+  private def merge(boxes: Seq[ZBox]): Seq[(Array[Byte], Array[Byte])] = {
+    mergeRanges(boxes.map(b => (b.zMin, b.zMax)))
+  }
+
+  private def mergeRanges(ranges: Seq[(Array[Byte], Array[Byte])]): Seq[(Array[Byte], Array[Byte])] = {
+    val sorted = ranges.map { case (min, max) => (toBigInteger(min), toBigInteger(max), min, max) }.sortWith(_._1.compareTo(_._1) < 0)
+    val merged = ArrayBuffer[(BigInteger, BigInteger, Array[Byte], Array[Byte])]()
+    sorted.foreach { case (start, end, min, max) =>
+      merged.lastOption match {
+        case Some((lastStart, lastEnd, lastMin, lastMax)) if start.compareTo(lastEnd.add(BigInteger.ONE)) <= 0 =>
+          if (end.compareTo(lastEnd) > 0) {
+            merged(merged.length - 1) = (lastStart, end, lastMin, max)
+          }
+        case _ =>
+          merged += ((start, end, min, max))
+      }
+    }
+    merged.map(item => (item._3, item._4))
+  }
+
+  // Hilbert切分一次会产生2^n个子立方体，维度太多时只用外接立方体
+  private val MAX_HILBERT_SPLIT_DIMS = 8
+
+  private def unsignedLteq(a: Long, b: Long): Boolean = java.lang.Long.compareUnsigned(a, b) <= 0
+
+  /**
+   * 对齐的立方体：每个维度高level位相同(corner)，低64-level位任意。
+   * Hilbert曲线按层级递归遍历，这样的立方体在曲线上正好是连续的一段。
+   */
+  private case class HilbertCell(level: Int, corner: Array[Long], box: ZBox) {
+    private val mask = if (level >= 64) 0L else -1L >>> level
+
+    def contained: Boolean = corner.indices.forall { d =>
+      unsignedLteq(box.lower(d), corner(d)) && unsignedLteq(corner(d) | mask, box.upper(d))
+    }
+
+    def intersects: Boolean = corner.indices.forall { d =>
+      unsignedLteq(corner(d), box.upper(d)) && unsignedLteq(box.lower(d), corner(d) | mask)
+    }
+
+    lazy val range: (Array[Byte], Array[Byte]) = {
+      val bytes = 8 * corner.length
+      val shift = corner.length * (64 - level)
+      val prefix = toBigInteger(ZOrderingBytesUtil.hilbertSortable(corner)).shiftRight(shift).shiftLeft(shift)
+      (toBytes(prefix, bytes), toBytes(prefix.add(BigInteger.ONE.shiftLeft(shift)).subtract(BigInteger.ONE), bytes))
+    }
+
+    def children: Seq[HilbertCell] = {
+      val bit = 1L << (63 - level)
+      (0 until (1 << corner.length)).map { i =>
+        HilbertCell(level + 1, corner.indices.map(d => if ((i >> d & 1) == 1) corner(d) | bit else corner(d)).toArray, box)
+      }.filter(_.intersects)
+    }
+  }
+
+  private def toBytes(v: BigInteger, length: Int): Array[Byte] = {
+    val raw = v.toByteArray
+    val result = new Array[Byte](length)
+    val n = Math.min(raw.length, length)
+    System.arraycopy(raw, raw.length - n, result, length - n, n)
+    result
+  }
+
+  /**
+   * 和ranges一样返回覆盖所有box的闭区间，但值是Hilbert曲线上的位置。
+   * 从包含box的最小对齐立方体开始，每次把最大的、只和box部分相交的立方体分成2^n个子立方体，
+   * 去掉和box不相交的，直到区间数达到上限。
+   */
+  def hilbertRanges(boxes: Seq[ZBox], maxRanges: Int): Seq[(Array[Byte], Array[Byte])] = {
+    val current = ArrayBuffer[HilbertCell](boxes.map { box =>
+      val level = box.lower.indices.map(d => java.lang.Long.numberOfLeadingZeros(box.lower(d) ^ box.upper(d))).min
+      val mask = if (level >= 64) 0L else -1L >>> level
+      HilbertCell(level, box.lower.map(_ & ~mask), box)
+    }: _*)
+    var result = mergeRanges(current.map(_.range))
+    if (boxes.headOption.exists(_.lower.length > MAX_HILBERT_SPLIT_DIMS)) return result
+
+    var splits = 0
+    var done = false
+    while (!done && splits < MAX_SPLITS) {
+      val candidates = current.filter(c => c.level < 64 && !c.contained)
+      if (candidates.isEmpty) {
+        done = true
+      } else {
+        val target = candidates.minBy(_.level)
+        val next = current.filterNot(_ eq target) ++ target.children
+        val nextResult = mergeRanges(next.map(_.range))
+        if (nextResult.size > maxRanges) {
+          done = true
+        } else {
+          current.clear()
+          current ++= next
+          result = nextResult
+          splits += 1
+        }
+      }
+    }
+    result
+  }
+}
@@ -1,5 +1,6 @@
 package tech.mlsql.test.tool
 
+import org.apache.spark.unsafe.types.UTF8String
 import org.scalatest.{BeforeAndAfterAll, FunSuite}
 import tech.mlsql.tool.ZOrderingBytesUtil
 
@@ -106,4 +107,27 @@ class ByteUtilTest extends FunSuite with BeforeAndAfterAll {
       xyz2, 0, 24) < 0)
     
   }
+
+  test("sortable encodings are the same as 8 byte encodings") {
+    def bytes(v: Long) = ZOrderingBytesUtil.toBytes(v)
+
+    Seq(0, 3, -3, Int.MaxValue, Int.MinValue).foreach { v =>
+      assert(bytes(ZOrderingBytesUtil.intToSortable(v)).sameElements(ZOrderingBytesUtil.intTo8Byte(v)))
+    }
+    Seq(0L, 3L, -3L, Long.MaxValue, Long.MinValue).foreach { v =>
+      assert(bytes(ZOrderingBytesUtil.longToSortable(v)).sameElements(ZOrderingBytesUtil.longTo8Byte(v)))
+    }
+    Seq(0.0D, -0.0D, 3.1D, -3.1D, Double.NaN).foreach { v =>
+      assert(bytes(ZOrderingBytesUtil.doubleToSortable(v)).sameElements(ZOrderingBytesUtil.doubleTo8Byte(v)))
+    }
+    Seq("", "abc", "abcdefghijk").foreach { v =>
+      val s = UTF8String.fromString(v)
+      assert(bytes(ZOrderingBytesUtil.utf8ToSortable(s.getBaseObject, s.getBaseOffset, s.numBytes()))
+        .sameElements(ZOrderingBytesUtil.utf8To8Byte(v)))
+    }
+
+    val values = Array(ZOrderingBytesUtil.longToSortable(-7L), ZOrderingBytesUtil.intToSortable(10), ZOrderingBytesUtil.doubleToSortable(1.5D))
+    assert(ZOrderingBytesUtil.interleaveSortable(values).sameElements(
+      ZOrderingBytesUtil.interleaveMulti8Byte(values.map(v => bytes(v)))))
+  }
 }
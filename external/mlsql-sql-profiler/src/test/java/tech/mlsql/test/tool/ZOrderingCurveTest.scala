@@ -0,0 +1,102 @@
+package tech.mlsql.test.tool
+
+import org.apache.spark.sql.catalyst.expressions.{AttributeReference, GreaterThanOrEqual, LessThanOrEqual, Literal}
+import org.apache.spark.sql.types.{LongType, MetadataBuilder, StringType}
+import org.apache.spark.unsafe.types.UTF8String
+import org.scalatest.FunSuite
+import tech.mlsql.indexer.impl._
+import tech.mlsql.tool.ZOrderingBytesUtil
+
+import scala.util.Random
+
+/**
+ * Files scanned per query with z-ordering and Hilbert keys, in raw and rank mode, on skewed data.
+ *
+ * x is a long concentrated near 0 and y is a string like user_00001234 whose first 8 bytes are
+ * almost always the same. Rows are laid out the way ZOrderingIndexer.write does it (sorted by the
+ * key and cut into files of the same size). The queries go through the same predicate extraction
+ * and range decomposition as ZOrderingIndexer.rewrite, and a file is scanned when its key range
+ * overlaps one of the ranges, like ZOrderingPrunedFileIndex does. The files scanned and matched per
+ * query are reported for every curve and mode; ZOrderingCurveBenchmark does the same on more data
+ * and also times the pruning.
+ */
+class ZOrderingCurveTest extends FunSuite {
+
+  private val numRows = 50000
+  private val numFiles = 100
+  private val numQueries = 30
+  private val random = new Random(42)
+
+  private val rows = (0 until numRows).map { _ =>
+    val x = (Math.pow(random.nextDouble(), 4) * 1000000).toLong
+    val y = f"user_${(Math.pow(random.nextDouble(), 3) * 1000000).toLong}%08d"
+    (x, y)
+  }
+
+  private val queries = (0 until numQueries).map { _ =>
+    val (x, y) = rows(random.nextInt(numRows))
+    val id = y.stripPrefix("user_").toLong
+    (x, x + 2000, y, f"user_${id + 20000}%08d")
+  }
+
+  private val xAttr = AttributeReference("x", LongType)()
+  private val yAttr = AttributeReference("y", StringType)()
+
+  // (files scanned, files with a matching row) of every query
+  private def scan(curve: String, normalize: String): Seq[(Set[Int], Set[Int])] = {
+    val meta = new MetadataBuilder().
+      putLong("min_x", rows.map(_._1).min).putLong("max_x", rows.map(_._1).max).
+      putString("min_y", rows.map(_._2).min).putString("max_y", rows.map(_._2).max).
+      putBoolean("hasNull_x", false).putBoolean("hasNull_y", false)
+
+    val sortable: ((Long, String)) => Array[Long] = if (normalize == ZOrderingRank.RANK) {
+      val sample = new Random(7).shuffle(rows).take(ZOrderingIndexer.DEFAULT_RANK_SAMPLE_SIZE)
+      val xBounds = ZOrderingRank.bounds(LongType, sample.map(_._1), ZOrderingIndexer.DEFAULT_RANK_BUCKETS)
+      val yBounds = ZOrderingRank.bounds(StringType, sample.map(item => UTF8String.fromString(item._2)), ZOrderingIndexer.DEFAULT_RANK_BUCKETS)
+      ZOrderingRank.toMetadata(meta, "x", LongType, xBounds)
+      ZOrderingRank.toMetadata(meta, "y", StringType, yBounds)
+      row => Array(
+        ZOrderingBytesUtil.longToSortable(ZOrderingRank.rank(LongType, row._1, xBounds)),
+        ZOrderingBytesUtil.longToSortable(ZOrderingRank.rank(StringType, UTF8String.fromString(row._2), yBounds)))
+    } else {
+      row => Array(ZOrderingValue.sortable(LongType, row._1), ZOrderingValue.sortable(StringType, UTF8String.fromString(row._2)))
+    }
+
+    val sorted = rows.map(row => (ZOrderingValue.key(curve, sortable(row)), row)).
+      sortWith((a, b) => ZOrderingFileIndex.compare(a._1, b._1) < 0)
+    val files = sorted.grouped(numRows / numFiles).toSeq
+    val stats = files.zipWithIndex.map { case (file, i) => ZOrderingFileStat(s"file-$i", file.head._1, file.last._1, file.size) }
+
+    val fields = Seq(ZOrderingField(xAttr, meta.build()), ZOrderingField(yAttr, meta.build()))
+    queries.map { case (xFrom, xTo, yFrom, yTo) =>
+      val conditions = ZOrderingPredicates.extract(Seq(
+        GreaterThanOrEqual(xAttr, Literal(xFrom)), LessThanOrEqual(xAttr, Literal(xTo)),
+        GreaterThanOrEqual(yAttr, Literal(yFrom)), LessThanOrEqual(yAttr, Literal(yTo))))
+      val intervals = fields.map(field => ZOrderingPredicates.intervals(field, conditions.filter(_.attribute.exprId == field.attribute.exprId)))
+      val ranges = ZOrderingIndexer.ranges(curve, intervals, ZOrderingIndexer.DEFAULT_MAX_RANGES)
+      val scanned = stats.indices.filter(i => stats(i).overlaps(ranges)).toSet
+      val matched = files.indices.filter { i =>
+        files(i).exists { case (_, (x, y)) => x >= xFrom && x <= xTo && y >= yFrom && y <= yTo }
+      }.toSet
+      (scanned, matched)
+    }
+  }
+
+  for (curve <- Seq(ZOrderingValue.Z_ORDER, ZOrderingValue.HILBERT)) {
+    test(s"${curve} keys scan every file with a match, and rank mode scans fewer files on skewed data") {
+      val raw = scan(curve, ZOrderingRank.RAW)
+      val rank = scan(curve, ZOrderingRank.RANK)
+      (raw ++ rank).foreach { case (scanned, matched) =>
+        assert(matched.subsetOf(scanned))
+      }
+      Seq(ZOrderingRank.RAW -> raw, ZOrderingRank.RANK -> rank).foreach { case (normalize, result) =>
+        info(f"$curve%-8s $normalize%-5s files=$numFiles scanned=${result.map(_._1.size).sum.toDouble / numQueries}%7.2f " +
+          f"matched=${result.map(_._2.size).sum.toDouble / numQueries}%7.2f")
+      }
+      val rawScanned = raw.map(_._1.size).sum
+      val rankScanned = rank.map(_._1.size).sum
+      assert(rankScanned <= rawScanned)
+      assert(rankScanned < numFiles * numQueries)
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package tech.mlsql.test.tool
+
+import org.apache.hadoop.fs.{FileStatus, Path}
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.Expression
+import org.apache.spark.sql.execution.datasources.{FileIndex, PartitionDirectory}
+import org.apache.spark.sql.types.StructType
+import org.scalatest.FunSuite
+import tech.mlsql.indexer.impl.{ZOrderingFileStat, ZOrderingPrunedFileIndex}
+import tech.mlsql.tool.ZOrderingBytesUtil
+
+class ZOrderingFileIndexTest extends FunSuite {
+
+  private def z(v: Long): Array[Byte] = ZOrderingBytesUtil.toBytes(v)
+
+  private def file(name: String): FileStatus = new FileStatus(100, false, 1, 100, 0, new Path(s"file:/tmp/zdata/${name}"))
+
+  private val delegate = new FileIndex {
+    override def rootPaths: Seq[Path] = Seq(new Path("file:/tmp/zdata"))
+
+    override def listFiles(partitionFilters: Seq[Expression], dataFilters: Seq[Expression]): Seq[PartitionDirectory] = {
+      Seq(PartitionDirectory(InternalRow.empty, Seq(file("a.parquet"), file("b.parquet"), file("c.parquet"))))
+    }
+
+    override def inputFiles: Array[String] = listFiles(Nil, Nil).flatMap(_.files).map(_.getPath.toString).toArray
+
+    override def refresh(): Unit = {}
+
+    override def sizeInBytes: Long = 300
+
+    override def partitionSchema: StructType = new StructType()
+  }
+
+  test("overlap of a file and z-ordering ranges") {
+    val stat = ZOrderingFileStat("/tmp/zdata/a.parquet", z(10), z(20), 1)
+    assert(stat.overlaps(Seq((z(20), z(30)))))
+    assert(stat.overlaps(Seq((z(0), z(5)), (z(12), z(13)))))
+    assert(!stat.overlaps(Seq((z(0), z(9)), (z(21), z(30)))))
+    // 编码按无符号比较
+    assert(!stat.overlaps(Seq((z(-1), z(-1)))))
+  }
+
+  test("pruned file index keeps overlapping files and files without stats") {
+    val stats = Seq(
+      ZOrderingFileStat("/tmp/zdata/a.parquet", z(0), z(9), 1),
+      ZOrderingFileStat("/tmp/zdata/b.parquet", z(10), z(19), 1)
+    ).map(item => (item.path, item)).toMap
+    val index = new ZOrderingPrunedFileIndex(delegate, stats, Seq((z(12), z(15))))
+    assert(index.listFiles(Nil, Nil).flatMap(_.files).map(_.getPath.getName) == Seq("b.parquet", "c.parquet"))
+    assert(index.inputFiles.map(new Path(_).getName).toSeq == Seq("b.parquet", "c.parquet"))
+    assert(index.sizeInBytes == 200)
+  }
+}
@@ -0,0 +1,113 @@
+package tech.mlsql.test.tool
+
+import org.apache.spark.sql.catalyst.expressions.{And, AttributeReference, GreaterThan, GreaterThanOrEqual, In, LessThan, LessThanOrEqual, Literal}
+import org.apache.spark.sql.types.{DoubleType, FloatType, LongType, Metadata, MetadataBuilder, StringType}
+import org.apache.spark.unsafe.types.UTF8String
+import org.scalatest.FunSuite
+import tech.mlsql.indexer.impl.{ZOrderingField, ZOrderingPredicates, ZOrderingRank}
+import tech.mlsql.tool.LPUtils.splitConjunctivePredicates
+import tech.mlsql.tool.ZOrderingRangeUtil.ZBox
+import tech.mlsql.tool.{ZOrderingBytesUtil, ZOrderingRangeUtil}
+
+class ZOrderingRangeTest extends FunSuite {
+
+  private def z(values: Long*): BigInt = BigInt(ZOrderingRangeUtil.toBigInteger(ZOrderingRangeUtil.interleave(values.toArray)))
+
+  private def covered(ranges: Seq[(Array[Byte], Array[Byte])], v: BigInt): Boolean = {
+    ranges.exists { case (a, b) =>
+      BigInt(ZOrderingRangeUtil.toBigInteger(a)) <= v && v <= BigInt(ZOrderingRangeUtil.toBigInteger(b))
+    }
+  }
+
+  private def size(ranges: Seq[(Array[Byte], Array[Byte])]): BigInt = {
+    ranges.map { case (a, b) =>
+      BigInt(ZOrderingRangeUtil.toBigInteger(b)) - BigInt(ZOrderingRangeUtil.toBigInteger(a)) + 1
+    }.sum
+  }
+
+  test("ranges cover the box with at most maxRanges ranges") {
+    val box = ZBox(Array(3L, 5L), Array(10L, 12L))
+    val ranges = ZOrderingRangeUtil.ranges(Seq(box), 4)
+    assert(ranges.size <= 4)
+    for (x <- 3L to 10L; y <- 5L to 12L) {
+      assert(covered(ranges, z(x, y)))
+    }
+    assert(size(ranges) < z(10L, 12L) - z(3L, 5L) + 1)
+  }
+
+  test("ranges are exact when enough ranges are allowed") {
+    val box = ZBox(Array(3L, 5L), Array(10L, 12L))
+    val ranges = ZOrderingRangeUtil.ranges(Seq(box), 1000)
+    assert(size(ranges) == 8 * 8)
+  }
+
+  test("hilbert ranges cover the box") {
+    val box = ZBox(Array(3L, 5L), Array(10L, 12L))
+    val hilbert = (x: Long, y: Long) => BigInt(ZOrderingRangeUtil.toBigInteger(ZOrderingBytesUtil.hilbertSortable(Array(x, y))))
+    val limited = ZOrderingRangeUtil.hilbertRanges(Seq(box), 4)
+    val exact = ZOrderingRangeUtil.hilbertRanges(Seq(box), 1000)
+    assert(limited.size <= 4)
+    for (x <- 3L to 10L; y <- 5L to 12L) {
+      assert(covered(limited, hilbert(x, y)))
+      assert(covered(exact, hilbert(x, y)))
+    }
+    assert(size(exact) == 8 * 8)
+  }
+
+  test("rank intervals of a string range") {
+    val a = AttributeReference("a", StringType)()
+    val values = (0 until 1000).map(i => UTF8String.fromString(f"user_${i}%08d"))
+    val bounds = ZOrderingRank.bounds(StringType, values, 16)
+    val meta = ZOrderingRank.toMetadata(new MetadataBuilder(), "a", StringType, bounds).build()
+    val field = ZOrderingField(a, meta)
+    val conditions = ZOrderingPredicates.extract(Seq(
+      GreaterThanOrEqual(a, Literal("user_00000300")), LessThan(a, Literal("user_00000500"))))
+    val Seq((lower, upper)) = ZOrderingPredicates.intervals(field, conditions)
+    values.foreach { v =>
+      val encoded = ZOrderingBytesUtil.longToSortable(ZOrderingRank.rank(StringType, v, bounds))
+      val inside = java.lang.Long.compareUnsigned(lower, encoded) <= 0 && java.lang.Long.compareUnsigned(encoded, upper) <= 0
+      if (v.toString >= "user_00000300" && v.toString < "user_00000500") assert(inside)
+    }
+    //8个字节的前缀都是user_000，raw模式下过滤不掉任何值，rank模式下只保留大约1/4的分位区间
+    assert(upper - lower < 8)
+  }
+
+  test("intervals of negative and positive long values") {
+    val a = AttributeReference("a", LongType)()
+    val field = ZOrderingField(a, Metadata.empty)
+    val conditions = ZOrderingPredicates.extract(splitConjunctivePredicates(
+      And(GreaterThan(a, Literal(-5L)), LessThanOrEqual(a, Literal(5L)))))
+    val Seq((lower, upper)) = ZOrderingPredicates.intervals(field, conditions)
+    (-4L to 5L).foreach { v =>
+      val encoded = ZOrderingRangeUtil.toLong(ZOrderingBytesUtil.longTo8Byte(v))
+      assert(java.lang.Long.compareUnsigned(lower, encoded) <= 0 && java.lang.Long.compareUnsigned(encoded, upper) <= 0)
+    }
+  }
+
+  test("intervals of an in list") {
+    val a = AttributeReference("a", DoubleType)()
+    val field = ZOrderingField(a, Metadata.empty)
+    val conditions = ZOrderingPredicates.extract(Seq(In(a, Seq(Literal(1.5D), Literal(-2.0D)))))
+    val intervals = ZOrderingPredicates.intervals(field, conditions)
+    assert(intervals.size == 2)
+    assert(intervals.forall(item => item._1 == item._2))
+
+    val empty = ZOrderingPredicates.extract(Seq(In(a, Seq(Literal(1.5D))), GreaterThan(a, Literal(2.0D))))
+    assert(ZOrderingPredicates.intervals(field, empty).isEmpty)
+  }
+
+  test("intervals of float values use the float value of the literal") {
+    val a = AttributeReference("a", FloatType)()
+    val field = ZOrderingField(a, Metadata.empty)
+    // 1.1f.toDouble is 1.100000023841858, above the double 1.1
+    Seq(Literal(1.1f), Literal(1.1D)).foreach { literal =>
+      val conditions = ZOrderingPredicates.extract(Seq(GreaterThanOrEqual(a, literal), LessThanOrEqual(a, literal)))
+      val Seq((lower, upper)) = ZOrderingPredicates.intervals(field, conditions)
+      val encoded = ZOrderingRangeUtil.toLong(ZOrderingBytesUtil.doubleTo8Byte(1.1f.toDouble))
+      assert(lower == encoded && upper == encoded)
+    }
+    val points = ZOrderingPredicates.intervals(field, ZOrderingPredicates.extract(Seq(In(a, Seq(Literal(0.3f))))))
+    assert(points == Seq((ZOrderingRangeUtil.toLong(ZOrderingBytesUtil.doubleTo8Byte(0.3f.toDouble)),
+      ZOrderingRangeUtil.toLong(ZOrderingBytesUtil.doubleTo8Byte(0.3f.toDouble)))))
+  }
+}
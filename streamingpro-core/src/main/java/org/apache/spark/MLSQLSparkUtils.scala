@@ -20,6 +20,13 @@ object MLSQLSparkUtils {
     SparkHadoopUtil.get
   }
 
+  /**
+   * Threads started by a task which consume its input should see the same task context.
+   */
+  def setTaskContext(taskContext: TaskContext): Unit = {
+    TaskContext.setTaskContext(taskContext)
+  }
+
 
   def isFileTypeTable(df: DataFrame): Boolean = {
     if (df.schema.fields.length != 3) return false
@@ -0,0 +1,263 @@
+package streaming.core.datasource
+
+import java.sql.{Connection, Types}
+import java.time.LocalDate
+
+import org.apache.spark.sql.jdbc.JdbcDialects
+import tech.mlsql.common.utils.log.Logging
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * The range predicates of an automatically partitioned jdbc read, one partition per predicate.
+  */
+case class JDBCPartitionPlan(column: String, predicates: Array[String])
+
+/**
+  * Plans parallel range reads of a jdbc table when the user gives no partition options.
+  *
+  * The partition column is autoPartitionColumn, or the primary key, or the first column of an index,
+  * as long as it is an integral, date or timestamp column. The number of partitions is autoPartitionNum,
+  * or the estimated row count divided by autoPartitionRows. The ranges are
+  *
+  * minmax: equal width between min and max of the column.
+  * histogram: balanced by the row counts of equal width buckets (integral columns only), buckets with
+  * more rows than a partition are counted again in finer buckets. For keys which are not evenly
+  * distributed, e.g. ids with big holes. Every count is a range query on the index of the column.
+  */
+object JDBCPartitionPlanner extends Logging {
+
+  val DEFAULT_ROWS_PER_PARTITION = 1000000L
+  val DEFAULT_MAX_CONNECTIONS = 8
+  val HISTOGRAM_BUCKETS_PER_PARTITION = 8
+  val MAX_HISTOGRAM_BUCKETS = 1024
+  val HISTOGRAM_REFINE_DEPTH = 2
+
+  private sealed trait ColumnKind
+
+  private case object Integral extends ColumnKind
+
+  private case object DateKind extends ColumnKind
+
+  private case object TimestampKind extends ColumnKind
+
+  private def kindOf(jdbcType: Int): Option[ColumnKind] = jdbcType match {
+    case Types.TINYINT | Types.SMALLINT | Types.INTEGER | Types.BIGINT => Some(Integral)
+    case Types.DATE => Some(DateKind)
+    case Types.TIMESTAMP => Some(TimestampKind)
+    case _ => None
+  }
+
+  def plan(options: Map[String, String], dbtable: String): Option[JDBCPartitionPlan] = {
+    // subqueries can not be inspected
+    if (!dbtable.matches("""[\w$.`"]+""")) return None
+
+    Class.forName(options("driver"))
+    val connection = java.sql.DriverManager.getConnection(options("url"), options("user"), options("password"))
+    try {
+      val table = TableRef(connection, dbtable)
+      if (table.columns.isEmpty) return None
+
+      val candidate = options.get("autoPartitionColumn") match {
+        case Some(column) =>
+          table.columns.find(_._1.equalsIgnoreCase(column))
+        case None =>
+          (table.primaryKey ++ table.indexedColumns).flatMap(name => table.columns.find(_._1 == name)).
+            find(item => kindOf(item._2).isDefined)
+      }
+      candidate.flatMap { case (column, jdbcType) =>
+        kindOf(jdbcType).flatMap(kind => planColumn(connection, options, table, dbtable, column, kind))
+      }
+    } finally {
+      connection.close()
+    }
+  }
+
+  private def planColumn(connection: Connection, options: Map[String, String], table: TableRef, dbtable: String,
+                         column: String, kind: ColumnKind): Option[JDBCPartitionPlan] = {
+    val quoted = JdbcDialects.get(options("url")).quoteIdentifier(column)
+    val (min, max) = query(connection, s"select min(${quoted}), max(${quoted}) from ${dbtable}") { rs =>
+      kind match {
+        case Integral => (rs.getObject(1), rs.getObject(2)) match {
+          case (null, _) | (_, null) => (None, None)
+          case _ => (Some(rs.getLong(1)), Some(rs.getLong(2)))
+        }
+        case DateKind => (Option(rs.getDate(1)).map(_.toLocalDate.toEpochDay), Option(rs.getDate(2)).map(_.toLocalDate.toEpochDay))
+        case TimestampKind => (Option(rs.getTimestamp(1)).map(_.getTime), Option(rs.getTimestamp(2)).map(_.getTime))
+      }
+    }
+    if (min.isEmpty || max.isEmpty || min.get == max.get) return None
+
+    val numPartitions = options.get("autoPartitionNum").map(_.toInt).getOrElse {
+      val rowsPerPartition = options.get("autoPartitionRows").map(_.toLong).getOrElse(DEFAULT_ROWS_PER_PARTITION)
+      Math.ceil(estimateRows(connection, options, table, dbtable).toDouble / rowsPerPartition).toInt
+    }
+    if (numPartitions <= 1) return None
+
+    val strategy = options.getOrElse("autoPartitionStrategy", "minmax")
+    val bounds = if (strategy == "histogram" && kind == Integral) {
+      histogramBounds(connection, dbtable, quoted, min.get, max.get, numPartitions)
+    } else {
+      equalWidthBounds(min.get, max.get, numPartitions)
+    }
+    if (bounds.isEmpty) return None
+
+    val predicates = toPredicates(quoted, bounds.map(literal(kind, _)))
+    logInfo(s"Read ${dbtable} in ${predicates.length} partitions by ${column} [${strategy}]")
+    Some(JDBCPartitionPlan(column, predicates))
+  }
+
+  /**
+    * numPartitions - 1 distinct bounds between min (exclusive) and max (inclusive).
+    */
+  def equalWidthBounds(min: Long, max: Long, numPartitions: Int): Seq[Long] = {
+    val stride = (BigInt(max) - BigInt(min)) / numPartitions
+    if (stride == 0) {
+      (min + 1 to max).toSeq
+    } else {
+      (1 until numPartitions).map(i => (BigInt(min) + stride * i).toLong).distinct
+    }
+  }
+
+  private def histogramBounds(connection: Connection, dbtable: String, quoted: String,
+                              min: Long, max: Long, numPartitions: Int): Seq[Long] = {
+    if (max == Long.MaxValue) return equalWidthBounds(min, max, numPartitions)
+    val buckets = bucketCounts(connection, dbtable, quoted, min, max + 1, numPartitions * HISTOGRAM_BUCKETS_PER_PARTITION)
+    // a bucket with more rows than a partition is counted again in finer buckets, so dense key ranges are split too
+    val target = Math.max(1L, buckets.map(_._3).sum / numPartitions)
+
+    def refine(items: Seq[(Long, Long, Long)], depth: Int): Seq[(Long, Long, Long)] = items.flatMap { case (lower, upper, count) =>
+      if (depth > 0 && count > target && upper - lower > 1) {
+        val numBuckets = Math.min(MAX_HISTOGRAM_BUCKETS, HISTOGRAM_BUCKETS_PER_PARTITION * Math.ceil(count.toDouble / target).toInt)
+        refine(bucketCounts(connection, dbtable, quoted, lower, upper, numBuckets), depth - 1)
+      } else Seq((lower, upper, count))
+    }
+
+    histogramToBounds(refine(buckets, HISTOGRAM_REFINE_DEPTH).map(item => (item._2, item._3)), numPartitions)
+  }
+
+  /**
+    * (lower, upper exclusive, rows) of the non-empty equal width buckets of [lower, upper).
+    */
+  private def bucketCounts(connection: Connection, dbtable: String, quoted: String,
+                           lower: Long, upper: Long, numBuckets: Int): Seq[(Long, Long, Long)] = {
+    val width = Math.max(1L, ((BigInt(upper) - BigInt(lower) + numBuckets - 1) / numBuckets).toLong)
+    val bucket = s"floor((${quoted} - ${lower}) / ${width})"
+    val counts = Option(query(connection,
+      s"select ${bucket}, count(*) from ${dbtable} where ${quoted} >= ${lower} and ${quoted} < ${upper} group by ${bucket}") { rs =>
+      val res = ArrayBuffer[(Long, Long)]()
+      do {
+        res += ((rs.getLong(1), rs.getLong(2)))
+      } while (rs.next())
+      res
+    }).getOrElse(ArrayBuffer[(Long, Long)]())
+    counts.sortBy(_._1).map { case (b, count) =>
+      val bucketLower = lower + b * width
+      (bucketLower, Math.min(upper, bucketLower + width), count)
+    }
+  }
+
+  /**
+    * Cuts the buckets (upper bound exclusive, number of rows) into numPartitions ranges of about the same rows.
+    */
+  def histogramToBounds(buckets: Seq[(Long, Long)], numPartitions: Int): Seq[Long] = {
+    val sorted = buckets.sortBy(_._1)
+    val total = sorted.map(_._2).sum
+    val bounds = ArrayBuffer[Long]()
+    var seen = 0L
+    sorted.dropRight(1).foreach { case (upper, count) =>
+      seen += count
+      // the next cut is at (bounds.size + 1) / numPartitions of the rows
+      if (bounds.size < numPartitions - 1 && seen * numPartitions >= total * (bounds.size + 1)) {
+        bounds += upper
+      }
+    }
+    bounds
+  }
+
+  private def literal(kind: ColumnKind, value: Long): String = kind match {
+    case Integral => value.toString
+    case DateKind => s"'${LocalDate.ofEpochDay(value)}'"
+    case TimestampKind => s"'${new java.sql.Timestamp(value)}'"
+  }
+
+  def toPredicates(column: String, bounds: Seq[String]): Array[String] = {
+    val res = ArrayBuffer[String]()
+    res += s"${column} < ${bounds.head} or ${column} is null"
+    bounds.sliding(2).filter(_.size == 2).foreach { case Seq(lower, upper) =>
+      res += s"${column} >= ${lower} and ${column} < ${upper}"
+    }
+    res += s"${column} >= ${bounds.last}"
+    res.toArray
+  }
+
+  private def estimateRows(connection: Connection, options: Map[String, String], table: TableRef, dbtable: String): Long = {
+    if (options("url").startsWith("jdbc:mysql:")) {
+      // the statistics of InnoDB, counting 200M rows is too slow just for planning
+      val estimated = query(connection,
+        s"select table_rows from information_schema.tables where table_schema='${table.catalog}' and table_name='${table.name}'") { rs =>
+        rs.getLong(1)
+      }
+      if (estimated > 0) return estimated
+    }
+    query(connection, s"select count(*) from ${dbtable}")(_.getLong(1))
+  }
+
+  // f is called on the first row, null (0 for numbers) when there is no row
+  private def query[T](connection: Connection, sql: String)(f: java.sql.ResultSet => T): T = {
+    val stat = connection.createStatement()
+    try {
+      val rs = stat.executeQuery(sql)
+      if (rs.next()) f(rs) else null.asInstanceOf[T]
+    } finally {
+      stat.close()
+    }
+  }
+
+  private case class TableRef(catalog: String, schema: String, name: String,
+                              columns: Seq[(String, Int)], primaryKey: Seq[String], indexedColumns: Seq[String])
+
+  private object TableRef {
+    def apply(connection: Connection, dbtable: String): TableRef = {
+      val parts = dbtable.split("\\.").map(_.stripPrefix("`").stripSuffix("`").stripPrefix("\"").stripSuffix("\""))
+      val (db, table) = if (parts.length > 1) (Some(parts(0)), parts(1)) else (None, parts(0))
+      val meta = connection.getMetaData
+      // the db is a catalog in MySQL and a schema in most others, and identifiers may be stored upper or lower case
+      val locations: Seq[(String, String)] = db match {
+        case Some(value) => Seq((value, null), (null, value), (null, value.toUpperCase), (null, value.toLowerCase))
+        case None => Seq((connection.getCatalog, null))
+      }
+      val names = Seq(table, table.toUpperCase, table.toLowerCase).distinct
+      val candidates = for (location <- locations.iterator; name <- names.iterator) yield (location._1, location._2, name)
+      candidates.map { case (catalog, schema, name) =>
+        val rs = meta.getColumns(catalog, schema, name, "%")
+        val columns = ArrayBuffer[(String, Int)]()
+        while (rs.next()) {
+          columns += ((rs.getString("COLUMN_NAME"), rs.getInt("DATA_TYPE")))
+        }
+        rs.close()
+        (catalog, schema, name, columns)
+      }.find(_._4.nonEmpty) match {
+        case Some((catalog, schema, name, columns)) =>
+          val pk = meta.getPrimaryKeys(catalog, schema, name)
+          val primaryKey = ArrayBuffer[(Int, String)]()
+          while (pk.next()) {
+            primaryKey += ((pk.getInt("KEY_SEQ"), pk.getString("COLUMN_NAME")))
+          }
+          pk.close()
+          val index = meta.getIndexInfo(catalog, schema, name, false, true)
+          val indexed = ArrayBuffer[String]()
+          while (index.next()) {
+            if (index.getShort("ORDINAL_POSITION") == 1 && index.getString("COLUMN_NAME") != null) {
+              indexed += index.getString("COLUMN_NAME")
+            }
+          }
+          index.close()
+          // the leading column of a composite primary key is indexed too
+          TableRef(Option(catalog).getOrElse(db.orNull), schema, name, columns,
+            primaryKey.sortBy(_._1).map(_._2).take(1), indexed.distinct)
+        case None => TableRef(db.orNull, null, table, Seq(), Seq(), Seq())
+      }
+    }
+  }
+}
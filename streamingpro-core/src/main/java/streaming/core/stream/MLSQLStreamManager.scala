@@ -3,6 +3,7 @@ package streaming.core.stream
 import java.util.concurrent.Executors
 
 import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.execution.streaming.JDBCSinkMetrics
 import org.apache.spark.sql.streaming.StreamingQueryListener
 import streaming.dsl.ScriptSQLExec
 import streaming.log.WowLog
@@ -209,6 +210,7 @@ class MLSQLStreamingQueryListener extends StreamingQueryListener with Logging wi
     }
 
     uuids.foreach(MLSQLStreamManager.removeListener)
+    JDBCSinkMetrics.remove(id)
 
     MLSQLStreamManager.removeStore(id)
     JobManager.getJobInfo.filter(f => f._2.jobType == MLSQLJobType.STREAM
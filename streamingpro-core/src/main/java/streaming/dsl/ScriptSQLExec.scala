@@ -23,7 +23,7 @@ import java.util.concurrent.atomic.AtomicReference
 
 import _root_.streaming.core.Dispatcher
 import _root_.streaming.dsl.auth._
-import _root_.streaming.dsl.parser.DSLSQLParser.SqlContext
+import _root_.streaming.dsl.parser.DSLSQLParser.{SqlContext, StatementContext}
 import _root_.streaming.dsl.parser._
 import _root_.streaming.log.WowLog
 import _root_.streaming.parser.lisener.BaseParseListener
@@ -37,7 +37,7 @@ import tech.mlsql.Stage
 import tech.mlsql.common.utils.log.Logging
 import tech.mlsql.dsl.CommandCollection
 import tech.mlsql.dsl.adaptor._
-import tech.mlsql.dsl.parser.MLSQLErrorStrategy
+import tech.mlsql.dsl.parser.{MLSQLErrorStrategy, ScriptParseCache, TwoStageParser}
 import tech.mlsql.dsl.processor.{AuthProcessListener, GrammarProcessListener, PreProcessListener}
 import tech.mlsql.dsl.scope.SetScopeParameter
 import tech.mlsql.job.MLSQLJobProgressListener
@@ -86,24 +86,47 @@ object ScriptSQLExec extends Logging with WowLog {
     //preprocess some statements e.g. include
 
     var wow = input
+    // parse tree of `wow`. Stages only re-parse when include expansion or
+    // variable substitution actually changed the script text.
+    var wowTree: Option[StatementContext] = None
+
+    def tree = {
+      if (wowTree.isEmpty) {
+        wowTree = Some(ScriptParseCache.parseTree(wow, _parseTree))
+      }
+      wowTree.get
+    }
+
+    def rewrite(newScript: String) = {
+      if (newScript != wow) {
+        wow = newScript
+        wowTree = None
+      }
+    }
 
     var max_preprocess = 10
     var stop = false
 
     val sqel = listener.asInstanceOf[ScriptSQLExecListener]
+    ScriptParseCache.configure(sqel.sparkSession)
     CommandCollection.fill(sqel)
     if (!skipInclude) {
       sqel.setStage(Stage.include)
       while (!stop && max_preprocess > 0) {
         val preProcessListener = new PreProcessIncludeListener(sqel)
         sqel.includeProcessListner = Some(preProcessListener)
-        _parse(wow, preProcessListener)
+        _walk(tree, preProcessListener)
 
-        val newScript = preProcessListener.toScript
-        if (newScript == wow) {
+        if (!preProcessListener.hasInclude) {
           stop = true
+        } else {
+          sqel.includeExpanded = true
+          val newScript = preProcessListener.toScript
+          if (newScript == wow) {
+            stop = true
+          }
+          rewrite(newScript)
         }
-        wow = newScript
         max_preprocess -= 1
       }
     }
@@ -111,12 +134,12 @@ object ScriptSQLExec extends Logging with WowLog {
     val preProcessListener = new PreProcessListener(sqel)
     sqel.preProcessListener = Some(preProcessListener)
     sqel.setStage(Stage.preProcess)
-    _parse(wow, preProcessListener)
-    wow = preProcessListener.toScript
+    _walk(tree, preProcessListener)
+    rewrite(preProcessListener.toScript)
 
     if (!skipGrammarValidate) {
       sqel.setStage(Stage.grammar)
-      _parse(wow, new GrammarProcessListener(sqel))
+      _walk(tree, new GrammarProcessListener(sqel))
     }
 
     if (!skipAuth) {
@@ -128,7 +151,7 @@ object ScriptSQLExec extends Logging with WowLog {
       val authListener = new AuthProcessListener(sqel)
       sqel.authProcessListner = Some(authListener)
       sqel.setStage(Stage.auth)
-      _parse(wow, authListener)
+      _walk(tree, authListener)
 
       val authImpl = staticAuthImpl match {
         case Some(temp) => temp
@@ -143,11 +166,15 @@ object ScriptSQLExec extends Logging with WowLog {
 
     if (!skipPhysicalJob) {
       sqel.setStage(Stage.physical)
-      _parse(wow, listener)
+      _walk(tree, listener)
     }
   }
 
   def _parse(input: String, listener: DSLSQLListener) = {
+    _walk(_parseTree(input), listener)
+  }
+
+  def _parseTree(input: String): StatementContext = {
     val loadLexer = new DSLSQLLexer(new CaseChangingCharStream(input))
     val tokens = new CommonTokenStream(loadLexer)
     val parser = new DSLSQLParser(tokens)
@@ -155,7 +182,12 @@ object ScriptSQLExec extends Logging with WowLog {
     parser.setErrorHandler(new MLSQLErrorStrategy)
     parser.addErrorListener(new MLSQLSyntaxErrorListener())
 
-    val stat = parser.statement()
+    TwoStageParser.parse(parser, new java.util.function.Function[DSLSQLParser, StatementContext] {
+      override def apply(p: DSLSQLParser): StatementContext = p.statement()
+    })
+  }
+
+  def _walk(stat: StatementContext, listener: DSLSQLListener) = {
     ParseTreeWalker.DEFAULT.walk(listener, stat)
   }
 }
@@ -202,6 +234,7 @@ class ScriptSQLExecListener(val _sparkSession: SparkSession, val _defaultPathPre
   var includeProcessListner: Option[PreProcessIncludeListener] = None
   var preProcessListener: Option[PreProcessListener] = None
   var authProcessListner: Option[AuthProcessListener] = None
+  var includeExpanded = false
 
   private var stage: Option[Stage.stage] = None
 
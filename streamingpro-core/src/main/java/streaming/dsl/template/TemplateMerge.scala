@@ -30,6 +30,19 @@ import tech.mlsql.template.SQLSnippetTemplate
  */
 object TemplateMerge {
 
+  // predefined variables whose value depends on when the script is merged
+  val timeDependentVariables = Seq("date", "yesterday", "today", "tomorrow", "theDayBeforeYesterday")
+
+  private val timeDependentReference = ("""\$!?\{?\s*(""" + timeDependentVariables.mkString("|") + """)\b""").r
+
+  /**
+   * Whether sql refers to one of the timeDependentVariables, e.g. ${today} or $date.toString("yyyyMMdd").
+   * The result of such a script changes with the time even when its text stays the same.
+   */
+  def usesTimeDependentVariables(sql: String): Boolean = {
+    timeDependentReference.findFirstIn(sql).isDefined
+  }
+
   def merge(sql: String, root: Map[String, String]): String = {
 
     val dformat = "yyyy-MM-dd"
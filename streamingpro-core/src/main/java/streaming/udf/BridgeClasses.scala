@@ -0,0 +1,102 @@
+package streaming.udf
+
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.spark.broadcast.Broadcast
+import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import tech.mlsql.common.utils.cache.{CacheBuilder, CacheLoader}
+import tech.mlsql.common.utils.log.Logging
+
+/**
+ * Classes generated for a runtime compiled udf besides the udf class itself, e.g. the bridges
+ * of [[DirectInvokeUDF]] and [[TypedScriptUDAF]].
+ *
+ * Like the udf class (see [[RuntimeCompileScriptFactory.ship]]), a bridge is compiled once on
+ * the driver and its bytecode is broadcast with the function, so executors only define it.
+ * An executor compiles the bridge itself only when nothing was shipped, e.g. when
+ * spark.mlsql.udf.shipCompiledClasses is disabled.
+ *
+ * @param kind     name of the generated class in logs and in [[RuntimeCompileScriptFactory.stats]]
+ * @param generate compiles the class, None when it can not be generated for the udf
+ */
+class BridgeClasses(kind: String, generate: ScriptUDFCacheKey => Option[Class[_]]) extends Logging {
+
+  private val compiled = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build(
+      new CacheLoader[ScriptUDFCacheKey, Option[Class[_]]]() {
+        override def load(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = {
+          val startTime = System.nanoTime()
+          val clazz = try {
+            generate(scriptCacheKey)
+          } catch {
+            case e: Exception =>
+              logWarning(s"Fail to generate the ${kind} of ${scriptCacheKey.className}" +
+                s".${scriptCacheKey.methodName}: ${e.getMessage}")
+              None
+          }
+
+          def timeMs: Double = (System.nanoTime() - startTime).toDouble / 1000000
+
+          logInfo(s"Dynamic generate ${kind} of udf ${scriptCacheKey.className} time: [ ${timeMs} ]ms.")
+          if (clazz.isDefined) RuntimeCompileScriptFactory.stat(scriptCacheKey, kind).compile(timeMs)
+          clazz
+        }
+      })
+
+  private val broadcasts = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build(
+      new CacheLoader[ScriptUDFCacheKey, Option[Broadcast[CompiledClasses]]]() {
+        override def load(scriptCacheKey: ScriptUDFCacheKey): Option[Broadcast[CompiledClasses]] = {
+          compiled.get(scriptCacheKey).flatMap(RuntimeCompileScriptFactory.broadcastClasses)
+        }
+      })
+
+  private val shippedClasses = new ConcurrentHashMap[ScriptUDFCacheKey, Broadcast[CompiledClasses]]()
+
+  private val loaded = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build(
+      new CacheLoader[ScriptUDFCacheKey, Option[Class[_]]]() {
+        override def load(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = {
+          Option(shippedClasses.remove(scriptCacheKey)) match {
+            case Some(shipped) =>
+              val startTime = System.nanoTime()
+              val clazz = CompiledClasses.define(shipped.value)
+
+              def timeMs: Double = (System.nanoTime() - startTime).toDouble / 1000000
+
+              logInfo(s"Load shipped ${kind} ${clazz.getName} time: [ ${timeMs} ]ms.")
+              RuntimeCompileScriptFactory.stat(scriptCacheKey, kind).load(timeMs)
+              Some(clazz)
+            case None => compiled.get(scriptCacheKey)
+          }
+        }
+      })
+
+  /**
+   * Called on the driver when the function is created. None on executors.
+   */
+  def ship(scriptCacheKey: ScriptUDFCacheKey): Option[Broadcast[CompiledClasses]] = {
+    if (!RuntimeCompileScriptFactory.isDriver) return None
+    try {
+      broadcasts.get(scriptCacheKey)
+    } catch {
+      case e: Exception =>
+        logWarning(s"Fail to ship the ${kind} of ${scriptCacheKey.className}, executors will compile it: ${e.getMessage}")
+        None
+    }
+  }
+
+  def registerShipped(scriptCacheKey: ScriptUDFCacheKey, shipped: Broadcast[CompiledClasses]): Unit = {
+    shippedClasses.putIfAbsent(scriptCacheKey, shipped)
+  }
+
+  /**
+   * The class shipped with the function, or compiled in this JVM when nothing was shipped.
+   */
+  def get(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = {
+    loaded.get(scriptCacheKey)
+  }
+}
@@ -0,0 +1,105 @@
+package streaming.udf
+
+import java.io.ByteArrayOutputStream
+
+import tech.mlsql.common.utils.log.Logging
+
+import scala.collection.mutable
+import scala.reflect.internal.util.AbstractFileClassLoader
+import scala.reflect.io.AbstractFile
+
+/**
+ * The bytecode of a class compiled at runtime on the driver, together with the
+ * classes defined by the same compilation (inner, anonymous and toolbox wrapper classes),
+ * so an executor only needs to define them instead of compiling the source again.
+ */
+case class CompiledClasses(className: String, classes: Map[String, Array[Byte]]) {
+  def size: Long = classes.values.map(_.length.toLong).sum
+}
+
+object CompiledClasses extends Logging {
+
+  // the scala ToolBox compiles every tree inside `__wrapper$<id>$<uuid>`
+  private val TOOLBOX_WRAPPER = """^(__wrapper\$\d+\$[0-9a-f]+)""".r
+
+  /**
+   * None when the class loader of `clazz` does not expose the bytecode.
+   */
+  def extract(clazz: Class[_]): Option[CompiledClasses] = {
+    try {
+      val classes = clazz.getClassLoader match {
+        case loader: AbstractFileClassLoader =>
+          // the ToolBox keeps all the classes it ever compiled in the same directory
+          val prefix = TOOLBOX_WRAPPER.findFirstIn(clazz.getName).getOrElse(clazz.getName)
+          val all = mutable.Map[String, Array[Byte]]()
+          walk(loader.root, "", all)
+          all.filterKeys(_.startsWith(prefix)).toMap
+        case loader =>
+          // a nested class, e.g. the java direct invoke bridge, needs its enclosing classes
+          var top: Class[_] = clazz
+          while (top.getEnclosingClass != null) top = top.getEnclosingClass
+          probe(top, loader)
+      }
+      if (classes.contains(clazz.getName)) Some(CompiledClasses(clazz.getName, classes)) else None
+    } catch {
+      case e: Exception =>
+        logWarning(s"Fail to extract the bytecode of ${clazz.getName}: ${e.getMessage}")
+        None
+    }
+  }
+
+  def define(compiled: CompiledClasses): Class[_] = {
+    val parent = Option(Thread.currentThread().getContextClassLoader).getOrElse(getClass.getClassLoader)
+    new ByteArrayClassLoader(compiled.classes, parent).loadClass(compiled.className)
+  }
+
+  private def walk(dir: AbstractFile, pkg: String, classes: mutable.Map[String, Array[Byte]]): Unit = {
+    dir.iterator.foreach { file =>
+      if (file.isDirectory) {
+        walk(file, pkg + file.name + ".", classes)
+      } else if (file.name.endsWith(".class")) {
+        classes.put(pkg + file.name.stripSuffix(".class"), file.toByteArray)
+      }
+    }
+  }
+
+  /**
+   * Other in-memory loaders can only be asked for the classes we can name:
+   * the class, its nested classes and its anonymous classes `$1`, `$2`...
+   */
+  private def probe(clazz: Class[_], loader: ClassLoader): Map[String, Array[Byte]] = {
+    def bytes(name: String): Option[Array[Byte]] = {
+      Option(loader.getResourceAsStream(name.replace('.', '/') + ".class")).map { in =>
+        try {
+          val out = new ByteArrayOutputStream()
+          val buffer = new Array[Byte](8192)
+          var n = in.read(buffer)
+          while (n != -1) {
+            out.write(buffer, 0, n)
+            n = in.read(buffer)
+          }
+          out.toByteArray
+        } finally {
+          in.close()
+        }
+      }
+    }
+
+    def collect(c: Class[_]): Seq[(String, Array[Byte])] = {
+      val anonymous = Stream.from(1).map(i => s"${c.getName}$$${i}").map(n => (n, bytes(n)))
+        .takeWhile(_._2.isDefined).map(i => (i._1, i._2.get))
+      bytes(c.getName).map(b => (c.getName, b)).toSeq ++ anonymous ++ c.getDeclaredClasses.flatMap(collect)
+    }
+
+    collect(clazz).toMap
+  }
+}
+
+class ByteArrayClassLoader(classes: Map[String, Array[Byte]], parent: ClassLoader) extends ClassLoader(parent) {
+  override def findClass(name: String): Class[_] = {
+    classes.get(name) match {
+      case Some(bytes) => defineClass(name, bytes, 0, bytes.length)
+      case None => throw new ClassNotFoundException(name)
+    }
+  }
+}
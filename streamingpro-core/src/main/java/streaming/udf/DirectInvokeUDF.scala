@@ -0,0 +1,209 @@
+package streaming.udf
+
+import org.apache.spark.broadcast.Broadcast
+import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import streaming.dsl.{MLSQLExecuteContext, ScriptSQLExec}
+import tech.mlsql.common.utils.cache.{CacheBuilder, CacheLoader}
+import tech.mlsql.common.utils.lang.sc.SourceCodeCompiler
+import tech.mlsql.common.utils.log.Logging
+
+/**
+ * Direct invocation mode of runtime compiled udf (spark.mlsql.udf.directInvoke).
+ *
+ * Instead of collecting the arguments into a Seq and calling the method found by
+ * `SourceCodeCompiler.getMethod` with reflection, the compiler of the language generates
+ * a FunctionN bridge together with the udf which calls the udf method directly. The bridge
+ * converts the arguments with [[DirectInvokeArgs]], so nulls and numeric arguments behave
+ * exactly as with Method.invoke.
+ *
+ * The bridge saves the Seq, the wrap closure and Method.invoke per row, not the boxing:
+ * ScalaUDF calls every function through the erased `apply(Object...)`, so primitive
+ * arguments arrive boxed whatever the bridge is typed with, and the bridge unboxes them
+ * once to call the udf method with its own parameter types.
+ *
+ * The bridge class is compiled on the driver and shipped to the executors with
+ * [[BridgeClasses]]. Instances of it can not be serialized, so ScalaUDF gets one of the
+ * `DirectInvokeUDFN` holders below, which only carry the cache key and the shipped bytecode
+ * and create the bridge once per JVM. When a language can not generate a bridge, the holder
+ * falls back to the reflective function.
+ */
+object DirectInvokeUDF extends Logging {
+
+  // udf with more arguments always use the reflective function
+  val MAX_ARGUMENTS = 10
+
+  val bridgeClasses = new BridgeClasses("direct-bridge", scriptCacheKey =>
+    RuntimeCompileScriptFactory.getUDFCompilerBylang(scriptCacheKey.lang).get.directFunctionClass(scriptCacheKey))
+
+  val bridges = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build(
+      new CacheLoader[ScriptUDFCacheKey, AnyRef]() {
+        override def load(scriptCacheKey: ScriptUDFCacheKey): AnyRef = {
+          bridgeClasses.get(scriptCacheKey) match {
+            case Some(clazz) => SourceCodeCompiler.newInstance(clazz).asInstanceOf[AnyRef]
+            case None =>
+              logWarning(s"No direct invoke bridge for ${scriptCacheKey.className}" +
+                s".${scriptCacheKey.methodName}, fall back to reflection")
+              val compiler = RuntimeCompileScriptFactory.getUDFCompilerBylang(scriptCacheKey.lang).get
+              compiler.toPartialFunc(scriptCacheKey, compiler.invokeFunctionFromInstance(scriptCacheKey))
+          }
+        }
+      })
+
+  def bridge(scriptCacheKey: ScriptUDFCacheKey, shipped: Option[Broadcast[CompiledClasses]]): AnyRef = {
+    shipped.foreach(bridgeClasses.registerShipped(scriptCacheKey, _))
+    bridges.get(scriptCacheKey)
+  }
+
+  def function(scriptCacheKey: ScriptUDFCacheKey, argumentNum: Int): AnyRef = {
+    val c = ScriptSQLExec.contextGetOrForTest()
+    val s = bridgeClasses.ship(scriptCacheKey)
+    argumentNum match {
+      case 0 => new DirectInvokeUDF0(scriptCacheKey, c, s)
+      case 1 => new DirectInvokeUDF1(scriptCacheKey, c, s)
+      case 2 => new DirectInvokeUDF2(scriptCacheKey, c, s)
+      case 3 => new DirectInvokeUDF3(scriptCacheKey, c, s)
+      case 4 => new DirectInvokeUDF4(scriptCacheKey, c, s)
+      case 5 => new DirectInvokeUDF5(scriptCacheKey, c, s)
+      case 6 => new DirectInvokeUDF6(scriptCacheKey, c, s)
+      case 7 => new DirectInvokeUDF7(scriptCacheKey, c, s)
+      case 8 => new DirectInvokeUDF8(scriptCacheKey, c, s)
+      case 9 => new DirectInvokeUDF9(scriptCacheKey, c, s)
+      case 10 => new DirectInvokeUDF10(scriptCacheKey, c, s)
+      case n => throw new Exception(s"UDF with $n arguments is not supported in direct invoke mode")
+    }
+  }
+}
+
+/**
+ * Converts the arguments of a direct invoke bridge to the parameter types of the udf method
+ * like Method.invoke does: boxed primitives are unboxed and widened, while null or any other
+ * value for a primitive parameter, and values which are not instances of a reference
+ * parameter type, fail with IllegalArgumentException.
+ */
+object DirectInvokeArgs {
+
+  private def mismatch(v: Any): Nothing = {
+    throw new IllegalArgumentException(s"argument type mismatch: ${if (v == null) "null" else v.getClass.getName}")
+  }
+
+  def toBoolean(v: Any): Boolean = v match {
+    case b: java.lang.Boolean => b.booleanValue()
+    case _ => mismatch(v)
+  }
+
+  def toByte(v: Any): Byte = v match {
+    case b: java.lang.Byte => b.byteValue()
+    case _ => mismatch(v)
+  }
+
+  def toChar(v: Any): Char = v match {
+    case c: java.lang.Character => c.charValue()
+    case _ => mismatch(v)
+  }
+
+  def toShort(v: Any): Short = v match {
+    case b: java.lang.Byte => b.shortValue()
+    case s: java.lang.Short => s.shortValue()
+    case _ => mismatch(v)
+  }
+
+  def toInt(v: Any): Int = v match {
+    case i: java.lang.Integer => i.intValue()
+    case c: java.lang.Character => c.charValue().toInt
+    case b: java.lang.Byte => b.intValue()
+    case s: java.lang.Short => s.intValue()
+    case _ => mismatch(v)
+  }
+
+  def toLong(v: Any): Long = v match {
+    case l: java.lang.Long => l.longValue()
+    case c: java.lang.Character => c.charValue().toLong
+    case i@(_: java.lang.Integer | _: java.lang.Byte | _: java.lang.Short) => i.asInstanceOf[Number].longValue()
+    case _ => mismatch(v)
+  }
+
+  def toFloat(v: Any): Float = v match {
+    case f: java.lang.Float => f.floatValue()
+    case c: java.lang.Character => c.charValue().toFloat
+    case n@(_: java.lang.Long | _: java.lang.Integer | _: java.lang.Byte | _: java.lang.Short) =>
+      n.asInstanceOf[Number].floatValue()
+    case _ => mismatch(v)
+  }
+
+  def toDouble(v: Any): Double = v match {
+    case d: java.lang.Double => d.doubleValue()
+    case c: java.lang.Character => c.charValue().toDouble
+    case n@(_: java.lang.Float | _: java.lang.Long | _: java.lang.Integer | _: java.lang.Byte | _: java.lang.Short) =>
+      n.asInstanceOf[Number].doubleValue()
+    case _ => mismatch(v)
+  }
+
+  def checked[T](v: Any, clazz: Class[T]): T = {
+    if (v != null && !clazz.isInstance(v)) mismatch(v)
+    v.asInstanceOf[T]
+  }
+}
+
+abstract class DirectInvokeUDF(scriptCacheKey: ScriptUDFCacheKey,
+                               context: MLSQLExecuteContext,
+                               shipped: Option[Broadcast[CompiledClasses]]) extends Serializable {
+  @transient private lazy val bridge = DirectInvokeUDF.bridge(scriptCacheKey, shipped)
+
+  protected def f[F]: F = {
+    ScriptSQLExec.setContextIfNotPresent(context)
+    bridge.asInstanceOf[F]
+  }
+}
+
+class DirectInvokeUDF0(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function0[Any] {
+  override def apply(): Any = f[() => Any].apply()
+}
+
+class DirectInvokeUDF1(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function1[Object, Any] {
+  override def apply(v1: Object): Any = f[Object => Any](v1)
+}
+
+class DirectInvokeUDF2(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function2[Object, Object, Any] {
+  override def apply(v1: Object, v2: Object): Any = f[(Object, Object) => Any](v1, v2)
+}
+
+class DirectInvokeUDF3(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function3[Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object): Any = f[(Object, Object, Object) => Any](v1, v2, v3)
+}
+
+class DirectInvokeUDF4(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function4[Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object): Any =
+    f[(Object, Object, Object, Object) => Any](v1, v2, v3, v4)
+}
+
+class DirectInvokeUDF5(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function5[Object, Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object, v5: Object): Any =
+    f[(Object, Object, Object, Object, Object) => Any](v1, v2, v3, v4, v5)
+}
+
+class DirectInvokeUDF6(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function6[Object, Object, Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object, v5: Object, v6: Object): Any =
+    f[(Object, Object, Object, Object, Object, Object) => Any](v1, v2, v3, v4, v5, v6)
+}
+
+class DirectInvokeUDF7(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function7[Object, Object, Object, Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object, v5: Object, v6: Object, v7: Object): Any =
+    f[(Object, Object, Object, Object, Object, Object, Object) => Any](v1, v2, v3, v4, v5, v6, v7)
+}
+
+class DirectInvokeUDF8(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function8[Object, Object, Object, Object, Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object, v5: Object, v6: Object, v7: Object, v8: Object): Any =
+    f[(Object, Object, Object, Object, Object, Object, Object, Object) => Any](v1, v2, v3, v4, v5, v6, v7, v8)
+}
+
+class DirectInvokeUDF9(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function9[Object, Object, Object, Object, Object, Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object, v5: Object, v6: Object, v7: Object, v8: Object, v9: Object): Any =
+    f[(Object, Object, Object, Object, Object, Object, Object, Object, Object) => Any](v1, v2, v3, v4, v5, v6, v7, v8, v9)
+}
+
+class DirectInvokeUDF10(k: ScriptUDFCacheKey, c: MLSQLExecuteContext, s: Option[Broadcast[CompiledClasses]]) extends DirectInvokeUDF(k, c, s) with Function10[Object, Object, Object, Object, Object, Object, Object, Object, Object, Object, Any] {
+  override def apply(v1: Object, v2: Object, v3: Object, v4: Object, v5: Object, v6: Object, v7: Object, v8: Object, v9: Object, v10: Object): Any =
+    f[(Object, Object, Object, Object, Object, Object, Object, Object, Object, Object) => Any](v1, v2, v3, v4, v5, v6, v7, v8, v9, v10)
+}
@@ -59,7 +59,8 @@ object JavaRuntimeCompileUDF extends RuntimeCompileUDF with Logging {
 
   override def invokeFunctionFromInstance(scriptCacheKey: ScriptUDFCacheKey)
   : (Seq[Object]) => AnyRef = {
-    lazy val clz = JavaRuntimeCompileUDF.driverExecute(scriptCacheKey).asInstanceOf[Class[_]]
+    val shipped = RuntimeCompileScriptFactory.ship(scriptCacheKey)
+    lazy val clz = JavaRuntimeCompileUDF.executorExecute(scriptCacheKey, shipped).asInstanceOf[Class[_]]
     lazy val instance = SourceCodeCompiler.newInstance(clz)
     lazy val method = SourceCodeCompiler.getMethod(clz, scriptCacheKey.methodName)
 
@@ -69,6 +70,40 @@ object JavaRuntimeCompileUDF extends RuntimeCompileUDF with Logging {
     func
   }
 
+  /**
+    * Adds a static nested AbstractFunctionN to the udf class, which converts the arguments to
+    * the parameter types of the udf method and calls it directly.
+    */
+  override def directFunctionClass(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = {
+    val clazz = driverExecute(scriptCacheKey).asInstanceOf[Class[_]]
+    val method = SourceCodeCompiler.getMethod(clazz, scriptCacheKey.methodName)
+    val simpleName = clazz.getSimpleName
+    val params = method.getParameterTypes.indices.map(i => s"Object a${i}")
+    val args = method.getParameterTypes.zipWithIndex.map { case (t, i) =>
+      if (t.isPrimitive) {
+        s"streaming.udf.DirectInvokeArgs.to${t.getName.capitalize}(a${i})"
+      } else {
+        s"(${t.getCanonicalName}) streaming.udf.DirectInvokeArgs.checked(a${i}, ${t.getCanonicalName}.class)"
+      }
+    }
+    val call = s"udf.${method.getName}(${args.mkString(", ")})"
+    val body = if (method.getReturnType == Void.TYPE) s"${call}; return null;" else s"return ${call};"
+    val bridge =
+      s"""
+         |  public static class ${DIRECT_BRIDGE} extends scala.runtime.AbstractFunction${params.size}<${Seq.fill(params.size + 1)("Object").mkString(", ")}> {
+         |    private final ${simpleName} udf = new ${simpleName}();
+         |    public Object apply(${params.mkString(", ")}) { ${body} }
+         |  }
+         |""".stripMargin
+    val code = scriptCacheKey.wrappedCode
+    val classEnd = code.lastIndexOf("}")
+    val withBridge = scriptCacheKey.copy(wrappedCode = code.substring(0, classEnd) + bridge + code.substring(classEnd))
+    val outer = compile(withBridge).asInstanceOf[Class[_]]
+    Some(outer.getClassLoader.loadClass(s"${scriptCacheKey.className}$$${DIRECT_BRIDGE}"))
+  }
+
+  private val DIRECT_BRIDGE = "MLSQLDirectBridge"
+
   /**
     * validate the source code
     */
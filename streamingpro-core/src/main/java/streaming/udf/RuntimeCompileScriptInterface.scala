@@ -18,10 +18,17 @@
 
 package streaming.udf
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.{MLSQLConf, SparkEnv}
 import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
 import tech.mlsql.common.utils.cache.{CacheBuilder, CacheLoader}
 import tech.mlsql.common.utils.log.Logging
 
+import scala.collection.JavaConverters._
 import scala.collection.mutable.HashMap
 
 /**
@@ -43,6 +50,16 @@ trait RuntimeCompileScriptInterface[FunType] extends Logging {
     RuntimeCompileScriptFactory.executorScriptCache.get(scriptCacheKey)
   }
 
+  /**
+    * the same as executorExecute, but defines the classes compiled by the driver
+    * when they are shipped instead of compiling the source again.
+    */
+  def executorExecute(scriptCacheKey: ScriptUDFCacheKey,
+                      shipped: Option[Broadcast[CompiledClasses]]): AnyRef = {
+    shipped.foreach(RuntimeCompileScriptFactory.registerShipped(scriptCacheKey, _))
+    RuntimeCompileScriptFactory.executorScriptCache.get(scriptCacheKey)
+  }
+
   /**
     * validate the source code
     */
@@ -113,10 +130,83 @@ object RuntimeCompileScriptFactory extends Logging {
           def timeMs: Double = (System.nanoTime() - startTime).toDouble / 1000000
 
           logInfo(s"Dynamic in driver generate udf time: [ ${timeMs} ]ms.")
+          stat(scriptCacheKey).compile(timeMs)
           compiled
         }
       })
 
+  /**
+    * The classes compiled by the driver, broadcast once per udf.
+    * Python udf are compiled by Jython into interpreter objects and are not shipped.
+    */
+  private val shippedScriptCache = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build(
+      new CacheLoader[ScriptUDFCacheKey, Option[Broadcast[CompiledClasses]]]() {
+        override def load(scriptCacheKey: ScriptUDFCacheKey): Option[Broadcast[CompiledClasses]] = {
+          driverScriptCache.get(scriptCacheKey) match {
+            case clazz: Class[_] => broadcastClasses(clazz)
+            case _ => None
+          }
+        }
+      })
+
+  /**
+    * Broadcasts the bytecode of a class compiled on the driver (and of the classes compiled with it),
+    * None when shipping is disabled or the bytecode is not available.
+    */
+  def broadcastClasses(clazz: Class[_]): Option[Broadcast[CompiledClasses]] = {
+    val session = SparkSession.getActiveSession.orElse(SparkSession.getDefaultSession)
+    val enabled = session.exists(_.sparkContext.getConf.getBoolean(MLSQLConf.MLSQL_UDF_SHIP_COMPILED_CLASSES.key, true))
+    if (!enabled) return None
+    CompiledClasses.extract(clazz).map { compiled =>
+      logInfo(s"Ship ${compiled.classes.size} compiled classes (${compiled.size} bytes) of udf ${compiled.className}")
+      session.get.sparkContext.broadcast(compiled)
+    }
+  }
+
+  def isDriver: Boolean = SparkEnv.get != null && SparkEnv.get.executorId == "driver"
+
+  private val shippedClasses = new ConcurrentHashMap[ScriptUDFCacheKey, Broadcast[CompiledClasses]]()
+
+  private val compileStats = new ConcurrentHashMap[String, UDFCompileStat]()
+
+  /**
+    * Called on the driver when the udf function is created. None on executors.
+    */
+  def ship(scriptCacheKey: ScriptUDFCacheKey): Option[Broadcast[CompiledClasses]] = {
+    if (!isDriver) return None
+    try {
+      shippedScriptCache.get(scriptCacheKey)
+    } catch {
+      case e: Exception =>
+        logWarning(s"Fail to ship the compiled classes of ${scriptCacheKey.className}, executors will compile it: ${e.getMessage}")
+        None
+    }
+  }
+
+  def registerShipped(scriptCacheKey: ScriptUDFCacheKey, shipped: Broadcast[CompiledClasses]): Unit = {
+    shippedClasses.putIfAbsent(scriptCacheKey, shipped)
+  }
+
+  /**
+    * kind tells apart the classes generated for the same udf, e.g. its direct invoke bridge.
+    */
+  def stat(scriptCacheKey: ScriptUDFCacheKey, kind: String = ""): UDFCompileStat = {
+    val name = s"${scriptCacheKey.lang}:${scriptCacheKey.className}.${scriptCacheKey.methodName}" +
+      (if (kind.isEmpty) "" else s"#${kind}")
+    var s = compileStats.get(name)
+    if (s == null) {
+      compileStats.putIfAbsent(name, new UDFCompileStat(name))
+      s = compileStats.get(name)
+    }
+    s
+  }
+
+  def stats: Seq[UDFCompileMetric] = {
+    compileStats.values().asScala.map(_.metric).toSeq
+  }
+
 
   val executorScriptCache = CacheBuilder.newBuilder()
     .maximumSize(10000)
@@ -129,13 +219,46 @@ object RuntimeCompileScriptFactory extends Logging {
             case "udaf" => getUDAFCompilerBylang(scriptCacheKey.lang)
           }
 
-          val compiled = compiler.get.compile(scriptCacheKey)
+          Option(shippedClasses.remove(scriptCacheKey)) match {
+            case Some(shipped) =>
+              val clazz = CompiledClasses.define(shipped.value)
 
-          def timeMs: Double = (System.nanoTime() - startTime).toDouble / 1000000
+              def timeMs: Double = (System.nanoTime() - startTime).toDouble / 1000000
 
-          logInfo(s"Dynamic in executor generate udf time: [ ${timeMs} ]ms.")
-          compiled
+              logInfo(s"Load shipped udf ${clazz.getName} in executor time: [ ${timeMs} ]ms.")
+              stat(scriptCacheKey).load(timeMs)
+              clazz
+            case None =>
+              val compiled = compiler.get.compile(scriptCacheKey)
+
+              def timeMs: Double = (System.nanoTime() - startTime).toDouble / 1000000
+
+              logInfo(s"Dynamic in executor generate udf time: [ ${timeMs} ]ms.")
+              stat(scriptCacheKey).compile(timeMs)
+              compiled
+          }
         }
       })
 
 }
+
+class UDFCompileStat(name: String) {
+  private val compiled = new AtomicLong(0)
+  private val compileTimeMs = new AtomicLong(0)
+  private val loaded = new AtomicLong(0)
+  private val loadTimeMs = new AtomicLong(0)
+
+  def compile(timeMs: Double): Unit = {
+    compiled.incrementAndGet()
+    compileTimeMs.addAndGet(timeMs.toLong)
+  }
+
+  def load(timeMs: Double): Unit = {
+    loaded.incrementAndGet()
+    loadTimeMs.addAndGet(timeMs.toLong)
+  }
+
+  def metric: UDFCompileMetric = UDFCompileMetric(name, compiled.get(), compileTimeMs.get(), loaded.get(), loadTimeMs.get())
+}
+
+case class UDFCompileMetric(udf: String, compiled: Long, compileTimeMs: Long, loaded: Long, loadTimeMs: Long)
@@ -28,7 +28,7 @@ import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
  */
 trait RuntimeCompileUDAF extends RuntimeCompileScriptInterface[UserDefinedAggregateFunction] {
 
-  def udaf(e: Seq[Expression], scriptCacheKey: ScriptUDFCacheKey): ScalaUDAF = {
+  def udaf(e: Seq[Expression], scriptCacheKey: ScriptUDFCacheKey): Expression = {
     ScalaUDAF(e, generateFunction(scriptCacheKey))
   }
 }
@@ -18,6 +18,7 @@
 
 package streaming.udf
 
+import org.apache.spark.MLSQLConf
 import org.apache.spark.sql.catalyst.expressions.{Expression, ScalaUDF, WowScalaUDF}
 import org.apache.spark.sql.types.DataType
 import streaming.dsl.ScriptSQLExec
@@ -47,6 +48,13 @@ trait RuntimeCompileUDF extends RuntimeCompileScriptInterface[AnyRef] {
 
   def invokeFunctionFromInstance(scriptCacheKey: ScriptUDFCacheKey): (Seq[Object]) => AnyRef
 
+  /**
+    * A FunctionN class with a no-arg constructor which calls the udf method directly, without
+    * reflection, see [[DirectInvokeUDF]]. The arguments are converted with [[DirectInvokeArgs]]
+    * so they behave as with Method.invoke. None means the language does not support direct invocation.
+    */
+  def directFunctionClass(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = None
+
   override def generateFunction(scriptCacheKey: ScriptUDFCacheKey): AnyRef = {
     val runtimeFunction = invokeFunctionFromInstance(scriptCacheKey)
     toPartialFunc(scriptCacheKey, runtimeFunction)
@@ -54,7 +62,18 @@ trait RuntimeCompileUDF extends RuntimeCompileScriptInterface[AnyRef] {
 
   def udf(exp: Seq[Expression], scriptCacheKey: ScriptUDFCacheKey): ScalaUDF = {
     val newScript = wrapCode(scriptCacheKey)
-    new WowScalaUDF(generateFunction(newScript), returnType(newScript).get, exp).toScalaUDF
+    val function = if (directInvoke && argumentNum(newScript) <= DirectInvokeUDF.MAX_ARGUMENTS) {
+      DirectInvokeUDF.function(newScript, argumentNum(newScript))
+    } else {
+      generateFunction(newScript)
+    }
+    new WowScalaUDF(function, returnType(newScript).get, exp).toScalaUDF
+  }
+
+  private def directInvoke: Boolean = {
+    Option(ScriptSQLExec.contextGetOrForTest().execListener.sparkSession).exists { session =>
+      session.sparkContext.getConf.getBoolean(MLSQLConf.MLSQL_UDF_DIRECT_INVOKE.key, false)
+    }
   }
 
   def toPartialFunc(scriptCacheKey: ScriptUDFCacheKey,
@@ -19,14 +19,18 @@
 package streaming.udf
 
 import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.ScalaReflection
+import org.apache.spark.sql.catalyst.expressions.Expression
 import org.apache.spark.sql.expressions.{MutableAggregationBuffer, UserDefinedAggregateFunction}
 import org.apache.spark.sql.types.{DataType, StructType}
 import org.python.antlr.ast.ClassDef
 import streaming.dsl.ScriptSQLExec
 import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import tech.mlsql.common.utils.Md5
 import tech.mlsql.common.utils.lang.sc.SourceCodeCompiler
 
 import scala.reflect.ClassTag
+import scala.reflect.runtime.universe
 
 /**
   * Created by fchen on 2018/11/14.
@@ -57,6 +61,65 @@ object ScalaRuntimeCompileUDAF extends RuntimeCompileUDAF with ScalaCompileUtils
     tb.compile(tree).apply().asInstanceOf[Class[_]]
   }
 
+  /**
+    * classes which are their own aggregation buffer run as [[TypedScriptUDAF]].
+    */
+  override def udaf(e: Seq[Expression], scriptCacheKey: ScriptUDFCacheKey): Expression = {
+    val clazz = driverExecute(scriptCacheKey).asInstanceOf[Class[_]]
+    if (TypedScriptUDAF.isTyped(clazz)) {
+      if (!classOf[java.io.Serializable].isAssignableFrom(clazz)) {
+        throw new IllegalArgumentException(s"${scriptCacheKey.className} is used as aggregation buffer, it should extend Serializable")
+      }
+      TypedScriptUDAF(scriptCacheKey, typedDataType(scriptCacheKey, clazz), e,
+        shipped = TypedScriptUDAF.bridgeClasses.ship(scriptCacheKey))
+    } else {
+      super.udaf(e, scriptCacheKey)
+    }
+  }
+
+  /**
+    * Compiles the udaf class together with a [[ScriptAggregateBridge]] which casts the arguments
+    * to the parameter types of `update` and calls the methods of the class directly.
+    */
+  def bridgeClass(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = {
+    val className = scriptCacheKey.className
+    val paramTypes = methodDefs(scriptCacheKey).find(_.name.decodedName.toString == "update")
+      .getOrElse(throw new IllegalArgumentException(s"method update not found in ${className}"))
+      .vparamss.head.map(_.tpt.tpe.toString)
+    val arguments = paramTypes.zipWithIndex.map { case (t, i) => s"arguments(${i}).asInstanceOf[${t}]" }
+    val bridgeName = s"MLSQLAggregateBridge_${Md5.md5Hash(className)}"
+    val code =
+      s"""
+         |${scriptCacheKey.originalCode}
+         |class ${bridgeName} extends streaming.udf.ScriptAggregateBridge {
+         |  override def create(): AnyRef = new ${className}()
+         |  override def update(buffer: AnyRef, arguments: Array[Any]): Unit =
+         |    buffer.asInstanceOf[${className}].update(${arguments.mkString(", ")})
+         |  override def merge(buffer: AnyRef, other: AnyRef): Unit =
+         |    buffer.asInstanceOf[${className}].merge(other.asInstanceOf[${className}])
+         |  override def evaluate(buffer: AnyRef): Any = buffer.asInstanceOf[${className}].evaluate
+         |}
+       """.stripMargin
+    Some(tb.compile(tb.parse(prepareScala(code, bridgeName))).apply().asInstanceOf[Class[_]])
+  }
+
+  private def typedDataType(scriptCacheKey: ScriptUDFCacheKey, clazz: Class[_]): DataType = {
+    val defs = methodDefs(scriptCacheKey)
+    if (defs.exists(_.name.decodedName.toString == "dataType")) {
+      SourceCodeCompiler.getMethod(clazz, "dataType").invoke(newInstance(clazz)).asInstanceOf[DataType]
+    } else {
+      val evaluate = defs.find(_.name.decodedName.toString == "evaluate")
+        .getOrElse(throw new IllegalArgumentException(s"method evaluate not found in ${scriptCacheKey.className}"))
+      ScalaReflection.schemaFor(evaluate.tpt.tpe).dataType
+    }
+  }
+
+  private def methodDefs(scriptCacheKey: ScriptUDFCacheKey): List[universe.DefDef] = {
+    tb.typecheck(tb.parse(scriptCacheKey.originalCode)).collect {
+      case c: universe.ClassDef if c.name.decodedName.toString == scriptCacheKey.className => c.impl.body
+    }.flatten.collect { case d: universe.DefDef => d }
+  }
+
   override def generateFunction(scriptCacheKey: ScriptUDFCacheKey): UserDefinedAggregateFunction = {
     val c = ScriptSQLExec.contextGetOrForTest()
 
@@ -69,6 +132,7 @@ object ScalaRuntimeCompileUDAF extends RuntimeCompileUDAF with ScalaCompileUtils
           throw e
       }
     }
+    val shipped = RuntimeCompileScriptFactory.ship(scriptCacheKey)
     new UserDefinedAggregateFunction with Serializable {
 
       @transient val clazzUsingInDriver = wrap(() => {
@@ -77,7 +141,7 @@ object ScalaRuntimeCompileUDAF extends RuntimeCompileUDAF with ScalaCompileUtils
       @transient val instanceUsingInDriver = newInstance(clazzUsingInDriver)
 
       lazy val clazzUsingInExecutor = wrap(() => {
-        ScalaRuntimeCompileUDAF.executorExecute(scriptCacheKey)
+        ScalaRuntimeCompileUDAF.executorExecute(scriptCacheKey, shipped)
       }).asInstanceOf[Class[_]]
       lazy val instanceUsingInExecutor = ScalaRuntimeCompileUDAF.newInstance(clazzUsingInExecutor)
 
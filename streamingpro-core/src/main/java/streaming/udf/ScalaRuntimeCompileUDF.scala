@@ -117,7 +117,8 @@ object ScalaRuntimeCompileUDF extends RuntimeCompileUDF with ScalaCompileUtils w
 
   def invokeFunctionFromInstance(scriptCacheKey: ScriptUDFCacheKey): (Seq[Object]) => AnyRef = {
 
-    lazy val clz = ScalaRuntimeCompileUDF.executorExecute(scriptCacheKey).asInstanceOf[Class[_]]
+    val shipped = RuntimeCompileScriptFactory.ship(scriptCacheKey)
+    lazy val clz = ScalaRuntimeCompileUDF.executorExecute(scriptCacheKey, shipped).asInstanceOf[Class[_]]
     lazy val instance = ScalaRuntimeCompileUDF.newInstance(clz)
     lazy val method = SourceCodeCompiler.getMethod(clz, scriptCacheKey.methodName)
 
@@ -126,6 +127,41 @@ object ScalaRuntimeCompileUDF extends RuntimeCompileUDF with ScalaCompileUtils w
     }
     func
   }
+
+  /**
+    * Compiles the udf class together with an AbstractFunctionN subclass which converts the
+    * arguments to the parameter types of the udf method and calls it directly.
+    */
+  override def directFunctionClass(scriptCacheKey: ScriptUDFCacheKey): Option[Class[_]] = {
+    val funcDef = getFunctionDef(scriptCacheKey).get
+    val args = funcDef.vparamss.head.map(_.tpt.tpe).zipWithIndex.map { case (t, i) =>
+      PRIMITIVE_ARGUMENTS.get(t.typeSymbol.fullName) match {
+        case Some(convert) => s"streaming.udf.DirectInvokeArgs.${convert}(a${i})"
+        case None => s"streaming.udf.DirectInvokeArgs.checked(a${i}, classOf[${t}])"
+      }
+    }
+    val bridgeName = s"MLSQLDirectBridge_${Md5.md5Hash(scriptCacheKey.className + "." + scriptCacheKey.methodName)}"
+    val bridge =
+      s"""
+         |${scriptCacheKey.wrappedCode}
+         |class ${bridgeName} extends scala.runtime.AbstractFunction${args.size}[${Seq.fill(args.size + 1)("Any").mkString(", ")}] {
+         |  private val udf = new ${scriptCacheKey.className}()
+         |  override def apply(${args.indices.map(i => s"a${i}: Any").mkString(", ")}): Any =
+         |    udf.`${scriptCacheKey.methodName}`(${args.mkString(", ")})
+         |}
+       """.stripMargin
+    Some(tb.compile(tb.parse(prepareScala(bridge, bridgeName))).apply().asInstanceOf[Class[_]])
+  }
+
+  private val PRIMITIVE_ARGUMENTS = Map(
+    "scala.Boolean" -> "toBoolean",
+    "scala.Byte" -> "toByte",
+    "scala.Char" -> "toChar",
+    "scala.Short" -> "toShort",
+    "scala.Int" -> "toInt",
+    "scala.Long" -> "toLong",
+    "scala.Float" -> "toFloat",
+    "scala.Double" -> "toDouble")
 }
 
 trait ScalaCompileUtils {
@@ -0,0 +1,151 @@
+package streaming.udf
+
+import java.io._
+
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.sql.catalyst.expressions.Expression
+import org.apache.spark.sql.catalyst.expressions.aggregate.TypedImperativeAggregate
+import org.apache.spark.sql.catalyst.{CatalystTypeConverters, InternalRow}
+import org.apache.spark.sql.expressions.UserDefinedAggregateFunction
+import org.apache.spark.sql.types.DataType
+import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import tech.mlsql.common.utils.cache.{CacheBuilder, CacheLoader}
+import tech.mlsql.common.utils.lang.sc.SourceCodeCompiler
+
+/**
+ * Scala udaf whose class is the aggregation buffer itself:
+ *
+ * {{{
+ * class SumAggregation extends Serializable {
+ *   var total = 0L
+ *   def update(a: Long): Unit = total += a
+ *   def merge(other: SumAggregation): Unit = total += other.total
+ *   def evaluate: Long = total
+ * }
+ * }}}
+ *
+ * An instance is created per group and updated with the typed arguments directly through a
+ * [[ScriptAggregateBridge]] compiled together with the class, so there is neither reflection
+ * nor MutableAggregationBuffer/Row conversion per row. The bridge is compiled on the driver and
+ * shipped to the executors (see [[BridgeClasses]]), so all of them define the same buffer class. The instance is only java serialized
+ * when Spark shuffles or spills the buffers. The result type is taken from `dataType` when the
+ * class defines it, otherwise it is inferred from the return type of `evaluate`.
+ *
+ * Classes extending UserDefinedAggregateFunction still run through [[ScalaRuntimeCompileUDAF.generateFunction]].
+ */
+case class TypedScriptUDAF(scriptCacheKey: ScriptUDFCacheKey,
+                           dataType: DataType,
+                           children: Seq[Expression],
+                           mutableAggBufferOffset: Int = 0,
+                           inputAggBufferOffset: Int = 0,
+                           shipped: Option[Broadcast[CompiledClasses]] = None) extends TypedImperativeAggregate[AnyRef] {
+
+  @transient private lazy val bridge = TypedScriptUDAF.bridge(scriptCacheKey, shipped)
+
+  @transient private lazy val converters = children.map(c => CatalystTypeConverters.createToScalaConverter(c.dataType)).toArray
+
+  @transient private lazy val toCatalyst = CatalystTypeConverters.createToCatalystConverter(dataType)
+
+  @transient private lazy val arguments = new Array[Any](children.size)
+
+  override def nullable: Boolean = true
+
+  override def createAggregationBuffer(): AnyRef = bridge.create()
+
+  override def update(buffer: AnyRef, input: InternalRow): AnyRef = {
+    var i = 0
+    while (i < arguments.length) {
+      arguments(i) = converters(i)(children(i).eval(input))
+      i += 1
+    }
+    bridge.update(buffer, arguments)
+    buffer
+  }
+
+  override def merge(buffer: AnyRef, input: AnyRef): AnyRef = {
+    bridge.merge(buffer, input)
+    buffer
+  }
+
+  override def eval(buffer: AnyRef): Any = toCatalyst(bridge.evaluate(buffer))
+
+  override def serialize(buffer: AnyRef): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    val out = new ObjectOutputStream(bytes)
+    try {
+      out.writeObject(buffer)
+    } finally {
+      out.close()
+    }
+    bytes.toByteArray
+  }
+
+  override def deserialize(storageFormat: Array[Byte]): AnyRef = {
+    // the class of the buffer is only visible to the class loader which defined the bridge
+    val loader = bridge.getClass.getClassLoader
+    val in = new ObjectInputStream(new ByteArrayInputStream(storageFormat)) {
+      override def resolveClass(desc: ObjectStreamClass): Class[_] = {
+        try {
+          Class.forName(desc.getName, false, loader)
+        } catch {
+          case _: ClassNotFoundException => super.resolveClass(desc)
+        }
+      }
+    }
+    try {
+      in.readObject()
+    } finally {
+      in.close()
+    }
+  }
+
+  override def withNewMutableAggBufferOffset(newMutableAggBufferOffset: Int): TypedScriptUDAF =
+    copy(mutableAggBufferOffset = newMutableAggBufferOffset)
+
+  override def withNewInputAggBufferOffset(newInputAggBufferOffset: Int): TypedScriptUDAF =
+    copy(inputAggBufferOffset = newInputAggBufferOffset)
+
+  override def prettyName: String = scriptCacheKey.className
+}
+
+object TypedScriptUDAF {
+
+  val bridgeClasses = new BridgeClasses("aggregate-bridge", ScalaRuntimeCompileUDAF.bridgeClass)
+
+  val bridges = CacheBuilder.newBuilder()
+    .maximumSize(10000)
+    .build(
+      new CacheLoader[ScriptUDFCacheKey, ScriptAggregateBridge]() {
+        override def load(scriptCacheKey: ScriptUDFCacheKey): ScriptAggregateBridge = {
+          val clazz = bridgeClasses.get(scriptCacheKey).getOrElse(
+            throw new IllegalArgumentException(s"Fail to generate the aggregate bridge of ${scriptCacheKey.className}"))
+          SourceCodeCompiler.newInstance(clazz).asInstanceOf[ScriptAggregateBridge]
+        }
+      })
+
+  def bridge(scriptCacheKey: ScriptUDFCacheKey, shipped: Option[Broadcast[CompiledClasses]]): ScriptAggregateBridge = {
+    shipped.foreach(bridgeClasses.registerShipped(scriptCacheKey, _))
+    bridges.get(scriptCacheKey)
+  }
+
+  /**
+   * A class merging instances of itself instead of extending UserDefinedAggregateFunction.
+   */
+  def isTyped(clazz: Class[_]): Boolean = {
+    !classOf[UserDefinedAggregateFunction].isAssignableFrom(clazz) &&
+      clazz.getMethods.exists(m => m.getName == "merge" && m.getParameterTypes.sameElements(Array(clazz)))
+  }
+}
+
+/**
+ * Calls the methods of a typed udaf class, generated by [[ScalaRuntimeCompileUDAF.bridgeClass]].
+ */
+abstract class ScriptAggregateBridge {
+  def create(): AnyRef
+
+  def update(buffer: AnyRef, arguments: Array[Any]): Unit
+
+  def merge(buffer: AnyRef, other: AnyRef): Unit
+
+  def evaluate(buffer: AnyRef): Any
+}
@@ -0,0 +1,170 @@
+package streaming.udf
+
+import java.util
+import java.util.concurrent.{ConcurrentLinkedQueue, Semaphore}
+
+import org.apache.spark.rdd.RDD
+import org.apache.spark.sql.Strategy
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{Attribute, AttributeReference, AttributeSet, JoinedRow, UnsafeProjection}
+import org.apache.spark.sql.catalyst.plans.logical.{LogicalPlan, Project, UnaryNode}
+import org.apache.spark.sql.catalyst.rules.Rule
+import org.apache.spark.sql.execution.{SparkPlan, UnaryExecNode}
+import org.apache.spark.sql.mlsql.session.MLSQLException
+import org.apache.spark.sql.types.{StructField, StructType}
+import org.apache.spark.{MLSQLConf, TaskContext}
+import tech.mlsql.arrow.python.ispark.SparkContextImp
+import tech.mlsql.arrow.python.runner.{ArrowPythonRunner, ChainedPythonFunctions, PythonFunction}
+
+import scala.collection.JavaConverters._
+
+/**
+ * Evaluates one [[VectorizedPythonUDF]] on the rows of `child` and appends the result as `resultAttribute`.
+ */
+case class VectorizedPythonEval(udf: VectorizedPythonUDF, resultAttribute: Attribute, child: LogicalPlan)
+  extends UnaryNode {
+  override def output: Seq[Attribute] = child.output :+ resultAttribute
+
+  override def producedAttributes: AttributeSet = AttributeSet(resultAttribute)
+}
+
+/**
+ * Moves every vectorized python udf which only references the output of the child of its
+ * operator into a [[VectorizedPythonEval]] between them, and replaces it with the result attribute.
+ * Nested udf are extracted from the inside out, one per iteration.
+ */
+object ExtractVectorizedPythonUDFs extends Rule[LogicalPlan] {
+
+  override def apply(plan: LogicalPlan): LogicalPlan = plan transformUp {
+    case p: VectorizedPythonEval => p
+    case p: LogicalPlan if p.children.size == 1 =>
+      val child = p.children.head
+      val udf = p.expressions.flatMap(_.collect {
+        case u: VectorizedPythonUDF if u.references.subsetOf(child.outputSet) &&
+          !u.children.exists(_.find(_.isInstanceOf[VectorizedPythonUDF]).isDefined) => u
+      }).headOption
+      udf match {
+        case Some(u) =>
+          val result = AttributeReference(u.scriptCacheKey.methodName, u.dataType)()
+          val rewritten = p.withNewChildren(Seq(VectorizedPythonEval(u, result, child))).transformExpressions {
+            case e: VectorizedPythonUDF if e == u => result
+          }
+          // operators which pass the output of their child through, e.g. Filter,
+          // should not expose the result attribute
+          if (rewritten.output != p.output) Project(p.output, rewritten) else rewritten
+        case None => p
+      }
+  }
+}
+
+object VectorizedPythonEvalStrategy extends Strategy {
+  override def apply(plan: LogicalPlan): Seq[SparkPlan] = plan match {
+    case VectorizedPythonEval(udf, resultAttribute, child) =>
+      VectorizedPythonEvalExec(udf, resultAttribute, planLater(child)) :: Nil
+    case _ => Nil
+  }
+}
+
+/**
+ * The rows of a partition are buffered while their arguments are sent to the python worker
+ * in batches of `spark.mlsql.udf.python.vectorized.batchSize` rows, and joined with the
+ * results in the same order when the batches come back. At most
+ * `spark.mlsql.udf.python.vectorized.maxQueuedBatches` batches are buffered, see [[VectorizedPythonInputQueue]].
+ */
+case class VectorizedPythonEvalExec(udf: VectorizedPythonUDF, resultAttribute: Attribute, child: SparkPlan)
+  extends UnaryExecNode {
+
+  override def output: Seq[Attribute] = child.output :+ resultAttribute
+
+  override def producedAttributes: AttributeSet = AttributeSet(resultAttribute)
+
+  override protected def doExecute(): RDD[InternalRow] = {
+    val batchSize = sparkContext.getConf.getInt(MLSQLConf.MLSQL_UDF_PYTHON_VECTORIZED_BATCH_SIZE.key, 10000)
+    val maxQueuedBatches = Math.max(1, sparkContext.getConf.getInt(MLSQLConf.MLSQL_UDF_PYTHON_VECTORIZED_MAX_QUEUED_BATCHES.key, 2))
+    val timezoneID = conf.sessionLocalTimeZone
+    val code = VectorizedPythonUDF.pythonCode(udf.scriptCacheKey, udf.dataType)
+    val pythonVersion = udf.runnerConf.getOrElse("pythonVersion", "3.6")
+    val runnerConf = udf.runnerConf + ("schema" -> StructType(Seq(StructField("value", udf.dataType))).json)
+    val envs = udf.envs
+    val inputSchema = StructType(udf.children.zipWithIndex.map { case (e, i) => StructField(s"_${i}", e.dataType) })
+    val arguments = udf.children
+    val name = udf.scriptCacheKey.methodName
+    val childOutput = child.output
+    val result = resultAttribute
+    val outputAttributes = output
+
+    child.execute().mapPartitions { iter =>
+      val argumentProjection = UnsafeProjection.create(arguments, childOutput)
+      val resultProjection = UnsafeProjection.create(outputAttributes, childOutput :+ result)
+      val queue = new VectorizedPythonInputQueue(batchSize * maxQueuedBatches)
+
+      val envs4j = new util.HashMap[String, String]()
+      envs.foreach(f => envs4j.put(f._1, f._2))
+      val runner = new ArrowPythonRunner(
+        Seq(ChainedPythonFunctions(Seq(PythonFunction(
+          code, envs4j, "python", pythonVersion)))), inputSchema,
+        timezoneID, runnerConf
+      )
+
+      // consumed by the writer thread of the runner, every input batch becomes one Arrow record batch.
+      // It waits here while the task has not joined enough of the rows sent before.
+      val batches = iter.map(_.copy()).grouped(batchSize).map { rows =>
+        queue.addAll(rows)
+        rows.iterator.map(argumentProjection)
+      }
+      val commonTaskContext = new SparkContextImp(TaskContext.get(), runner)
+      val results = runner.compute(batches, TaskContext.getPartitionId(), commonTaskContext).flatMap { batch =>
+        batch.rowIterator.asScala
+      }
+
+      val joined = new JoinedRow()
+      new Iterator[InternalRow] {
+        override def hasNext: Boolean = {
+          val more = results.hasNext
+          if (!more && !queue.isEmpty) {
+            throw new MLSQLException(s"Vectorized python udf ${name} returned less rows than it received")
+          }
+          more
+        }
+
+        override def next(): InternalRow = {
+          val input = queue.poll()
+          if (input == null) {
+            throw new MLSQLException(s"Vectorized python udf ${name} returned more rows than it received")
+          }
+          resultProjection(joined(input, results.next()))
+        }
+      }
+    }
+  }
+}
+
+/**
+ * The input rows of [[VectorizedPythonEvalExec]] waiting for their results. `addAll` blocks
+ * the writer thread while the queue holds more than `capacity` rows, so a python worker which
+ * is slower than the input only keeps a few batches in memory. A batch is always accepted
+ * by an empty queue, and the rows of the batches sent before it are polled as their results
+ * come back, so the writer never waits for a batch the worker has not received.
+ */
+class VectorizedPythonInputQueue(capacity: Int) {
+  private val rows = new ConcurrentLinkedQueue[InternalRow]()
+  private val permits = new Semaphore(capacity)
+
+  /**
+   * Throws InterruptedException when the writer thread is interrupted, e.g. the task is killed.
+   */
+  def addAll(batch: Seq[InternalRow]): Unit = {
+    permits.acquire(Math.min(batch.size, capacity))
+    batch.foreach(rows.add)
+  }
+
+  def poll(): InternalRow = {
+    val row = rows.poll()
+    if (row != null && permits.availablePermits() < capacity) permits.release()
+    row
+  }
+
+  def isEmpty: Boolean = rows.isEmpty
+
+  def size: Int = rows.size()
+}
@@ -0,0 +1,142 @@
+package streaming.udf
+
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.codegen.CodegenFallback
+import org.apache.spark.sql.catalyst.expressions.{Expression, NonSQLExpression}
+import org.apache.spark.sql.mlsql.session.MLSQLException
+import org.apache.spark.sql.types._
+import streaming.dsl.ScriptSQLExec
+import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import tech.mlsql.arrow.python.PythonWorkerFactory
+import tech.mlsql.arrow.python.runner.PythonConf
+import tech.mlsql.common.utils.lang.sc.ScalaMethodMacros
+import tech.mlsql.session.SetSession
+
+/**
+ * Python udf registered with `mode="vectorized"`.
+ *
+ * Instead of calling the Jython method once per row, the arguments of a partition are sent
+ * in Arrow record batches to a CPython worker (the same pyjava ArrowPythonRunner `!python`
+ * and Ray use), and the udf method is called once per batch with one pandas.Series per argument.
+ * It should return a Series (or anything pandas.Series accepts) with the same length.
+ *
+ * The expression itself is never evaluated: [[ExtractVectorizedPythonUDFs]] moves it into a
+ * [[VectorizedPythonEval]] node below the operator which uses it.
+ *
+ * The python env (`!python env`) and `pythonVersion` (`!python conf`) of the owner are
+ * taken when the udf is registered.
+ */
+case class VectorizedPythonUDF(scriptCacheKey: ScriptUDFCacheKey,
+                               dataType: DataType,
+                               envs: Map[String, String],
+                               runnerConf: Map[String, String],
+                               children: Seq[Expression])
+  extends Expression with CodegenFallback with NonSQLExpression {
+
+  override def nullable: Boolean = true
+
+  override def eval(input: InternalRow): Any = {
+    throw new MLSQLException(s"Vectorized python udf ${scriptCacheKey.methodName} can only be applied to " +
+      s"the input columns of a single table, e.g. not to the result of an aggregate function or in a join condition.")
+  }
+
+  override def toString: String = s"${scriptCacheKey.methodName}(${children.mkString(", ")})"
+}
+
+object VectorizedPythonUDF {
+
+  val MODE = "vectorized"
+
+  /**
+   * Called on the driver when the udf is registered.
+   */
+  def builder(session: SparkSession, scriptCacheKey: ScriptUDFCacheKey): Seq[Expression] => Expression = {
+    if (scriptCacheKey.dataType.isEmpty) {
+      throw new MLSQLException("dataType is required by vectorized python udf")
+    }
+    val key = PythonRuntimeCompileUDF.wrapCode(scriptCacheKey)
+    val dataType = PythonRuntimeCompileUDF.returnType(key).get
+    val (envs, runnerConf) = pythonEnv(session)
+    (e: Seq[Expression]) => VectorizedPythonUDF(key, dataType, envs, runnerConf, e)
+  }
+
+  /**
+   * Registers the rule and the strategy which execute vectorized udf in `session`.
+   */
+  def register(session: SparkSession): Unit = synchronized {
+    val experimental = session.experimental
+    if (!experimental.extraOptimizations.contains(ExtractVectorizedPythonUDFs)) {
+      experimental.extraOptimizations = experimental.extraOptimizations :+ ExtractVectorizedPythonUDFs
+    }
+    if (!experimental.extraStrategies.contains(VectorizedPythonEvalStrategy)) {
+      experimental.extraStrategies = experimental.extraStrategies :+ VectorizedPythonEvalStrategy
+    }
+  }
+
+  /**
+   * The script executed by the python worker. `context` is provided by pyjava:
+   * `fetch_once()` iterates the input batches as lists of pandas.Series and
+   * `set_output` takes an iterator of lists of pandas.Series, one list per output batch.
+   */
+  def pythonCode(scriptCacheKey: ScriptUDFCacheKey, dataType: DataType): String = {
+    val cast = pandasType(dataType).map(t => s".astype('${t}')").getOrElse("")
+    s"""
+       |import pandas as pd
+       |${scriptCacheKey.wrappedCode}
+       |
+       |__mlsql_udf__ = ${scriptCacheKey.className}().${scriptCacheKey.methodName}
+       |
+       |def __mlsql_eval__():
+       |    for columns in context.fetch_once():
+       |        result = __mlsql_udf__(*columns)
+       |        if not isinstance(result, pd.Series):
+       |            result = pd.Series(result)
+       |        yield [result${cast}]
+       |
+       |context.set_output(__mlsql_eval__())
+     """.stripMargin
+  }
+
+  /**
+   * pandas infers int64/float64, the result is cast to the declared type so
+   * the Arrow vectors can be read back with it.
+   */
+  private def pandasType(dataType: DataType): Option[String] = dataType match {
+    case ByteType => Some("int8")
+    case ShortType => Some("int16")
+    case IntegerType => Some("int32")
+    case LongType => Some("int64")
+    case FloatType => Some("float32")
+    case DoubleType => Some("float64")
+    case BooleanType => Some("bool")
+    case _ => None
+  }
+
+  private def pythonEnv(session: SparkSession): (Map[String, String], Map[String, String]) = {
+    val context = ScriptSQLExec.contextGetOrForTest()
+    val envSession = new SetSession(session, context.owner)
+    val arrowFormat = "export ARROW_PRE_0_15_IPC_FORMAT=1"
+    val envs = Map(
+      ScalaMethodMacros.str(PythonConf.PY_EXECUTE_USER) -> context.owner,
+      ScalaMethodMacros.str(PythonConf.PYTHON_ENV) -> arrowFormat
+    ) ++ envSession.fetchPythonEnv.map(_.collect().map { f =>
+      if (f.k == ScalaMethodMacros.str(PythonConf.PYTHON_ENV)) {
+        (f.k, f.v + " && " + arrowFormat)
+      } else {
+        (f.k, f.v)
+      }
+    }.toMap).getOrElse(Map())
+
+    val logConf = session.sqlContext.getAllConfs.filter(f => f._1.startsWith("spark.mlsql.log.driver"))
+    val redirect = if (logConf.contains("spark.mlsql.log.driver.host")) {
+      Map(PythonWorkerFactory.Tool.REDIRECT_IMPL -> "tech.mlsql.log.RedirectStreamsToSocketServer")
+    } else Map[String, String]()
+    val runnerConf = envSession.fetchPythonRunnerConf.map(_.collect().map(f => (f.k, f.v)).toMap)
+      .getOrElse(Map()).filter(_._1 == "pythonVersion") ++ logConf ++ redirect ++ Map(
+      ScalaMethodMacros.str(PythonConf.PY_EXECUTE_USER) -> context.owner,
+      "groupId" -> context.groupId
+    )
+    (envs, runnerConf)
+  }
+}
@@ -24,6 +24,7 @@ import streaming.dsl.ScriptSQLExecListener
 import streaming.dsl.parser.DSLSQLLexer
 import streaming.dsl.parser.DSLSQLParser.SqlContext
 import streaming.dsl.template.TemplateMerge
+import tech.mlsql.job.ScriptResultCache
 
 /**
   * Created by allwefantasy on 27/8/2017.
@@ -47,6 +48,8 @@ class InsertAdaptor(scriptSQLExecListener: ScriptSQLExecListener) extends DslAda
     } else {
       scriptSQLExecListener.sparkSession.sql(sql)
     }
+    // the target of an insert statement is a table or a directory we do not resolve here
+    ScriptResultCache.invalidateAll()
 
     scriptSQLExecListener.setLastSelectTable(null)
   }
@@ -26,6 +26,10 @@ class PreProcessIncludeListener(val scriptSQLExecListener: ScriptSQLExecListener
     stringBuffer.toString
   }
 
+  def hasInclude = {
+    _statements.exists(_.st == SCType.Include)
+  }
+
   def addStatement(v: String, scType: SCType.Value) = {
     _statements += StatementChunk(v, scType)
     this
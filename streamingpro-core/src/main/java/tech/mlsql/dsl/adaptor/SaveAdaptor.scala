@@ -27,7 +27,7 @@ import streaming.core.stream.MLSQLStreamManager
 import streaming.dsl.parser.DSLSQLParser._
 import streaming.dsl.template.TemplateMerge
 import streaming.dsl.{ScriptSQLExec, ScriptSQLExecListener}
-import tech.mlsql.job.{JobManager, MLSQLJobType}
+import tech.mlsql.job.{JobManager, MLSQLJobType, ScriptResultCache}
 
 import scala.collection.mutable.ArrayBuffer
 
@@ -142,6 +142,8 @@ class SaveAdaptor(scriptSQLExecListener: ScriptSQLExecListener) extends DslAdapt
 
     if (isStream) {
       streamQuery = saveRes.asInstanceOf[StreamingQuery]
+    } else if (path != "-" && !path.isEmpty) {
+      ScriptResultCache.invalidate(resourceRealPath(context.execListener, owner, path))
     }
 
     job = JobManager.getJobInfo(context.groupId)
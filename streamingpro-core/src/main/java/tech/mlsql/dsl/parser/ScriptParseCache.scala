@@ -0,0 +1,131 @@
+package tech.mlsql.dsl.parser
+
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.spark.MLSQLConf
+import org.apache.spark.sql.SparkSession
+import streaming.dsl.parser.DSLSQLParser.StatementContext
+import tech.mlsql.common.utils.log.Logging
+
+/**
+ * Bounded LRU caches for the /run/script endpoint:
+ *
+ * 1. ANTLR parse trees keyed by the script text. A tree is only read by the
+ * listeners which walk it, so the same tree can be shared by concurrent requests.
+ * 2. The json of `PreProcessListener.analyzedStatements` for executeMode=analyze.
+ *
+ * Both caches are disabled when `spark.mlsql.script.parse.cache.size` is 0.
+ */
+object ScriptParseCache extends Logging {
+
+  private val trees = new BoundedLRU[String, StatementContext]("parseTree")
+  private val analyzed = new BoundedLRU[AnalyzedStatementsKey, String]("analyzedStatements")
+
+  def configure(session: SparkSession): Unit = {
+    val size = Option(session).map(_.sparkContext.getConf.getInt(MLSQLConf.MLSQL_SCRIPT_PARSE_CACHE_SIZE.key, 0)).getOrElse(0)
+    trees.resize(size)
+    analyzed.resize(size)
+  }
+
+  def parseTree(script: String, parse: String => StatementContext): StatementContext = {
+    trees.getOrElseUpdate(script, parse)
+  }
+
+  def analyzedStatements(key: AnalyzedStatementsKey): Option[String] = {
+    analyzed.get(key)
+  }
+
+  def putAnalyzedStatements(key: AnalyzedStatementsKey, value: String): Unit = {
+    analyzed.put(key, value)
+  }
+
+  def stats: Seq[ScriptParseCacheStat] = {
+    Seq(trees.stat, analyzed.stat)
+  }
+
+  def clear(): Unit = {
+    trees.clear()
+    analyzed.clear()
+  }
+}
+
+case class AnalyzedStatementsKey(script: String,
+                                 owner: String,
+                                 defaultPathPrefix: String,
+                                 allPathPrefix: String,
+                                 userDefinedParams: Map[String, String])
+
+case class ScriptParseCacheStat(name: String,
+                                size: Long,
+                                capacity: Long,
+                                hits: Long,
+                                misses: Long,
+                                evictions: Long)
+
+private[parser] class BoundedLRU[K, V](name: String) {
+  @volatile private var capacity = 0
+  private val hits = new AtomicLong(0)
+  private val misses = new AtomicLong(0)
+  private val evictions = new AtomicLong(0)
+
+  private val items = new java.util.LinkedHashMap[K, V](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[K, V]): Boolean = {
+      val evict = size() > capacity
+      if (evict) evictions.incrementAndGet()
+      evict
+    }
+  }
+
+  def resize(newCapacity: Int): Unit = items.synchronized {
+    capacity = newCapacity
+    val iter = items.entrySet().iterator()
+    while (items.size() > capacity && iter.hasNext) {
+      iter.next()
+      iter.remove()
+      evictions.incrementAndGet()
+    }
+  }
+
+  def get(key: K): Option[V] = {
+    if (capacity <= 0) return None
+    val value = items.synchronized {
+      items.get(key)
+    }
+    if (value == null) {
+      misses.incrementAndGet()
+      None
+    } else {
+      hits.incrementAndGet()
+      Some(value)
+    }
+  }
+
+  def put(key: K, value: V): Unit = {
+    if (capacity <= 0) return
+    items.synchronized {
+      items.put(key, value)
+    }
+  }
+
+  /**
+   * The value is computed outside of the lock so a slow parse never blocks other
+   * scripts; two threads missing on the same key may both compute it.
+   */
+  def getOrElseUpdate(key: K, compute: K => V): V = {
+    get(key) match {
+      case Some(value) => value
+      case None =>
+        val value = compute(key)
+        put(key, value)
+        value
+    }
+  }
+
+  def clear(): Unit = items.synchronized {
+    items.clear()
+  }
+
+  def stat: ScriptParseCacheStat = items.synchronized {
+    ScriptParseCacheStat(name, items.size(), capacity, hits.get(), misses.get(), evictions.get())
+  }
+}
@@ -0,0 +1,53 @@
+package tech.mlsql.dsl.parser;
+
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.ANTLRErrorStrategy;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Parses with the cheap SLL prediction mode and a bail-out error strategy first.
+ * Only when SLL fails the input is parsed again in full LL mode with the error
+ * strategy and error listeners the parser was configured with, so syntax errors
+ * are reported exactly as before.
+ */
+public class TwoStageParser {
+
+    public static <P extends Parser, T extends ParserRuleContext> T parse(P parser, Function<P, T> entry) {
+        ANTLRErrorStrategy errorHandler = parser.getErrorHandler();
+        List<ANTLRErrorListener> errorListeners = new ArrayList<>(parser.getErrorListeners());
+        PredictionMode predictionMode = parser.getInterpreter().getPredictionMode();
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return entry.apply(parser);
+        } catch (ParseCancellationException e) {
+            // the tokens are buffered, so the second stage does not lex again
+            parser.reset();
+            parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+            restore(parser, errorHandler, errorListeners);
+            return entry.apply(parser);
+        } finally {
+            // leave the parser as the caller configured it, whichever stage succeeded
+            parser.getInterpreter().setPredictionMode(predictionMode);
+            restore(parser, errorHandler, errorListeners);
+        }
+    }
+
+    private static void restore(Parser parser, ANTLRErrorStrategy errorHandler, List<ANTLRErrorListener> errorListeners) {
+        parser.setErrorHandler(errorHandler);
+        parser.removeErrorListeners();
+        for (ANTLRErrorListener listener : errorListeners) {
+            parser.addErrorListener(listener);
+        }
+    }
+}
@@ -1,7 +1,7 @@
 package tech.mlsql.job
 
 import java.util.UUID
-import java.util.concurrent.{ConcurrentHashMap, Executors, TimeUnit}
+import java.util.concurrent.{ConcurrentHashMap, ScheduledFuture, ScheduledThreadPoolExecutor, TimeUnit}
 
 import org.apache.spark.sql.SparkSession
 import org.apache.spark.sql.mlsql.session.{SessionIdentifier, SparkSessionCacheManager}
@@ -21,7 +21,7 @@ import scala.collection.mutable.ArrayBuffer
  */
 object JobManager extends Logging {
   private[this] var _jobManager: JobManager = _
-  private[this] val _executor = Executors.newFixedThreadPool(100)
+  private[this] var _executor: MLSQLJobExecutor = _
   private[this] val _jobListeners = ArrayBuffer[JobListener]()
 
   def addJobListener(listener: JobListener) = {
@@ -34,7 +34,10 @@ object JobManager extends Logging {
 
   def shutdown = {
     logInfo(s"JobManager is shutdown....")
-    _executor.shutdownNow()
+    if (_executor != null) {
+      _executor.shutdownNow()
+      _executor = null
+    }
     _jobManager.shutdown
     _jobManager = null
     _jobListeners.clear()
@@ -45,6 +48,9 @@ object JobManager extends Logging {
       if (_jobManager == null) {
         logInfo(s"JobManager started with initialDelay=${initialDelay} checkTimeInterval=${checkTimeInterval}")
         _jobManager = new JobManager(spark, initialDelay, checkTimeInterval)
+        _executor = MLSQLJobExecutor(spark)
+        logInfo(s"JobManager executor poolSize=${_executor.poolSize} queueSize=${_executor.queueSize} " +
+          s"ownerQueueSize=${_executor.ownerQueueSize} virtualThread=${_executor.virtualThread}")
         _jobListeners += new CleanCacheListener
         _jobListeners += new EngineMDCLogListener
         _jobManager.run
@@ -70,7 +76,7 @@ object JobManager extends Logging {
         f()
       } else {
         session.sparkContext.setJobGroup(job.groupId, job.jobName, true)
-        _jobManager.groupIdToMLSQLJobInfo.put(job.groupId, job)
+        _jobManager.addJob(job)
         f()
       }
 
@@ -84,7 +90,7 @@ object JobManager extends Logging {
   def asyncRun(session: SparkSession, job: MLSQLJobInfo, f: () => Unit) = {
     // TODO: (fchen) 改成callback
     val context = ScriptSQLExec.contextGetOrForTest()
-    _executor.execute(new Runnable {
+    executor.execute(job.owner, new Runnable {
       override def run(): Unit = {
         ScriptSQLExec.setContext(context)
         try {
@@ -104,6 +110,15 @@ object JobManager extends Logging {
     })
   }
 
+  def executor: MLSQLJobExecutor = {
+    synchronized {
+      if (_executor == null) {
+        _executor = MLSQLJobExecutor.default
+      }
+      _executor
+    }
+  }
+
   def getJobInfo(owner: String,
                  jobType: String,
                  jobName: String,
@@ -118,7 +133,7 @@ object JobManager extends Logging {
     _jobManager.groupIdToMLSQLJobInfo.asScala.toMap
 
   def addJobManually(job: MLSQLJobInfo) = {
-    _jobManager.groupIdToMLSQLJobInfo.put(job.groupId, job)
+    _jobManager.addJob(job)
   }
 
   def removeJobManually(groupId: String) = {
@@ -130,45 +145,80 @@ object JobManager extends Logging {
   }
 
   private def handleJobDone(groupId: String): Unit = {
-    _jobManager.groupIdToMLSQLJobInfo.remove(groupId)
-
+    _jobManager.removeJob(groupId)
   }
 }
 
 class JobManager(_spark: SparkSession, initialDelay: Long, checkTimeInterval: Long) extends Logging with WowLog {
   val groupIdToMLSQLJobInfo = new ConcurrentHashMap[String, MLSQLJobInfo]()
 
+  // groupId -> timer which cancels the job once its timeout expires
+  private val timeoutTimers = new ConcurrentHashMap[String, ScheduledFuture[_]]()
+  @volatile private var started = false
 
   def nextGroupId = UUID.randomUUID().toString
 
-  val executor = Executors.newSingleThreadScheduledExecutor()
+  val executor = {
+    val timer = new ScheduledThreadPoolExecutor(1)
+    // cancelled timers of finished jobs are removed from the delay queue right away
+    timer.setRemoveOnCancelPolicy(true)
+    timer
+  }
 
-  def run = {
-    executor.scheduleWithFixedDelay(new Runnable {
+  def addJob(job: MLSQLJobInfo): Unit = {
+    groupIdToMLSQLJobInfo.put(job.groupId, job)
+    if (started) {
+      scheduleTimeout(job)
+    }
+  }
+
+  def removeJob(groupId: String): Unit = {
+    groupIdToMLSQLJobInfo.remove(groupId)
+    val timer = timeoutTimers.remove(groupId)
+    if (timer != null) {
+      timer.cancel(false)
+    }
+  }
+
+  /**
+   * Each job with a timeout gets one timer which fires at its deadline,
+   * instead of scanning all jobs every checkTimeInterval.
+   */
+  private def scheduleTimeout(job: MLSQLJobInfo): Unit = {
+    if (job.timeout <= 0) return
+    val delay = Math.max(0, job.startTime + job.timeout - System.currentTimeMillis())
+    val timer = executor.schedule(new Runnable {
       override def run(): Unit = {
-        groupIdToMLSQLJobInfo.foreach { f =>
+        timeoutTimers.remove(job.groupId)
+        // the job may have been finished or replaced by a job with the same groupId
+        if (groupIdToMLSQLJobInfo.get(job.groupId) eq job) {
           try {
-            val elapseTime = System.currentTimeMillis() - f._2.startTime
-            if (f._2.timeout > 0 && elapseTime >= f._2.timeout) {
-
-              // At rest controller, we will clone the session,and this clone session is not
-              // saved in  SparkSessionCacheManager. But this do no harm to this scheduler,
-              // since cancel job depends `groupId` and sparkContext. The exception is stream job (which is connected with spark session),
-              // however, the stream job will not use `clone spark session`
-              val tempSession = SparkSessionCacheManager.getSessionManagerOption match {
-                case Some(sessionManager) =>
-                  sessionManager.getSessionOption(SessionIdentifier(f._2.owner))
-                case None => None
-              }
-              val session = tempSession.map(f => f.sparkSession).getOrElse(_spark)
-              cancelJobGroup(session, f._1, true)
+            // At rest controller, we will clone the session,and this clone session is not
+            // saved in  SparkSessionCacheManager. But this do no harm to this scheduler,
+            // since cancel job depends `groupId` and sparkContext. The exception is stream job (which is connected with spark session),
+            // however, the stream job will not use `clone spark session`
+            val tempSession = SparkSessionCacheManager.getSessionManagerOption match {
+              case Some(sessionManager) =>
+                sessionManager.getSessionOption(SessionIdentifier(job.owner))
+              case None => None
             }
+            val session = tempSession.map(f => f.sparkSession).getOrElse(_spark)
+            cancelJobGroup(session, job.groupId, true)
           } catch {
-            case e: Exception => logError(format(s"Kill job ${f._1} fails"), e)
+            case e: Exception => logError(format(s"Kill job ${job.groupId} fails"), e)
           }
         }
       }
-    }, initialDelay, checkTimeInterval, TimeUnit.SECONDS)
+    }, delay, TimeUnit.MILLISECONDS)
+    val previous = timeoutTimers.put(job.groupId, timer)
+    if (previous != null) {
+      previous.cancel(false)
+    }
+  }
+
+  def run = {
+    started = true
+    groupIdToMLSQLJobInfo.values().asScala.foreach(scheduleTimeout)
   }
 
   def cancelJobGroup(spark: SparkSession, groupId: String, ignoreStreamJob: Boolean = false): Unit = {
@@ -191,7 +241,7 @@ class JobManager(_spark: SparkSession, initialDelay: Long, checkTimeInterval: Lo
 
     def killBatchJob = {
       spark.sparkContext.cancelJobGroup(groupId)
-      groupIdToMLSQLJobInfo.remove(groupId)
+      removeJob(groupId)
     }
 
     if (job != null && !ignoreStreamJob && job.jobType == MLSQLJobType.STREAM) {
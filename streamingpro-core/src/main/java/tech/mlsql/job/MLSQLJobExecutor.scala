@@ -0,0 +1,239 @@
+package tech.mlsql.job
+
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.{AtomicInteger, AtomicLong}
+import java.util.concurrent.locks.ReentrantLock
+
+import org.apache.spark.MLSQLConf
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.mlsql.session.MLSQLException
+import tech.mlsql.common.utils.log.Logging
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+/**
+ * Executor of the async jobs submitted by JobManager.asyncRun.
+ *
+ * Pending jobs are kept in one queue per owner and the workers take them
+ * round-robin across owners, so one owner flooding the engine can not starve
+ * the others. The total number of pending jobs (and the pending jobs per owner)
+ * is bounded; a job which does not fit is rejected with MLSQLException instead of
+ * piling up on the driver heap.
+ *
+ * When `virtualThread` is enabled and the driver runs on JDK 21+, the workers are
+ * virtual threads, otherwise (or on older JDKs) they are normal daemon threads.
+ */
+class MLSQLJobExecutor(val poolSize: Int,
+                       val queueSize: Int,
+                       val ownerQueueSize: Int,
+                       val virtualThread: Boolean) extends Logging {
+
+  private val lock = new ReentrantLock()
+  private val notEmpty = lock.newCondition()
+  // owner -> pending tasks. The iteration order of the map is the round-robin order.
+  private val pending = new java.util.LinkedHashMap[String, mutable.Queue[QueuedJob]]()
+  private var queued = 0
+  @volatile private var stopped = false
+
+  private val _metrics = new java.util.concurrent.ConcurrentHashMap[String, OwnerJobMetrics]()
+
+  private val workers = {
+    val factory = MLSQLJobExecutor.threadFactory(virtualThread)
+    (0 until poolSize).map { i =>
+      val worker = factory.newThread(new Runnable {
+        override def run(): Unit = work()
+      })
+      worker.setName(s"mlsql-job-executor-${i}")
+      worker.setDaemon(true)
+      worker.start()
+      worker
+    }
+  }
+
+  def execute(owner: String, task: Runnable): Unit = {
+    val _owner = Option(owner).getOrElse("")
+    val metrics = ownerMetrics(_owner)
+    lock.lock()
+    try {
+      if (stopped) {
+        throw new MLSQLException("JobManager is shutdown, no more async jobs are accepted")
+      }
+      val ownerQueue = pending.get(_owner)
+      val ownerQueued = if (ownerQueue == null) 0 else ownerQueue.size
+      if (queued >= queueSize || ownerQueued >= ownerQueueSize) {
+        metrics.rejected.incrementAndGet()
+        throw new MLSQLException(
+          s"Too many pending async jobs (owner ${_owner}: ${ownerQueued}/${ownerQueueSize}, " +
+            s"total: ${queued}/${queueSize}). Please try again later or raise " +
+            s"${MLSQLConf.MLSQL_JOB_EXECUTOR_QUEUE_SIZE.key}/${MLSQLConf.MLSQL_JOB_EXECUTOR_OWNER_QUEUE_SIZE.key}")
+      }
+      if (ownerQueue == null) {
+        pending.put(_owner, mutable.Queue(QueuedJob(_owner, task, System.nanoTime())))
+      } else {
+        ownerQueue.enqueue(QueuedJob(_owner, task, System.nanoTime()))
+      }
+      queued += 1
+      metrics.queued.incrementAndGet()
+      notEmpty.signal()
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  private def take(): Option[QueuedJob] = {
+    lock.lockInterruptibly()
+    try {
+      while (queued == 0 && !stopped) {
+        notEmpty.await()
+      }
+      if (stopped) return None
+      val entry = pending.entrySet().iterator().next()
+      val job = entry.getValue.dequeue()
+      pending.remove(entry.getKey)
+      // move the owner to the tail so the next worker serves another owner first
+      if (entry.getValue.nonEmpty) {
+        pending.put(entry.getKey, entry.getValue)
+      }
+      queued -= 1
+      Some(job)
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  private def work(): Unit = {
+    while (!stopped) {
+      val next = try {
+        take()
+      } catch {
+        case _: InterruptedException =>
+          // shutdownNow interrupts the workers; any other interrupt (e.g. one left
+          // behind by a cancelled job) must not shrink the pool
+          if (!stopped) {
+            logWarning(s"${Thread.currentThread().getName} is interrupted while waiting for jobs, keep working")
+          }
+          None
+      }
+      next match {
+        case Some(job) =>
+          val metrics = ownerMetrics(job.owner)
+          val startTime = System.nanoTime()
+          metrics.queued.decrementAndGet()
+          metrics.running.incrementAndGet()
+          metrics.waitTimeNanos.addAndGet(startTime - job.enqueueTime)
+          try {
+            job.task.run()
+          } catch {
+            case e: Throwable => logError(s"Async job of owner ${job.owner} fails", e)
+          } finally {
+            metrics.running.decrementAndGet()
+            metrics.completed.incrementAndGet()
+            metrics.runTimeNanos.addAndGet(System.nanoTime() - startTime)
+          }
+        case None =>
+      }
+    }
+  }
+
+  private def ownerMetrics(owner: String) = {
+    var metrics = _metrics.get(owner)
+    if (metrics == null) {
+      _metrics.putIfAbsent(owner, new OwnerJobMetrics())
+      metrics = _metrics.get(owner)
+    }
+    metrics
+  }
+
+  def queueDepth: Int = {
+    lock.lock()
+    try {
+      queued
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  def metrics: Seq[JobExecutorMetric] = {
+    _metrics.asScala.map { case (owner, m) =>
+      val completed = m.completed.get()
+      JobExecutorMetric(owner,
+        m.queued.get(),
+        m.running.get(),
+        completed,
+        m.rejected.get(),
+        if (completed == 0) 0 else m.waitTimeNanos.get() / completed / 1000000,
+        if (completed == 0) 0 else m.runTimeNanos.get() / completed / 1000000
+      )
+    }.toSeq
+  }
+
+  def shutdownNow(): Unit = {
+    lock.lock()
+    try {
+      stopped = true
+      pending.clear()
+      queued = 0
+      notEmpty.signalAll()
+    } finally {
+      lock.unlock()
+    }
+    workers.foreach(_.interrupt())
+  }
+}
+
+object MLSQLJobExecutor extends Logging {
+
+  def apply(session: SparkSession): MLSQLJobExecutor = {
+    val conf = session.sparkContext.getConf
+    val queueSize = conf.getInt(MLSQLConf.MLSQL_JOB_EXECUTOR_QUEUE_SIZE.key, 1000)
+    new MLSQLJobExecutor(
+      conf.getInt(MLSQLConf.MLSQL_JOB_EXECUTOR_POOL_SIZE.key, 100),
+      queueSize,
+      conf.getInt(MLSQLConf.MLSQL_JOB_EXECUTOR_OWNER_QUEUE_SIZE.key, queueSize),
+      conf.getBoolean(MLSQLConf.MLSQL_JOB_EXECUTOR_VIRTUAL_THREAD.key, false)
+    )
+  }
+
+  def default: MLSQLJobExecutor = new MLSQLJobExecutor(100, 1000, 1000, false)
+
+  /**
+   * Thread.ofVirtual() only exists on JDK 21+ and we still compile for Java 8,
+   * so it is looked up reflectively.
+   */
+  def threadFactory(virtualThread: Boolean): ThreadFactory = {
+    val platform = new ThreadFactory {
+      override def newThread(r: Runnable): Thread = new Thread(r)
+    }
+    if (!virtualThread) return platform
+    try {
+      val builder = classOf[Thread].getMethod("ofVirtual").invoke(null)
+      val factoryMethod = Class.forName("java.lang.Thread$Builder").getMethod("factory")
+      factoryMethod.invoke(builder).asInstanceOf[ThreadFactory]
+    } catch {
+      case e: Exception =>
+        logWarning(s"Virtual threads are not supported by this JVM (${System.getProperty("java.version")}), " +
+          s"fall back to platform threads: ${e.getMessage}")
+        platform
+    }
+  }
+}
+
+case class QueuedJob(owner: String, task: Runnable, enqueueTime: Long)
+
+class OwnerJobMetrics {
+  val queued = new AtomicInteger(0)
+  val running = new AtomicInteger(0)
+  val completed = new AtomicLong(0)
+  val rejected = new AtomicLong(0)
+  val waitTimeNanos = new AtomicLong(0)
+  val runTimeNanos = new AtomicLong(0)
+}
+
+case class JobExecutorMetric(owner: String,
+                             queued: Int,
+                             running: Int,
+                             completed: Long,
+                             rejected: Long,
+                             avgWaitTimeMs: Long,
+                             avgRunTimeMs: Long)
@@ -3,21 +3,19 @@ package tech.mlsql.job
 import net.csdn.ServiceFramwork
 import net.csdn.common.path.Url
 import net.csdn.modules.transport.HttpTransportService
-import org.apache.spark.MLSQLConf
-import org.apache.spark.sql.execution.datasources.json.WowJsonInferSchema
 import org.apache.spark.sql.mlsql.session.MLSQLSparkSession
-import org.apache.spark.sql.{DataFrame, Dataset, SparkSession}
+import org.apache.spark.sql.{DataFrame, SparkSession}
 import streaming.core.strategy.platform.{PlatformManager, SparkRuntime}
+import streaming.dsl.template.TemplateMerge
 import streaming.dsl.{MLSQLExecuteContext, ScriptSQLExec, ScriptSQLExecListener}
 import streaming.log.WowLog
-import tech.mlsql.MLSQLEnvKey
-import tech.mlsql.app.{CustomController, ResultResp}
+import tech.mlsql.app.CustomController
 import tech.mlsql.common.utils.log.Logging
 import tech.mlsql.common.utils.serder.json.JSONTool
+import tech.mlsql.dsl.parser.{AnalyzedStatementsKey, ScriptParseCache}
 import tech.mlsql.runtime.AppRuntimeStore
 import tech.mlsql.runtime.plugins.exception_render.ExceptionRenderManager
 import tech.mlsql.runtime.plugins.request_cleaner.RequestCleanerManager
-import tech.mlsql.runtime.plugins.result_render.ResultRenderManager
 
 import scala.collection.JavaConverters._
 import scala.collection.mutable
@@ -134,29 +132,59 @@ class RunScriptExecutor(_params: Map[String, String]) extends Logging with WowLo
             }
           })
         } else {
+          val cacheKey = ScriptResultCache.key(param("sql"), jobInfo.owner, params().toMap)
           JobManager.run(sparkSession, jobInfo, () => {
-            ScriptSQLExec.parse(param("sql"), context,
-              skipInclude = paramAsBoolean("skipInclude", false),
-              skipAuth = paramAsBoolean("skipAuth", true),
-              skipPhysicalJob = paramAsBoolean("skipPhysicalJob", false),
-              skipGrammarValidate = paramAsBoolean("skipGrammarValidate", true)
-            )
-            if (!silence) {
-              outputResult = getScriptResult(context, sparkSession)
+            def parse(skipAuth: Boolean, skipPhysicalJob: Boolean) = {
+              ScriptSQLExec.parse(param("sql"), context,
+                skipInclude = paramAsBoolean("skipInclude", false),
+                skipAuth = skipAuth,
+                skipPhysicalJob = skipPhysicalJob,
+                skipGrammarValidate = paramAsBoolean("skipGrammarValidate", true)
+              )
+            }
+
+            val skipAuth = paramAsBoolean("skipAuth", true)
+            if (silence) {
+              parse(skipAuth, paramAsBoolean("skipPhysicalJob", false))
+            } else {
+              outputResult = ScriptResultCache.getOrCompute(sparkSession, cacheKey, context)(
+                parse(skipAuth, paramAsBoolean("skipPhysicalJob", false))) {
+                getScriptResult(context, sparkSession)
+              }
             }
           })
         }
       }
 
       def analyze = {
-        ScriptSQLExec.parse(param("sql"), context,
-          skipInclude = false,
-          skipAuth = true,
-          skipPhysicalJob = true,
-          skipGrammarValidate = true)
-        context.preProcessListener.map(f => JSONTool.toJsonStr(f.analyzedStatements.map(_.unwrap))) match {
+        val analyzedKey = AnalyzedStatementsKey(param("sql"), param("owner"),
+          param("defaultPathPrefix", ""), param("allPathPrefix", "{}"),
+          params.filter(f => f._1.startsWith("context.")).toMap)
+        ScriptParseCache.configure(sparkSession)
+        // ${today}, ${date} etc. are merged with the current time, so the same text
+        // may expand to different statements tomorrow
+        val cacheable = !TemplateMerge.usesTimeDependentVariables(param("sql"))
+        (if (cacheable) ScriptParseCache.analyzedStatements(analyzedKey) else None) match {
           case Some(i) => outputResult = i
           case None =>
+            ScriptSQLExec.parse(param("sql"), context,
+              skipInclude = false,
+              skipAuth = true,
+              skipPhysicalJob = true,
+              skipGrammarValidate = true)
+            context.preProcessListener.map(f => (f, JSONTool.toJsonStr(f.analyzedStatements.map(_.unwrap)))) match {
+              case Some((f, i)) =>
+                outputResult = i
+                // included scripts and `set` statements evaluated by shell/sql/conf
+                // may change between two requests, so they are never cached
+                val deterministic = cacheable && !context.includeExpanded && !f.analyzedStatements.exists { item =>
+                  item.setStatement != null && Set("shell", "sql", "conf").contains(item.setStatement.mode)
+                }
+                if (deterministic) {
+                  ScriptParseCache.putAnalyzedStatements(analyzedKey, i)
+                }
+              case None =>
+            }
         }
       }
 
@@ -185,79 +213,12 @@ class RunScriptExecutor(_params: Map[String, String]) extends Logging with WowLo
     return (200, outputResult)
   }
 
-  /**
-   * | enable limit | global | maxResultSize | condition                       | result           |
-   * | ------------ | ------ | ------------- | ------------------------------- | ---------------- |
-   * | true         | -1     | -1            | N/A                             | defualt = 1000   |
-   * | true         | -1     | Int           | N/A                             | ${maxResultSize} |
-   * | true         | Int    | -1            | Or ${maxResultSize} > ${global} | ${global}        |
-   * | true         | Int    | Int           | AND ${maxResultSize} < ${global}| ${maxResultSize} |
-   *
-   * when we enable result size limitation, the size of result should <= ${maxSize} <= ${global}
-   *
-   * @param ds
-   * @param maxSize
-   * @tparam T
-   * @return
-   */
-  private def limitOrNot[T](ds: Dataset[T], maxSize: Int = paramAsInt("maxResultSize", -1)): Dataset[T] = {
-    var result = ds
-    val globalLimit = ds.sparkSession.sparkContext.getConf.getInt(
-      MLSQLConf.RESTFUL_API_MAX_RESULT_SIZE.key, -1
-    )
-    if (ds.sparkSession.sparkContext.getConf.getBoolean(MLSQLConf.ENABLE_MAX_RESULT_SIZE.key, false)) {
-      if (globalLimit == -1) {
-        if (maxSize == -1) {
-          result = ds.limit(1000)
-        } else {
-          result = ds.limit(maxSize)
-        }
-      } else {
-        if (maxSize == -1 || maxSize > globalLimit) {
-          result = ds.limit(globalLimit)
-        } else {
-          result = ds.limit(maxSize)
-        }
-      }
-    }
-    result
-  }
-
   private def getScriptResult(context: ScriptSQLExecListener, sparkSession: SparkSession): String = {
-    val result = new StringBuffer()
-    val includeSchema = param("includeSchema", "false").toBoolean
-    val fetchType = param("fetchType", "collect")
-    if (includeSchema) {
-      result.append("{")
-    }
-    context.getLastSelectTable() match {
-      case Some(table) =>
-        // result hook
-        var df = sparkSession.table(table)
-        df = ResultRenderManager.call(ResultResp(df, table)).df
-        if (includeSchema) {
-          result.append(s""" "schema":${df.schema.json},"data": """)
-        }
-
-        if (context.env().getOrElse(MLSQLEnvKey.CONTEXT_SYSTEM_TABLE, "false").toBoolean) {
-          result.append("[" + WowJsonInferSchema.toJson(df).mkString(",") + "]")
-        } else {
-          val outputSize = paramAsInt("outputSize", 5000)
-          val jsonDF = limitOrNot {
-            sparkSession.sql(s"select * from $table limit " + outputSize)
-          }.toJSON
-          val scriptJsonStringResult = fetchType match {
-            case "collect" => jsonDF.collect().mkString(",")
-            case "take" => sparkSession.table(table).toJSON.take(outputSize).mkString(",")
-          }
-          result.append("[" + scriptJsonStringResult + "]")
-        }
-      case None => result.append("[]")
-    }
-    if (includeSchema) {
-      result.append("}")
-    }
-    return result.toString
+    ScriptResultWriter.toJsonString(context, sparkSession,
+      includeSchema = param("includeSchema", "false").toBoolean,
+      fetchType = param("fetchType", "collect"),
+      outputSize = paramAsInt("outputSize", 5000),
+      maxResultSize = paramAsInt("maxResultSize", -1))
   }
 
   private def createScriptSQLExecListener(sparkSession: SparkSession, groupId: String) = {
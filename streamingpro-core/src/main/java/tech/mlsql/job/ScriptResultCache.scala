@@ -0,0 +1,341 @@
+package tech.mlsql.job
+
+import java.util.concurrent.atomic.AtomicLong
+
+import org.apache.hadoop.fs.{FileSystem, Path}
+import org.apache.spark.MLSQLConf
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.sql.catalyst.expressions.{CurrentDate, CurrentTimestamp, Expression}
+import org.apache.spark.sql.catalyst.plans.logical.{LocalRelation, OneRowRelation, Range}
+import org.apache.spark.sql.execution.datasources.{HadoopFsRelation, LogicalRelation}
+import streaming.dsl.ScriptSQLExecListener
+import streaming.dsl.template.TemplateMerge
+import tech.mlsql.MLSQLEnvKey
+import tech.mlsql.common.utils.log.Logging
+
+/**
+ * Result cache of read-only scripts executed with executeMode=query.
+ *
+ * A script is cacheable when it only contains `load` of file based formats, `select`
+ * and `set` statements which are not evaluated by shell/sql/conf, and the plan of its
+ * result table only reads files and has no nondeterministic or current time expression
+ * (rand(), now(), current_date() ...). The entry remembers the modification time of every
+ * directory the result is read from: the root paths of the relations and the directories
+ * of their input files, as listed by the plan (the `_delta_log` directory for delta tables).
+ * Writing, deleting or renaming a file changes the time of its directory, so checking an
+ * entry costs one getFileStatus per directory instead of listing every file. Only when a
+ * file system has no directory times (object stores), or the directory changed within the
+ * last seconds, the files of that one directory are listed too. The entry is dropped as
+ * soon as one of them changes. `save`/`insert` also drop the entries depending on the
+ * written path eagerly.
+ *
+ * The key contains the owner of the job and all the request params, so a cached result
+ * is only served to the same owner with the same auth settings, and only after the
+ * request passed its own auth check (see `getOrCompute`). Entries are evicted by
+ * `spark.mlsql.result.cache.maxBytes` (LRU) and `spark.mlsql.result.cache.ttl`.
+ */
+object ScriptResultCache extends Logging {
+
+  // params which differ between two requests of the same script but do not change the result
+  private val IGNORED_PARAMS = Set("sql", "owner", "jobName", "timeout", "callback", "maxRetries")
+
+  private val FILE_FORMATS = Set("parquet", "orc", "json", "csv", "text", "delta")
+  // directory times of the local file system on java 8 are in seconds
+  private val RACY_TIME_MS = 2000L
+
+  private val hits = new AtomicLong(0)
+  private val misses = new AtomicLong(0)
+  private val evictions = new AtomicLong(0)
+  private val invalidations = new AtomicLong(0)
+
+  private var totalBytes = 0L
+  private val items = new java.util.LinkedHashMap[ScriptResultCacheKey, CachedScriptResult](16, 0.75f, true)
+
+  def enabled(session: SparkSession): Boolean = {
+    session.sparkContext.getConf.getBoolean(MLSQLConf.MLSQL_RESULT_CACHE_ENABLE.key, false)
+  }
+
+  def key(script: String, owner: String, params: Map[String, String]): ScriptResultCacheKey = {
+    ScriptResultCacheKey(normalize(script), owner, params.filterKeys(k => !IGNORED_PARAMS.contains(k)).toMap)
+  }
+
+  /**
+   * Line endings, trailing spaces and blank lines do not change the meaning of a script.
+   * Quoted text ('...', "...", `...`, '''...''' and """...""") is kept as it is,
+   * so two scripts which only differ inside a literal never share a key.
+   */
+  def normalize(script: String): String = {
+    val res = new StringBuilder()
+    var code = new StringBuilder()
+
+    def flushCode(): Unit = {
+      res.append(code.toString.replaceAll("\r\n?", "\n").replaceAll("[ \t]+\n", "\n").replaceAll("\n{2,}", "\n"))
+      code = new StringBuilder()
+    }
+
+    var i = 0
+    while (i < script.length) {
+      val c = script.charAt(i)
+      if (c == '\'' || c == '"' || c == '`') {
+        val quote = if (script.startsWith(s"${c}${c}${c}", i) && c != '`') s"${c}${c}${c}" else c.toString
+        val end = {
+          var j = i + quote.length
+          var found = -1
+          while (found < 0 && j < script.length) {
+            if (quote.length == 1 && script.charAt(j) == '\\') j += 2
+            else if (script.startsWith(quote, j)) found = j
+            else j += 1
+          }
+          // an unclosed quote keeps the rest of the script as it is
+          if (found < 0) script.length else found + quote.length
+        }
+        flushCode()
+        res.append(script.substring(i, end))
+        i = end
+      } else {
+        code.append(c)
+        i += 1
+      }
+    }
+    flushCode()
+    res.toString.replaceAll("^\n+", "").replaceAll("\\s+$", "")
+  }
+
+  def get(session: SparkSession, key: ScriptResultCacheKey): Option[String] = {
+    if (!enabled(session)) return None
+    val entry = items.synchronized {
+      items.get(key)
+    }
+    if (entry == null) {
+      misses.incrementAndGet()
+      return None
+    }
+    val ttl = session.sparkContext.getConf.getTimeAsMs(MLSQLConf.MLSQL_RESULT_CACHE_TTL.key, "10m")
+    val fresh = System.currentTimeMillis() - entry.createTime <= ttl &&
+      entry.snapshots.forall(s => snapshot(session, s.path, s.files.nonEmpty).contains(s))
+    if (fresh) {
+      hits.incrementAndGet()
+      Some(entry.result)
+    } else {
+      remove(key, entry)
+      evictions.incrementAndGet()
+      misses.incrementAndGet()
+      None
+    }
+  }
+
+  /**
+   * The result of a synchronous query, served from the cache when possible. `execute` runs
+   * the script inside the job of the request on a hit too: it does the auth check of the
+   * request, so a cached result is never returned to a request which fails it, and registers
+   * the temp views of the script the same way a miss does. A cacheable script only defines
+   * lazy views, so only `compute`, which renders the result, is skipped.
+   */
+  def getOrCompute(session: SparkSession, key: ScriptResultCacheKey, context: ScriptSQLExecListener)
+                  (execute: => Unit)(compute: => String): String = {
+    get(session, key) match {
+      case Some(result) =>
+        execute
+        result
+      case None =>
+        execute
+        cached(session, key, context)(compute)
+    }
+  }
+
+  /**
+   * Computes the result of a script which has been executed in `context` and caches it
+   * when the script is read-only. The paths are snapshotted before and after `compute`
+   * and the result is dropped if they changed in between, so the cache never pairs a
+   * result with a snapshot it was not read from.
+   */
+  def cached(session: SparkSession, key: ScriptResultCacheKey, context: ScriptSQLExecListener)
+            (compute: => String): String = {
+    // ${today}, ${date} etc. are merged with the current time
+    if (!enabled(session) || TemplateMerge.usesTimeDependentVariables(key.script)) return compute
+    val before = dependencies(session, context).map(_.map(snapshot(session, _)))
+    val result = compute
+    before match {
+      case Some(s) if s.forall(_.isDefined) =>
+        val after = s.map(i => snapshot(session, i.get.path, i.get.files.nonEmpty))
+        if (after == s) {
+          put(session, key, CachedScriptResult(result, s.map(_.get), System.currentTimeMillis()))
+        }
+      case _ =>
+    }
+    result
+  }
+
+  /**
+   * Drops the entries reading from `path` or from a path inside/above it.
+   */
+  def invalidate(path: String): Unit = {
+    if (path == null || path.isEmpty) return
+    val written = pathOf(path)
+    items.synchronized {
+      val iter = items.entrySet().iterator()
+      while (iter.hasNext) {
+        val entry = iter.next()
+        if (entry.getValue.snapshots.exists(s => overlaps(pathOf(s.path), written))) {
+          totalBytes -= entry.getValue.bytes
+          iter.remove()
+          invalidations.incrementAndGet()
+        }
+      }
+    }
+  }
+
+  def invalidateAll(): Unit = items.synchronized {
+    invalidations.addAndGet(items.size())
+    items.clear()
+    totalBytes = 0
+  }
+
+  def stats: Seq[ScriptResultCacheStat] = items.synchronized {
+    Seq(ScriptResultCacheStat(items.size(), totalBytes, hits.get(), misses.get(), evictions.get(), invalidations.get()))
+  }
+
+  /**
+   * The paths the result table of a read-only script reads from, or None when the script
+   * (or its plan) may read something we can not snapshot.
+   */
+  private def dependencies(session: SparkSession, context: ScriptSQLExecListener): Option[Seq[String]] = {
+    val readOnly = !context.includeExpanded &&
+      !context.env().getOrElse(MLSQLEnvKey.CONTEXT_SYSTEM_TABLE, "false").toBoolean &&
+      context.preProcessListener.exists(_.analyzedStatements.forall { item =>
+        (item.loadStatement != null && FILE_FORMATS.contains(item.loadStatement.format)) ||
+          item.selectStatement != null ||
+          (item.setStatement != null && !Set("shell", "sql", "conf").contains(item.setStatement.mode))
+      })
+    if (!readOnly) return None
+
+    val table = context.getLastSelectTable() match {
+      case Some(t) => t
+      case None => return None
+    }
+    val plan = session.table(table).queryExecution.analyzed
+    if (plan.find(_.expressions.exists(timeDependent)).isDefined) return None
+
+    val paths = plan.collectLeaves().map {
+      case r: LogicalRelation => r.relation match {
+        case fs: HadoopFsRelation => Some(directories(fs))
+        case _ => None
+      }
+      case _: LocalRelation | _: OneRowRelation | _: Range => Some(Seq())
+      case _ => None
+    }
+    if (paths.exists(_.isEmpty)) None else Some(paths.flatMap(_.get).distinct)
+  }
+
+  // current_timestamp()/now(), current_date() and the functions using them are deterministic
+  // within one query, but not between two requests
+  private def timeDependent(expression: Expression): Boolean = {
+    expression.find {
+      case _: CurrentTimestamp | _: CurrentDate => true
+      case e => !e.deterministic
+    }.isDefined
+  }
+
+  /**
+   * The root paths of the relation and every directory between them and the input files
+   * the plan lists, so a file added to or removed from a partition changes one of them.
+   */
+  private def directories(relation: HadoopFsRelation): Seq[String] = {
+    val roots = relation.location.rootPaths.map(pathOf)
+    val dirs = new scala.collection.mutable.LinkedHashSet[String]()
+    dirs ++= relation.location.rootPaths.map(_.toString)
+    relation.location.inputFiles.foreach { file =>
+      var dir = new Path(file).getParent
+      while (dir != null && !dirs.contains(dir.toString) && roots.exists(root => inside(pathOf(dir.toString), root))) {
+        dirs += dir.toString
+        dir = dir.getParent
+      }
+    }
+    dirs.toSeq
+  }
+
+  /**
+   * `listing` forces the files of the directory into the snapshot, so an entry which was
+   * taken with them is always compared with them.
+   */
+  private def snapshot(session: SparkSession, path: String, listing: Boolean = false): Option[PathSnapshot] = {
+    try {
+      val p = new Path(path)
+      val fs = p.getFileSystem(session.sparkContext.hadoopConfiguration)
+      val deltaLog = new Path(p, "_delta_log")
+      // every commit of a delta table adds a file to the log
+      val dir = if (fs.exists(deltaLog)) deltaLog else p
+      val status = fs.getFileStatus(dir)
+      if (!status.isDirectory) {
+        Some(PathSnapshot(path, s"file:${status.getLen}:${status.getModificationTime}"))
+      } else {
+        // object stores have no directory times, and some file systems keep them in seconds
+        // only, so a directory changed within the last seconds may change again with the same
+        // time. Both are listed (this directory, not its children) instead.
+        val time = status.getModificationTime
+        val racy = time <= 0 || System.currentTimeMillis() - time < RACY_TIME_MS
+        Some(PathSnapshot(path, s"dir:${time}", if (listing || racy) filesOf(fs, dir) else ""))
+      }
+    } catch {
+      case e: Exception =>
+        logWarning(s"Fail to snapshot ${path} for the result cache: ${e.getMessage}")
+        None
+    }
+  }
+
+  private def filesOf(fs: FileSystem, dir: Path): String = {
+    val files = fs.listStatus(dir)
+    val modificationTime = if (files.isEmpty) 0L else files.map(_.getModificationTime).max
+    s"files:${files.length}:${files.map(_.getLen).sum}:${modificationTime}"
+  }
+
+  private def put(session: SparkSession, key: ScriptResultCacheKey, value: CachedScriptResult): Unit = {
+    val maxBytes = session.sparkContext.getConf.getSizeAsBytes(MLSQLConf.MLSQL_RESULT_CACHE_MAX_BYTES.key, "256m")
+    if (value.bytes > maxBytes) return
+    items.synchronized {
+      val old = items.put(key, value)
+      if (old != null) totalBytes -= old.bytes
+      totalBytes += value.bytes
+      val iter = items.entrySet().iterator()
+      while (totalBytes > maxBytes && iter.hasNext) {
+        totalBytes -= iter.next().getValue.bytes
+        iter.remove()
+        evictions.incrementAndGet()
+      }
+    }
+  }
+
+  private def remove(key: ScriptResultCacheKey, value: CachedScriptResult): Unit = items.synchronized {
+    if (items.remove(key, value)) {
+      totalBytes -= value.bytes
+    }
+  }
+
+  private def pathOf(path: String): String = {
+    new Path(path).toUri.getPath.stripSuffix("/")
+  }
+
+  private def overlaps(a: String, b: String): Boolean = {
+    inside(a, b) || inside(b, a)
+  }
+
+  private def inside(path: String, parent: String): Boolean = {
+    path == parent || path.startsWith(parent + "/")
+  }
+}
+
+case class ScriptResultCacheKey(script: String, owner: String, params: Map[String, String])
+
+case class PathSnapshot(path: String, version: String, files: String = "")
+
+case class CachedScriptResult(result: String, snapshots: Seq[PathSnapshot], createTime: Long) {
+  // a java String takes two bytes per char
+  val bytes: Long = result.length * 2L
+}
+
+case class ScriptResultCacheStat(size: Long,
+                                 bytes: Long,
+                                 hits: Long,
+                                 misses: Long,
+                                 evictions: Long,
+                                 invalidations: Long)
@@ -0,0 +1,146 @@
+package tech.mlsql.job
+
+import java.io.{OutputStream, StringWriter, Writer}
+
+import org.apache.spark.MLSQLConf
+import org.apache.spark.sql.execution.datasources.json.WowJsonInferSchema
+import org.apache.spark.sql.{ArrowResultHelper, DataFrame, SparkSession}
+import streaming.dsl.ScriptSQLExecListener
+import tech.mlsql.MLSQLEnvKey
+import tech.mlsql.app.ResultResp
+import tech.mlsql.runtime.plugins.result_render.ResultRenderManager
+
+import scala.collection.JavaConverters._
+
+/**
+ * Writes the last select table of a script as json, row by row, to a Writer.
+ * Every fetchType reads the table after the ResultRenderManager hooks, and collect/arrow limit
+ * that DataFrame with df.limit(outputSize) (and maxResultSize), the same way RestController did
+ * before the writer was split out, rather than running `select * from table limit n`.
+ *
+ * fetchType:
+ * collect: collect the (limited) rows to the driver, then write them
+ * take:    take the first `outputSize` rows, then write them
+ * stream:  fetch one partition at a time with toLocalIterator and write the rows as
+ * they arrive, so the driver only holds one partition no matter how big `outputSize` is.
+ *
+ * arrow:   same as collect here; `writeArrow` writes the rows as an Arrow IPC stream instead
+ * of json when the request is synchronous and the Spark version supports it (2.4+).
+ */
+object ScriptResultWriter {
+
+  /**
+   * | enable limit | global | maxResultSize | condition                       | result           |
+   * | ------------ | ------ | ------------- | ------------------------------- | ---------------- |
+   * | true         | -1     | -1            | N/A                             | defualt = 1000   |
+   * | true         | -1     | Int           | N/A                             | ${maxResultSize} |
+   * | true         | Int    | -1            | Or ${maxResultSize} > ${global} | ${global}        |
+   * | true         | Int    | Int           | AND ${maxResultSize} < ${global}| ${maxResultSize} |
+   *
+   * when we enable result size limitation, the size of result should <= ${maxSize} <= ${global}
+   */
+  def resultLimit(sparkSession: SparkSession, maxSize: Int): Option[Int] = {
+    val conf = sparkSession.sparkContext.getConf
+    val globalLimit = conf.getInt(MLSQLConf.RESTFUL_API_MAX_RESULT_SIZE.key, -1)
+    if (!conf.getBoolean(MLSQLConf.ENABLE_MAX_RESULT_SIZE.key, false)) {
+      return None
+    }
+    if (globalLimit == -1) {
+      if (maxSize == -1) Some(1000) else Some(maxSize)
+    } else {
+      if (maxSize == -1 || maxSize > globalLimit) Some(globalLimit) else Some(maxSize)
+    }
+  }
+
+  def write(writer: Writer,
+            context: ScriptSQLExecListener,
+            sparkSession: SparkSession,
+            includeSchema: Boolean,
+            fetchType: String,
+            outputSize: Int,
+            maxResultSize: Int): Unit = {
+    if (includeSchema) {
+      writer.write("{")
+    }
+    context.getLastSelectTable() match {
+      case Some(table) =>
+        // result hook
+        var df = sparkSession.table(table)
+        df = ResultRenderManager.call(ResultResp(df, table)).df
+        if (includeSchema) {
+          writer.write(s""" "schema":${df.schema.json},"data": """)
+        }
+
+        if (context.env().getOrElse(MLSQLEnvKey.CONTEXT_SYSTEM_TABLE, "false").toBoolean) {
+          writeRows(writer, WowJsonInferSchema.toJson(df).iterator)
+        } else {
+          writeRows(writer, rows(df, fetchType, outputSize, maxResultSize))
+        }
+      case None => writer.write("[]")
+    }
+    if (includeSchema) {
+      writer.write("}")
+    }
+    writer.flush()
+  }
+
+  /**
+   * The schema of the stream is taken from the result table, so clients do not
+   * need `includeSchema`. An empty stream is written when there is no result table.
+   */
+  def writeArrow(out: OutputStream,
+                 context: ScriptSQLExecListener,
+                 sparkSession: SparkSession,
+                 outputSize: Int,
+                 maxResultSize: Int): Unit = {
+    context.getLastSelectTable() match {
+      case Some(table) =>
+        var df = sparkSession.table(table)
+        df = ResultRenderManager.call(ResultResp(df, table)).df
+        val size = resultLimit(sparkSession, maxResultSize).map(Math.min(_, outputSize)).getOrElse(outputSize)
+        ArrowResultHelper.write(df.limit(size), out)
+      case None =>
+        ArrowResultHelper.write(sparkSession.emptyDataFrame, out)
+    }
+    out.flush()
+  }
+
+  def toJsonString(context: ScriptSQLExecListener,
+                   sparkSession: SparkSession,
+                   includeSchema: Boolean,
+                   fetchType: String,
+                   outputSize: Int,
+                   maxResultSize: Int): String = {
+    val writer = new StringWriter()
+    write(writer, context, sparkSession, includeSchema, fetchType, outputSize, maxResultSize)
+    writer.toString
+  }
+
+  private def rows(df: DataFrame, fetchType: String, outputSize: Int, maxResultSize: Int): Iterator[String] = {
+    val limit = resultLimit(df.sparkSession, maxResultSize)
+    fetchType match {
+      case "collect" | "arrow" =>
+        val limited = df.limit(outputSize)
+        limit.map(limited.limit).getOrElse(limited).toJSON.collect().iterator
+      case "take" => df.toJSON.take(outputSize).iterator
+      // a limit would shuffle all rows into a single partition,
+      // so the iterator stops after `size` rows instead
+      case "stream" =>
+        val size = limit.map(Math.min(_, outputSize)).getOrElse(outputSize)
+        df.toJSON.toLocalIterator().asScala.take(size)
+    }
+  }
+
+  private def writeRows(writer: Writer, rows: Iterator[String]): Unit = {
+    writer.write("[")
+    var first = true
+    rows.foreach { row =>
+      if (!first) {
+        writer.write(",")
+      }
+      writer.write(row)
+      first = false
+    }
+    writer.write("]")
+  }
+}
@@ -144,7 +144,7 @@ trait LoadSaveRuntimeStore {
 }
 
 object AppRuntimeStore {
-  private val _store = new InMemoryStore()
+  private val _store = new InMemoryStore(true)
   val store = new AppRuntimeStore(_store)
   val LOAD_BEFORE_KEY = "load_before_key"
   val LOAD_AFTER_KEY = "load_after_key"
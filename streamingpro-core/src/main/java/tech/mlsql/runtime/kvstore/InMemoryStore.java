@@ -23,20 +23,43 @@ import com.google.common.base.Throwables;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 /**
- * Implementation of KVStore that keeps data deserialized in memory. This store does not index
- * data; instead, whenever iterating over an indexed field, the stored data is copied and sorted
- * according to the index. This saves memory but makes iteration more expensive.
+ * Implementation of KVStore that keeps data deserialized in memory.
+ *
+ * <p>
+ * By default this store does not index data; instead, whenever iterating over an indexed field,
+ * the stored data is copied and sorted according to the index. This saves memory but makes
+ * iteration more expensive.
+ * </p>
+ *
+ * <p>
+ * When created with <code>indexed = true</code>, every {@link KVIndex} of a type is kept in a
+ * sorted concurrent map, so iterating over a range of an index and counting the instances with
+ * a given index value do not need to look at the other instances. Writers of the same type are
+ * serialized, readers never block.
+ * </p>
  */
 public class InMemoryStore implements KVStore {
 
+    private final boolean indexed;
     private Object metadata;
     private ConcurrentMap<Class<?>, InstanceList> data = new ConcurrentHashMap<>();
 
+    public InMemoryStore() {
+        this(false);
+    }
+
+    public InMemoryStore(boolean indexed) {
+        this.indexed = indexed;
+    }
+
     @Override
     public <T> T getMetadata(Class<T> klass) {
         return klass.cast(metadata);
@@ -56,6 +79,12 @@ public class InMemoryStore implements KVStore {
     @Override
     public long count(Class<?> type, String index, Object indexedValue) throws Exception {
         InstanceList list = data.get(type);
+        if (list == null) {
+            return 0;
+        }
+        if (list.indexed) {
+            return list.count(index, indexedValue);
+        }
         int count = 0;
         Object comparable = asKey(indexedValue);
         KVTypeInfo.Accessor accessor = list.getIndexAccessor(index);
@@ -81,7 +110,7 @@ public class InMemoryStore implements KVStore {
     public void write(Object value) throws Exception {
         InstanceList list = data.computeIfAbsent(value.getClass(), key -> {
             try {
-                return new InstanceList(key);
+                return new InstanceList(key, indexed);
             } catch (Exception e) {
                 throw Throwables.propagate(e);
             }
@@ -101,7 +130,7 @@ public class InMemoryStore implements KVStore {
     public <T> KVStoreView<T> view(Class<T> type){
         InstanceList list = data.get(type);
         return list != null ? list.view(type)
-                : new InMemoryView<>(type, Collections.<T>emptyList(), null);
+                : new InMemoryView<>(type, Collections.<T>emptyList(), null, null);
     }
 
     @Override
@@ -123,14 +152,26 @@ public class InMemoryStore implements KVStore {
         private final KVTypeInfo ti;
         private final KVTypeInfo.Accessor naturalKey;
         private final ConcurrentMap<Comparable<Object>, Object> data;
+        private final boolean indexed;
+        // index name -> instances sorted by (parent value, index value, natural key)
+        private final Map<String, ConcurrentSkipListMap<IndexKey, Object>> indices = new HashMap<>();
+        // index name -> index value -> number of instances
+        private final Map<String, ConcurrentMap<Comparable<Object>, AtomicInteger>> counts = new HashMap<>();
 
-        private int size;
+        private volatile int size;
 
-        private InstanceList(Class<?> type) throws Exception {
+        private InstanceList(Class<?> type, boolean indexed) throws Exception {
             this.ti = new KVTypeInfo(type);
             this.naturalKey = ti.getAccessor(KVIndex.NATURAL_INDEX_NAME);
             this.data = new ConcurrentHashMap<>();
             this.size = 0;
+            this.indexed = indexed;
+            if (indexed) {
+                ti.indices().forEach(idx -> {
+                    indices.put(idx.value(), new ConcurrentSkipListMap<>());
+                    counts.put(idx.value(), new ConcurrentHashMap<>());
+                });
+            }
         }
 
         KVTypeInfo.Accessor getIndexAccessor(String indexName) {
@@ -141,20 +182,92 @@ public class InMemoryStore implements KVStore {
             return data.get(asKey(key));
         }
 
-        public void put(Object value) throws Exception {
+        public synchronized void put(Object value) throws Exception {
             Preconditions.checkArgument(ti.type().equals(value.getClass()),
                     "Unexpected type: %s", value.getClass());
-            if (data.put(asKey(naturalKey.get(value)), value) == null) {
+            Comparable<Object> natural = asKey(naturalKey.get(value));
+            Object old = data.put(natural, value);
+            if (old == null) {
                 size++;
+            } else if (indexed) {
+                unindex(natural, old);
+            }
+            if (indexed) {
+                index(natural, value);
             }
         }
 
-        public void delete(Object key) {
-            if (data.remove(asKey(key)) != null) {
+        public synchronized void delete(Object key) {
+            Comparable<Object> natural = asKey(key);
+            Object old = data.remove(natural);
+            if (old != null) {
                 size--;
+                if (indexed) {
+                    try {
+                        unindex(natural, old);
+                    } catch (Exception e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
             }
         }
 
+        private void index(Comparable<Object> natural, Object value) throws Exception {
+            for (Map.Entry<String, ConcurrentSkipListMap<IndexKey, Object>> e : indices.entrySet()) {
+                IndexKey key = indexKey(e.getKey(), natural, value);
+                e.getValue().put(key, value);
+                counts.get(e.getKey()).computeIfAbsent(key.value, k -> new AtomicInteger()).incrementAndGet();
+            }
+        }
+
+        private void unindex(Comparable<Object> natural, Object value) throws Exception {
+            for (Map.Entry<String, ConcurrentSkipListMap<IndexKey, Object>> e : indices.entrySet()) {
+                IndexKey key = indexKey(e.getKey(), natural, value);
+                e.getValue().remove(key);
+                ConcurrentMap<Comparable<Object>, AtomicInteger> indexCounts = counts.get(e.getKey());
+                AtomicInteger count = indexCounts.get(key.value);
+                if (count != null && count.decrementAndGet() <= 0) {
+                    indexCounts.remove(key.value);
+                }
+            }
+        }
+
+        private IndexKey indexKey(String index, Comparable<Object> natural, Object value) throws Exception {
+            KVTypeInfo.Accessor parent = ti.getParentAccessor(index);
+            return new IndexKey(
+                    parent != null ? asKey(parent.get(value)) : null,
+                    asKey(ti.getAccessor(index).get(value)),
+                    natural,
+                    0);
+        }
+
+        long count(String index, Object indexedValue) {
+            ConcurrentMap<Comparable<Object>, AtomicInteger> indexCounts = counts.get(index);
+            Preconditions.checkArgument(indexCounts != null, "No index %s.", index);
+            AtomicInteger count = indexCounts.get(asKey(indexedValue));
+            return count != null ? count.get() : 0;
+        }
+
+        /**
+         * The instances between <code>first</code> and <code>last</code> (both inclusive, null
+         * means unbounded) of an index, in the order of the index.
+         */
+        @SuppressWarnings("unchecked")
+        <T> Collection<T> range(String index, Object parent, Object first, Object last, boolean ascending) {
+            ConcurrentSkipListMap<IndexKey, Object> sorted = indices.get(index);
+            Preconditions.checkArgument(sorted != null, "No index %s.", index);
+            Comparable<Object> parentKey = parent != null ? asKey(parent) : null;
+            Object lower = ascending ? first : last;
+            Object upper = ascending ? last : first;
+            if (lower != null && upper != null && asKey(lower).compareTo(asKey(upper)) > 0) {
+                return Collections.emptyList();
+            }
+            ConcurrentNavigableMap<IndexKey, Object> range = sorted.subMap(
+                    new IndexKey(parentKey, lower != null ? asKey(lower) : null, null, -1), true,
+                    new IndexKey(parentKey, upper != null ? asKey(upper) : null, null, 1), true);
+            return (Collection<T>) (ascending ? range : range.descendingMap()).values();
+        }
+
         public int size() {
             return size;
         }
@@ -163,7 +276,52 @@ public class InMemoryStore implements KVStore {
         public <T> InMemoryView<T> view(Class<T> type) {
             Preconditions.checkArgument(ti.type().equals(type), "Unexpected type: %s", type);
             Collection<T> all = (Collection<T>) data.values();
-            return new InMemoryView<>(type, all, ti);
+            return new InMemoryView<>(type, all, ti, indexed ? this : null);
+        }
+
+    }
+
+    /**
+     * Key of an instance in a sorted index. A key with a non-zero <code>bound</code> is only used
+     * to look up a range: it sorts before (-1) or after (1) all the instances with the same index
+     * value, or with any index value when <code>value</code> is null.
+     */
+    private static class IndexKey implements Comparable<IndexKey> {
+
+        private final Comparable<Object> parent;
+        private final Comparable<Object> value;
+        private final Comparable<Object> natural;
+        private final int bound;
+
+        IndexKey(Comparable<Object> parent, Comparable<Object> value, Comparable<Object> natural, int bound) {
+            this.parent = parent;
+            this.value = value;
+            this.natural = natural;
+            this.bound = bound;
+        }
+
+        @Override
+        public int compareTo(IndexKey other) {
+            if (parent != null && other.parent != null) {
+                int diff = parent.compareTo(other.parent);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            if (value == null || other.value == null) {
+                if (value == null && other.value == null) {
+                    return Integer.compare(bound, other.bound);
+                }
+                return value == null ? bound : -other.bound;
+            }
+            int diff = value.compareTo(other.value);
+            if (diff != 0) {
+                return diff;
+            }
+            if (bound != 0 || other.bound != 0) {
+                return Integer.compare(bound, other.bound);
+            }
+            return natural.compareTo(other.natural);
         }
 
     }
@@ -173,12 +331,14 @@ public class InMemoryStore implements KVStore {
         private final Collection<T> elements;
         private final KVTypeInfo ti;
         private final KVTypeInfo.Accessor natural;
+        private final InstanceList list;
 
-        InMemoryView(Class<T> type, Collection<T> elements, KVTypeInfo ti) {
+        InMemoryView(Class<T> type, Collection<T> elements, KVTypeInfo ti, InstanceList list) {
             super(type);
             this.elements = elements;
             this.ti = ti;
             this.natural = ti != null ? ti.getAccessor(KVIndex.NATURAL_INDEX_NAME) : null;
+            this.list = list;
         }
 
         @Override
@@ -187,6 +347,21 @@ public class InMemoryStore implements KVStore {
                 return new InMemoryIterator<>(elements.iterator());
             }
 
+            // a child index without a parent value is sorted by the index value only,
+            // which is not the order of the sorted index
+            if (list != null && (parent != null || ti.getParentAccessor(index) == null)) {
+                Preconditions.checkArgument(parent == null || ti.getParentAccessor(index) != null,
+                        "Parent filter for non-child index.");
+                Stream<T> stream = list.<T>range(index, parent, first, last, ascending).stream();
+                if (skip > 0) {
+                    stream = stream.skip(skip);
+                }
+                if (max < Long.MAX_VALUE) {
+                    stream = stream.limit(max);
+                }
+                return new InMemoryIterator<>(stream.iterator());
+            }
+
             try {
                 KVTypeInfo.Accessor getter = index != null ? ti.getAccessor(index) : null;
                 int modifier = ascending ? 1 : -1;
@@ -17,10 +17,16 @@
 package tech.mlsql.runtime.kvstore;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
 import org.apache.spark.annotation.Private;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -30,32 +36,105 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * Serializer used to translate between app-defined types and the LevelDB store.
  *
  * <p>
- * The serializer is based on Jackson, so values are written as JSON. It also allows "naked strings"
- * and integers to be written as values directly, which will be written as UTF-8 strings.
+ * The serializer is based on Jackson. Values are written as JSON by default, or as Smile (the
+ * binary form of JSON) which is smaller and faster to parse. It also allows "naked strings" and
+ * integers to be written as values directly, which will be written as UTF-8 strings.
+ * </p>
+ *
+ * <p>
+ * Every other value starts with a header: a tag, the encoding and the compression of the value.
+ * Values smaller than the compression threshold are stored as is, bigger ones are compressed with
+ * LZ4 (default) or GZIP. Values are read with the encoding and compression they were written
+ * with, so a store stays readable when they change. Values written by older versions (a format
+ * tag only, or GZIP without any tag) are read as JSON.
  * </p>
  */
 @Private
 public class KVStoreSerializer {
 
+    public enum Compression {
+        NONE, LZ4, GZIP
+    }
+
+    public enum Encoding {
+        JSON, SMILE
+    }
+
+    static final byte FORMAT_PLAIN = 0;
+    static final byte FORMAT_LZ4 = 1;
+    static final byte FORMAT_GZIP = 2;
+    // followed by the encoding and one of the formats above
+    static final byte HEADER = 3;
+    // the first byte of a gzip stream, i.e. a value written before format tags were introduced
+    private static final byte LEGACY_GZIP_MAGIC = (byte) 0x1f;
+
+    static final byte ENCODING_JSON = 0;
+    static final byte ENCODING_SMILE = 1;
+
+    private static final int HEADER_SIZE = 3;
+
+    public static final int DEFAULT_COMPRESS_THRESHOLD = 512;
+
     /**
-     * Object mapper used to process app-specific types. If an application requires a specific
-     * configuration of the mapper, it can subclass this serializer and add custom configuration
-     * to this object.
+     * Object mappers used to process app-specific types, one per encoding. If an application
+     * requires a specific configuration of the mappers, it can subclass this serializer and add
+     * custom configuration to every object returned by {@link #mappers()}.
      */
-    protected final ObjectMapper mapper;
+    protected final ObjectMapper jsonMapper = new ObjectMapper();
+    protected final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private final Encoding encoding;
+    private final Compression compression;
+    private final int compressThreshold;
+
+    private final LZ4Compressor lz4Compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor lz4Decompressor = LZ4Factory.fastestInstance().fastDecompressor();
 
     public KVStoreSerializer() {
-        this.mapper = new ObjectMapper();
+        this(Encoding.JSON, Compression.LZ4, DEFAULT_COMPRESS_THRESHOLD);
+    }
+
+    /**
+     * @param encoding          how new values are encoded.
+     * @param compressThreshold values whose encoded size is smaller than this are not compressed.
+     */
+    public KVStoreSerializer(Encoding encoding, Compression compression, int compressThreshold) {
+        this.encoding = encoding;
+        this.compression = compression;
+        this.compressThreshold = compressThreshold;
+    }
+
+    protected final List<ObjectMapper> mappers() {
+        return Arrays.asList(jsonMapper, smileMapper);
     }
 
     public final byte[] serialize(Object o) throws Exception {
         if (o instanceof String) {
             return ((String) o).getBytes(UTF_8);
+        }
+        byte encodingTag = encoding == Encoding.SMILE ? ENCODING_SMILE : ENCODING_JSON;
+        byte[] encoded = mapperOf(encodingTag).writeValueAsBytes(o);
+        if (compression == Compression.NONE || encoded.length < compressThreshold) {
+            byte[] data = new byte[HEADER_SIZE + encoded.length];
+            writeHeader(data, encodingTag, FORMAT_PLAIN);
+            System.arraycopy(encoded, 0, data, HEADER_SIZE, encoded.length);
+            return data;
+        } else if (compression == Compression.LZ4) {
+            // header + original length + compressed block
+            int offset = HEADER_SIZE + 4;
+            byte[] data = new byte[offset + lz4Compressor.maxCompressedLength(encoded.length)];
+            writeHeader(data, encodingTag, FORMAT_LZ4);
+            writeInt(data, HEADER_SIZE, encoded.length);
+            int size = lz4Compressor.compress(encoded, 0, encoded.length, data, offset);
+            return Arrays.copyOf(data, offset + size);
         } else {
             ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(HEADER);
+            bytes.write(encodingTag);
+            bytes.write(FORMAT_GZIP);
             GZIPOutputStream out = new GZIPOutputStream(bytes);
             try {
-                mapper.writeValue(out, o);
+                out.write(encoded);
             } finally {
                 out.close();
             }
@@ -67,16 +146,67 @@ public class KVStoreSerializer {
     public final <T> T deserialize(byte[] data, Class<T> klass) throws Exception {
         if (klass.equals(String.class)) {
             return (T) new String(data, UTF_8);
+        }
+        if (data[0] == HEADER) {
+            return read(mapperOf(data[1]), data[2], data, HEADER_SIZE, klass);
+        } else if (data[0] == LEGACY_GZIP_MAGIC) {
+            return readGzip(jsonMapper, new ByteArrayInputStream(data), klass);
         } else {
-            GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
-            try {
-                return mapper.readValue(in, klass);
-            } finally {
-                in.close();
-            }
+            return read(jsonMapper, data[0], data, 1, klass);
+        }
+    }
+
+    private <T> T read(ObjectMapper mapper, byte format, byte[] data, int offset, Class<T> klass) throws Exception {
+        switch (format) {
+            case FORMAT_PLAIN:
+                return mapper.readValue(data, offset, data.length - offset, klass);
+            case FORMAT_LZ4:
+                return mapper.readValue(lz4Decompressor.decompress(data, offset + 4, readInt(data, offset)), klass);
+            case FORMAT_GZIP:
+                return readGzip(mapper, new ByteArrayInputStream(data, offset, data.length - offset), klass);
+            default:
+                throw new IllegalArgumentException("Unknown kvstore value format: " + format);
+        }
+    }
+
+    private ObjectMapper mapperOf(byte encodingTag) {
+        switch (encodingTag) {
+            case ENCODING_JSON:
+                return jsonMapper;
+            case ENCODING_SMILE:
+                return smileMapper;
+            default:
+                throw new IllegalArgumentException("Unknown kvstore value encoding: " + encodingTag);
         }
     }
 
+    private static void writeHeader(byte[] data, byte encodingTag, byte format) {
+        data[0] = HEADER;
+        data[1] = encodingTag;
+        data[2] = format;
+    }
+
+    private <T> T readGzip(ObjectMapper mapper, ByteArrayInputStream bytes, Class<T> klass) throws Exception {
+        GZIPInputStream in = new GZIPInputStream(bytes);
+        try {
+            return mapper.readValue(in, klass);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+                ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
     final byte[] serialize(long value) {
         return String.valueOf(value).getBytes(UTF_8);
     }
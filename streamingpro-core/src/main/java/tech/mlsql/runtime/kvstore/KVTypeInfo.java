@@ -113,6 +113,7 @@ public class KVTypeInfo {
 
     Accessor getParentAccessor(String indexName) {
         KVIndex index = indices.get(indexName);
+        Preconditions.checkArgument(index != null, "No index %s.", indexName);
         return index.parent().isEmpty() ? null : getAccessor(index.parent());
     }
 
@@ -27,6 +27,7 @@ import com.fasterxml.jackson.annotation.JsonInclude
 import com.fasterxml.jackson.module.scala.DefaultScalaModule
 
 import org.apache.spark.internal.Logging
+import org.apache.spark.{MLSQLConf, SparkConf}
 
 object KVUtils extends Logging {
 
@@ -37,11 +38,30 @@ object KVUtils extends Logging {
    * A KVStoreSerializer that provides Scala types serialization too, and uses the same options as
    * the API serializer.
    */
-  class KVStoreScalaSerializer extends KVStoreSerializer {
+  class KVStoreScalaSerializer(
+      compression: KVStoreSerializer.Compression = KVStoreSerializer.Compression.LZ4,
+      compressThreshold: Int = KVStoreSerializer.DEFAULT_COMPRESS_THRESHOLD,
+      encoding: KVStoreSerializer.Encoding = KVStoreSerializer.Encoding.JSON)
+    extends KVStoreSerializer(encoding, compression, compressThreshold) {
 
-    mapper.registerModule(DefaultScalaModule)
-    mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL)
+    mappers().asScala.foreach { mapper =>
+      mapper.registerModule(DefaultScalaModule)
+      mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL)
+    }
+
+  }
 
+  /**
+   * The serializer configured by spark.mlsql.kvstore.encoding, spark.mlsql.kvstore.compression
+   * and spark.mlsql.kvstore.compressThreshold.
+   */
+  def serializer(conf: SparkConf): KVStoreSerializer = {
+    new KVStoreScalaSerializer(
+      KVStoreSerializer.Compression.valueOf(conf.get(MLSQLConf.MLSQL_KVSTORE_COMPRESSION.key,
+        MLSQLConf.MLSQL_KVSTORE_COMPRESSION.defaultValueString).toUpperCase),
+      conf.getInt(MLSQLConf.MLSQL_KVSTORE_COMPRESS_THRESHOLD.key, KVStoreSerializer.DEFAULT_COMPRESS_THRESHOLD),
+      KVStoreSerializer.Encoding.valueOf(conf.get(MLSQLConf.MLSQL_KVSTORE_ENCODING.key,
+        MLSQLConf.MLSQL_KVSTORE_ENCODING.defaultValueString).toUpperCase))
   }
 
   /**
@@ -51,11 +71,16 @@ object KVUtils extends Logging {
    * @param metadata Metadata value to compare to the data in the store. If the store does not
    *                 contain any metadata (e.g. it's a new store), this value is written as
    *                 the store's metadata.
+   * @param serializer How values are encoded and compressed, see [[serializer]]. Stores written
+   *                   with another encoding or compression stay readable.
    */
-  def open[M: ClassTag](path: File, metadata: M): LevelDB = {
+  def open[M: ClassTag](
+      path: File,
+      metadata: M,
+      serializer: KVStoreSerializer = new KVStoreScalaSerializer()): LevelDB = {
     require(metadata != null, "Metadata is required.")
 
-    val db = new LevelDB(path, new KVStoreScalaSerializer())
+    val db = new LevelDB(path, serializer)
     val dbMeta = db.getMetadata(classTag[M].runtimeClass)
     if (dbMeta == null) {
       db.setMetadata(metadata)
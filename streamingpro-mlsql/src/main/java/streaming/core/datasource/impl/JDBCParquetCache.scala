@@ -0,0 +1,165 @@
+package streaming.core.datasource.impl
+
+import java.nio.charset.StandardCharsets
+
+import org.apache.hadoop.fs.Path
+import org.apache.spark.sql.{DataFrame, SaveMode, SparkSession, functions => F}
+import tech.mlsql.common.utils.log.Logging
+import tech.mlsql.common.utils.serder.json.JSONTool
+import tech.mlsql.tool.HDFSOperatorV2
+
+/**
+  * One committed copy of a cached table. watermark is the max value of the incremental column in it,
+  * empty when the cache is not incremental. parts are the version dirs holding its data: an append
+  * writes only the new rows into its own dir and lists it after the parts of the version it extends.
+  * Empty parts means the data is in the dir of the version itself.
+  */
+case class JDBCCacheVersion(version: String, refreshTime: Long, watermark: String, parts: Seq[String] = Seq()) {
+  def dataParts: Seq[String] = if (parts.isEmpty) Seq(version) else parts
+}
+
+/**
+  * mode is append (rows with column > watermark are appended, for auto increment ids)
+  * or merge (rows with column >= watermark replace the cached rows with the same mergeKey, for updated_at).
+  */
+case class JDBCCacheIncremental(column: String, mode: String, mergeKey: Seq[String])
+
+/**
+  * The parquet copies of a jdbc table under ${cachePath}/versions/${version}, committed by writing
+  * ${version}/_mlsql_cache_meta.${refreshTime} after the data. Every refresh, an append included, writes
+  * a new version dir and committed dirs are never written again, so readers always use the latest committed
+  * version without any lock and never see a refresh which is in progress or has failed. Only the latest two
+  * versions (and the parts they read) are kept.
+  */
+class JDBCParquetCache(session: SparkSession, cachePath: String) extends Logging {
+
+  private val versionsPath = new Path(cachePath, "versions")
+  private val META_PREFIX = "_mlsql_cache_meta."
+
+  private def fs = versionsPath.getFileSystem(HDFSOperatorV2.hadoopConfiguration)
+
+  // appends after which the parts of a version are rewritten into one
+  val MAX_PARTS = 16
+
+  private def dataPath(version: String) = new Path(new Path(versionsPath, version), "data").toString
+
+  def current: Option[JDBCCacheVersion] = {
+    if (!fs.exists(versionsPath)) return None
+    versionDirs.reverseIterator.map(latestMeta).collectFirst { case Some(version) => version }
+  }
+
+  private def versionDirs = fs.listStatus(versionsPath).filter(_.isDirectory).map(_.getPath).sortBy(_.getName)
+
+  private def metaFiles(dir: Path) = {
+    fs.listStatus(dir).map(_.getPath).filter(_.getName.startsWith(META_PREFIX)).sortBy(_.getName)
+  }
+
+  private def latestMeta(dir: Path): Option[JDBCCacheVersion] = metaFiles(dir).lastOption.map(readMeta)
+
+  def isExpire(version: JDBCCacheVersion, expireSeconds: Long): Boolean = {
+    System.currentTimeMillis() - version.refreshTime > expireSeconds * 1000
+  }
+
+  def read(version: JDBCCacheVersion): DataFrame = session.read.parquet(version.dataParts.map(dataPath): _*)
+
+  /**
+    * Brings the cache up to date with table and returns the new committed version.
+    * Should only be called by the holder of the cache lock.
+    */
+  def refresh(table: DataFrame, previous: Option[JDBCCacheVersion], incremental: Option[JDBCCacheIncremental]): JDBCCacheVersion = {
+    val res = (previous, incremental) match {
+      case (Some(version), Some(spec)) if version.watermark.nonEmpty =>
+        val column = F.col(spec.column)
+        val watermark = F.lit(version.watermark).cast(table.schema(spec.column).dataType)
+        spec.mode match {
+          case "append" =>
+            val delta = table.filter(column > watermark).persist()
+            try {
+              val deltaMax = maxOf(delta, spec.column)
+              val newVersion = newVersionOf(previous, deltaMax.getOrElse(version.watermark))
+              if (deltaMax.isEmpty) {
+                // no new rows, the new version only moves the refresh time
+                commit(newVersion.copy(parts = version.dataParts))
+              } else if (version.dataParts.size < MAX_PARTS) {
+                delta.write.mode(SaveMode.Overwrite).parquet(dataPath(newVersion.version))
+                commit(newVersion.copy(parts = version.dataParts :+ newVersion.version))
+              } else {
+                read(version).unionByName(delta).write.mode(SaveMode.Overwrite).parquet(dataPath(newVersion.version))
+                commit(newVersion)
+              }
+            } finally {
+              delta.unpersist()
+            }
+          case "merge" =>
+            require(spec.mergeKey.nonEmpty, "cacheMergeKey is required when cacheIncrementalMode is merge")
+            // >= so the rows committed later with the same value as the watermark are not lost
+            val delta = table.filter(column >= watermark).persist()
+            try {
+              val merged = read(version).join(delta.select(spec.mergeKey.map(F.col): _*), spec.mergeKey, "left_anti").
+                unionByName(delta)
+              val newVersion = newVersionOf(previous, maxOf(delta, spec.column).getOrElse(version.watermark))
+              merged.write.mode(SaveMode.Overwrite).parquet(dataPath(newVersion.version))
+              commit(newVersion)
+            } finally {
+              delta.unpersist()
+            }
+          case other => throw new IllegalArgumentException(s"cacheIncrementalMode should be append or merge, but it's ${other}")
+        }
+      case _ =>
+        val newVersion = newVersionOf(previous, "")
+        table.write.mode(SaveMode.Overwrite).parquet(dataPath(newVersion.version))
+        val watermark = incremental.flatMap(spec => maxOf(session.read.parquet(dataPath(newVersion.version)), spec.column))
+        commit(newVersion.copy(watermark = watermark.getOrElse("")))
+    }
+    cleanup(res)
+    res
+  }
+
+  // versions are named by their refresh time, and always sort after the previous one
+  private def newVersionOf(previous: Option[JDBCCacheVersion], watermark: String) = {
+    val now = Math.max(System.currentTimeMillis(), previous.map(_.version.toLong + 1).getOrElse(0L))
+    JDBCCacheVersion("%013d".format(now), now, watermark)
+  }
+
+  private def maxOf(df: DataFrame, column: String): Option[String] = {
+    val row = df.agg(F.max(F.col(column)).cast("string")).head()
+    if (row.isNullAt(0)) None else Some(row.getString(0))
+  }
+
+  private def commit(version: JDBCCacheVersion): JDBCCacheVersion = {
+    val dir = new Path(versionsPath, version.version)
+    val meta = new Path(dir, META_PREFIX + "%013d".format(version.refreshTime))
+    val out = fs.create(meta, true)
+    try {
+      out.write(JSONTool.toJsonStr(version).getBytes(StandardCharsets.UTF_8))
+    } finally {
+      out.close()
+    }
+    logInfo(s"Cache ${cachePath} is refreshed to ${JSONTool.toJsonStr(version)}")
+    version
+  }
+
+  private def readMeta(path: Path): JDBCCacheVersion = {
+    val in = fs.open(path)
+    try {
+      JSONTool.parseJson[JDBCCacheVersion](scala.io.Source.fromInputStream(in, "utf-8").mkString)
+    } finally {
+      in.close()
+    }
+  }
+
+  // keep the latest version and the one before, which may still be read by others, with their parts.
+  // Dirs without a meta are refreshes which have failed.
+  private def cleanup(latest: JDBCCacheVersion): Unit = {
+    val versions = versionDirs
+    val committed = versions.filter(path => path.getName < latest.version).flatMap(latestMeta)
+    val keep = (committed.takeRight(1) :+ latest).flatMap(version => version.dataParts :+ version.version).toSet
+    versions.filter(path => path.getName < latest.version && !keep.contains(path.getName)).foreach { path =>
+      try {
+        fs.delete(path, true)
+      } catch {
+        case e: Exception => logWarning(s"Fail to delete the old cache ${path}: ${e.getMessage}")
+      }
+    }
+  }
+}
@@ -51,12 +51,14 @@ class MLSQLJDBC(override val uid: String) extends MLSQLSource with MLSQLSink wit
     // it will do no harm.
     val format = config.config.getOrElse("implClass", fullFormat)
     var url = config.config.get("url")
+    var connectOptions = Map[String, String]()
     if (config.path.contains(dbSplitter)) {
       val Array(_dbname, _dbtable) = config.path.split(toSplit, 2)
       ConnectMeta.presentThenCall(DBMappingKey(format, _dbname), options => {
         dbtable = _dbtable
         reader.options(options)
         url = options.get("url")
+        connectOptions = options
       })
     }
     //load configs should overwrite connect configs
@@ -67,7 +69,9 @@ class MLSQLJDBC(override val uid: String) extends MLSQLSource with MLSQLSink wit
         .split(config.config.getOrElse("prePtnDelimiter" ,","))
 
       reader.jdbc(url.get, dbtable, prePtn, new Properties())
-    }else{
+    } else if (isAutoPartition(config) && url.isDefined) {
+      loadWithAutoPartition(reader, format, url.get, dbtable, connectOptions ++ config.config)
+    } else {
       reader.option("dbtable", dbtable)
 
       reader.format(format).load()
@@ -83,6 +87,37 @@ class MLSQLJDBC(override val uid: String) extends MLSQLSource with MLSQLSink wit
     cacheTableInParquet(newdf, config)
   }
 
+  private def isAutoPartition(config: DataSourceConfig) = {
+    config.config.getOrElse(autoPartition.name, "false").toBoolean &&
+      !config.config.contains(partitionColumn.name) &&
+      !config.config.contains("numPartitions")
+  }
+
+  /**
+    * Reads the ranges planned by JDBCPartitionPlanner in parallel. When there are more ranges than
+    * maxConnections, the ranges are coalesced so that at most maxConnections tasks read the database at once.
+    */
+  private def loadWithAutoPartition(reader: DataFrameReader, implClass: String, url: String, dbtable: String,
+                                    options: Map[String, String]): DataFrame = {
+    val plan = try {
+      JDBCPartitionPlanner.plan(options + ("url" -> url), dbtable)
+    } catch {
+      case e: Exception =>
+        logWarning(format(s"Fail to plan the partitions of ${dbtable}, read it in one partition"))
+        logInfo(format_exception(e))
+        None
+    }
+    plan match {
+      case Some(item) =>
+        val df = reader.jdbc(url, dbtable, item.predicates, new Properties())
+        val connections = options.get(maxConnections.name).map(_.toInt).getOrElse(JDBCPartitionPlanner.DEFAULT_MAX_CONNECTIONS)
+        if (item.predicates.length > connections) df.coalesce(connections) else df
+      case None =>
+        reader.option("dbtable", dbtable)
+        reader.format(implClass).load()
+    }
+  }
+
   def cacheTableInParquet(table: DataFrame, config: DataSourceConfig): DataFrame = {
     val sourceinfo = sourceInfo(DataAuthConfig(config.path, config.config))
     val sparkSession = table.sparkSession
@@ -128,10 +163,17 @@ class MLSQLJDBC(override val uid: String) extends MLSQLSource with MLSQLSink wit
         }
 
 
-        def isExpire = {
-          // we should check the data dir instead of the finalPath since the final path
-          // will be written with lock file which may make the modification time changed
-          HDFSOperatorV2.fileExists(finalPath + "/data") && System.currentTimeMillis() - HDFSOperatorV2.getFileStatus(finalPath + "/data").getModificationTime > $(cacheToHDFSExpireTime) * 1000
+        val cache = new JDBCParquetCache(sparkSession, finalPath)
+        val incremental = config.config.get(cacheIncrementalColumn.name).map { column =>
+          JDBCCacheIncremental(column,
+            config.config.getOrElse(cacheIncrementalMode.name, "append"),
+            config.config.get(cacheMergeKey.name).map(_.split(",").map(_.trim).filter(_.nonEmpty).toSeq).getOrElse(Seq()))
+        }
+
+        // readers never wait for a refresh if there is a committed version, even an expired one
+        val previous = cache.current
+        if (previous.isDefined && !cache.isExpire(previous.get, $(cacheToHDFSExpireTime))) {
+          return cache.read(previous.get)
         }
 
         val hdfsLocker = new DistrLocker(finalPath)
@@ -141,41 +183,37 @@ class MLSQLJDBC(override val uid: String) extends MLSQLSource with MLSQLSink wit
           hdfsLocker.createLock
           // try to fetch lock
           if (!hdfsLocker.fetchLock()) {
-            // fail to fetch lock, then wait until other release the lock
-            logInfo(format(s"${finalPath} is locked by other service, wait and then use"))
             hdfsLocker.releaseLock()
-            hdfsLocker.waitOtherLockToRelease($(waitCacheLockTime))
-            // try to read the file
-            newTable = sparkSession.read.parquet(finalPath + "/data")
-          } else {
-            // succesfully get the lock, then check the file if exists or isExpire
-            // if not exits or the table have expire, then remove it and create new one.
-            // finally release the lock
-            logInfo(format(s"${finalPath} is locked by this service and we will create the data if it not exists"))
-            if (!HDFSOperatorV2.fileExists(finalPath + "/data") || isExpire) {
-              table.write.mode(SaveMode.Overwrite).save(finalPath + "/data")
+            previous match {
+              case Some(version) =>
+                logInfo(format(s"${finalPath} is refreshing by other service, use the previous version ${version.version}"))
+                newTable = cache.read(version)
+              case None =>
+                // fail to fetch lock and nothing cached yet, then wait until other release the lock
+                logInfo(format(s"${finalPath} is locked by other service, wait and then use"))
+                hdfsLocker.waitOtherLockToRelease($(waitCacheLockTime))
+                newTable = cache.current.map(cache.read).getOrElse(table)
             }
-            try {
-              sparkSession.read.parquet(finalPath + "/data")
-            } catch {
-              case e: Exception =>
-                logInfo(format_exception(e))
-                table.write.mode(SaveMode.Overwrite).save(finalPath + "/data")
-            }
-
-            try {
-              newTable = sparkSession.read.parquet(finalPath + "/data")
-            } catch {
-              case e: Exception =>
-                logWarning(format(s"we try to cache table ${finalPath}, but it fails:"))
-                logInfo(format_exception(e))
-                newTable = table
+          } else {
+            // succesfully get the lock, other service may have refreshed the cache before,
+            // so check it again and refresh (incrementally if configured) only when it is still missing or expired.
+            logInfo(format(s"${finalPath} is locked by this service and we will refresh the data if it is expired"))
+            val latest = cache.current
+            val version = latest match {
+              case Some(item) if !cache.isExpire(item, $(cacheToHDFSExpireTime)) => Some(item)
+              case _ =>
+                try {
+                  Some(cache.refresh(table, latest, incremental))
+                } catch {
+                  case e: Exception =>
+                    logWarning(format(s"we try to cache table ${finalPath}, but it fails:"))
+                    logInfo(format_exception(e))
+                    latest
+                }
             }
-
-
+            newTable = version.map(cache.read).getOrElse(table)
           }
         } finally {
-          logInfo(format(s"${finalPath} is locked by other service, wait and then use"))
           hdfsLocker.releaseLock()
         }
         return newTable
@@ -283,9 +321,18 @@ class MLSQLJDBC(override val uid: String) extends MLSQLSource with MLSQLSink wit
   final val partitionColumn: Param[String] = new Param[String](this, "partitionColumn", "These options must all be specified if any of them is specified. In addition, numPartitions must be specified. They describe how to partition the table when reading in parallel from multiple workers. partitionColumn must be a numeric, date, or timestamp column from the table in question. Notice that lowerBound and upperBound are just used to decide the partition stride, not for filtering the rows in table. So all rows in the table will be partitioned and returned. This option applies only to reading.")
   final val lowerBound: Param[String] = new Param[String](this, "lowerBound", "See partitionColumn")
   final val upperBound: Param[String] = new Param[String](this, "upperBound", "See partitionColumn")
+  final val autoPartition: BooleanParam = new BooleanParam(this, "autoPartition", "default false; read the table in parallel ranges of the primary key or an indexed integral/date/timestamp column when prePtnArray and partitionColumn are not set")
+  final val autoPartitionColumn: Param[String] = new Param[String](this, "autoPartitionColumn", "The column used by autoPartition instead of the primary key or index")
+  final val autoPartitionRows: LongParam = new LongParam(this, "autoPartitionRows", "default 1000000; the rows of every partition of autoPartition")
+  final val autoPartitionNum: Param[String] = new Param[String](this, "autoPartitionNum", "The number of partitions of autoPartition instead of autoPartitionRows")
+  final val autoPartitionStrategy: Param[String] = new Param[String](this, "autoPartitionStrategy", "minmax|histogram default minmax; minmax splits min and max of the column evenly, histogram balances the ranges by the row counts, which is better for keys with holes")
+  final val maxConnections: Param[String] = new Param[String](this, "maxConnections", "default 8; at most so many tasks read the database at the same time in autoPartition")
   final val enableCacheToHDFS: BooleanParam = new BooleanParam(this, "enableCacheToHDFS", "enabled by default in MySQL;The target path is ${HOME}/tmp/_jdbc_cache_")
   final val waitCacheLockTime: LongParam = new LongParam(this, "waitCacheLockTime", "default 30m;unit seconds")
   final val cacheToHDFSExpireTime: LongParam = new LongParam(this, "cacheToHDFSExpireTime", "default 6h; unit seconds")
+  final val cacheIncrementalColumn: Param[String] = new Param[String](this, "cacheIncrementalColumn", "A monotonic column e.g. an auto increment id or updated_at. When set, the expired cache only fetches the rows after the max value of this column in the cache instead of the whole table")
+  final val cacheIncrementalMode: Param[String] = new Param[String](this, "cacheIncrementalMode", "append|merge default append; append: new rows are appended (for auto increment id). merge: changed rows replace the cached rows with the same cacheMergeKey (for updated_at). Deleted rows are not removed in both modes")
+  final val cacheMergeKey: Param[String] = new Param[String](this, "cacheMergeKey", "Comma separated key columns used by cacheIncrementalMode=merge")
 
 }
 
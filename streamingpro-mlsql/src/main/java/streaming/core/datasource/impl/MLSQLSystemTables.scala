@@ -1,5 +1,7 @@
 package streaming.core.datasource.impl
 
+import org.apache.spark.APIDeployPythonRunnerEnv
+import org.apache.spark.sql.execution.streaming.JDBCSinkMetrics
 import org.apache.spark.sql.mlsql.session.MLSQLException
 import org.apache.spark.sql.{DataFrame, DataFrameReader}
 import streaming.core.datasource._
@@ -7,9 +9,11 @@ import streaming.core.datasource.util.MLSQLJobCollect
 import streaming.dsl.ScriptSQLExec
 import streaming.dsl.auth.{OperateType, TableType}
 import streaming.dsl.load.batch.{LogTail, MLSQLAPIExplain, MLSQLConfExplain}
+import streaming.udf.RuntimeCompileScriptFactory
 import tech.mlsql.MLSQLEnvKey
 import tech.mlsql.core.version.MLSQLVersion
-import tech.mlsql.job.MLSQLJobInfo
+import tech.mlsql.dsl.parser.ScriptParseCache
+import tech.mlsql.job.{JobManager, MLSQLJobInfo, ScriptResultCache}
 
 /**
   * 2019-01-11 WilliamZhu(allwefantasy@gmail.com)
@@ -75,6 +79,18 @@ class MLSQLSystemTables extends MLSQLSource with MLSQLSourceInfo with MLSQLRegis
         val filePath = config.config.getOrElse("filePath", "")
         val msgs = LogTail.log(owner, filePath, offset.toLong)
         spark.createDataset(Seq(msgs)).toDF("offset", "value")
+      case Array("metrics", "parseCache") =>
+        spark.createDataset(ScriptParseCache.stats).toDF()
+      case Array("metrics", "resultCache") =>
+        spark.createDataset(ScriptResultCache.stats).toDF()
+      case Array("metrics", "udfCompile") =>
+        spark.createDataset(RuntimeCompileScriptFactory.stats).toDF()
+      case Array("metrics", "pythonWorkerPool") =>
+        spark.createDataset(APIDeployPythonRunnerEnv.stats).toDF()
+      case Array("metrics", "jdbcSink") =>
+        spark.createDataset(JDBCSinkMetrics.stats).toDF()
+      case Array("metrics", "jobExecutor") =>
+        spark.createDataset(JobManager.executor.metrics).toDF()
       case Array("version") =>
         spark.createDataset(Seq(MLSQLVersion.version())).toDF()
 
@@ -25,7 +25,7 @@ import org.apache.spark.sql.{DataFrame, SparkSession}
 import org.apache.spark.udf.UDFManager
 import streaming.dsl.mmlib._
 import streaming.dsl.mmlib.algs.param.{BaseParams, WowParams}
-import streaming.udf.RuntimeCompileScriptFactory
+import streaming.udf.{RuntimeCompileScriptFactory, VectorizedPythonUDF}
 
 /**
  * Created by allwefantasy on 27/8/2018.
@@ -74,6 +74,11 @@ class ScriptUDF(override val uid: String) extends SQLAlg with WowParams {
       if (!dataType.isValid(l)) thr(dataType, l)
       set(dataType, l)
     }
+
+    params.get(mode.name).map { l =>
+      if (!mode.isValid(l)) thr(mode, l)
+      set(mode, l)
+    }
     val scriptCacheKey = ScriptUDFCacheKey(
       res, "", $(className), $(udfType), $(methodName), $(dataType), $(lang)
     )
@@ -85,6 +90,8 @@ class ScriptUDF(override val uid: String) extends SQLAlg with WowParams {
           throw new IllegalArgumentException()
         }
         (e: Seq[Expression]) => udaf.get.udaf(e, scriptCacheKey)
+      case _ if $(lang) == "python" && $(mode) == VectorizedPythonUDF.MODE =>
+        VectorizedPythonUDF.builder(sparkSession, scriptCacheKey)
       case _ =>
         val udf = RuntimeCompileScriptFactory.getUDFCompilerBylang($(lang))
         if (!udf.isDefined) {
@@ -95,8 +102,15 @@ class ScriptUDF(override val uid: String) extends SQLAlg with WowParams {
   }
 
   override def predict(sparkSession: SparkSession, _model: Any, name: String, params: Map[String, String]): UserDefinedFunction = {
-    val func = _model.asInstanceOf[(Seq[Expression]) => ScalaUDF]
-    UDFManager.register(sparkSession, name, func)
+    if (params.get(mode.name).contains(VectorizedPythonUDF.MODE)) {
+      VectorizedPythonUDF.register(sparkSession)
+      UDFManager.registerExpression(sparkSession, name, _model.asInstanceOf[(Seq[Expression]) => Expression])
+    } else if (params.get(udfType.name).contains("udaf")) {
+      UDFManager.registerExpression(sparkSession, name, _model.asInstanceOf[(Seq[Expression]) => Expression])
+    } else {
+      val func = _model.asInstanceOf[(Seq[Expression]) => ScalaUDF]
+      UDFManager.register(sparkSession, name, func)
+    }
     null
   }
 
@@ -164,6 +178,27 @@ class ScriptUDF(override val uid: String) extends SQLAlg with WowParams {
       |select echoFun(map('a','b')) as res from dataTable as output;
       |```
       |
+      |### Vectorized Python UDF Example
+      |
+      |With `mode="vectorized"`, the rows are sent to a CPython worker in Arrow record batches
+      |(spark.mlsql.udf.python.vectorized.batchSize rows, 10000 by default) and the method is called
+      |once per batch with one pandas.Series per argument. It should return a pandas.Series (or a numpy array)
+      |with the same length. pyjava, pandas and pyarrow should be installed in the python env
+      |configured by `!python env`. Vectorized udf can only be applied to the columns of a table, e.g. not to the
+      |result of an aggregate function.
+      |
+      |```sql
+      |register ScriptUDF.`` as plusFun options lang="python"
+      |and mode="vectorized"
+      |and dataType="double"
+      |and code='''
+      |def apply(self, a, b):
+      |    return a + b
+      |''';
+      |
+      |select plusFun(a, b) as res from dataTable as output;
+      |```
+      |
       |### Scala UDF Script Example
       |
       |```sql
@@ -260,6 +295,33 @@ class ScriptUDF(override val uid: String) extends SQLAlg with WowParams {
       |
       |### Scala UDAF Script Example
       |
+      |A class which merges instances of itself is used as the aggregation buffer directly:
+      |`update` is called with the arguments of every row, `merge` with the buffer of another partition and `evaluate`
+      |returns the result. The buffer is only serialized when it is shuffled, so the class should extend Serializable.
+      |
+      |```sql
+      |set plusFun='''
+      |class SumAggregation extends Serializable {
+      |    var total = 0L
+      |    def update(a: Long): Unit = {
+      |      total += a
+      |    }
+      |    def merge(other: SumAggregation): Unit = {
+      |      total += other.total
+      |    }
+      |    def evaluate: Long = total
+      |}
+      |''';
+      |
+      |load script.`plusFun` as scriptTable;
+      |register ScriptUDF.`scriptTable` as plusFun options
+      |className="SumAggregation"
+      |and udfType="udaf"
+      |;
+      |```
+      |
+      |UserDefinedAggregateFunction is also supported:
+      |
       |```sql
       |set plusFun='''
       |import org.apache.spark.sql.expressions.{MutableAggregationBuffer, UserDefinedAggregateFunction}
@@ -413,6 +475,12 @@ class ScriptUDF(override val uid: String) extends SQLAlg with WowParams {
   final val dataType: Param[String] = new Param[String](this, "dataType",
     s"""when you use python udf, you should define return type.""")
   setDefault(dataType, "")
+
+  final val mode: Param[String] = new Param[String](this, "mode",
+    s"""row or vectorized. vectorized python udf is called with a batch of rows in CPython, see the doc.""", (s: String) => {
+      s == "row" || s == VectorizedPythonUDF.MODE
+    })
+  setDefault(mode, "row")
 }
 
 
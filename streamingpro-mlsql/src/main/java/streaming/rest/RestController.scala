@@ -18,6 +18,9 @@
 
 package streaming.rest
 
+import java.io.{BufferedWriter, OutputStreamWriter}
+import java.nio.charset.StandardCharsets
+
 import _root_.streaming.core._
 import _root_.streaming.core.strategy.platform.{PlatformManager, SparkRuntime}
 import _root_.streaming.dsl.{MLSQLExecuteContext, ScriptSQLExec, ScriptSQLExecListener}
@@ -35,17 +38,14 @@ import org.apache.http.client.fluent.Request
 import org.apache.spark.ps.cluster.Message
 import org.apache.spark.ps.cluster.Message.Pong
 import org.apache.spark.sql._
-import org.apache.spark.sql.execution.datasources.json.WowJsonInferSchema
 import org.apache.spark.sql.mlsql.session.{MLSQLSparkSession, SparkSessionCacheManager}
-import org.apache.spark.{MLSQLConf, SparkInstanceService}
-import tech.mlsql.MLSQLEnvKey
-import tech.mlsql.app.{CustomController, ResultResp}
+import org.apache.spark.SparkInstanceService
+import tech.mlsql.app.CustomController
 import tech.mlsql.common.utils.serder.json.JSONTool
-import tech.mlsql.job.{JobManager, MLSQLJobType}
+import tech.mlsql.job.{JobManager, MLSQLJobType, ScriptResultCache, ScriptResultWriter}
 import tech.mlsql.runtime.AppRuntimeStore
 import tech.mlsql.runtime.plugins.exception_render.ExceptionRenderManager
 import tech.mlsql.runtime.plugins.request_cleaner.RequestCleanerManager
-import tech.mlsql.runtime.plugins.result_render.ResultRenderManager
 
 import scala.collection.JavaConversions._
 import scala.collection.mutable.ArrayBuffer
@@ -94,7 +94,7 @@ class RestController extends ApplicationController with WowLog {
     new Parameter(name = "skipAuth", required = false, description = "disable table authorize . default: true", `type` = "boolean", allowEmptyValue = false),
     new Parameter(name = "skipGrammarValidate", required = false, description = "validate mlsql grammar. default: true", `type` = "boolean", allowEmptyValue = false),
     new Parameter(name = "includeSchema", required = false, description = "the return value should contains schema info. default: false", `type` = "boolean", allowEmptyValue = false),
-    new Parameter(name = "fetchType", required = false, description = "take/collect. default: collect", `type` = "string", allowEmptyValue = false),
+    new Parameter(name = "fetchType", required = false, description = "take/collect/stream/arrow. stream writes the rows to the response as they are computed, arrow returns them as an Arrow IPC stream. default: collect", `type` = "string", allowEmptyValue = false),
     new Parameter(name = "enableQueryWithIndexer", required = false, description = "try query with indexer to speed. default: false", `type` = "boolean", allowEmptyValue = false)
   ))
   @Responses(Array(
@@ -116,6 +116,11 @@ class RestController extends ApplicationController with WowLog {
     }
     val includeSchema = param("includeSchema", "false").toBoolean
     var outputResult: String = if (includeSchema) "{}" else "[]"
+    // Arrow results need Spark 2.4+, with Spark 2.3 fetchType=arrow keeps returning json
+    val arrowResult = param("fetchType", "collect") == "arrow" && ArrowResultHelper.isSupported
+    val streamResult = (param("fetchType", "collect") == "stream" || arrowResult) && !paramAsBoolean("async", false)
+    // set once the result has been written to the response by writeScriptResult
+    var streamed = false
     try {
       val jobInfo = JobManager.getJobInfo(
         param("owner"), param("jobType", MLSQLJobType.SCRIPT), param("jobName"), param("sql"),
@@ -168,15 +173,29 @@ class RestController extends ApplicationController with WowLog {
             }
           })
         } else {
+          val cacheKey = ScriptResultCache.key(param("sql"), jobInfo.owner, params().toMap)
           JobManager.run(sparkSession, jobInfo, () => {
-            ScriptSQLExec.parse(param("sql"), context,
-              skipInclude = paramAsBoolean("skipInclude", false),
-              skipAuth = paramAsBoolean("skipAuth", true),
-              skipPhysicalJob = paramAsBoolean("skipPhysicalJob", false),
-              skipGrammarValidate = paramAsBoolean("skipGrammarValidate", true)
-            )
-            if (!silence) {
-              outputResult = getScriptResult(context, sparkSession)
+            def parse(skipAuth: Boolean, skipPhysicalJob: Boolean) = {
+              ScriptSQLExec.parse(param("sql"), context,
+                skipInclude = paramAsBoolean("skipInclude", false),
+                skipAuth = skipAuth,
+                skipPhysicalJob = skipPhysicalJob,
+                skipGrammarValidate = paramAsBoolean("skipGrammarValidate", true)
+              )
+            }
+
+            val skipAuth = paramAsBoolean("skipAuth", true)
+            if (silence) {
+              parse(skipAuth, paramAsBoolean("skipPhysicalJob", false))
+            } else if (streamResult) {
+              parse(skipAuth, paramAsBoolean("skipPhysicalJob", false))
+              writeScriptResult(context, sparkSession)
+              streamed = true
+            } else {
+              outputResult = ScriptResultCache.getOrCompute(sparkSession, cacheKey, context)(
+                parse(skipAuth, paramAsBoolean("skipPhysicalJob", false))) {
+                getScriptResult(context, sparkSession)
+              }
             }
           })
         }
@@ -207,14 +226,25 @@ class RestController extends ApplicationController with WowLog {
       }
 
     } catch {
+      // the status and part of the rows are already sent, the client can only see the failure
+      // as a connection which is aborted before the end of the stream
+      case e: Exception if streamResult && restResponse.httpServletResponse().isCommitted =>
+        logger.error("Fail to stream the result of the script, abort the response", e)
+        throw e
       case e: Exception =>
+        if (streamResult) {
+          // drop the buffered rows and the output stream taken by writeScriptResult
+          restResponse.httpServletResponse().reset()
+        }
         val msg = ExceptionRenderManager.call(e)
         render(500, msg.str.get)
     } finally {
       RequestCleanerManager.call()
       cleanActiveSessionInSpark
     }
-    render(outputResult)
+    if (!streamed) {
+      render(outputResult)
+    }
   }
 
   private def accessAuth(sparkSession: SparkSession) = {
@@ -237,40 +267,41 @@ class RestController extends ApplicationController with WowLog {
   }
 
   private def getScriptResult(context: ScriptSQLExecListener, sparkSession: SparkSession): String = {
-    val result = new StringBuffer()
-    val includeSchema = param("includeSchema", "false").toBoolean
-    val fetchType = param("fetchType", "collect")
-    if (includeSchema) {
-      result.append("{")
-    }
-    context.getLastSelectTable() match {
-      case Some(table) =>
-        // result hook
-        var df = sparkSession.table(table)
-        df = ResultRenderManager.call(ResultResp(df, table)).df
-        if (includeSchema) {
-          result.append(s""" "schema":${df.schema.json},"data": """)
-        }
+    ScriptResultWriter.toJsonString(context, sparkSession,
+      includeSchema = param("includeSchema", "false").toBoolean,
+      fetchType = param("fetchType", "collect"),
+      outputSize = paramAsInt("outputSize", 5000),
+      maxResultSize = paramAsInt("maxResultSize", -1))
+  }
 
-        if (context.env().getOrElse(MLSQLEnvKey.CONTEXT_SYSTEM_TABLE, "false").toBoolean) {
-          result.append("[" + WowJsonInferSchema.toJson(df).mkString(",") + "]")
-        } else {
-          val outputSize = paramAsInt("outputSize", 5000)
-          val jsonDF = limitOrNot {
-            df.limit(outputSize)
-          }.toJSON
-          val scriptJsonStringResult = fetchType match {
-            case "collect" => jsonDF.collect().mkString(",")
-            case "take" => df.toJSON.take(outputSize).mkString(",")
-          }
-          result.append("[" + scriptJsonStringResult + "]")
-        }
-      case None => result.append("[]")
-    }
-    if (includeSchema) {
-      result.append("}")
+  /**
+   * fetchType=stream: write the rows straight to the response as the partitions arrive
+   * instead of building the whole result on the driver heap first.
+   * fetchType=arrow: write the rows as an Arrow IPC stream.
+   *
+   * The container sends the response chunked. The output is only closed when every row is
+   * written, a failure leaves it open so the container aborts the response instead of ending
+   * a truncated body normally.
+   */
+  private def writeScriptResult(context: ScriptSQLExecListener, sparkSession: SparkSession): Unit = {
+    val response = restResponse.httpServletResponse()
+    if (param("fetchType") == "arrow" && ArrowResultHelper.isSupported) {
+      response.setContentType("application/vnd.apache.arrow.stream")
+      val out = response.getOutputStream
+      ScriptResultWriter.writeArrow(out, context, sparkSession,
+        outputSize = paramAsInt("outputSize", 5000),
+        maxResultSize = paramAsInt("maxResultSize", -1))
+      out.close()
+      return
     }
-    return result.toString
+    response.setContentType("application/json;charset=utf-8")
+    val writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream, StandardCharsets.UTF_8))
+    ScriptResultWriter.write(writer, context, sparkSession,
+      includeSchema = param("includeSchema", "false").toBoolean,
+      fetchType = "stream",
+      outputSize = paramAsInt("outputSize", 5000),
+      maxResultSize = paramAsInt("maxResultSize", -1))
+    writer.close()
   }
 
 
@@ -528,43 +559,5 @@ class RestController extends ApplicationController with WowLog {
     }
   }
 
-  /**
-   * | enable limit | global | maxResultSize | condition                       | result           |
-   * | ------------ | ------ | ------------- | ------------------------------- | ---------------- |
-   * | true         | -1     | -1            | N/A                             | defualt = 1000   |
-   * | true         | -1     | Int           | N/A                             | ${maxResultSize} |
-   * | true         | Int    | -1            | Or ${maxResultSize} > ${global} | ${global}        |
-   * | true         | Int    | Int           | AND ${maxResultSize} < ${global}| ${maxResultSize} |
-   *
-   * when we enable result size limitation, the size of result should <= ${maxSize} <= ${global}
-   *
-   * @param ds
-   * @param maxSize
-   * @tparam T
-   * @return
-   */
-  private def limitOrNot[T](ds: Dataset[T], maxSize: Int = paramAsInt("maxResultSize", -1)): Dataset[T] = {
-    var result = ds
-    val globalLimit = ds.sparkSession.sparkContext.getConf.getInt(
-      MLSQLConf.RESTFUL_API_MAX_RESULT_SIZE.key, -1
-    )
-    if (ds.sparkSession.sparkContext.getConf.getBoolean(MLSQLConf.ENABLE_MAX_RESULT_SIZE.key, false)) {
-      if (globalLimit == -1) {
-        if (maxSize == -1) {
-          result = ds.limit(1000)
-        } else {
-          result = ds.limit(maxSize)
-        }
-      } else {
-        if (maxSize == -1 || maxSize > globalLimit) {
-          result = ds.limit(globalLimit)
-        } else {
-          result = ds.limit(maxSize)
-        }
-      }
-    }
-    result
-  }
-
   // end --------------------------------------------------------
 }
@@ -6,8 +6,9 @@ import java.util.concurrent.atomic.AtomicReference
 import _root_.streaming.core.datasource.util.MLSQLJobCollect
 import _root_.streaming.dsl.ScriptSQLExec
 import org.apache.spark._
+import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.types.StructType
-import org.apache.spark.sql.{DataFrame, Row, SparkSession, functions => f}
+import org.apache.spark.sql.{DataFrame, SparkSession, functions => f}
 import tech.mlsql.arrow.python.ispark.SparkContextImp
 import tech.mlsql.arrow.python.runner.SparkSocketRunner
 import tech.mlsql.common.utils.base.TryTool
@@ -31,13 +32,8 @@ class MasterSlaveInSpark(name: String, session: SparkSession, _owner: String) ex
   private var refs: AtomicReference[ArrayBuffer[ReportHostAndPort]] = null
   private var targetLen: Int = 0
 
-  def build(df: DataFrame, job: (String,
-    String,
-    StructType,
-    Iterator[Row],
-    String,
-    Int) => Unit) = {
-    val (_targetLen, shouldSort) = computeSplits(df)
+  def build(df: DataFrame, job: MasterSlaveInSpark.DataServerImpl, dataServerNum: Option[Int] = None) = {
+    val (_targetLen, shouldSort) = computeSplits(df, dataServerNum)
     targetLen = _targetLen
 
     val tempdf = if (!shouldSort) {
@@ -68,7 +64,11 @@ class MasterSlaveInSpark(name: String, session: SparkSession, _owner: String) ex
     this
   }
 
-  private def computeSplits(df: DataFrame) = {
+  /**
+   * Without `dataServerNum`, half of the cores which are not used by active tasks are given to
+   * the data servers, the python side needs the other half.
+   */
+  private def computeSplits(df: DataFrame, dataServerNum: Option[Int]) = {
     var targetLen = df.rdd.partitions.length
     var sort = false
     val context = ScriptSQLExec.context()
@@ -77,6 +77,8 @@ class MasterSlaveInSpark(name: String, session: SparkSession, _owner: String) ex
       case true =>
         targetLen = 1
         sort = true
+      case false if dataServerNum.exists(_ > 0) =>
+        targetLen = dataServerNum.get
       case false =>
         TryTool.tryOrElse {
           val resource = new SparkInstanceService(session).resources
@@ -96,12 +98,7 @@ class MasterSlaveInSpark(name: String, session: SparkSession, _owner: String) ex
   }
 
 
-  private def buildDataSocketServers(tempdf: DataFrame, job: (String,
-    String,
-    StructType,
-    Iterator[Row],
-    String,
-    Int) => Unit) = {
+  private def buildDataSocketServers(tempdf: DataFrame, job: MasterSlaveInSpark.DataServerImpl) = {
 
     refs = new AtomicReference[ArrayBuffer[ReportHostAndPort]]()
     refs.set(ArrayBuffer[ReportHostAndPort]())
@@ -120,7 +117,8 @@ class MasterSlaveInSpark(name: String, session: SparkSession, _owner: String) ex
         val tempSocketServerPort = tempSocketServerInDriver._port
         val timezoneID = session.sessionState.conf.sessionLocalTimeZone
         val owner = _owner
-        tempdf.rdd.mapPartitions { iter =>
+        // the rows are written to Arrow directly, without the conversion to Row and back
+        tempdf.queryExecution.toRdd.mapPartitions { iter =>
 
           val host: String = if (SparkEnv.get == null || MLSQLSparkUtils.blockManager == null || MLSQLSparkUtils.blockManager.blockManagerId == null) {
             WriteLog.write(List("Ray: Cannot get MLSQLSparkUtils.rpcEnv().address, using NetTool.localHostName()").iterator,
@@ -142,29 +140,53 @@ class MasterSlaveInSpark(name: String, session: SparkSession, _owner: String) ex
 }
 
 object MasterSlaveInSpark {
+
+  type DataServerImpl = (String, String, StructType, Iterator[InternalRow], String, Int) => Unit
+
+  val DEFAULT_BATCH_SIZE = 1000
+
   def defaultDataServerImpl(
                              host: String,
                              timezoneID: String,
                              dataSchema: StructType,
-                             iter: Iterator[Row],
+                             iter: Iterator[InternalRow],
                              driverSocketServerHost: String,
                              driverSocketServerPort: Int
                            ): Unit = {
-    val socketRunner = new SparkSocketRunner("serveToStreamWithArrow", host, timezoneID)
-    val commonTaskContext = new SparkContextImp(TaskContext.get(), null)
-    val convert = WowRowEncoder.fromRow(dataSchema)
-    val newIter = iter.map { irow =>
-      convert(irow)
-    }
-    val Array(_server, _host, _port) = socketRunner.serveToStreamWithArrow(newIter, dataSchema, 1000, commonTaskContext)
-
-    // send server info back
-    SocketServerInExecutor.reportHostAndPort(driverSocketServerHost,
-      driverSocketServerPort,
-      ReportHostAndPort(_host.toString, _port.toString.toInt))
+    arrowDataServerImpl(DEFAULT_BATCH_SIZE, 0)(host, timezoneID, dataSchema, iter, driverSocketServerHost, driverSocketServerPort)
+  }
 
-    while (_server != null && !_server.asInstanceOf[ServerSocket].isClosed) {
-      Thread.sleep(1 * 1000)
+  /**
+   * Serves the rows of a partition as an Arrow stream of record batches with `batchSize` rows.
+   * When `prefetchBatches` is positive the partition is computed ahead of the socket into
+   * at most `prefetchBatches` batches, see [[PrefetchIterator]].
+   *
+   * The stream goes over a TCP socket because the reader, RayContext of pyjava, may run on
+   * another host and only connects to host:port. A memory-mapped file or unix socket channel
+   * needs a reader for it on the python side first.
+   */
+  def arrowDataServerImpl(batchSize: Int, prefetchBatches: Int): DataServerImpl = {
+    (host: String,
+     timezoneID: String,
+     dataSchema: StructType,
+     iter: Iterator[InternalRow],
+     driverSocketServerHost: String,
+     driverSocketServerPort: Int) => {
+      val socketRunner = new SparkSocketRunner("serveToStreamWithArrow", host, timezoneID)
+      val commonTaskContext = new SparkContextImp(TaskContext.get(), null)
+      val newIter = if (prefetchBatches > 0) {
+        new PrefetchIterator(iter, batchSize, prefetchBatches, s"data-server-prefetch-${TaskContext.getPartitionId()}")
+      } else iter
+      val Array(_server, _host, _port) = socketRunner.serveToStreamWithArrow(newIter, dataSchema, batchSize, commonTaskContext)
+
+      // send server info back
+      SocketServerInExecutor.reportHostAndPort(driverSocketServerHost,
+        driverSocketServerPort,
+        ReportHostAndPort(_host.toString, _port.toString.toInt))
+
+      while (_server != null && !_server.asInstanceOf[ServerSocket].isClosed) {
+        Thread.sleep(1 * 1000)
+      }
     }
   }
 }
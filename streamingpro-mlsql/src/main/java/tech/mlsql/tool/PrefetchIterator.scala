@@ -0,0 +1,105 @@
+package tech.mlsql.tool
+
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.{ArrayBlockingQueue, TimeUnit}
+
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.util.TaskCompletionListener
+import org.apache.spark.{MLSQLSparkUtils, TaskContext, TaskKilledException}
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * Computes the rows of `iter` in its own thread, ahead of the consumer, into a queue of at most
+ * `capacity` batches of `batchSize` rows. The producer blocks when the queue is full, so a slow
+ * consumer (e.g. a python worker reading from a data server) bounds the memory used by the
+ * partition while the upstream computation still overlaps with the serialization.
+ *
+ * The iterator only ends when the producer enqueued the end of the rows. Once it is stopped
+ * (the task completed or was killed) before that, the consumer fails instead, so a reader on
+ * the other side of the data server never takes the rows it got so far for the whole partition.
+ */
+class PrefetchIterator(iter: Iterator[InternalRow], batchSize: Int, capacity: Int, name: String)
+  extends Iterator[InternalRow] {
+
+  private val queue = new ArrayBlockingQueue[Array[InternalRow]](capacity)
+  private val error = new AtomicReference[Throwable]()
+  @volatile private var stopped = false
+
+  private var current: Iterator[InternalRow] = Iterator.empty
+  private var finished = false
+
+  private val taskContext = TaskContext.get()
+
+  private val producer = new Thread(name) {
+    override def run(): Unit = {
+      // the upstream iterators may read input metrics and file names from the task context
+      MLSQLSparkUtils.setTaskContext(taskContext)
+      try {
+        val buffer = new ArrayBuffer[InternalRow](batchSize)
+        while (!stopped && iter.hasNext) {
+          // rows of the upstream operators are reused
+          buffer += iter.next().copy()
+          if (buffer.length == batchSize) {
+            put(buffer.toArray)
+            buffer.clear()
+          }
+        }
+        if (buffer.nonEmpty) put(buffer.toArray)
+      } catch {
+        case e: Throwable => error.set(e)
+      } finally {
+        put(PrefetchIterator.END)
+      }
+    }
+  }
+
+  if (taskContext != null) {
+    taskContext.addTaskCompletionListener(new TaskCompletionListener {
+      override def onTaskCompletion(context: TaskContext): Unit = stop()
+    })
+  }
+  producer.setDaemon(true)
+  producer.start()
+
+  private def put(batch: Array[InternalRow]): Unit = {
+    while (!stopped && !queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {}
+  }
+
+  /**
+   * The producer stops without enqueuing the end of the rows, so a consumer still reading
+   * fails with TaskKilledException once it polls an empty queue.
+   */
+  def stop(): Unit = {
+    stopped = true
+  }
+
+  override def hasNext: Boolean = {
+    while (!current.hasNext && !finished) {
+      val batch = queue.poll(100, TimeUnit.MILLISECONDS)
+      if (batch == null) {
+        if (stopped) {
+          finished = true
+          throw new TaskKilledException(s"${name} was stopped before the end of the rows")
+        }
+      } else if (batch eq PrefetchIterator.END) {
+        finished = true
+        if (error.get() != null) {
+          throw new RuntimeException(s"Fail to compute the rows of ${name}", error.get())
+        }
+      } else {
+        current = batch.iterator
+      }
+    }
+    current.hasNext
+  }
+
+  override def next(): InternalRow = {
+    if (!hasNext) throw new NoSuchElementException(s"${name} is exhausted")
+    current.next()
+  }
+}
+
+object PrefetchIterator {
+  private val END = new Array[InternalRow](0)
+}
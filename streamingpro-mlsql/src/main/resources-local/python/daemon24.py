@@ -40,6 +40,20 @@ def compute_real_exit_code(exit_code):
         return 1
 
 
+def preimport():
+    """
+    Imports the modules listed in MLSQL_PYTHON_PREIMPORT before forking,
+    so the workers start with them loaded.
+    """
+    for name in os.environ.get("MLSQL_PYTHON_PREIMPORT", "").split(","):
+        name = name.strip()
+        if name:
+            try:
+                __import__(name)
+            except Exception:
+                traceback.print_exc(file=sys.stderr)
+
+
 def worker(sock, authenticated):
     """
     Called by a worker process after the fork().
@@ -85,6 +99,8 @@ def manager():
     # Create a new process group to corral our children
     os.setpgid(0, 0)
 
+    preimport()
+
     # Create a listening socket on the AF_INET loopback interface
     listen_sock = socket.socket(AF_INET, SOCK_STREAM)
     listen_sock.bind(('127.0.0.1', 0))
@@ -28,4 +28,12 @@ class TemplateMergeSpec extends FlatSpec with Matchers {
     assume(sql == "2017-03-01")
   }
 
+  "template merge" should "detect the time dependent variables" in {
+    TemplateMerge.usesTimeDependentVariables("select '${today}' as dt as output;") should be(true)
+    TemplateMerge.usesTimeDependentVariables("select '$date.toString(\"yyyyMMdd\")' as dt as output;") should be(true)
+    TemplateMerge.usesTimeDependentVariables("select '$!{yesterday}' as dt as output;") should be(true)
+    TemplateMerge.usesTimeDependentVariables("select '${todayCount}' as c as output;") should be(false)
+    TemplateMerge.usesTimeDependentVariables("select today from table1 as output;") should be(false)
+  }
+
 }
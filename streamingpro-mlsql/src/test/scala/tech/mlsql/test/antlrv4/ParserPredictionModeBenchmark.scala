@@ -0,0 +1,71 @@
+package tech.mlsql.test.antlrv4
+
+import org.antlr.v4.runtime.CommonTokenStream
+import org.apache.spark.MLSQLSyntaxErrorListener
+import streaming.dsl.CaseChangingCharStream
+import streaming.dsl.parser.DSLSQLParser.StatementContext
+import streaming.dsl.parser.{DSLSQLLexer, DSLSQLParser}
+import tech.mlsql.dsl.parser.{MLSQLErrorStrategy, TwoStageParser}
+
+/**
+ * Compares the parse time of the full LL prediction mode with the two-stage
+ * SLL/LL parse used by ScriptSQLExec. The script is assembled from the
+ * statements used by the specs in this module. TwoStageParserSuite checks that
+ * both build the same tree.
+ */
+object ParserPredictionModeBenchmark {
+
+  val statements = Seq(
+    """set a='jack';""",
+    """set word2vecPath="/tmp/wo";""",
+    """select "${a}" as c  as data;""",
+    """train data as Word2VecInPlace.`${word2vecPath}` where inputCol="c";""",
+    """load jsonStr.`rawData` as orginal_text_corpus;""",
+    """load parquet.`/tmp/william/data` where header="true" and `mode`="overwrite" as table1;""",
+    """save overwrite table1 as parquet.`/tmp/william/data2` partitionBy a;""",
+    """connect jdbc where url="jdbc:mysql://127.0.0.1:3306/wow" and driver="com.mysql.jdbc.Driver" as db_1;""",
+    """register ScriptUDF.`` as plusFun where code='''def apply(a:Double,b:Double)={ a + b }''' and lang="scala";""",
+    """select plusFun(1, 2) as res, case when a > 1 then 'a' else 'b' end as t from data where a in (1, 2, 3) as output;""",
+    """run data as TableRepartition.`` where partitionNum="2" as newdata;""",
+    """!show jobs;"""
+  )
+
+  def script(lines: Int) = {
+    (0 until lines).map(i => statements(i % statements.size)).mkString("\n")
+  }
+
+  private def newParser(input: String) = {
+    val lexer = new DSLSQLLexer(new CaseChangingCharStream(input))
+    val parser = new DSLSQLParser(new CommonTokenStream(lexer))
+    parser.setErrorHandler(new MLSQLErrorStrategy)
+    parser.addErrorListener(new MLSQLSyntaxErrorListener())
+    parser
+  }
+
+  def parseLL(input: String): StatementContext = {
+    newParser(input).statement()
+  }
+
+  def parseTwoStage(input: String): StatementContext = {
+    TwoStageParser.parse(newParser(input), new java.util.function.Function[DSLSQLParser, StatementContext] {
+      override def apply(p: DSLSQLParser): StatementContext = p.statement()
+    })
+  }
+
+  def time(warmup: Int, iterations: Int)(f: => Unit) = {
+    (0 until warmup).foreach(_ => f)
+    val start = System.nanoTime()
+    (0 until iterations).foreach(_ => f)
+    (System.nanoTime() - start).toDouble / iterations / 1000000
+  }
+
+  def main(args: Array[String]): Unit = {
+    Seq(100, 1000, 5000).foreach { lines =>
+      val input = script(lines)
+      require(parseLL(input).getText == parseTwoStage(input).getText)
+      val ll = time(10, 30)(parseLL(input))
+      val twoStage = time(10, 30)(parseTwoStage(input))
+      println(f"lines=$lines%5d LL=$ll%10.2fms SLL/LL=$twoStage%10.2fms speedup=${ll / twoStage}%.2fx")
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package tech.mlsql.test.antlrv4
+
+import org.antlr.v4.runtime.CommonTokenStream
+import org.antlr.v4.runtime.atn.PredictionMode
+import org.apache.spark.MLSQLSyntaxErrorListener
+import org.scalatest.{FlatSpec, Matchers}
+import streaming.dsl.CaseChangingCharStream
+import streaming.dsl.parser.DSLSQLParser.StatementContext
+import streaming.dsl.parser.{DSLSQLLexer, DSLSQLParser}
+import tech.mlsql.dsl.parser.{MLSQLErrorStrategy, TwoStageParser}
+
+import scala.collection.JavaConverters._
+
+class TwoStageParserSuite extends FlatSpec with Matchers {
+
+  val statements = Seq(
+    """set a='jack';""",
+    """select "${a}" as c  as data;""",
+    """load parquet.`/tmp/william/data` where header="true" and `mode`="overwrite" as table1;""",
+    """save overwrite table1 as parquet.`/tmp/william/data2` partitionBy a;""",
+    """register ScriptUDF.`` as plusFun where code='''def apply(a:Double,b:Double)={ a + b }''' and lang="scala";""",
+    """select plusFun(1, 2) as res, case when a > 1 then 'a' else 'b' end as t from data where a in (1, 2, 3) as output;""",
+    """!show jobs;"""
+  )
+
+  private def newParser(input: String) = {
+    val lexer = new DSLSQLLexer(new CaseChangingCharStream(input))
+    val parser = new DSLSQLParser(new CommonTokenStream(lexer))
+    parser.setErrorHandler(new MLSQLErrorStrategy)
+    parser.addErrorListener(new MLSQLSyntaxErrorListener())
+    parser
+  }
+
+  private def parseTwoStage(parser: DSLSQLParser): StatementContext = {
+    TwoStageParser.parse(parser, new java.util.function.Function[DSLSQLParser, StatementContext] {
+      override def apply(p: DSLSQLParser): StatementContext = p.statement()
+    })
+  }
+
+  private def shouldBeRestored(parser: DSLSQLParser,
+                               errorHandler: AnyRef,
+                               errorListeners: Seq[AnyRef]) = {
+    parser.getErrorHandler should be theSameInstanceAs errorHandler
+    parser.getErrorListeners.asScala should be(errorListeners)
+    parser.getInterpreter.getPredictionMode should be(PredictionMode.LL)
+  }
+
+  "TwoStageParser" should "build the same tree as the LL parse" in {
+    val input = (0 until 100).map(i => statements(i % statements.size)).mkString("\n")
+    parseTwoStage(newParser(input)).getText should be(newParser(input).statement().getText)
+  }
+
+  it should "restore the error handler and listeners when SLL succeeds" in {
+    val parser = newParser(statements.mkString("\n"))
+    val errorHandler = parser.getErrorHandler
+    val errorListeners = parser.getErrorListeners.asScala.toList
+    parseTwoStage(parser)
+    shouldBeRestored(parser, errorHandler, errorListeners)
+  }
+
+  it should "report syntax errors with the caller's listeners and restore them" in {
+    val parser = newParser("no_sence;\nselect 1 as a as output;")
+    val errorHandler = parser.getErrorHandler
+    val errorListeners = parser.getErrorListeners.asScala.toList
+    val caught = intercept[RuntimeException] {
+      parseTwoStage(parser)
+    }
+    caught.getMessage should include("mismatched input 'no_sence' expecting")
+    shouldBeRestored(parser, errorHandler, errorListeners)
+  }
+}
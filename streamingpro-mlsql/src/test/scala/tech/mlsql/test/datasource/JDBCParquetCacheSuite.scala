@@ -0,0 +1,171 @@
+package tech.mlsql.test.datasource
+
+import java.io.File
+import java.nio.file.Files
+import java.sql.{Connection, DriverManager}
+
+import org.apache.commons.io.FileUtils
+import org.apache.spark.sql.{DataFrame, SparkSession}
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+import streaming.core.datasource.impl.{JDBCCacheIncremental, JDBCParquetCache}
+
+class JDBCParquetCacheSuite extends FunSuite with BeforeAndAfterAll {
+  var session: SparkSession = null
+  var connection: Connection = null
+  var root: File = null
+
+  val url = "jdbc:h2:mem:jdbc_parquet_cache;DB_CLOSE_DELAY=-1"
+
+  override def beforeAll(): Unit = {
+    session = SparkSession.builder().master("local[2]").appName("test").getOrCreate()
+    Class.forName("org.h2.Driver")
+    connection = DriverManager.getConnection(url, "sa", "")
+    root = Files.createTempDirectory("jdbc_parquet_cache").toFile
+  }
+
+  override def afterAll(): Unit = {
+    if (root != null) FileUtils.deleteQuietly(root)
+    if (connection != null) connection.close()
+    if (session != null) {
+      session.close()
+    }
+  }
+
+  private def execute(sql: String): Unit = connection.createStatement().execute(sql)
+
+  private def createTable(name: String, rows: Int): Unit = {
+    execute(s"create table ${name}(id bigint primary key, name varchar(32), updated_at timestamp)")
+    (1 to rows).foreach(i => insert(name, i, s"v${i}", i))
+  }
+
+  private def insert(table: String, id: Int, name: String, second: Int): Unit = {
+    execute(s"insert into ${table} values(${id}, '${name}', dateadd('second', ${second}, timestamp '2020-01-01 00:00:00'))")
+  }
+
+  private def table(name: String): DataFrame = session.read.format("jdbc").
+    option("url", url).option("driver", "org.h2.Driver").option("user", "sa").option("password", "").
+    option("dbtable", name).load()
+
+  private def cacheOf(name: String) = {
+    val path = new File(root, name)
+    (new JDBCParquetCache(session, path.getPath), new File(path, "versions"))
+  }
+
+  private def versionDirs(versions: File): Seq[String] = versions.listFiles().filter(_.isDirectory).map(_.getName).sorted.toSeq
+
+  private def ids(df: DataFrame): Seq[Long] = df.select("ID").collect().map(_.getLong(0)).sorted.toSeq
+
+  test("a refresh is only visible once its meta is committed") {
+    createTable("full_table", 3)
+    val (cache, versions) = cacheOf("full_table")
+    assert(cache.current.isEmpty)
+
+    val v1 = cache.refresh(table("full_table"), None, None)
+    assert(cache.current == Some(v1))
+    assert(v1.watermark == "")
+    assert(ids(cache.read(v1)) == Seq(1L, 2L, 3L))
+
+    // a refresh which died before its meta was written is not read and is removed by the next refresh
+    val failed = new File(versions, "%013d".format(v1.version.toLong + 1))
+    new File(failed, "data").mkdirs()
+    assert(cache.current == Some(v1))
+
+    insert("full_table", 4, "v4", 4)
+    val v2 = cache.refresh(table("full_table"), cache.current, None)
+    assert(v2.version > failed.getName)
+    assert(cache.current == Some(v2))
+    assert(ids(cache.read(v2)) == Seq(1L, 2L, 3L, 4L))
+    assert(!failed.exists())
+    // the previous version is still readable
+    assert(ids(cache.read(v1)) == Seq(1L, 2L, 3L))
+  }
+
+  test("append writes the new rows into a new version and keeps the committed one unchanged") {
+    createTable("append_table", 3)
+    val (cache, versions) = cacheOf("append_table")
+    val incremental = Some(JDBCCacheIncremental("ID", "append", Seq()))
+
+    val v1 = cache.refresh(table("append_table"), None, incremental)
+    assert(v1.watermark == "3")
+
+    insert("append_table", 4, "v4", 4)
+    insert("append_table", 5, "v5", 5)
+    val v2 = cache.refresh(table("append_table"), Some(v1), incremental)
+    assert(v2.version > v1.version)
+    assert(v2.watermark == "5")
+    assert(v2.dataParts == Seq(v1.version, v2.version))
+    assert(ids(cache.read(v2)) == Seq(1L, 2L, 3L, 4L, 5L))
+    assert(ids(cache.read(v1)) == Seq(1L, 2L, 3L))
+
+    // nothing new: the data is not touched, only the refresh time moves
+    val v3 = cache.refresh(table("append_table"), Some(v2), incremental)
+    assert(v3.watermark == "5")
+    assert(v3.dataParts == v2.dataParts)
+    assert(v3.refreshTime >= v2.refreshTime)
+    assert(ids(cache.read(v3)) == Seq(1L, 2L, 3L, 4L, 5L))
+
+    // an append which failed before its commit is not read, and a retry does not duplicate the rows
+    insert("append_table", 6, "v6", 6)
+    val failed = new File(versions, "%013d".format(v3.version.toLong + 1))
+    FileUtils.copyDirectory(new File(new File(versions, v2.version), "data"), new File(failed, "data"))
+    assert(ids(cache.read(cache.current.get)) == Seq(1L, 2L, 3L, 4L, 5L))
+    val v4 = cache.refresh(table("append_table"), cache.current, incremental)
+    assert(ids(cache.read(v4)) == Seq(1L, 2L, 3L, 4L, 5L, 6L))
+    assert(!failed.exists())
+  }
+
+  test("append rewrites the parts into one version when there are too many") {
+    createTable("compact_table", 1)
+    val (cache, _) = cacheOf("compact_table")
+    val incremental = Some(JDBCCacheIncremental("ID", "append", Seq()))
+
+    var version = cache.refresh(table("compact_table"), None, incremental)
+    (2 to cache.MAX_PARTS + 1).foreach { i =>
+      insert("compact_table", i, s"v${i}", i)
+      version = cache.refresh(table("compact_table"), Some(version), incremental)
+    }
+    assert(version.dataParts == Seq(version.version))
+    assert(ids(cache.read(version)) == (1 to cache.MAX_PARTS + 1).map(_.toLong))
+  }
+
+  test("merge replaces the rows with the same key in a new version") {
+    createTable("merge_table", 3)
+    val (cache, _) = cacheOf("merge_table")
+    val incremental = Some(JDBCCacheIncremental("UPDATED_AT", "merge", Seq("ID")))
+
+    val v1 = cache.refresh(table("merge_table"), None, incremental)
+    assert(v1.watermark == "2020-01-01 00:00:03")
+
+    execute("update merge_table set name = 'u2', updated_at = timestamp '2020-01-01 00:00:10' where id = 2")
+    insert("merge_table", 4, "v4", 4)
+    val v2 = cache.refresh(table("merge_table"), Some(v1), incremental)
+    assert(v2.version > v1.version)
+    assert(v2.dataParts == Seq(v2.version))
+    assert(v2.watermark == "2020-01-01 00:00:10")
+
+    val rows = cache.read(v2).select("ID", "NAME").collect().map(row => (row.getLong(0), row.getString(1))).sorted.toSeq
+    assert(rows == Seq((1L, "v1"), (2L, "u2"), (3L, "v3"), (4L, "v4")))
+    assert(ids(cache.read(v1)) == Seq(1L, 2L, 3L))
+  }
+
+  test("cleanup keeps the latest two versions and the parts they read") {
+    createTable("cleanup_table", 1)
+    val (cache, versions) = cacheOf("cleanup_table")
+    val incremental = Some(JDBCCacheIncremental("ID", "append", Seq()))
+
+    val v1 = cache.refresh(table("cleanup_table"), None, None)
+    val v2 = cache.refresh(table("cleanup_table"), Some(v1), None)
+    val v3 = cache.refresh(table("cleanup_table"), Some(v2), incremental)
+    assert(versionDirs(versions) == Seq(v2.version, v3.version))
+
+    insert("cleanup_table", 2, "v2", 2)
+    val v4 = cache.refresh(table("cleanup_table"), Some(v3), incremental)
+    insert("cleanup_table", 3, "v3", 3)
+    val v5 = cache.refresh(table("cleanup_table"), Some(v4), incremental)
+    // v3 is older than the latest two versions, but is kept as the first part of v4 and v5
+    assert(v5.dataParts == Seq(v3.version, v4.version, v5.version))
+    assert(versionDirs(versions) == Seq(v3.version, v4.version, v5.version))
+    assert(ids(cache.read(v5)) == Seq(1L, 2L, 3L))
+    assert(ids(cache.read(v4)) == Seq(1L, 2L))
+  }
+}
@@ -0,0 +1,71 @@
+package tech.mlsql.test.datasource
+
+import java.sql.DriverManager
+
+import org.scalatest.{FlatSpec, Matchers}
+import streaming.core.datasource.JDBCPartitionPlanner
+
+class JDBCPartitionPlannerSuite extends FlatSpec with Matchers {
+
+  private val options = Map(
+    "driver" -> "org.h2.Driver",
+    "url" -> "jdbc:h2:mem:jdbc_partition_planner;DB_CLOSE_DELAY=-1",
+    "user" -> "sa",
+    "password" -> "")
+
+  private lazy val connection = {
+    Class.forName("org.h2.Driver")
+    val conn = DriverManager.getConnection(options("url"), "sa", "")
+    val st = conn.createStatement()
+    st.execute("create table skewed(id bigint primary key, name varchar(32))")
+    // 1000 rows in [0, 1000) and 1000 rows in [1000000, 1001000)
+    (0 until 1000).foreach(i => st.execute(s"insert into skewed values(${i}, 'a'), (${1000000 + i}, 'b')"))
+    st.execute("create table events(name varchar(32), event_day date)")
+    st.execute("create index events_day on events(event_day)")
+    (0 until 100).foreach(i => st.execute(s"insert into events values('e', dateadd('day', ${i}, date '2020-01-01'))"))
+    st.execute("create table nokey(name varchar(32))")
+    st.execute("insert into nokey values('x'), ('y')")
+    conn
+  }
+
+  private def count(table: String, predicate: String): Long = {
+    val rs = connection.createStatement().executeQuery(s"select count(*) from ${table} where ${predicate}")
+    rs.next()
+    rs.getLong(1)
+  }
+
+  "JDBCPartitionPlanner" should "split min and max evenly" in {
+    JDBCPartitionPlanner.equalWidthBounds(0, 100, 4) should be(Seq(25L, 50L, 75L))
+    JDBCPartitionPlanner.equalWidthBounds(0, 2, 4) should be(Seq(1L, 2L))
+  }
+
+  it should "balance the ranges by the histogram" in {
+    val buckets = Seq((10L, 100L), (20L, 0L), (30L, 0L), (40L, 100L), (50L, 100L), (60L, 100L))
+    JDBCPartitionPlanner.histogramToBounds(buckets, 4) should be(Seq(10L, 40L, 50L))
+  }
+
+  it should "cover every row exactly once by the primary key" in {
+    connection
+    Seq("minmax", "histogram").foreach { strategy =>
+      val plan = JDBCPartitionPlanner.plan(options ++ Map("autoPartitionNum" -> "4", "autoPartitionStrategy" -> strategy), "skewed").get
+      plan.column.toLowerCase should be("id")
+      plan.predicates.length should be(4)
+      val counts = plan.predicates.map(count("skewed", _))
+      counts.sum should be(2000)
+      if (strategy == "histogram") {
+        counts.foreach(c => c should be(500L +- 200L))
+      }
+    }
+  }
+
+  it should "use an indexed date column and skip tables without a usable column" in {
+    connection
+    val plan = JDBCPartitionPlanner.plan(options ++ Map("autoPartitionRows" -> "30"), "events").get
+    plan.column.toLowerCase should be("event_day")
+    plan.predicates.length should be(4)
+    plan.predicates.map(count("events", _)).sum should be(100)
+
+    JDBCPartitionPlanner.plan(options ++ Map("autoPartitionNum" -> "4"), "nokey") should be(None)
+    JDBCPartitionPlanner.plan(options ++ Map("autoPartitionNum" -> "4"), "(select * from skewed) t") should be(None)
+  }
+}
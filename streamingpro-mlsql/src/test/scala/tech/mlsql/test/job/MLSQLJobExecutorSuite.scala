@@ -0,0 +1,80 @@
+package tech.mlsql.test.job
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+
+import org.apache.spark.sql.mlsql.session.MLSQLException
+import org.scalatest.{FlatSpec, Matchers}
+import tech.mlsql.job.MLSQLJobExecutor
+
+import scala.collection.mutable.ArrayBuffer
+
+class MLSQLJobExecutorSuite extends FlatSpec with Matchers {
+
+  def task(f: => Unit) = new Runnable {
+    override def run(): Unit = f
+  }
+
+  "MLSQLJobExecutor" should "reject jobs when the owner queue is full" in {
+    val executor = new MLSQLJobExecutor(1, 10, 2, false)
+    val block = new CountDownLatch(1)
+    try {
+      executor.execute("jack", task(block.await()))
+      // wait until the worker picks up the blocking job
+      while (executor.queueDepth > 0) Thread.sleep(10)
+      executor.execute("jack", task({}))
+      executor.execute("jack", task({}))
+      intercept[MLSQLException] {
+        executor.execute("jack", task({}))
+      }
+      executor.execute("william", task({}))
+      executor.metrics.find(_.owner == "jack").get.rejected should be(1)
+    } finally {
+      block.countDown()
+      executor.shutdownNow()
+    }
+  }
+
+  "MLSQLJobExecutor" should "serve owners round-robin" in {
+    val executor = new MLSQLJobExecutor(1, 10, 10, false)
+    val block = new CountDownLatch(1)
+    val done = new CountDownLatch(6)
+    val order = ArrayBuffer[String]()
+    try {
+      executor.execute("admin", task(block.await()))
+      while (executor.queueDepth > 0) Thread.sleep(10)
+      (0 until 4).foreach { _ =>
+        executor.execute("jack", task({
+          order.synchronized(order += "jack")
+          done.countDown()
+        }))
+      }
+      (0 until 2).foreach { _ =>
+        executor.execute("william", task({
+          order.synchronized(order += "william")
+          done.countDown()
+        }))
+      }
+      block.countDown()
+      done.await(10, TimeUnit.SECONDS) should be(true)
+      order should be(Seq("jack", "william", "jack", "william", "jack", "jack"))
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  "MLSQLJobExecutor" should "keep its workers when a job interrupts the worker thread" in {
+    val executor = new MLSQLJobExecutor(1, 10, 10, false)
+    try {
+      // the interrupt is still pending when the worker goes back to wait for the next job
+      executor.execute("jack", task(Thread.currentThread().interrupt()))
+      val done = new CountDownLatch(1)
+      executor.execute("jack", task(done.countDown()))
+      done.await(10, TimeUnit.SECONDS) should be(true)
+      val afterInterrupt = new CountDownLatch(1)
+      executor.execute("william", task(afterInterrupt.countDown()))
+      afterInterrupt.await(10, TimeUnit.SECONDS) should be(true)
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+}
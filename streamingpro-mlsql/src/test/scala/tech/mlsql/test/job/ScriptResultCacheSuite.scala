@@ -0,0 +1,196 @@
+package tech.mlsql.test.job
+
+import java.util.UUID
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
+
+import org.apache.spark.streaming.BasicSparkOperation
+import streaming.core.strategy.platform.SparkRuntime
+import streaming.core.{BasicMLSQLConfig, SpecFunctions}
+import streaming.dsl.auth.{MLSQLTable, TableAuth, TableAuthResult}
+import tech.mlsql.job.{RunScriptExecutor, ScriptResultCache}
+
+class ScriptResultCacheSuite extends BasicSparkOperation with SpecFunctions with BasicMLSQLConfig {
+
+  "ScriptResultCache" should "normalize the layout but never the quoted text" in {
+    val a = "load parquet.`/tmp/a` as a;  \r\n\r\nselect * from a as b;"
+    val b = "load parquet.`/tmp/a` as a;\nselect * from a as b;\n"
+    ScriptResultCache.normalize(a) should be(ScriptResultCache.normalize(b))
+
+    val upper = "load parquet.`/tmp/a` as a;\nselect * from a where name='X' as b;"
+    val lower = "load parquet.`/tmp/a` as a;\nselect * from a where name='x' as b;"
+    ScriptResultCache.key(upper, "jack", Map()) should not be (ScriptResultCache.key(lower, "jack", Map()))
+
+    val spaces = "select 'a  b' as c, \"c  \n\n d\" as d, '''e  \n\n\n f''' as e from `t  1` as b;"
+    ScriptResultCache.normalize(spaces) should be(spaces)
+    ScriptResultCache.normalize("select 'a  b' as c;") should not be (ScriptResultCache.normalize("select 'a b' as c;"))
+  }
+
+  "ScriptResultCache" should "ignore per request params in the key" in {
+    val sql = "select 1 as a;"
+    val a = ScriptResultCache.key(sql, "jack", Map("sql" -> sql, "owner" -> "jack", "jobName" -> "1", "outputSize" -> "10"))
+    val b = ScriptResultCache.key(sql, "jack", Map("sql" -> sql, "owner" -> "jack", "jobName" -> "2", "outputSize" -> "10"))
+    a should be(b)
+    ScriptResultCache.key(sql, "tom", Map("jobName" -> "1", "outputSize" -> "10")) should not be (a)
+    ScriptResultCache.key(sql, "jack", Map("jobName" -> "1", "outputSize" -> "20")) should not be (a)
+  }
+
+  "ScriptResultCache" should "check auth before serving a cached result" in {
+    withBatchContext(setupBatchContext(batchParamsWithoutHive ++ Array("-spark.mlsql.result.cache.enable", "true"),
+      "classpath:///test/empty.json")) { runtime: SparkRuntime =>
+      val spark = runtime.sparkSession
+      val path = s"/tmp/${UUID.randomUUID().toString}/cache_auth"
+      spark.range(0, 10).write.parquet(path)
+      val sql = s"load parquet.`${path}` as a;\nselect count(*) as c from a as b;"
+
+      def run(owner: String) = new RunScriptExecutor(Map(
+        "sql" -> sql,
+        "owner" -> owner,
+        "jobName" -> UUID.randomUUID().toString,
+        "skipAuth" -> "false",
+        "context.__auth_client__" -> classOf[SwitchableAuthClient].getName)).execute()
+
+      SwitchableAuthClient.allow.set(true)
+      run("jack") should be((200, """[{"c":10}]"""))
+      val hits = ScriptResultCache.stats.head.hits
+      val checks = SwitchableAuthClient.calls.get()
+
+      run("jack") should be((200, """[{"c":10}]"""))
+      ScriptResultCache.stats.head.hits should be(hits + 1)
+      SwitchableAuthClient.calls.get() should be(checks + 1)
+
+      // the result is cached now but this request fails its own auth check
+      SwitchableAuthClient.allow.set(false)
+      run("jack")._1 should be(500)
+      ScriptResultCache.stats.head.hits should be(hits + 2)
+
+      // another owner never shares the cached result
+      SwitchableAuthClient.allow.set(true)
+      run("tom") should be((200, """[{"c":10}]"""))
+      ScriptResultCache.stats.head.hits should be(hits + 2)
+      ScriptResultCache.invalidateAll()
+    }
+  }
+
+  def cacheContext = setupBatchContext(batchParamsWithoutHive ++ Array("-spark.mlsql.result.cache.enable", "true"),
+    "classpath:///test/empty.json")
+
+  def runScript(sql: String) = new RunScriptExecutor(Map(
+    "sql" -> sql,
+    "owner" -> "jack",
+    "jobName" -> UUID.randomUUID().toString)).execute()
+
+  "ScriptResultCache" should "register the temp views of the script on a hit" in {
+    withBatchContext(cacheContext) { runtime: SparkRuntime =>
+      val spark = runtime.sparkSession
+      val path = s"/tmp/${UUID.randomUUID().toString}/cache_views"
+      spark.range(0, 10).write.parquet(path)
+      val sql = s"load parquet.`${path}` as cache_views_a;\nselect count(*) as c from cache_views_a as cache_views_b;"
+
+      runScript(sql) should be((200, """[{"c":10}]"""))
+      spark.catalog.dropTempView("cache_views_a")
+      spark.catalog.dropTempView("cache_views_b")
+      val hits = ScriptResultCache.stats.head.hits
+
+      runScript(sql) should be((200, """[{"c":10}]"""))
+      ScriptResultCache.stats.head.hits should be(hits + 1)
+      spark.table("cache_views_b").collect().map(_.getLong(0)) should be(Array(10L))
+      spark.table("cache_views_a").count() should be(10)
+      ScriptResultCache.invalidateAll()
+    }
+  }
+
+  "ScriptResultCache" should "drop the result when a file is added to a directory it reads" in {
+    withBatchContext(cacheContext) { runtime: SparkRuntime =>
+      val spark = runtime.sparkSession
+      val path = s"/tmp/${UUID.randomUUID().toString}/cache_partitions"
+      spark.range(0, 10).selectExpr("id", "id % 2 as p").write.partitionBy("p").parquet(path)
+      val sql = s"load parquet.`${path}` as a;\nselect count(*) as c from a as b;"
+
+      runScript(sql) should be((200, """[{"c":10}]"""))
+      // written behind the back of the cache, into an existing partition
+      spark.range(10, 15).write.mode("append").parquet(s"${path}/p=0")
+      val hits = ScriptResultCache.stats.head.hits
+      runScript(sql) should be((200, """[{"c":15}]"""))
+      ScriptResultCache.stats.head.hits should be(hits)
+      ScriptResultCache.invalidateAll()
+    }
+  }
+
+  "ScriptResultCache" should "not cache a result depending on the current time" in {
+    withBatchContext(cacheContext) { runtime: SparkRuntime =>
+      val spark = runtime.sparkSession
+      val path = s"/tmp/${UUID.randomUUID().toString}/cache_time"
+      spark.range(0, 10).write.parquet(path)
+      Seq("current_date()", "now()", "rand()").foreach { expression =>
+        val sql = s"load parquet.`${path}` as a;\nselect count(*) as c, max(${expression}) as t from a as b;"
+        runScript(sql)._1 should be(200)
+        val size = ScriptResultCache.stats.head.size
+        val hits = ScriptResultCache.stats.head.hits
+        runScript(sql)._1 should be(200)
+        ScriptResultCache.stats.head.size should be(size)
+        ScriptResultCache.stats.head.hits should be(hits)
+      }
+      ScriptResultCache.invalidateAll()
+    }
+  }
+
+  "ScriptResultCache" should "drop the results reading a path when a script saves to it" in {
+    withBatchContext(cacheContext) { runtime: SparkRuntime =>
+      val spark = runtime.sparkSession
+      val root = s"/tmp/${UUID.randomUUID().toString}"
+      spark.range(0, 10).write.parquet(s"${root}/cache_save")
+      spark.range(0, 3).write.parquet(s"${root}/cache_other")
+      val saved = s"load parquet.`${root}/cache_save` as a;\nselect count(*) as c from a as b;"
+      val other = s"load parquet.`${root}/cache_other` as a;\nselect count(*) as c from a as b;"
+
+      runScript(saved) should be((200, """[{"c":10}]"""))
+      runScript(other) should be((200, """[{"c":3}]"""))
+      val before = ScriptResultCache.stats.head
+
+      runScript(s"select 100L as id as t;\nsave append t as parquet.`${root}/cache_save`;")._1 should be(200)
+      val after = ScriptResultCache.stats.head
+      after.invalidations should be(before.invalidations + 1)
+      after.size should be(before.size - 1)
+
+      val hits = after.hits
+      runScript(other) should be((200, """[{"c":3}]"""))
+      runScript(saved) should be((200, """[{"c":11}]"""))
+      ScriptResultCache.stats.head.hits should be(hits + 1)
+      ScriptResultCache.invalidateAll()
+    }
+  }
+
+  "ScriptResultCache" should "drop every result when a script runs an insert" in {
+    withBatchContext(cacheContext) { runtime: SparkRuntime =>
+      val spark = runtime.sparkSession
+      val root = s"/tmp/${UUID.randomUUID().toString}"
+      spark.range(0, 10).write.parquet(s"${root}/cache_insert")
+      val sql = s"load parquet.`${root}/cache_insert` as a;\nselect count(*) as c from a as b;"
+
+      runScript(sql) should be((200, """[{"c":10}]"""))
+      ScriptResultCache.stats.head.size should be > 0L
+
+      runScript(s"insert overwrite directory '${root}/cache_insert_out' using parquet select 1 as id;")._1 should be(200)
+      ScriptResultCache.stats.head.size should be(0)
+
+      val hits = ScriptResultCache.stats.head.hits
+      runScript(sql) should be((200, """[{"c":10}]"""))
+      ScriptResultCache.stats.head.hits should be(hits)
+    }
+  }
+}
+
+class SwitchableAuthClient extends TableAuth {
+  override def auth(tables: List[MLSQLTable]): List[TableAuthResult] = {
+    SwitchableAuthClient.calls.incrementAndGet()
+    if (!SwitchableAuthClient.allow.get()) {
+      throw new RuntimeException("access denied by SwitchableAuthClient")
+    }
+    List(TableAuthResult(true, ""))
+  }
+}
+
+object SwitchableAuthClient {
+  val allow = new AtomicBoolean(true)
+  val calls = new AtomicInteger(0)
+}
@@ -0,0 +1,69 @@
+package tech.mlsql.test.kvstore
+
+import org.scalatest.{FlatSpec, Matchers}
+import tech.mlsql.runtime.kvstore.InMemoryStore
+import tech.mlsql.runtime.kvstore.KVUtils.KVIndexParam
+
+import scala.collection.JavaConverters._
+
+case class IndexedItem(@KVIndexParam id: String,
+                       @KVIndexParam("owner") owner: String,
+                       @KVIndexParam(value = "name", parent = "owner") name: String,
+                       @KVIndexParam("size") size: Int)
+
+/**
+ * The indexed store should answer every view and count the same way as the
+ * copy-and-sort one.
+ */
+class InMemoryStoreSuite extends FlatSpec with Matchers {
+
+  def fill(store: InMemoryStore) = {
+    (0 until 200).foreach { i =>
+      store.write(IndexedItem(s"id${i}", s"owner${i % 3}", s"name${i % 17}", i % 11))
+    }
+    // overwrite and delete some items so stale index entries would show up
+    (0 until 200 by 7).foreach { i =>
+      store.write(IndexedItem(s"id${i}", s"owner${(i + 1) % 3}", s"name${i % 5}", i % 13))
+    }
+    (0 until 200 by 19).foreach { i =>
+      store.delete(classOf[IndexedItem], s"id${i}")
+    }
+    store
+  }
+
+  val plain = fill(new InMemoryStore())
+  val indexed = fill(new InMemoryStore(true))
+
+  def ids(store: InMemoryStore)(f: tech.mlsql.runtime.kvstore.KVStoreView[IndexedItem] => Unit) = {
+    val view = store.view(classOf[IndexedItem])
+    f(view)
+    view.iterator().asScala.map(_.id).toList
+  }
+
+  "indexed InMemoryStore" should "iterate ranges in the same order" in {
+    val views: Seq[tech.mlsql.runtime.kvstore.KVStoreView[IndexedItem] => Unit] = Seq(
+      v => {},
+      v => v.reverse(),
+      v => v.index("size"),
+      v => v.index("size").first(3).last(7),
+      v => v.index("size").reverse().first(7).last(3),
+      v => v.index("size").first(5).skip(10).max(20),
+      v => v.index("name").parent("owner1"),
+      v => v.index("name").parent("owner2").first("name3").last("name1").reverse(),
+      v => v.index("name"),
+      v => v.first("id150")
+    )
+    views.foreach { f =>
+      ids(indexed)(f) should be(ids(plain)(f))
+    }
+  }
+
+  "indexed InMemoryStore" should "count by index value" in {
+    (0 until 13).foreach { size =>
+      indexed.count(classOf[IndexedItem], "size", size) should be(plain.count(classOf[IndexedItem], "size", size))
+    }
+    indexed.count(classOf[IndexedItem], "owner", "owner1") should be(plain.count(classOf[IndexedItem], "owner", "owner1"))
+    indexed.count(classOf[IndexedItem], "size", 100) should be(0)
+    indexed.count(classOf[IndexedItem]) should be(plain.count(classOf[IndexedItem]))
+  }
+}
@@ -0,0 +1,49 @@
+package tech.mlsql.test.kvstore
+
+import tech.mlsql.runtime.kvstore.KVStoreSerializer
+import tech.mlsql.runtime.kvstore.KVStoreSerializer.{Compression, Encoding}
+import tech.mlsql.runtime.kvstore.KVUtils.KVStoreScalaSerializer
+import tech.mlsql.runtime.{CustomClassItem, CustomClassItemList, CustomClassItemListWrapper, CustomClassItemWrapper}
+
+/**
+ * Size and serialize/deserialize time of the AppRuntimeStore record types with
+ * the legacy always-gzip encoding (GZIP with threshold 0), the new defaults and
+ * the Smile encoding. KVStoreSerializerSuite checks the formats themselves.
+ */
+object KVStoreSerializerBenchmark {
+
+  def time(iterations: Int)(f: => Any) = {
+    (0 until iterations).foreach(_ => f)
+    val start = System.nanoTime()
+    (0 until iterations).foreach(_ => f)
+    (System.nanoTime() - start).toDouble / iterations / 1000
+  }
+
+  def main(args: Array[String]): Unit = {
+    val iterations = 200000
+    val records: Seq[(String, AnyRef)] = Seq(
+      "CustomClassItemWrapper" -> CustomClassItemWrapper(CustomClassItem("jack", "tech.mlsql.runtime.Jack")),
+      "CustomClassItemListWrapper(10)" -> CustomClassItemListWrapper(
+        CustomClassItemList("jack", (0 until 10).map(i => s"tech.mlsql.plugins.Plugin${i}"))),
+      "CustomClassItemListWrapper(200)" -> CustomClassItemListWrapper(
+        CustomClassItemList("jack", (0 until 200).map(i => s"tech.mlsql.plugins.Plugin${i}")))
+    )
+    val serializers: Seq[(String, KVStoreSerializer)] = Seq(
+      "gzip(legacy)" -> new KVStoreScalaSerializer(Compression.GZIP, 0),
+      "none" -> new KVStoreScalaSerializer(Compression.NONE),
+      "lz4(default)" -> new KVStoreScalaSerializer(),
+      "smile+none" -> new KVStoreScalaSerializer(Compression.NONE, encoding = Encoding.SMILE),
+      "smile+lz4" -> new KVStoreScalaSerializer(encoding = Encoding.SMILE)
+    )
+
+    records.foreach { case (recordName, record) =>
+      serializers.foreach { case (name, serializer) =>
+        val bytes = serializer.serialize(record)
+        val write = time(iterations)(serializer.serialize(record))
+        val read = time(iterations)(serializer.deserialize(bytes, record.getClass))
+        println(f"$recordName%-32s $name%-14s size=${bytes.length}%6d bytes " +
+          f"serialize=$write%8.2fus deserialize=$read%8.2fus")
+      }
+    }
+  }
+}
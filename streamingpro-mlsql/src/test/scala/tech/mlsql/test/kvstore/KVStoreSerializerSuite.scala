@@ -0,0 +1,68 @@
+package tech.mlsql.test.kvstore
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.GZIPOutputStream
+
+import org.apache.spark.SparkConf
+import org.scalatest.{FlatSpec, Matchers}
+import tech.mlsql.runtime.kvstore.KVStoreSerializer.{Compression, Encoding}
+import tech.mlsql.runtime.kvstore.KVUtils
+import tech.mlsql.runtime.kvstore.KVUtils.KVStoreScalaSerializer
+import tech.mlsql.runtime.{CustomClassItem, CustomClassItemList, CustomClassItemListWrapper, CustomClassItemWrapper}
+
+class KVStoreSerializerSuite extends FlatSpec with Matchers {
+
+  val small = CustomClassItemWrapper(CustomClassItem("jack", "tech.mlsql.runtime.Jack"))
+  val big = CustomClassItemListWrapper(CustomClassItemList("jack", (0 until 100).map(i => s"tech.mlsql.plugins.Plugin${i}")))
+
+  val compressions = Seq(Compression.NONE, Compression.LZ4, Compression.GZIP)
+
+  "KVStoreSerializer" should "read back what it writes with every encoding and compression" in {
+    for (encoding <- Seq(Encoding.JSON, Encoding.SMILE); compression <- compressions) {
+      val serializer = new KVStoreScalaSerializer(compression, encoding = encoding)
+      serializer.deserialize(serializer.serialize(small), classOf[CustomClassItemWrapper]) should be(small)
+      serializer.deserialize(serializer.serialize(big), classOf[CustomClassItemListWrapper]) should be(big)
+    }
+  }
+
+  "KVStoreSerializer" should "read values with the encoding they were written with" in {
+    for (compression <- compressions) {
+      val json = new KVStoreScalaSerializer(compression)
+      val smile = new KVStoreScalaSerializer(compression, encoding = Encoding.SMILE)
+      smile.serialize(big).length should be < json.serialize(big).length
+      smile.deserialize(json.serialize(big), classOf[CustomClassItemListWrapper]) should be(big)
+      json.deserialize(smile.serialize(big), classOf[CustomClassItemListWrapper]) should be(big)
+      json.deserialize(smile.serialize(small), classOf[CustomClassItemWrapper]) should be(small)
+    }
+  }
+
+  "KVUtils" should "create the serializer from the conf" in {
+    val json = new KVStoreScalaSerializer(Compression.NONE)
+    val smile = new KVStoreScalaSerializer(Compression.NONE, encoding = Encoding.SMILE)
+    val conf = new SparkConf(false).set("spark.mlsql.kvstore.compression", "none")
+    KVUtils.serializer(conf).serialize(big) should be(json.serialize(big))
+    KVUtils.serializer(conf.set("spark.mlsql.kvstore.encoding", "smile")).serialize(big) should be(smile.serialize(big))
+  }
+
+  "KVStoreSerializer" should "not compress values under the threshold" in {
+    val serializer = new KVStoreScalaSerializer(Compression.GZIP)
+    val plain = new KVStoreScalaSerializer(Compression.NONE)
+    serializer.serialize(small) should be(plain.serialize(small))
+    serializer.serialize(big).length should be < plain.serialize(big).length
+  }
+
+  "KVStoreSerializer" should "read values written with a format tag but no encoding" in {
+    val serializer = new KVStoreScalaSerializer(encoding = Encoding.SMILE)
+    val json = """{"customClassItem":{"name":"jack","className":"tech.mlsql.runtime.Jack"}}""".getBytes("utf-8")
+    serializer.deserialize(Array[Byte](0) ++ json, classOf[CustomClassItemWrapper]) should be(small)
+  }
+
+  "KVStoreSerializer" should "read values written before format tags were introduced" in {
+    val serializer = new KVStoreScalaSerializer()
+    val bytes = new ByteArrayOutputStream()
+    val out = new GZIPOutputStream(bytes)
+    out.write("""{"customClassItem":{"name":"jack","className":"tech.mlsql.runtime.Jack"}}""".getBytes("utf-8"))
+    out.close()
+    serializer.deserialize(bytes.toByteArray, classOf[CustomClassItemWrapper]) should be(small)
+  }
+}
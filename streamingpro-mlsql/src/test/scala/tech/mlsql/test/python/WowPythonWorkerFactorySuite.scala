@@ -0,0 +1,100 @@
+package tech.mlsql.test.python
+
+import java.io.File
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+
+import org.apache.spark.api.python.WowPythonWorkerFactory
+import org.apache.spark.sql.SparkSession
+import org.apache.spark.{MLSQLConf, SparkEnv}
+import org.scalatest.concurrent.Eventually
+import org.scalatest.time.SpanSugar._
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+
+class WowPythonWorkerFactorySuite extends FunSuite with BeforeAndAfterAll with Eventually {
+  var session: SparkSession = null
+  var daemon: File = null
+
+  // speaks the protocol of pyspark/daemon.py: prints its port, then answers every connection with a pid
+  private val FAKE_DAEMON =
+    """
+      |import os, socket, struct
+      |server = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+      |server.bind(("127.0.0.1", 0))
+      |server.listen(50)
+      |os.write(1, struct.pack(">i", server.getsockname()[1]))
+      |workers = []
+      |while True:
+      |    conn, _ = server.accept()
+      |    conn.sendall(struct.pack(">i", 10000 + len(workers)))
+      |    workers.append(conn)
+    """.stripMargin
+
+  override def beforeAll(): Unit = {
+    session = SparkSession.builder().master("local[1]").appName("test").getOrCreate()
+    daemon = File.createTempFile("fake_daemon", ".py")
+    daemon.deleteOnExit()
+    Files.write(daemon.toPath, FAKE_DAEMON.getBytes(StandardCharsets.UTF_8))
+  }
+
+  override def afterAll(): Unit = {
+    if (session != null) {
+      session.close()
+    }
+  }
+
+  private def factory(prewarm: Int, maxLifetime: String): WowPythonWorkerFactory = {
+    SparkEnv.get.conf.set(MLSQLConf.MLSQL_PYTHON_WORKER_POOL_PREWARM.key, prewarm.toString)
+    SparkEnv.get.conf.set(MLSQLConf.MLSQL_PYTHON_WORKER_POOL_MAX_LIFETIME.key, maxLifetime)
+    new WowPythonWorkerFactory(Some(Seq("python", daemon.getPath)), None, Map(), _ => {})
+  }
+
+  test("prewarm idle workers and refill the pool after a hit") {
+    val f = factory(2, "7d")
+    try {
+      eventually(timeout(10.seconds)) {
+        assert(f.stats.idle == 2)
+      }
+      val worker = f.create()
+      assert(f.stats.hits == 1)
+      assert(f.stats.misses == 0)
+
+      eventually(timeout(10.seconds)) {
+        assert(f.stats.idle == 2)
+      }
+      assert(f.stats.spawned == 3)
+
+      f.releaseWorker(worker)
+      assert(f.stats.idle == 3)
+    } finally {
+      f.stop()
+    }
+  }
+
+  test("stop workers older than maxLifetime instead of reusing them") {
+    val f = factory(0, "1s")
+    try {
+      val worker = f.create()
+      assert(f.stats.misses == 1)
+      f.releaseWorker(worker)
+      assert(f.stats.idle == 1)
+
+      Thread.sleep(1500)
+      val next = f.create()
+      assert(next ne worker)
+      assert(worker.isClosed)
+      assert(f.stats.hits == 0)
+      assert(f.stats.misses == 2)
+      assert(f.stats.expired == 1)
+
+      // a worker which gets too old while in use is not put back into the pool
+      Thread.sleep(1500)
+      f.releaseWorker(next)
+      assert(next.isClosed)
+      assert(f.stats.idle == 0)
+      assert(f.stats.expired == 2)
+    } finally {
+      f.stop()
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package tech.mlsql.test.result
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+
+import org.apache.arrow.memory.RootAllocator
+import org.apache.arrow.vector.ipc.ArrowStreamReader
+import org.apache.spark.sql.{ArrowResultHelper, SparkSession}
+import org.scalatest.{BeforeAndAfterAll, FunSuite}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+class ArrowResultSuite extends FunSuite with BeforeAndAfterAll {
+  var session: SparkSession = null
+
+  override def beforeAll(): Unit = {
+    session = SparkSession.builder().master("local[2]").appName("test").
+      config("spark.sql.execution.arrow.maxRecordsPerBatch", "100").
+      getOrCreate()
+  }
+
+  override def afterAll(): Unit = {
+    if (session != null) {
+      session.close()
+    }
+  }
+
+  // field names, rows per record batch and the sum of the id column
+  private def readBack(bytes: Array[Byte]): (Seq[String], Seq[Int], Long) = {
+    val allocator = new RootAllocator(Long.MaxValue)
+    val reader = new ArrowStreamReader(new ByteArrayInputStream(bytes), allocator)
+    try {
+      val fields = reader.getVectorSchemaRoot.getSchema.getFields.asScala.map(_.getName)
+      val batches = ArrayBuffer[Int]()
+      var sum = 0L
+      while (reader.loadNextBatch()) {
+        val root = reader.getVectorSchemaRoot
+        batches += root.getRowCount
+        val ids = root.getVector("id")
+        (0 until root.getRowCount).foreach(i => sum += ids.getObject(i).asInstanceOf[java.lang.Long])
+      }
+      (fields, batches, sum)
+    } finally {
+      reader.close()
+      allocator.close()
+    }
+  }
+
+  test("write a DataFrame as an Arrow IPC stream") {
+    assume(ArrowResultHelper.isSupported, "Arrow results require Spark 2.4+")
+    val df = session.range(0, 250, 1, 2).selectExpr("id", "concat('user_', cast(id as string)) as name")
+    val out = new ByteArrayOutputStream()
+    ArrowResultHelper.write(df, out)
+    val (fields, batches, sum) = readBack(out.toByteArray)
+    assert(fields == Seq("id", "name"))
+    assert(batches.sum == 250)
+    assert(batches.forall(_ <= 100))
+    assert(sum == (0 until 250).sum)
+  }
+
+  test("write the schema only for an empty DataFrame") {
+    assume(ArrowResultHelper.isSupported, "Arrow results require Spark 2.4+")
+    val out = new ByteArrayOutputStream()
+    ArrowResultHelper.write(session.range(0, 0).toDF("id"), out)
+    val (fields, batches, _) = readBack(out.toByteArray)
+    assert(fields == Seq("id"))
+    assert(batches.sum == 0)
+  }
+}
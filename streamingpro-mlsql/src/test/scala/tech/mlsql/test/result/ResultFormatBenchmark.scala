@@ -0,0 +1,64 @@
+package tech.mlsql.test.result
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.nio.charset.StandardCharsets
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import org.apache.arrow.memory.RootAllocator
+import org.apache.arrow.vector.ipc.ArrowStreamReader
+import org.apache.spark.sql.{ArrowResultHelper, SparkSession}
+
+/**
+ * Compares the json result of /run/script with fetchType=arrow:
+ * bytes on the wire and the time a client needs to decode them. Needs Spark 2.4+,
+ * ArrowResultSuite checks that the stream reads back the same rows.
+ */
+object ResultFormatBenchmark {
+
+  def time[T](iterations: Int)(f: => T) = {
+    f
+    val start = System.nanoTime()
+    (0 until iterations).foreach(_ => f)
+    (System.nanoTime() - start).toDouble / iterations / 1000000
+  }
+
+  def main(args: Array[String]): Unit = {
+    require(ArrowResultHelper.isSupported, "Arrow results need Spark 2.4+")
+    val spark = SparkSession.builder().master("local[*]").appName("ResultFormatBenchmark").getOrCreate()
+    val mapper = new ObjectMapper()
+    val allocator = new RootAllocator(Long.MaxValue)
+
+    Seq(5000, 100000, 1000000).foreach { rows =>
+      val df = spark.range(0, rows).selectExpr(
+        "id",
+        "cast(id % 1000 as int) as category",
+        "rand() as score",
+        "concat('user_', cast(id as string)) as name",
+        "current_timestamp() as ts").cache()
+      df.count()
+
+      val json = ("[" + df.toJSON.collect().mkString(",") + "]").getBytes(StandardCharsets.UTF_8)
+      val arrowOut = new ByteArrayOutputStream()
+      ArrowResultHelper.write(df, arrowOut)
+      val arrow = arrowOut.toByteArray
+
+      val jsonDecode = time(5) {
+        mapper.readTree(json).size()
+      }
+      val arrowDecode = time(5) {
+        val reader = new ArrowStreamReader(new ByteArrayInputStream(arrow), allocator)
+        var count = 0L
+        while (reader.loadNextBatch()) {
+          count += reader.getVectorSchemaRoot.getRowCount
+        }
+        reader.close()
+        count
+      }
+      println(f"rows=$rows%8d json=${json.length}%12d bytes decode=$jsonDecode%9.2fms | " +
+        f"arrow=${arrow.length}%12d bytes decode=$arrowDecode%9.2fms")
+      df.unpersist()
+    }
+    allocator.close()
+    spark.stop()
+  }
+}
@@ -0,0 +1,105 @@
+package tech.mlsql.test.stream
+
+import java.sql.DriverManager
+
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.expressions.GenericRowWithSchema
+import org.apache.spark.sql.execution.streaming.{JDBCConnectionPool, JDBCPartitionWriter}
+import org.apache.spark.sql.types._
+
+/**
+ * Rows/sec of the streaming jdbc sink writer against an embedded H2 database, for micro batches
+ * of many small partitions:
+ *
+ * legacy: a new DriverManager connection per partition, parameter metadata and type matching per row,
+ * one executeBatch at the end of the partition (what JDBCSink did before).
+ * pooled: JDBCPartitionWriter with pooled connections and setters built once, flushed every batchSize rows.
+ * pooled+rewrite: the same with rewriteBatchedStatements=true (multi-row inserts).
+ *
+ * The rows written are counted after every case. JDBCSinkSupportSuite covers the correctness of the writer.
+ */
+object JDBCSinkBenchmark {
+
+  val url = "jdbc:h2:mem:jdbc_sink_benchmark;DB_CLOSE_DELAY=-1"
+  val sql = "insert into sink_table(id, name, score, day) values(?,?,?,?)"
+
+  val schema = StructType(Seq(
+    StructField("id", LongType),
+    StructField("name", StringType),
+    StructField("score", DoubleType),
+    StructField("day", DateType)))
+
+  val options = Map(
+    "driver" -> "org.h2.Driver",
+    "url" -> url,
+    "user" -> "sa",
+    "password" -> "",
+    "statement-0" -> sql)
+
+  def rows(partition: Int, numRows: Int): Iterator[Row] = (0 until numRows).iterator.map { i =>
+    val id = partition.toLong * numRows + i
+    new GenericRowWithSchema(Array(id, s"user_$id", id * 0.5, new java.sql.Date(id * 1000)), schema)
+  }
+
+  def legacy(partition: Iterator[Row]): Unit = {
+    val connection = DriverManager.getConnection(url, "sa", "")
+    connection.setAutoCommit(false)
+    val statement = connection.prepareStatement(sql)
+    partition.foreach { value =>
+      (0 until statement.getParameterMetaData.getParameterCount).foreach { f =>
+        val sqlIndex = f + 1
+        schema.fields(f).dataType match {
+          case StringType => statement.setString(sqlIndex, value.getString(f))
+          case LongType => statement.setLong(sqlIndex, value.getLong(f))
+          case DoubleType => statement.setDouble(sqlIndex, value.getDouble(f))
+          case DateType => statement.setDate(sqlIndex, value.getDate(f))
+        }
+      }
+      statement.addBatch()
+    }
+    statement.executeBatch()
+    connection.commit()
+    statement.close()
+    connection.close()
+  }
+
+  def pooled(extraOptions: Map[String, String])(partition: Iterator[Row]): Unit = {
+    val writer = new JDBCPartitionWriter(options ++ extraOptions, schema)
+    writer.open()
+    partition.foreach(writer.write)
+    writer.close(null)
+  }
+
+  def main(args: Array[String]): Unit = {
+    Class.forName("org.h2.Driver")
+    val keeper = DriverManager.getConnection(url, "sa", "")
+    keeper.createStatement().execute(
+      "create table sink_table(id bigint, name varchar(64), score double, day date)")
+
+    val cases = Seq[(String, Iterator[Row] => Unit)](
+      ("legacy", legacy _),
+      ("pooled", pooled(Map("batchSize" -> "1000")) _),
+      ("pooled+rewrite", pooled(Map("batchSize" -> "1000", "rewriteBatchedStatements" -> "true")) _))
+
+    for ((numPartitions, rowsPerPartition) <- Seq((200, 100), (20, 10000)); (name, write) <- cases) {
+      // warm up
+      (0 until 5).foreach(p => write(rows(p, rowsPerPartition)))
+      keeper.createStatement().execute("truncate table sink_table")
+
+      val start = System.nanoTime()
+      (0 until numPartitions).foreach(p => write(rows(p, rowsPerPartition)))
+      val seconds = (System.nanoTime() - start) / 1e9
+      val written = {
+        val rs = keeper.createStatement().executeQuery("select count(*) from sink_table")
+        rs.next()
+        rs.getLong(1)
+      }
+      keeper.createStatement().execute("truncate table sink_table")
+      println(f"$name%-15s partitions=$numPartitions%4d rows/partition=$rowsPerPartition%6d " +
+        f"written=$written%8d rows/s=${written / seconds}%12.0f")
+    }
+
+    JDBCConnectionPool.clear()
+    keeper.close()
+  }
+}
@@ -0,0 +1,143 @@
+package tech.mlsql.test.stream
+
+import java.sql.{Connection, DriverManager}
+
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.catalyst.expressions.GenericRowWithSchema
+import org.apache.spark.sql.execution.streaming._
+import org.apache.spark.sql.types._
+import org.scalatest.{BeforeAndAfterAll, FlatSpec, Matchers}
+
+class JDBCSinkSupportSuite extends FlatSpec with Matchers with BeforeAndAfterAll {
+
+  val url = "jdbc:h2:mem:jdbc_sink_support;DB_CLOSE_DELAY=-1"
+  var keeper: Connection = null
+
+  val schema = StructType(Seq(
+    StructField("id", LongType),
+    StructField("name", StringType),
+    StructField("age", IntegerType),
+    StructField("score", DoubleType),
+    StructField("flag", BooleanType),
+    StructField("day", DateType),
+    StructField("ts", TimestampType),
+    StructField("amount", DecimalType(10, 2))))
+
+  val insert = "insert into sink_table(id, name, age, score, flag, day, ts, amount) values(?,?,?,?,?,?,?,?)"
+
+  def options(extra: (String, String)*): Map[String, String] = Map(
+    "driver" -> "org.h2.Driver",
+    "url" -> url,
+    "user" -> "sa",
+    "password" -> "",
+    "statement-0" -> insert) ++ extra
+
+  def row(values: Any*): Row = new GenericRowWithSchema(values.toArray, schema)
+
+  def fullRow(id: Long): Row = row(id, s"user_$id", id.toInt, id * 0.5, id % 2 == 0,
+    new java.sql.Date(86400000L * id), new java.sql.Timestamp(1000L * id), new java.math.BigDecimal("1.25"))
+
+  def nullRow(id: Long): Row = row(id, null, null, null, null, null, null, null)
+
+  def count(where: String = "1=1"): Long = {
+    val rs = keeper.createStatement().executeQuery(s"select count(*) from sink_table where $where")
+    rs.next()
+    rs.getLong(1)
+  }
+
+  override def beforeAll(): Unit = {
+    Class.forName("org.h2.Driver")
+    keeper = DriverManager.getConnection(url, "sa", "")
+    keeper.createStatement().execute(
+      "create table sink_table(id bigint primary key, name varchar(64), age int, score double, " +
+        "flag boolean, day date, ts timestamp, amount decimal(10,2))")
+  }
+
+  override def afterAll(): Unit = {
+    JDBCConnectionPool.clear()
+    if (keeper != null) keeper.close()
+  }
+
+  def truncate(): Unit = keeper.createStatement().execute("truncate table sink_table")
+
+  "multiRowInsert" should "repeat the values group of a single-row insert" in {
+    JDBCStatementWriter.multiRowInsert("insert into t(a,b) values(?,?)", 3) should be(
+      Some("insert into t(a,b) values(?,?),(?,?),(?,?)"))
+    JDBCStatementWriter.multiRowInsert("INSERT INTO t VALUES (?, ?);", 2) should be(
+      Some("INSERT INTO t VALUES (?, ?),(?, ?)"))
+    JDBCStatementWriter.multiRowInsert("insert into t(a,b)\nvalues(?,?)", 1) should be(
+      Some("insert into t(a,b)\nvalues(?,?)"))
+  }
+
+  "multiRowInsert" should "leave statements which are not a plain single-row insert alone" in {
+    JDBCStatementWriter.multiRowInsert("update t set a=? where b=?", 2) should be(None)
+    JDBCStatementWriter.multiRowInsert("insert into t(a,b) select a,b from s", 2) should be(None)
+    JDBCStatementWriter.multiRowInsert("insert into t(a,b) values(?,now())", 2) should be(None)
+    JDBCStatementWriter.multiRowInsert("insert into t(a,b) values(?,?) on duplicate key update b=?", 2) should be(None)
+  }
+
+  "setters" should "write nulls and values of every column type" in {
+    Seq(Map[String, String](), Map("rewriteBatchedStatements" -> "true")).foreach { extra =>
+      truncate()
+      val writer = new JDBCPartitionWriter(options(extra.toSeq: _*) + ("batchSize" -> "2"), schema)
+      writer.open()
+      (0L until 5L).foreach(id => writer.write(if (id % 2 == 0) nullRow(id) else fullRow(id)))
+      writer.close(null)
+
+      writer.committedRows should be(5)
+      count() should be(5)
+      count("name is null and age is null and score is null and flag is null and day is null " +
+        "and ts is null and amount is null") should be(3)
+
+      val rs = keeper.createStatement().executeQuery("select * from sink_table where id = 3")
+      rs.next()
+      rs.getString("name") should be("user_3")
+      rs.getInt("age") should be(3)
+      rs.getDouble("score") should be(1.5)
+      rs.getBoolean("flag") should be(false)
+      rs.getDate("day").toString should be(new java.sql.Date(86400000L * 3).toString)
+      rs.getTimestamp("ts") should be(new java.sql.Timestamp(3000L))
+      rs.getBigDecimal("amount") should be(new java.math.BigDecimal("1.25"))
+    }
+  }
+
+  "JDBCPartitionWriter" should "roll back and rethrow when the final flush fails" in {
+    truncate()
+    val writer = new JDBCPartitionWriter(options("rewriteBatchedStatements" -> "true", "batchSize" -> "100"), schema)
+    writer.open()
+    // both rows stay pending until the flush in close, which violates the primary key
+    writer.write(fullRow(1))
+    writer.write(fullRow(1))
+    intercept[Exception] {
+      writer.close(null)
+    }
+    writer.numRows should be(2)
+    writer.committedRows should be(0)
+    count() should be(0)
+  }
+
+  "JDBCPartitionWriter" should "roll back without committing when the task failed" in {
+    truncate()
+    val writer = new JDBCPartitionWriter(options("batchSize" -> "1"), schema)
+    writer.open()
+    writer.write(fullRow(1))
+    writer.write(fullRow(2))
+    writer.close(new RuntimeException("task failed"))
+    writer.committedRows should be(0)
+    count() should be(0)
+  }
+
+  "JDBCSinkMetrics" should "keep the last progress of every query until it is removed" in {
+    JDBCSinkMetrics.update("query-1", url, JDBCSinkProgress(0, 100, 50, 100))
+    JDBCSinkMetrics.update("query-1", url, JDBCSinkProgress(1, 300, 100, 400))
+    JDBCSinkMetrics.update("query-2", "jdbc:mysql://db:3306/test?user=root&password=secret", JDBCSinkProgress(0, 10, 0, 10))
+
+    JDBCSinkMetrics.stats should be(Seq(
+      JDBCSinkMetric("query-1", url, 1, 300, 100, 3000.0, 400),
+      JDBCSinkMetric("query-2", "jdbc:mysql://db:3306/test", 0, 10, 0, 0.0, 10)))
+
+    JDBCSinkMetrics.remove("query-1")
+    JDBCSinkMetrics.remove("query-2")
+    JDBCSinkMetrics.stats should be(Seq())
+  }
+}
@@ -0,0 +1,89 @@
+package tech.mlsql.test.tool
+
+import java.util.concurrent.CountDownLatch
+
+import org.apache.spark.TaskKilledException
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.SpecificInternalRow
+import org.apache.spark.sql.types.LongType
+import org.scalatest.{FlatSpec, Matchers}
+import tech.mlsql.tool.PrefetchIterator
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{Await, Future}
+
+class PrefetchIteratorSuite extends FlatSpec with Matchers {
+
+  // a single mutable row like the ones produced by projections
+  private def rows(n: Int): Iterator[InternalRow] = {
+    val row = new SpecificInternalRow(Seq(LongType))
+    (0 until n).iterator.map { i =>
+      row.setLong(0, i)
+      row
+    }
+  }
+
+  "PrefetchIterator" should "return all rows in order when batches are partially filled" in {
+    val iter = new PrefetchIterator(rows(1003), 10, 2, "test")
+    iter.map(_.getLong(0)).toList should be((0L until 1003L).toList)
+    iter.hasNext should be(false)
+  }
+
+  "PrefetchIterator" should "handle an empty input" in {
+    new PrefetchIterator(Iterator.empty, 10, 2, "test").hasNext should be(false)
+  }
+
+  "PrefetchIterator" should "rethrow the failure of the input" in {
+    val failing = rows(25).map { r =>
+      if (r.getLong(0) == 20) throw new IllegalStateException("boom")
+      r
+    }
+    val iter = new PrefetchIterator(failing, 10, 2, "test")
+    val e = intercept[RuntimeException] {
+      iter.foreach(_ => ())
+    }
+    e.getCause.getMessage should be("boom")
+  }
+
+  "PrefetchIterator" should "fail the consumer instead of blocking it when it is stopped while consuming" in {
+    val release = new CountDownLatch(1)
+    // the producer waits for an input row which never comes before stop
+    val blocked = rows(1).map { r =>
+      release.await()
+      r
+    }
+    val iter = new PrefetchIterator(blocked, 10, 2, "test")
+    val consumer = Future(iter.hasNext)
+    Thread.sleep(300)
+    consumer.isCompleted should be(false)
+    iter.stop()
+    intercept[TaskKilledException] {
+      Await.result(consumer, 10.seconds)
+    }
+    release.countDown()
+  }
+
+  "PrefetchIterator" should "not look exhausted when it is stopped before the end of the rows" in {
+    val release = new CountDownLatch(1)
+    // the first batch is enqueued, the producer then waits for the rest of the partition
+    val slow = rows(25).map { r =>
+      if (r.getLong(0) == 10) release.await()
+      r
+    }
+    val iter = new PrefetchIterator(slow, 10, 2, "test")
+    (0 until 10).map(_ => iter.next().getLong(0)) should be((0L until 10L).toList)
+    iter.stop()
+    intercept[TaskKilledException] {
+      iter.hasNext
+    }
+    release.countDown()
+  }
+
+  "PrefetchIterator" should "still end normally when it is stopped after the end of the rows" in {
+    val iter = new PrefetchIterator(rows(5), 10, 2, "test")
+    Thread.sleep(300)
+    iter.stop()
+    iter.map(_.getLong(0)).toList should be((0L until 5L).toList)
+  }
+}
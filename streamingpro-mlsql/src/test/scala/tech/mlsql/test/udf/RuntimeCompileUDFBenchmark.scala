@@ -0,0 +1,46 @@
+package tech.mlsql.test.udf
+
+import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import streaming.udf.{DirectInvokeUDF, JavaRuntimeCompileUDF, RuntimeCompileUDF, ScalaRuntimeCompileUDF}
+
+/**
+ * Per call cost of a runtime compiled udf through the reflective function
+ * (Seq + Method.invoke) and through the direct invoke bridge. Both get boxed
+ * arguments, the way ScalaUDF calls them. UDFSuite checks the results.
+ */
+object RuntimeCompileUDFBenchmark {
+
+  def time(iterations: Int)(f: Int => Any) = {
+    (0 until iterations).foreach(f)
+    val start = System.nanoTime()
+    (0 until iterations).foreach(f)
+    (System.nanoTime() - start).toDouble / iterations
+  }
+
+  def run(name: String, compiler: RuntimeCompileUDF, key: ScriptUDFCacheKey, iterations: Int): Unit = {
+    val wrapped = compiler.wrapCode(key)
+    val reflect = compiler.generateFunction(wrapped).asInstanceOf[(Object, Object) => Any]
+    val direct = DirectInvokeUDF.function(wrapped, 2).asInstanceOf[(Object, Object) => Any]
+    val reflectNs = time(iterations)(i => reflect(Long.box(i), Long.box(i)))
+    val directNs = time(iterations)(i => direct(Long.box(i), Long.box(i)))
+    println(f"$name%-6s reflect=$reflectNs%8.2fns/call direct=$directNs%8.2fns/call speedup=${reflectNs / directNs}%5.2fx")
+  }
+
+  def main(args: Array[String]): Unit = {
+    val iterations = 20000000
+    run("scala", ScalaRuntimeCompileUDF, ScriptUDFCacheKey(
+      """
+        |def plusFun(a: Long, b: Long): Long = {
+        |  a + b
+        |}
+      """.stripMargin, "", "", "udf", "plusFun", "", "scala"), iterations)
+    run("java", JavaRuntimeCompileUDF, ScriptUDFCacheKey(
+      """
+        |public class UDF {
+        |  public long plusFun(long a, long b) {
+        |    return a + b;
+        |  }
+        |}
+      """.stripMargin, "", "UDF", "udf", "plusFun", "", "java"), iterations)
+  }
+}
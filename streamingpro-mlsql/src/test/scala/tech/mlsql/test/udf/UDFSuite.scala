@@ -1,8 +1,14 @@
 package tech.mlsql.test.udf
 
+import org.apache.spark.sql.catalyst.InternalRow
+import org.apache.spark.sql.catalyst.expressions.{Alias, AttributeReference, GreaterThan, Literal}
+import org.apache.spark.sql.catalyst.plans.logical.{Filter, LocalRelation, Project}
+import org.apache.spark.sql.types.{IntegerType, LongType}
 import org.apache.spark.streaming.BasicSparkOperation
 import streaming.core.strategy.platform.SparkRuntime
 import streaming.core.{BasicMLSQLConfig, SpecFunctions}
+import streaming.dsl.mmlib.algs.ScriptUDFCacheKey
+import streaming.udf.{ByteArrayClassLoader, CompiledClasses, DirectInvokeUDF, ExtractVectorizedPythonUDFs, JavaRuntimeCompileUDF, PythonRuntimeCompileUDF, RuntimeCompileScriptFactory, ScalaRuntimeCompileUDAF, ScalaRuntimeCompileUDF, TypedScriptUDAF, VectorizedPythonEval, VectorizedPythonInputQueue, VectorizedPythonUDF}
 
 import scala.collection.mutable.WrappedArray
 
@@ -752,5 +758,270 @@ class UDFSuite extends BasicSparkOperation with SpecFunctions with BasicMLSQLCon
     }
   }
 
+  "udf" should "call scala and java udf directly in direct invoke mode" in {
+    val scalaKey = ScalaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+      """
+        |def plusFun(a: Int, b: Int): Int = {
+        |  a + b
+        |}
+      """.stripMargin, "", "", "udf", "plusFun", "", "scala"))
+    // the bridge is generated instead of falling back to the reflective function
+    assert(DirectInvokeUDF.bridges.get(scalaKey).isInstanceOf[scala.runtime.AbstractFunction2[_, _, _]])
+    assert(DirectInvokeUDF.function(scalaKey, 2).asInstanceOf[(Object, Object) => Any](
+      Int.box(1), Int.box(2)) == 3)
 
+    val javaKey = JavaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+      """
+        |public class UDF {
+        |  public long plusFun(int a, Long b) {
+        |    return a + b;
+        |  }
+        |}
+      """.stripMargin, "", "UDF", "udf", "plusFun", "", "java"))
+    assert(DirectInvokeUDF.function(javaKey, 2).asInstanceOf[(Object, Object) => Any](
+      Int.box(1), Long.box(2L)) == 3L)
+  }
+
+  "udf" should "keep the null and widening semantics of reflection in direct invoke mode" in {
+    def functions(key: ScriptUDFCacheKey): Seq[(Object, Object) => Any] = {
+      val compiler = RuntimeCompileScriptFactory.getUDFCompilerBylang(key.lang).get
+      Seq(DirectInvokeUDF.function(key, 2), compiler.generateFunction(key)).map(_.asInstanceOf[(Object, Object) => Any])
+    }
+
+    val scalaKey = ScalaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+      """
+        |def describe(a: Long, s: String): String = {
+        |  s + a
+        |}
+      """.stripMargin, "", "", "udf", "describe", "", "scala"))
+    assert(DirectInvokeUDF.bridges.get(scalaKey).isInstanceOf[scala.runtime.AbstractFunction2[_, _, _]])
+    functions(scalaKey).foreach { f =>
+      assert(f(Int.box(1), "a") == "a1")
+      assert(f(Long.box(1L), null) == "null1")
+      intercept[IllegalArgumentException](f(null, "a"))
+      intercept[IllegalArgumentException](f(Double.box(1.0), "a"))
+      intercept[IllegalArgumentException](f(Long.box(1L), Int.box(1)))
+    }
+
+    val javaKey = JavaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+      """
+        |public class UDF {
+        |  public String describe(double a, Integer b) {
+        |    return a + ":" + b;
+        |  }
+        |}
+      """.stripMargin, "", "UDF", "udf", "describe", "", "java"))
+    functions(javaKey).foreach { f =>
+      assert(f(Int.box(1), Int.box(2)) == "1.0:2")
+      assert(f(Float.box(1.5f), null) == "1.5:null")
+      intercept[IllegalArgumentException](f(null, Int.box(2)))
+      intercept[IllegalArgumentException](f(Double.box(1.0), Long.box(2L)))
+    }
+  }
+
+  "udf" should "define the direct invoke bridge shipped by the driver" in {
+    withContext(setupBatchContext(batchParamsWithoutHive)) { runtime: SparkRuntime =>
+      val scalaKey = ScalaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+        """
+          |def minusFun(a: Int, b: Int): Int = {
+          |  a - b
+          |}
+        """.stripMargin, "", "", "udf", "minusFun", "", "scala"))
+      val javaKey = JavaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+        """
+          |public class UDF {
+          |  public int minusFun(int a, int b) {
+          |    return a - b;
+          |  }
+          |}
+        """.stripMargin, "", "UDF", "udf", "minusFun", "", "java"))
+
+      Seq(scalaKey, javaKey).foreach { key =>
+        val shipped = DirectInvokeUDF.bridgeClasses.ship(key)
+        assert(shipped.isDefined)
+        // the java bridge is nested in the udf class
+        assert(shipped.get.value.classes.contains(key.className))
+
+        val f = DirectInvokeUDF.function(key, 2).asInstanceOf[(Object, Object) => Any]
+        assert(f(Int.box(3), Int.box(1)) == 2)
+        val metric = RuntimeCompileScriptFactory.stats.find(_.udf == s"${key.lang}:${key.className}.minusFun#direct-bridge")
+        assert(metric.map(m => (m.compiled, m.loaded)) == Some((1L, 1L)))
+      }
+    }
+  }
+
+  "udf" should "define the classes compiled by the driver without compiling again" in {
+    val key = ScalaRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+      """
+        |def plusFun(a: Int, b: Int): Int = {
+        |  Seq(a, b).map(i => i).sum
+        |}
+      """.stripMargin, "", "", "udf", "plusFun", "", "scala"))
+    val clazz = ScalaRuntimeCompileUDF.driverExecute(key).asInstanceOf[Class[_]]
+    val compiled = CompiledClasses.extract(clazz)
+    assert(compiled.isDefined)
+    val defined = CompiledClasses.define(compiled.get)
+    assert(defined.getClassLoader != clazz.getClassLoader)
+    val method = defined.getMethod("plusFun", classOf[Int], classOf[Int])
+    assert(method.invoke(defined.newInstance(), Int.box(1), Int.box(2)) == 3)
+  }
+
+  "udf" should "extract vectorized python udf into a batch evaluation" in {
+    val key = PythonRuntimeCompileUDF.wrapCode(ScriptUDFCacheKey(
+      """
+        |def apply(self, a, b):
+        |    return a + b
+      """.stripMargin, "", "", "udf", "apply", "integer", "python"))
+    val code = VectorizedPythonUDF.pythonCode(key, IntegerType)
+    assert(code.contains(s"__mlsql_udf__ = ${key.className}().apply"))
+    assert(code.contains("yield [result.astype('int32')]"))
+
+    val a = AttributeReference("a", IntegerType)()
+    val b = AttributeReference("b", LongType)()
+    val relation = LocalRelation(a, b)
+    val udf = VectorizedPythonUDF(key, IntegerType, Map(), Map(), Seq(a, b))
+
+    val project = ExtractVectorizedPythonUDFs(Project(Seq(a, Alias(udf, "res")()), relation))
+    assert(project.find(_.isInstanceOf[VectorizedPythonEval]).isDefined)
+    assert(project.expressions.forall(_.find(_.isInstanceOf[VectorizedPythonUDF]).isEmpty))
+
+    // the result attribute is not exposed by operators which pass their input through
+    val filter = Filter(GreaterThan(udf, Literal(1)), relation)
+    val extracted = ExtractVectorizedPythonUDFs(filter)
+    assert(extracted.isInstanceOf[Project])
+    assert(extracted.output == filter.output)
+  }
+
+  "udf" should "block the writer of a vectorized python udf while too many rows wait for results" in {
+    val queue = new VectorizedPythonInputQueue(4)
+    def batch(from: Int) = (from until from + 2).map(i => InternalRow(i))
+    queue.addAll(batch(0))
+    queue.addAll(batch(2))
+
+    val added = new java.util.concurrent.CountDownLatch(1)
+    val writer = new Thread(new Runnable {
+      override def run(): Unit = {
+        queue.addAll(batch(4))
+        added.countDown()
+      }
+    })
+    writer.start()
+    assert(!added.await(200, java.util.concurrent.TimeUnit.MILLISECONDS))
+    assert(queue.size == 4)
+
+    // one row is not enough room for the next batch
+    assert(queue.poll().getInt(0) == 0)
+    assert(!added.await(200, java.util.concurrent.TimeUnit.MILLISECONDS))
+    assert(queue.poll().getInt(0) == 1)
+    assert(added.await(10, java.util.concurrent.TimeUnit.SECONDS))
+    assert((0 until 4).map(_ => queue.poll().getInt(0)) == (2 until 6))
+    assert(queue.isEmpty)
+    assert(queue.poll() == null)
+
+    // a killed task interrupts the waiting writer
+    queue.addAll(batch(0))
+    queue.addAll(batch(2))
+    val interrupted = new java.util.concurrent.atomic.AtomicBoolean(false)
+    val killed = new Thread(new Runnable {
+      override def run(): Unit = {
+        try queue.addAll(batch(4)) catch {
+          case _: InterruptedException => interrupted.set(true)
+        }
+      }
+    })
+    killed.start()
+    killed.interrupt()
+    killed.join(10000)
+    assert(interrupted.get())
+  }
+
+  "test typed scala udaf" should "use the class as aggregation buffer" in {
+    withContext(setupBatchContext(batchParamsWithoutHive)) { runtime: SparkRuntime =>
+      val result = executeCode(runtime,
+        """
+          |set plusFun='''
+          |class SumAggregation extends Serializable {
+          |    var total = 0L
+          |    def update(a: Long): Unit = {
+          |      total += a
+          |    }
+          |    def merge(other: SumAggregation): Unit = {
+          |      total += other.total
+          |    }
+          |    def evaluate: Long = total
+          |}
+          |''';
+          |
+          |load script.`plusFun` as scriptTable;
+          |register ScriptUDF.`scriptTable` as plusFun options
+          |className="SumAggregation"
+          |and udfType="udaf"
+          |;
+          |
+          |set data='''
+          |{"a":1}
+          |{"a":1}
+          |{"a":2}
+          |{"a":2}
+          |''';
+          |load jsonStr.`data` as dataTable;
+          |select a,plusFun(a) as res from dataTable group by a order by a as output;
+          |
+        """.stripMargin)
+
+      assert(result.map(_.getAs[Long]("res")).toSeq == Seq(2L, 4L))
+    }
+  }
+
+  "udf" should "serialize the buffer of typed scala udaf" in {
+    val key = ScriptUDFCacheKey(
+      """
+        |class CountAggregation extends Serializable {
+        |    var count = 0
+        |    def update(s: String): Unit = {
+        |      count += 1
+        |    }
+        |    def merge(other: CountAggregation): Unit = {
+        |      count += other.count
+        |    }
+        |    def evaluate: Int = count
+        |}
+      """.stripMargin, "", "CountAggregation", "udaf", "apply", "", "scala")
+    val udaf = ScalaRuntimeCompileUDAF.udaf(Seq(Literal("a")), key).asInstanceOf[TypedScriptUDAF]
+    assert(udaf.dataType == IntegerType)
+
+    val buffer = udaf.createAggregationBuffer()
+    udaf.update(buffer, InternalRow.empty)
+    udaf.update(buffer, InternalRow.empty)
+    val other = udaf.deserialize(udaf.serialize(buffer))
+    assert(udaf.eval(udaf.merge(buffer, other)) == 4)
+  }
+
+  "udf" should "define the aggregate bridge shipped by the driver" in {
+    withContext(setupBatchContext(batchParamsWithoutHive)) { runtime: SparkRuntime =>
+      val key = ScriptUDFCacheKey(
+        """
+          |class MaxAggregation extends Serializable {
+          |    var max = Long.MinValue
+          |    def update(a: Long): Unit = {
+          |      max = Math.max(max, a)
+          |    }
+          |    def merge(other: MaxAggregation): Unit = {
+          |      max = Math.max(max, other.max)
+          |    }
+          |    def evaluate: Long = max
+          |}
+        """.stripMargin, "", "MaxAggregation", "udaf", "apply", "", "scala")
+      val udaf = ScalaRuntimeCompileUDAF.udaf(Seq(Literal(3L)), key).asInstanceOf[TypedScriptUDAF]
+      assert(udaf.shipped.isDefined)
+
+      val buffer = udaf.createAggregationBuffer()
+      udaf.update(buffer, InternalRow.empty)
+      // the buffer class comes from the shipped bytecode
+      assert(buffer.getClass.getClassLoader.isInstanceOf[ByteArrayClassLoader])
+      assert(udaf.eval(udaf.merge(buffer, udaf.deserialize(udaf.serialize(buffer)))) == 3L)
+      val metric = RuntimeCompileScriptFactory.stats.find(_.udf == "scala:MaxAggregation.apply#aggregate-bridge")
+      assert(metric.map(m => (m.compiled, m.loaded)) == Some((1L, 1L)))
+    }
+  }
 }
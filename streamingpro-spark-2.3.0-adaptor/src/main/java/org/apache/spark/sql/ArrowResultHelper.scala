@@ -0,0 +1,16 @@
+package org.apache.spark.sql
+
+import java.io.OutputStream
+
+/**
+ * Spark 2.3 has no Dataset.toArrowBatchRdd/ArrowBatchStreamWriter, so results are
+ * always returned as json and fetchType=arrow falls back to it.
+ */
+object ArrowResultHelper {
+
+  def isSupported: Boolean = false
+
+  def write(df: DataFrame, out: OutputStream): Unit = {
+    throw new UnsupportedOperationException("Arrow results require Spark 2.4 or above")
+  }
+}
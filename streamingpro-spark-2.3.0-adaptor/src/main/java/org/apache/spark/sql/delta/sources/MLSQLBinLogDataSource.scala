@@ -5,18 +5,26 @@ import java.net.Socket
 import java.nio.charset.StandardCharsets
 import java.util.UUID
 import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
+import java.util.concurrent.{ExecutionException, TimeUnit}
+import java.util.regex.Pattern
 
+import com.google.common.cache.{CacheBuilder, CacheLoader}
+import com.google.common.util.concurrent.UncheckedExecutionException
 import org.apache.commons.io.IOUtils
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.InternalRow
 import org.apache.spark.sql.delta.sources.mysql.binlog._
+import org.apache.spark.sql.delta.sources.mysql.binlog.io.{BinaryRowsWriter, SchemaTool}
+import org.apache.spark.sql.execution.datasources.jdbc.{JDBCOptions, JdbcUtils}
 import org.apache.spark.sql.execution.streaming._
 import org.apache.spark.sql.sources.{DataSourceRegister, StreamSourceProvider}
 import org.apache.spark.sql.types.{StringType, StructField, StructType}
 import org.apache.spark.sql.{DataFrame, SQLContext, SparkSession}
 import org.apache.spark.unsafe.types.UTF8String
 import org.apache.spark.util.{TaskCompletionListener, TaskFailureListener}
-import org.apache.spark.{SparkEnv, TaskContext}
+import org.apache.spark.{SparkEnv, SparkException, TaskContext}
+
+import scala.collection.mutable.ArrayBuffer
 
 /**
   * This Datasource is used to consume MySQL binlog. Not support MariaDB yet because the connector we are using is
@@ -33,7 +41,10 @@ class MLSQLBinLogDataSource extends StreamSourceProvider with DataSourceRegister
                             parameters: Map[String, String]): (String, StructType) = {
     require(schema.isEmpty, "Kafka source has a fixed schema and cannot be set with a custom one")
     (shortName(), {
-      StructType(Seq(StructField("value", StringType)))
+      MLSQLBinLogDataSource.resolveTableSchema(parameters) match {
+        case Some(tableSchema) => BinaryRowsWriter.outputSchema(tableSchema)
+        case None => StructType(Seq(StructField("value", StringType)))
+      }
     })
   }
 
@@ -80,10 +91,19 @@ class MLSQLBinLogDataSource extends StreamSourceProvider with DataSourceRegister
     val tempSocketServerHost = tempSocketServerInDriver.host
     val tempSocketServerPort = tempSocketServerInDriver.port
 
-    // We will buffer the binlog in Executor, if the buffer is greater then maxBinlogQueueSize, just
+    // We will buffer the binlog in Executor, at most maxBinlogQueueSize events in memory and the rest
+    // spilled to the local disk. If there are more than maxBinlogSpillSize events on disk, just
     // pause the MySQL binlog consumer, and stop put more data into buffer.
-    // When the buffer is maxBinlogQueueSize/2 ,resume the binlog consumer
+    // When the buffer is half of that ,resume the binlog consumer
     val maxBinlogQueueSize = parameters.getOrElse("maxBinlogQueueSize", "500000").toLong
+    val maxBinlogSpillSize = parameters.getOrElse("maxBinlogSpillSize", "5000000").toLong
+    val binlogPartitionBy = parameters.getOrElse("binlogPartitionBy", BinlogPartitionBy.TABLE)
+    // The events of a batch are kept in the executor until the batch is committed, or dropped when
+    // the batch is neither committed nor read for binlogBatchTimeoutMs.
+    val binlogBatchTimeoutMs = parameters.getOrElse("binlogBatchTimeoutMs",
+      BinLogSocketServerInExecutor.BATCH_TIMEOUT_MS.toString).toLong
+    // With binlogFormat=row the rows are sent as UnsafeRow bytes of the captured table instead of json.
+    val tableSchema = MLSQLBinLogDataSource.resolveTableSchema(parameters)
 
     val binlogServerId = UUID.randomUUID().toString
 
@@ -96,6 +116,10 @@ class MLSQLBinLogDataSource extends StreamSourceProvider with DataSourceRegister
 
         val executorBinlogServer = new BinLogSocketServerInExecutor(taskContextRef)
         executorBinlogServer.setMaxBinlogQueueSize(maxBinlogQueueSize)
+        executorBinlogServer.setMaxBinlogSpillSize(maxBinlogSpillSize)
+        executorBinlogServer.setPartitionBy(binlogPartitionBy)
+        executorBinlogServer.setBatchTimeoutMs(binlogBatchTimeoutMs)
+        executorBinlogServer.setRowSchema(tableSchema)
 
         def sendStopBinlogServerRequest = {
           // send signal to stop server
@@ -165,12 +189,77 @@ class MLSQLBinLogDataSource extends StreamSourceProvider with DataSourceRegister
     }
     val report = executorBinlogServerInfoRef.get()
     executorBinlogServer = ExecutorBinlogServer(report.host, report.port)
-    MLSQLBinLogSource(executorBinlogServer, sqlContext.sparkSession, metadataPath, startingOffsets, parameters ++ Map("binlogServerId" -> binlogServerId))
+    MLSQLBinLogSource(executorBinlogServer, sqlContext.sparkSession, metadataPath, startingOffsets,
+      parameters ++ Map("binlogServerId" -> binlogServerId), tableSchema)
   }
 
   override def shortName(): String = "mysql-binglog"
 }
 
+object MLSQLBinLogDataSource {
+
+  private case class TableSchemaKey(host: String, port: String, userName: String, password: String,
+                                    databaseNamePattern: String, tableNamePattern: String)
+
+  // sourceSchema and createSource both need the schema when a stream starts, resolve it once for both.
+  // It expires so that a stream restarted after the table is altered sees the new schema.
+  private val tableSchemas = CacheBuilder.newBuilder()
+    .maximumSize(1000)
+    .expireAfterWrite(1, TimeUnit.MINUTES)
+    .build(
+      new CacheLoader[TableSchemaKey, StructType]() {
+        override def load(key: TableSchemaKey): StructType = loadTableSchema(key)
+      })
+
+  /**
+    * The schema of the captured table when binlogFormat is row.
+    * databaseNamePattern and tableNamePattern should match exactly one table then,
+    * the schema is resolved the same way as BinLogSocketServerInExecutor.loadSchemaInfo.
+    */
+  def resolveTableSchema(parameters: Map[String, String]): Option[StructType] = {
+    val format = parameters.getOrElse("binlogFormat", BinlogFormat.JSON)
+    if (format == BinlogFormat.JSON) return None
+    require(format == BinlogFormat.ROW, s"binlogFormat should be ${BinlogFormat.JSON} or ${BinlogFormat.ROW}")
+
+    try {
+      Some(tableSchemas.get(TableSchemaKey(parameters("host"), parameters("port"), parameters("userName"),
+        parameters("password"), parameters("databaseNamePattern"), parameters("tableNamePattern"))))
+    } catch {
+      case e: UncheckedExecutionException => throw e.getCause
+      case e: ExecutionException => throw e.getCause
+    }
+  }
+
+  private def loadTableSchema(key: TableSchemaKey): StructType = {
+    val databaseNamePattern = Pattern.compile(key.databaseNamePattern)
+    val tableNamePattern = Pattern.compile(key.tableNamePattern)
+    val options = Map(
+      "url" -> s"jdbc:mysql://${key.host}:${key.port}",
+      "user" -> key.userName,
+      "password" -> key.password
+    )
+    val conn = JdbcUtils.createConnectionFactory(new JDBCOptions(options ++ Map("dbtable" -> "information_schema.tables")))()
+    val tables = try {
+      val rs = conn.createStatement().executeQuery("select table_schema, table_name from information_schema.tables")
+      val res = ArrayBuffer[(String, String)]()
+      while (rs.next()) {
+        res += ((rs.getString(1), rs.getString(2)))
+      }
+      rs.close()
+      res.filter { case (db, table) =>
+        databaseNamePattern.matcher(db).matches() && tableNamePattern.matcher(table).matches()
+      }
+    } finally {
+      conn.close()
+    }
+    require(tables.size == 1, s"binlogFormat=${BinlogFormat.ROW} requires databaseNamePattern and tableNamePattern " +
+      s"to match exactly one table, but they match ${tables.map(t => s"${t._1}.${t._2}").mkString("[", ",", "]")}")
+
+    val (db, table) = tables.head
+    SchemaTool.resolveTable(new JDBCOptions(options ++ Map("dbtable" -> s"${db}.${table}")), db, table)
+  }
+}
+
 /**
   * This implementation will not work in production. We should do more thing on
   * something like fault recovery.
@@ -183,7 +272,8 @@ case class MLSQLBinLogSource(executorBinlogServer: ExecutorBinlogServer,
                              spark: SparkSession,
                              metadataPath: String,
                              startingOffsets: Option[LongOffset],
-                             parameters: Map[String, String]
+                             parameters: Map[String, String],
+                             tableSchema: Option[StructType] = None
                             ) extends Source with BinLogSocketServerSerDer with Logging {
 
 
@@ -204,8 +294,9 @@ case class MLSQLBinLogSource(executorBinlogServer: ExecutorBinlogServer,
     dOut = new DataOutputStream(socket.getOutputStream)
   }
 
-  override def schema: StructType = {
-    StructType(Seq(StructField("value", StringType)))
+  override def schema: StructType = tableSchema match {
+    case Some(value) => BinaryRowsWriter.outputSchema(value)
+    case None => StructType(Seq(StructField("value", StringType)))
   }
 
   def request(req: Request) = {
@@ -307,15 +398,48 @@ case class MLSQLBinLogSource(executorBinlogServer: ExecutorBinlogServer,
 
     val executorBinlogServerCopy = executorBinlogServer.copy()
 
-    val rdd = spark.sparkContext.parallelize(Seq("fetch-bing-log")).mapPartitions { iter =>
-      val consumer = ExecutorBinlogServerConsumerCache.acquire(executorBinlogServerCopy)
-      consumer.fetchData(fromPartitionOffsets.get, untilPartitionOffsets.get).toIterator
-    }.map { cr =>
-      InternalRow(UTF8String.fromString(cr))
+    // Every partition fetches its own rows (split by table or primary key) in chunks of about
+    // binlogChunkBytes, so the batch is neither converted by one task nor held in memory at once.
+    val numPartitions = parameters.getOrElse("binlogPartitions", "1").toInt
+    val maxChunkBytes = parameters.getOrElse("binlogChunkBytes", (4 * 1024 * 1024).toString).toLong
+
+    val numFields = schema.length
+    val isRowFormat = tableSchema.isDefined
+
+    val rdd = spark.sparkContext.parallelize(0 until numPartitions, numPartitions).mapPartitions { iter =>
+      iter.flatMap { partitionId =>
+        val consumer = ExecutorBinlogServerConsumerCache.acquire(executorBinlogServerCopy)
+        val data: Iterator[InternalRow] with Closeable = if (isRowFormat) {
+          consumer.fetchRows(fromPartitionOffsets.get, untilPartitionOffsets.get, partitionId, numPartitions, maxChunkBytes, numFields)
+        } else {
+          consumer.fetchData(fromPartitionOffsets.get, untilPartitionOffsets.get, partitionId, numPartitions, maxChunkBytes)
+        }
+        TaskContext.get().addTaskCompletionListener(new TaskCompletionListener {
+          override def onTaskCompletion(context: TaskContext): Unit = data.close()
+        })
+        data
+      }
     }
     spark.sqlContext.internalCreateDataFrame(rdd.setName("mysql-bin-log"), schema, isStreaming = true)
   }
 
+  /**
+    * Lets the binlog server drop the events of the committed batches.
+    */
+  override def commit(end: Offset): Unit = {
+    try {
+      synchronized {
+        if (initialized.compareAndSet(false, true)) {
+          initialize()
+        }
+        LongOffset.convert(end).foreach(offset => sendRequest(dOut, RequestCommit(offset.offset)))
+      }
+    } catch {
+      case e: Exception =>
+        logWarning(s"Fail to commit binlog offset ${end}, the binlog server drops the batch after it times out", e)
+    }
+  }
+
   override def stop(): Unit = {
     // when the structure streaming is stopped(caused by  exception or manually killed),
     // we should make sure the binlog server is also killed.
@@ -335,20 +459,84 @@ case class MLSQLBinLogSource(executorBinlogServer: ExecutorBinlogServer,
 
 case class ExecutorInternalBinlogConsumer(executorBinlogServer: ExecutorBinlogServer) extends BinLogSocketServerSerDer {
   val socket = new Socket(executorBinlogServer.host, executorBinlogServer.port)
-  val dIn = new DataInputStream(socket.getInputStream)
+  val dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream))
   val dOut = new DataOutputStream(socket.getOutputStream)
   @volatile var inUse = true
   @volatile var markedForClose = false
 
-  def fetchData(start: LongOffset, end: LongOffset) = {
+  /**
+    * Reads the chunks lazily. The consumer is released after the last chunk, or closed when
+    * the iterator is closed before that since the rest of the response is still on the socket.
+    */
+  def fetchData(start: LongOffset, end: LongOffset,
+                partitionId: Int = 0, numPartitions: Int = 1, maxChunkBytes: Long = 0): Iterator[InternalRow] with Closeable = {
+    fetch(RequestData(start.offset, end.offset, partitionId, numPartitions, maxChunkBytes)) {
+      case response: DataResponse =>
+        (response.data.iterator.map(item => InternalRow(UTF8String.fromString(item))), response.hasMore)
+    }
+  }
+
+  /**
+    * Like fetchData, but for a binlog server started with a row schema. The rows are UnsafeRows of numFields fields.
+    */
+  def fetchRows(start: LongOffset, end: LongOffset,
+                partitionId: Int, numPartitions: Int, maxChunkBytes: Long, numFields: Int): Iterator[InternalRow] with Closeable = {
+    fetch(RequestData(start.offset, end.offset, partitionId, numPartitions, maxChunkBytes)) {
+      case response: RowDataResponse =>
+        (readRows(dIn, response).iterator.map(BinaryRowsWriter.toRow(_, numFields)), response.hasMore)
+    }
+  }
+
+  private def fetch(request: RequestData)(readChunk: PartialFunction[Response, (Iterator[InternalRow], Boolean)]): Iterator[InternalRow] with Closeable = {
     try {
-      sendRequest(dOut, RequestData(
-        start.offset,
-        end.offset))
-      val response = readResponse(dIn)
-      response.asInstanceOf[DataResponse].data
-    } finally {
-      ExecutorBinlogServerConsumerCache.release(this)
+      sendRequest(dOut, request)
+    } catch {
+      case e: Exception =>
+        markedForClose = true
+        ExecutorBinlogServerConsumerCache.release(this)
+        throw e
+    }
+
+    val consumer = this
+    new Iterator[InternalRow] with Closeable {
+      private var current: Iterator[InternalRow] = Iterator.empty
+      private var hasMore = true
+      private var released = false
+
+      override def hasNext: Boolean = {
+        while (!current.hasNext && hasMore) {
+          try {
+            val (rows, more) = readResponse(dIn) match {
+              case error: ErrorResponse =>
+                throw new SparkException(s"Fail to fetch binlog [${request.startOffset}, ${request.endOffset}): ${error.message}")
+              case response => readChunk(response)
+            }
+            current = rows
+            hasMore = more
+          } catch {
+            case e: Exception =>
+              hasMore = false
+              markedForClose = true
+              close()
+              throw e
+          }
+        }
+        if (!hasMore && !current.hasNext) close()
+        current.hasNext
+      }
+
+      override def next(): InternalRow = {
+        if (!hasNext) throw new NoSuchElementException("end of binlog data")
+        current.next()
+      }
+
+      override def close(): Unit = {
+        if (!released) {
+          released = true
+          if (hasMore) markedForClose = true
+          ExecutorBinlogServerConsumerCache.release(consumer)
+        }
+      }
     }
   }
 
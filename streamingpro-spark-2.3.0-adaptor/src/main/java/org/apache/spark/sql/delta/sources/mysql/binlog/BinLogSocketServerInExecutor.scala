@@ -1,10 +1,11 @@
 package org.apache.spark.sql.delta.sources.mysql.binlog
 
-import java.io.{DataInputStream, DataOutputStream}
+import java.io._
 import java.net.Socket
 import java.util
-import java.util.concurrent.atomic.{AtomicBoolean, AtomicLong, AtomicReference}
-import java.util.concurrent.{ConcurrentHashMap, LinkedBlockingQueue}
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicReference}
+import java.util.function.IntPredicate
 import java.util.regex.Pattern
 
 import com.github.shyiko.mysql.binlog.BinaryLogClient
@@ -12,9 +13,10 @@ import com.github.shyiko.mysql.binlog.event.EventType._
 import com.github.shyiko.mysql.binlog.event._
 import com.github.shyiko.mysql.binlog.event.deserialization.EventDeserializer
 import org.apache.spark.internal.Logging
-import org.apache.spark.sql.delta.sources.mysql.binlog.io.{DeleteRowsWriter, EventInfo, InsertRowsWriter, UpdateRowsWriter}
-import org.apache.spark.sql.execution.datasources.jdbc.{JDBCOptions, JDBCRDD}
+import org.apache.spark.sql.delta.sources.mysql.binlog.io._
+import org.apache.spark.sql.execution.datasources.jdbc.{JDBCOptions, JdbcUtils}
 import org.apache.spark.sql.types.StructType
+import org.apache.spark.util.Utils
 
 import scala.collection.JavaConverters._
 import scala.collection.mutable.ArrayBuffer
@@ -34,12 +36,19 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
 
   private var currentBinlogPosition: Long = 4
 
-  private val queue = new LinkedBlockingQueue[RawBinlogEvent]()
+  // Events beyond maxBinlogQueueSize are spilled to the local dir of the executor.
+  private lazy val spillDir = SpillableQueue.createSpillDir("binlog-spill")
+  private lazy val queue = new SpillableQueue[RawBinlogEvent](Math.max(1, maxBinlogQueueSize), spillDir)
 
   private var databaseNamePattern: Option[Pattern] = None
   private var tableNamePattern: Option[Pattern] = None
 
   private var maxBinlogQueueSize: Long = 0l
+  private var maxBinlogSpillSize: Long = 0l
+  private var partitionBy: String = BinlogPartitionBy.TABLE
+  private var batchTimeoutMs: Long = BinLogSocketServerInExecutor.BATCH_TIMEOUT_MS
+  // when defined, rows are sent as UnsafeRow bytes of this table schema instead of json
+  private var rowSchema: Option[StructType] = None
 
   private var connect: MySQLConnectionInfo = null
 
@@ -50,11 +59,12 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
 
   private val connections = new ArrayBuffer[Socket]()
 
-  private val currentQueueSize = new AtomicLong(0)
+  // (startOffset, endOffset) -> the events drained from the queue for this batch, shared by all its partitions
+  // until the source commits it
+  private val batches = new util.HashMap[(Long, Long), BinlogBatch]()
 
-  val updateRowsWriter = new UpdateRowsWriter()
-  val deleteRowsWriter = new DeleteRowsWriter()
-  val insertRowsWriter = new InsertRowsWriter()
+  // The writers keep state while writing, every connection uses its own.
+  private val defaultWriters = new BinlogRowWriters()
 
   def isClosed = {
     markClose.get()
@@ -64,6 +74,22 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
     this.maxBinlogQueueSize = value
   }
 
+  def setMaxBinlogSpillSize(value: Long) = {
+    this.maxBinlogSpillSize = value
+  }
+
+  def setPartitionBy(value: String) = {
+    this.partitionBy = value
+  }
+
+  def setBatchTimeoutMs(value: Long) = {
+    this.batchTimeoutMs = value
+  }
+
+  def setRowSchema(value: Option[StructType]) = {
+    this.rowSchema = value
+  }
+
   private val tableInfoCache = new ConcurrentHashMap[TableInfoCacheKey, TableInfo]()
 
   def assertTable = {
@@ -74,15 +100,19 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
 
   def addRecord(event: Event, binLogFilename: String, eventType: String) = {
     assertTable
-    if (currentQueueSize.get() > maxBinlogQueueSize && !markPause.get()) {
+    if (queue.size > maxBinlogQueueSize + maxBinlogSpillSize && !markPause.get()) {
       pause
-    } else if (currentQueueSize.get() < maxBinlogQueueSize / 2 && markPause.get()) {
-      resume
     }
-    currentQueueSize.incrementAndGet()
     queue.offer(new RawBinlogEvent(event, currentTable, binLogFilename, eventType, currentBinlogPosition))
   }
 
+  // No event arrives while paused, so resuming is checked when the queue is drained.
+  private def maybeResume() = {
+    if (markPause.get() && queue.size < (maxBinlogQueueSize + maxBinlogSpillSize) / 2) {
+      resume
+    }
+  }
+
   private def _connectMySQL(connect: MySQLConnectionInfo) = {
     binaryLogClient = new BinaryLogClient(connect.host, connect.port, connect.userName, connect.password)
 
@@ -131,6 +161,9 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
               if (currentTable == null) {
                 val tableSchemaInfo = loadSchemaInfo(connect, cacheKey)
                 val currentTableRef = new TableInfo(cacheKey.databaseName, cacheKey.tableName, cacheKey.tableId, tableSchemaInfo.json)
+                if (partitionBy == BinlogPartitionBy.PRIMARY_KEY) {
+                  currentTableRef.setPrimaryKeyIndexes(loadPrimaryKeyIndexes(connect, cacheKey, tableSchemaInfo))
+                }
                 tableInfoCache.put(cacheKey, currentTableRef)
                 currentTable = currentTableRef
               }
@@ -172,16 +205,33 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
     binaryLogClient.connect()
   }
 
-  def loadSchemaInfo(connectionInfo: MySQLConnectionInfo, table: TableInfoCacheKey): StructType = {
+  private def jdbcOptions(connectionInfo: MySQLConnectionInfo, table: TableInfoCacheKey) = {
     val parameters = Map(
       "url" -> s"jdbc:mysql://${connectionInfo.host}:${connectionInfo.port}",
       "user" -> connectionInfo.userName,
       "password" -> connectionInfo.password,
       "dbtable" -> s"${table.databaseName}.${table.tableName}"
     )
-    val jdbcOptions = new JDBCOptions(parameters)
-    val schema = JDBCRDD.resolveTable(jdbcOptions)
-    schema
+    new JDBCOptions(parameters)
+  }
+
+  def loadSchemaInfo(connectionInfo: MySQLConnectionInfo, table: TableInfoCacheKey): StructType = {
+    SchemaTool.resolveTable(jdbcOptions(connectionInfo, table), table.databaseName, table.tableName)
+  }
+
+  def loadPrimaryKeyIndexes(connectionInfo: MySQLConnectionInfo, table: TableInfoCacheKey, schema: StructType): Array[Int] = {
+    val conn = JdbcUtils.createConnectionFactory(jdbcOptions(connectionInfo, table))()
+    try {
+      val rs = conn.getMetaData.getPrimaryKeys(table.databaseName, null, table.tableName)
+      val names = ArrayBuffer[String]()
+      while (rs.next()) {
+        names += rs.getString("COLUMN_NAME")
+      }
+      rs.close()
+      names.map(schema.fieldIndex).toArray
+    } finally {
+      conn.close()
+    }
   }
 
   def connectMySQL(_connect: MySQLConnectionInfo, async: Boolean = true) = {
@@ -215,15 +265,17 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
     BinlogOffset.fromFileAndPos(rawBinlogEvent.getBinlogFilename, rawBinlogEvent.getPos).offset
   }
 
-  def convertRawBinlogEventRecord(rawBinlogEvent: RawBinlogEvent) = {
+  def convertRawBinlogEventRecord(rawBinlogEvent: RawBinlogEvent,
+                                  rowFilter: IntPredicate = BinLogSocketServerInExecutor.ALL_ROWS,
+                                  writers: BinlogRowWriters = defaultWriters) = {
     val writer = rawBinlogEvent.getEventType() match {
-      case "insert" => insertRowsWriter
-      case "update" => updateRowsWriter
-      case "delete" => deleteRowsWriter
+      case "insert" => writers.insertRowsWriter
+      case "update" => writers.updateRowsWriter
+      case "delete" => writers.deleteRowsWriter
     }
 
     val jsonList = try {
-      writer.writeEvent(rawBinlogEvent)
+      writer.writeEvent(rawBinlogEvent, rowFilter)
     } catch {
       case e: Exception =>
         logError("", e)
@@ -298,22 +350,161 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
         queue.clear()
       })
 
+      tryWithoutException(() => {
+        batches.synchronized {
+          batches.values().asScala.foreach(_.events.close())
+          batches.clear()
+        }
+        Utils.deleteRecursively(spillDir)
+      })
+
+
+    }
+  }
+
+  /**
+    * The first partition asking for [start, end) drains these events from the queue into a buffer
+    * (spilled to disk if it is large). All partitions scan the buffer and only convert their own rows.
+    * The buffer is kept until the source commits the batch, so a retried or speculative task gets
+    * the same events. A batch which is neither committed nor read for batchTimeoutMs is dropped.
+    */
+  private def acquireBatch(start: Long, end: Long): BinlogBatch = batches.synchronized {
+    dropExpiredBatches()
+    var batch = batches.get((start, end))
+    if (batch == null) {
+      val buffer = new SpillableBuffer[RawBinlogEvent](Math.max(1, maxBinlogQueueSize / 2), spillDir, s"batch-${start}-${end}")
+      var item = queue.peek()
+      while (item != null && toOffset(item) < end) {
+        queue.poll()
+        // events before start have already been consumed by a previous batch
+        if (toOffset(item) >= start) {
+          buffer.add(item)
+        }
+        item = queue.peek()
+      }
+      buffer.finish()
+      batch = new BinlogBatch(buffer)
+      batches.put((start, end), batch)
+    }
+    batch.readers += 1
+    batch.lastAccess = System.currentTimeMillis()
+    batch
+  }
+
+  private def releaseBatch(start: Long, end: Long, batch: BinlogBatch) = batches.synchronized {
+    batch.readers -= 1
+    batch.lastAccess = System.currentTimeMillis()
+    if (batch.committed && batch.readers == 0) {
+      dropBatch(start, end)
+    }
+  }
+
+  /**
+    * Drops the batches ending at or before end. A batch still being read is dropped when it is released.
+    */
+  def commit(end: Long): Unit = batches.synchronized {
+    batches.asScala.toList.foreach { case ((batchStart, batchEnd), batch) =>
+      if (batchEnd <= end) {
+        batch.committed = true
+        if (batch.readers == 0) dropBatch(batchStart, batchEnd)
+      }
+    }
+  }
+
+  private def dropExpiredBatches() = {
+    val now = System.currentTimeMillis()
+    batches.asScala.toList.foreach { case ((batchStart, batchEnd), batch) =>
+      if (batch.readers == 0 && batch.lastAccess + batchTimeoutMs < now) {
+        logWarning(s"Drop the binlog batch [${batchStart}, ${batchEnd}) which is not committed in ${batchTimeoutMs}ms")
+        dropBatch(batchStart, batchEnd)
+      }
+    }
+  }
+
+  private def dropBatch(start: Long, end: Long) = {
+    val batch = batches.remove((start, end))
+    if (batch != null) batch.events.close()
+  }
+
+  def pendingBatches: Int = batches.synchronized {
+    batches.size()
+  }
+
+  /**
+    * Rows of one table always go to the same partition so that their order is kept.
+    * With BinlogPartitionBy.PRIMARY_KEY the rows are split by the hash of their primary key,
+    * the order of the changes on the same key is still kept. Updates are routed by the key
+    * before the update, so an update which changes the key follows the earlier changes of the row.
+    */
+  def rowFilter(event: RawBinlogEvent, partitionId: Int, numPartitions: Int): IntPredicate = {
+    if (numPartitions <= 1) return BinLogSocketServerInExecutor.ALL_ROWS
+    val tableInfo = event.getTableInfo
+    val primaryKeyIndexes = tableInfo.getPrimaryKeyIndexes
+    if (partitionBy != BinlogPartitionBy.PRIMARY_KEY || primaryKeyIndexes.isEmpty) {
+      val partition = Utils.nonNegativeMod(s"${tableInfo.getDatabaseName}.${tableInfo.getTableName}".hashCode, numPartitions)
+      return if (partition == partitionId) BinLogSocketServerInExecutor.ALL_ROWS else BinLogSocketServerInExecutor.NO_ROWS
+    }
 
+    val rowAt: Int => Array[Serializable] = event.getEventType match {
+      case "insert" =>
+        val rows = event.getEvent.getData[WriteRowsEventData]().getRows
+        i => rows.get(i)
+      case "delete" =>
+        val rows = event.getEvent.getData[DeleteRowsEventData]().getRows
+        i => rows.get(i)
+      case "update" =>
+        val rows = event.getEvent.getData[UpdateRowsEventData]().getRows
+        i => rows.get(i).getKey
+    }
+    new IntPredicate {
+      override def test(i: Int): Boolean = {
+        val row = rowAt(i)
+        val key = primaryKeyIndexes.map(index => row(index): AnyRef)
+        Utils.nonNegativeMod(util.Arrays.deepHashCode(key), numPartitions) == partitionId
+      }
     }
   }
 
+  /**
+    * Send the rows in chunks of about maxChunkBytes so that neither side holds the whole batch in memory.
+    */
+  private def sendInChunks[R](events: Iterator[RawBinlogEvent], maxChunkBytes: Long)
+                             (convert: RawBinlogEvent => Seq[R])
+                             (size: R => Int)
+                             (send: (Seq[R], Boolean) => Unit) = {
+    val chunk = ArrayBuffer[R]()
+    var chunkBytes = 0L
+    events.foreach { item =>
+      convert(item).foreach { row =>
+        chunk += row
+        chunkBytes += size(row)
+        if (maxChunkBytes > 0 && chunkBytes >= maxChunkBytes) {
+          send(chunk, true)
+          chunk.clear()
+          chunkBytes = 0
+        }
+      }
+    }
+    send(chunk, false)
+  }
+
   def handleConnection(socket: Socket): Unit = {
     connections += socket
     socket.setKeepAlive(true)
-    val dIn = new DataInputStream(socket.getInputStream)
-    val dOut = new DataOutputStream(socket.getOutputStream)
+    val dIn = new DataInputStream(new BufferedInputStream(socket.getInputStream))
+    // every response is flushed when it is complete
+    val dOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+    val writers = new BinlogRowWriters()
+    val binaryWriter = rowSchema.map(new BinaryRowsWriter(_))
 
     while (true) {
       readRequest(dIn) match {
         case _: ShutdownBinlogServer =>
           close()
+        case request: RequestCommit =>
+          commit(request.endOffset)
         case _: RequestQueueSize => {
-          sendResponse(dOut, QueueSizeResponse(queue.size()))
+          sendResponse(dOut, QueueSizeResponse(queue.size))
         }
         case _: RequestOffset =>
           sendResponse(dOut, OffsetResponse(BinlogOffset.fromFileAndPos(currentBinlogFile, currentBinlogPosition + 1).offset))
@@ -321,38 +512,77 @@ class BinLogSocketServerInExecutor[T](taskContextRef: AtomicReference[T])
           val start = request.startOffset
           val end = request.endOffset
 
-          // this is used to get all data in queue.
+          // this is used to get all data (kept in memory) in queue.
           // normally for test
           if (start == -1 && end == -1) {
             val res = ArrayBuffer[String]()
-            val iter = queue.iterator()
-
-            while (iter.hasNext) {
-              res ++= convertRawBinlogEventRecord(iter.next()).asScala
+            queue.inMemory.foreach { item =>
+              res ++= convertRawBinlogEventRecord(item, writers = writers).asScala
             }
             sendResponse(dOut, DataResponse(res.toList))
             return
           }
 
-          var item: RawBinlogEvent = queue.poll()
-          val res = ArrayBuffer[String]()
+          val numPartitions = Math.max(1, request.numPartitions)
+          val batch = acquireBatch(start, end)
+          maybeResume()
+          // every partition deserializes the spilled events again with its own stream
+          val events = batch.events.iterator
           try {
-            while (item != null && toOffset(item) >= start && toOffset(item) < end) {
-              res ++= convertRawBinlogEventRecord(item).asScala
-              item = queue.poll()
-              currentQueueSize.decrementAndGet()
+            def filter(item: RawBinlogEvent) = rowFilter(item, request.partitionId, numPartitions)
+
+            binaryWriter match {
+              case Some(writer) =>
+                // an event which can not be converted fails the batch instead of being dropped
+                try {
+                  sendInChunks[Array[Byte]](events, request.maxChunkBytes)(item =>
+                    writer.writeEvent(item, filter(item))
+                  )(_.length)((rows, hasMore) => sendRows(dOut, rows, hasMore))
+                } catch {
+                  case e: Exception =>
+                    logError(s"Fail to convert the binlog events of [${start}, ${end})", e)
+                    sendResponse(dOut, ErrorResponse(s"${e.getClass.getName}: ${e.getMessage}"))
+                }
+              case None =>
+                sendInChunks[String](events, request.maxChunkBytes)(item =>
+                  convertRawBinlogEventRecord(item, filter(item), writers).asScala
+                )(_.length)((rows, hasMore) => sendResponse(dOut, DataResponse(rows.toList, hasMore)))
             }
-          } catch {
-            case e: Exception =>
-              logError("", e)
+          } finally {
+            events.close()
+            releaseBatch(start, end, batch)
           }
-          sendResponse(dOut, DataResponse(res.toList))
       }
     }
 
   }
 }
 
+/**
+  * Guarded by the batches map of the server.
+  */
+class BinlogBatch(val events: SpillableBuffer[RawBinlogEvent]) {
+  var readers = 0
+  var committed = false
+  var lastAccess = System.currentTimeMillis()
+}
+
+class BinlogRowWriters {
+  val updateRowsWriter = new UpdateRowsWriter()
+  val deleteRowsWriter = new DeleteRowsWriter()
+  val insertRowsWriter = new InsertRowsWriter()
+}
+
 object BinLogSocketServerInExecutor {
   val FILE_NAME_NOT_SET = "file_name_not_set"
+
+  val BATCH_TIMEOUT_MS = 30 * 60 * 1000L
+
+  val ALL_ROWS = new IntPredicate {
+    override def test(value: Int): Boolean = true
+  }
+
+  val NO_ROWS = new IntPredicate {
+    override def test(value: Int): Boolean = false
+  }
 }
@@ -1,14 +1,18 @@
 package org.apache.spark.sql.delta.sources.mysql.binlog;
 
+import java.io.Serializable;
+
 /**
  * 2019-06-14 WilliamZhu(allwefantasy@gmail.com)
  */
-public class TableInfo {
+public class TableInfo implements Serializable {
 
     private String databaseName;
     private String tableName;
     private Long tableId;
     private String schema;
+    // indexes of the primary key columns in schema, empty when unknown
+    private int[] primaryKeyIndexes = new int[0];
 
     public TableInfo(String databaseName, String tableName, Long tableId, String schema) {
         this.databaseName = databaseName;
@@ -41,6 +45,14 @@ public class TableInfo {
         this.tableId = tableId;
     }
 
+    public int[] getPrimaryKeyIndexes() {
+        return primaryKeyIndexes;
+    }
+
+    public void setPrimaryKeyIndexes(int[] primaryKeyIndexes) {
+        this.primaryKeyIndexes = primaryKeyIndexes;
+    }
+
     public String getSchema() {
         return schema;
     }
@@ -6,6 +6,7 @@ import org.apache.spark.sql.delta.sources.mysql.binlog.RawBinlogEvent;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.function.IntPredicate;
 
 public abstract class AbstractEventWriter {
 
@@ -59,5 +60,10 @@ public abstract class AbstractEventWriter {
         return JSON_FACTORY.createGenerator(out);
     }
 
-    public abstract java.util.List<String> writeEvent(RawBinlogEvent event);
+    public java.util.List<String> writeEvent(RawBinlogEvent event) {
+        return writeEvent(event, i -> true);
+    }
+
+    // Only the rows whose index in the event matches rowFilter are written.
+    public abstract java.util.List<String> writeEvent(RawBinlogEvent event, IntPredicate rowFilter);
 }
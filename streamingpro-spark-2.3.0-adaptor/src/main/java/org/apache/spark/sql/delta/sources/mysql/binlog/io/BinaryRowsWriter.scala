@@ -0,0 +1,163 @@
+package org.apache.spark.sql.delta.sources.mysql.binlog.io
+
+import java.io.Serializable
+import java.util
+import java.util.function.IntPredicate
+
+import com.github.shyiko.mysql.binlog.event.{DeleteRowsEventData, UpdateRowsEventData, WriteRowsEventData}
+import org.apache.spark.sql.catalyst.expressions.{GenericInternalRow, UnsafeProjection, UnsafeRow}
+import org.apache.spark.sql.catalyst.util.DateTimeUtils
+import org.apache.spark.sql.delta.sources.mysql.binlog.{BinlogOffset, RawBinlogEvent}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Writes the rows of binlog events as UnsafeRow bytes of BinaryRowsWriter.outputSchema(tableSchema),
+  * so the source can hand them to spark without encoding and parsing json.
+  *
+  * The events are deserialized with DATE_AND_TIME_AS_LONG and CHAR_AND_BINARY_AS_BYTE_ARRAY,
+  * the converters below turn these values into the catalyst values of the jdbc types. Values of
+  * unsigned integer columns (see SchemaTool.UNSIGNED_BITS) are read as unsigned. A value which can
+  * not be converted fails the event, and so does an event whose table schema is not tableSchema
+  * (e.g. the table was altered after the stream started): its rows can not be written with the
+  * schema the source reports to spark, and skipping them would silently lose changes.
+  *
+  * Not thread safe, every connection should use its own writer.
+  */
+class BinaryRowsWriter(tableSchema: StructType) {
+
+  private val outputSchema = BinaryRowsWriter.outputSchema(tableSchema)
+  private val projection = UnsafeProjection.create(outputSchema)
+  private val converters = tableSchema.fields.map(BinaryRowsWriter.makeConverter)
+  // schema json in TableInfo -> whether it matches tableSchema
+  private val matchedSchemas = new util.HashMap[String, java.lang.Boolean]()
+
+  def writeEvent(event: RawBinlogEvent, rowFilter: IntPredicate): Seq[Array[Byte]] = {
+    checkSchema(event)
+    val (rows, includedColumns) = event.getEventType match {
+      case "insert" =>
+        val data = event.getEvent.getData[WriteRowsEventData]()
+        (data.getRows.asScala, data.getIncludedColumns)
+      case "delete" =>
+        val data = event.getEvent.getData[DeleteRowsEventData]()
+        (data.getRows.asScala, data.getIncludedColumns)
+      case "update" =>
+        val data = event.getEvent.getData[UpdateRowsEventData]()
+        (data.getRows.asScala.map(_.getValue), data.getIncludedColumns)
+    }
+
+    val op = UTF8String.fromString(event.getEventType)
+    val offset = BinlogOffset.fromFileAndPos(event.getBinlogFilename, event.getPos).offset
+    val numColumns = converters.length
+    val result = new ArrayBuffer[Array[Byte]](rows.size)
+    var index = 0
+    rows.foreach { row =>
+      if (rowFilter.test(index)) {
+        val values = new Array[Any](numColumns + 2)
+        var i = includedColumns.nextSetBit(0)
+        while (i != -1 && i < numColumns) {
+          values(i) = if (row(i) == null) null else converters(i)(row(i))
+          i = includedColumns.nextSetBit(i + 1)
+        }
+        values(numColumns) = op
+        values(numColumns + 1) = offset
+        // the projection reuses its buffer
+        result += projection(new GenericInternalRow(values)).copy().getBytes
+      }
+      index += 1
+    }
+    result
+  }
+
+  private def checkSchema(event: RawBinlogEvent): Unit = {
+    val schemaJson = event.getTableInfo.getSchema
+    var res = matchedSchemas.get(schemaJson)
+    if (res == null) {
+      val schema = DataType.fromJson(schemaJson).asInstanceOf[StructType]
+      res = schema.map(f => (f.name, f.dataType)) == tableSchema.map(f => (f.name, f.dataType))
+      matchedSchemas.put(schemaJson, res)
+    }
+    if (!res) {
+      val table = event.getTableInfo
+      val schema = DataType.fromJson(schemaJson).asInstanceOf[StructType]
+      throw new IllegalStateException(s"The schema of ${table.getDatabaseName}.${table.getTableName} " +
+        s"changed to ${schema.simpleString} at ${event.getBinlogFilename}:${event.getPos}, " +
+        s"binlogFormat=row needs ${tableSchema.simpleString}. Restart the stream to pick up the new schema.")
+    }
+  }
+}
+
+object BinaryRowsWriter {
+  val OP_COLUMN = "__op"
+  val OFFSET_COLUMN = "__binlog_offset"
+
+  def outputSchema(tableSchema: StructType): StructType = {
+    tableSchema.
+      add(StructField(OP_COLUMN, StringType, nullable = false)).
+      add(StructField(OFFSET_COLUMN, LongType, nullable = false))
+  }
+
+  def toRow(bytes: Array[Byte], numFields: Int): UnsafeRow = {
+    val row = new UnsafeRow(numFields)
+    row.pointTo(bytes, bytes.length)
+    row
+  }
+
+  private def number(value: Serializable): Number = value match {
+    case v: Number => v
+    case v: java.lang.Boolean => java.lang.Long.valueOf(if (v.booleanValue()) 1L else 0L)
+    case v: util.BitSet => java.lang.Long.valueOf(if (v.isEmpty) 0L else v.toLongArray()(0))
+    case v => new java.math.BigDecimal(string(v))
+  }
+
+  private def string(value: Serializable): String = value match {
+    case v: Array[Byte] => new String(v, "utf-8")
+    case v => v.toString
+  }
+
+  def makeConverter(field: StructField): Serializable => Any = {
+    val converter = makeConverter(field.dataType)
+    if (field.metadata.contains(SchemaTool.UNSIGNED_BITS)) {
+      val bits = field.metadata.getLong(SchemaTool.UNSIGNED_BITS).toInt
+      v => converter(unsigned(v, bits))
+    } else converter
+  }
+
+  private def unsigned(value: Serializable, bits: Int): Serializable = value match {
+    case v: java.math.BigDecimal => v
+    case v: java.math.BigInteger => v
+    case v: Number if bits >= 64 => new java.math.BigDecimal(java.lang.Long.toUnsignedString(v.longValue()))
+    case v: Number => java.lang.Long.valueOf(v.longValue() & ((1L << bits) - 1))
+    case v => v
+  }
+
+  def makeConverter(dataType: DataType): Serializable => Any = dataType match {
+    case BooleanType => v => number(v).longValue() != 0
+    case ByteType => v => number(v).byteValue()
+    case ShortType => v => number(v).shortValue()
+    case IntegerType => v => number(v).intValue()
+    case LongType => v => number(v).longValue()
+    case FloatType => v => number(v).floatValue()
+    case DoubleType => v => number(v).doubleValue()
+    case t: DecimalType => {
+      case v: java.math.BigDecimal => Decimal(BigDecimal(v), t.precision, t.scale)
+      case v => Decimal(BigDecimal(string(v)), t.precision, t.scale)
+    }
+    // DATE_AND_TIME_AS_LONG gives the milliseconds since epoch (UTC)
+    case DateType => v => Math.floorDiv(number(v).longValue(), DateTimeUtils.MILLIS_PER_DAY).toInt
+    case TimestampType => v => number(v).longValue() * 1000L
+    case BinaryType => {
+      case v: Array[Byte] => v
+      case v: util.BitSet => v.toByteArray
+      case v => string(v).getBytes("utf-8")
+    }
+    case StringType => {
+      case v: Array[Byte] => UTF8String.fromBytes(v)
+      case v => UTF8String.fromString(v.toString)
+    }
+    case t => v => throw new IllegalArgumentException(s"Can not convert ${v.getClass.getName} to ${t.simpleString}")
+  }
+}
@@ -12,16 +12,22 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.function.IntPredicate;
 
 public class InsertRowsWriter extends AbstractEventWriter {
 
 
     @Override
-    public List<String> writeEvent(RawBinlogEvent event) {
+    public List<String> writeEvent(RawBinlogEvent event, IntPredicate rowFilter) {
         WriteRowsEventData data = event.getEvent().getData();
         List<String> items = new ArrayList<>();
 
+        int index = -1;
         for (Serializable[] row : data.getRows()) {
+            index++;
+            if (!rowFilter.test(index)) {
+                continue;
+            }
             try {
                 StringWriter writer = new StringWriter();
                 startJson(writer, event);
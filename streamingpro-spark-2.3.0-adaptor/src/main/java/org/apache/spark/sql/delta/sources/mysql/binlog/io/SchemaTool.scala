@@ -1,6 +1,9 @@
 package org.apache.spark.sql.delta.sources.mysql.binlog.io
 
-import org.apache.spark.sql.types.{BinaryType, DataType, StructType}
+import org.apache.spark.sql.execution.datasources.jdbc.{JDBCOptions, JDBCRDD, JdbcUtils}
+import org.apache.spark.sql.types._
+
+import scala.collection.mutable
 
 /**
   * 2019-06-14 WilliamZhu(allwefantasy@gmail.com)
@@ -16,3 +19,48 @@ class SchemaTool(json: String) {
     schema(i).dataType == BinaryType
   }
 }
+
+object SchemaTool {
+  // the bits of an unsigned integer column, binlog events carry its values as signed numbers
+  val UNSIGNED_BITS = "mysqlUnsignedBits"
+
+  private val INTEGER_BITS = Map("tinyint" -> 8, "smallint" -> 16, "mediumint" -> 24, "int" -> 32, "bigint" -> 64)
+
+  /**
+    * The schema of a MySQL table as resolved by spark jdbc, except that unsigned int columns are long
+    * and unsigned bigint columns are decimal(20,0) whatever the driver reports. Unsigned integer
+    * columns are marked with UNSIGNED_BITS so the binlog values can be read as unsigned.
+    */
+  def resolveTable(options: JDBCOptions, databaseName: String, tableName: String): StructType = {
+    val schema = JDBCRDD.resolveTable(options)
+    val conn = JdbcUtils.createConnectionFactory(options)()
+    val unsignedColumns = try {
+      val statement = conn.prepareStatement("select column_name, data_type from information_schema.columns " +
+        "where table_schema = ? and table_name = ? and column_type like '%unsigned%'")
+      statement.setString(1, databaseName)
+      statement.setString(2, tableName)
+      val rs = statement.executeQuery()
+      val res = mutable.Map[String, Int]()
+      while (rs.next()) {
+        INTEGER_BITS.get(rs.getString(2).toLowerCase).foreach(bits => res.put(rs.getString(1), bits))
+      }
+      rs.close()
+      res
+    } finally {
+      conn.close()
+    }
+    StructType(schema.map { field =>
+      unsignedColumns.get(field.name) match {
+        case Some(bits) =>
+          val dataType = bits match {
+            case 64 => DecimalType(20, 0)
+            case 32 => LongType
+            case _ => field.dataType
+          }
+          field.copy(dataType = dataType,
+            metadata = new MetadataBuilder().withMetadata(field.metadata).putLong(UNSIGNED_BITS, bits).build())
+        case None => field
+      }
+    })
+  }
+}
@@ -12,17 +12,23 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.List;
+import java.util.function.IntPredicate;
 import java.util.Map;
 
 public class UpdateRowsWriter extends AbstractEventWriter {
 
 
     @Override
-    public List<String> writeEvent(RawBinlogEvent event) {
+    public List<String> writeEvent(RawBinlogEvent event, IntPredicate rowFilter) {
         UpdateRowsEventData data = event.getEvent().getData();
         List<String> items = new ArrayList<>();
 
+        int index = -1;
         for (Map.Entry<Serializable[], Serializable[]> row : data.getRows()) {
+            index++;
+            if (!rowFilter.test(index)) {
+                continue;
+            }
             try {
                 StringWriter writer = new StringWriter();
                 startJson(writer, event);
@@ -38,6 +38,20 @@ case class MySQLConnectionInfo(host: String, port: Int, userName: String, passwo
 
 case class TableInfoCacheKey(databaseName: String, tableName: String, tableId: Long)
 
+object BinlogPartitionBy {
+  // all rows of one table go to the same partition
+  val TABLE = "table"
+  // rows are split by the hash of the primary key, tables without primary key fall back to TABLE
+  val PRIMARY_KEY = "primaryKey"
+}
+
+object BinlogFormat {
+  // every row is a json string in the value column
+  val JSON = "json"
+  // rows carry the columns of the table plus __op and __binlog_offset
+  val ROW = "row"
+}
+
 // protocols
 sealed trait Request {
   def wrap: BinlogSocketRequest
@@ -53,15 +67,21 @@ sealed trait Response {
 
 case class BinlogSocketResponse(offsetResponse: OffsetResponse = null,
                                 dataResponse: DataResponse = null,
-                                queueSizeResponse: QueueSizeResponse = null
+                                rowDataResponse: RowDataResponse = null,
+                                queueSizeResponse: QueueSizeResponse = null,
+                                errorResponse: ErrorResponse = null
                                ) {
   def unwrap: Response = {
     if (offsetResponse != null) {
       offsetResponse
     } else if (dataResponse != null) {
       dataResponse
+    } else if (rowDataResponse != null) {
+      rowDataResponse
     } else if (queueSizeResponse != null) {
       queueSizeResponse
+    } else if (errorResponse != null) {
+      errorResponse
     } else {
       null
     }
@@ -72,6 +92,13 @@ case class QueueSizeResponse(size: Long) extends Response {
   override def wrap: BinlogSocketResponse = BinlogSocketResponse(queueSizeResponse = this)
 }
 
+/**
+  * Ends the response of a RequestData which failed on the binlog server.
+  */
+case class ErrorResponse(message: String) extends Response {
+  override def wrap: BinlogSocketResponse = BinlogSocketResponse(errorResponse = this)
+}
+
 case class ReportBinlogSocketServerHostAndPort(host: String, port: Int) extends Request {
   override def wrap: BinlogSocketRequest = BinlogSocketRequest(reportBinlogSocketServerHostAndPort = this)
 }
@@ -84,14 +111,40 @@ case class OffsetResponse(currentOffset: Long) extends Response {
   override def wrap: BinlogSocketResponse = BinlogSocketResponse(offsetResponse = this)
 }
 
-case class DataResponse(data: List[String]) extends Response {
+/**
+  * Data of one RequestData is sent in chunks, hasMore is false in the last one.
+  */
+case class DataResponse(data: List[String], hasMore: Boolean = false) extends Response {
   override def wrap: BinlogSocketResponse = BinlogSocketResponse(dataResponse = this)
 }
 
-case class RequestData(startOffset: Long, endOffset: Long) extends Request {
+/**
+  * Header of a chunk of UnsafeRow bytes, it is followed by numRows (length, bytes) frames.
+  * Used instead of DataResponse when the binlog server is started with a row schema.
+  */
+case class RowDataResponse(numRows: Int, hasMore: Boolean = false) extends Response {
+  override def wrap: BinlogSocketResponse = BinlogSocketResponse(rowDataResponse = this)
+}
+
+/**
+  * Fetch the rows of [startOffset, endOffset) which belong to partitionId (of numPartitions).
+  * Every chunk of the response holds about maxChunkBytes bytes, 0 means no limit.
+  */
+case class RequestData(startOffset: Long, endOffset: Long,
+                       partitionId: Int = 0,
+                       numPartitions: Int = 1,
+                       maxChunkBytes: Long = 0) extends Request {
   override def wrap: BinlogSocketRequest = BinlogSocketRequest(requestData = this)
 }
 
+/**
+  * The source committed the batches ending at or before endOffset, their events are dropped.
+  * There is no response.
+  */
+case class RequestCommit(endOffset: Long) extends Request {
+  override def wrap: BinlogSocketRequest = BinlogSocketRequest(requestCommit = this)
+}
+
 case class RequestOffset() extends Request {
   override def wrap: BinlogSocketRequest = BinlogSocketRequest(requestOffset = this)
 }
@@ -105,7 +158,8 @@ case class BinlogSocketRequest(
                                 requestOffset: RequestOffset = null,
                                 requestQueueSize: RequestQueueSize = null,
                                 reportBinlogSocketServerHostAndPort: ReportBinlogSocketServerHostAndPort = null,
-                                shutdownBinlogServer: ShutdownBinlogServer = null
+                                shutdownBinlogServer: ShutdownBinlogServer = null,
+                                requestCommit: RequestCommit = null
                               ) {
   def unwrap: Request = {
     if (requestData != null) {
@@ -118,6 +172,8 @@ case class BinlogSocketRequest(
       reportBinlogSocketServerHostAndPort
     } else if (shutdownBinlogServer != null) {
       shutdownBinlogServer
+    } else if (requestCommit != null) {
+      requestCommit
     } else {
       null
     }
@@ -139,6 +139,26 @@ trait BinLogSocketServerSerDer {
     dOut.flush()
   }
 
+  def sendRows(dOut: DataOutputStream, rows: Seq[Array[Byte]], hasMore: Boolean) = {
+    val bytes = RowDataResponse(rows.size, hasMore).json.getBytes(StandardCharsets.UTF_8)
+    dOut.writeInt(bytes.length)
+    dOut.write(bytes)
+    rows.foreach { row =>
+      dOut.writeInt(row.length)
+      dOut.write(row)
+    }
+    dOut.flush()
+  }
+
+  def readRows(dIn: DataInputStream, response: RowDataResponse): Seq[Array[Byte]] = {
+    (0 until response.numRows).map { _ =>
+      val length = dIn.readInt()
+      val bytes = new Array[Byte](length)
+      dIn.readFully(bytes, 0, length)
+      bytes
+    }
+  }
+
   def readResponse(dIn: DataInputStream) = {
     val length = dIn.readInt()
     val bytes = new Array[Byte](length)
@@ -0,0 +1,211 @@
+package org.apache.spark.sql.delta.sources.mysql.binlog
+
+import java.io._
+
+import org.apache.spark.SparkEnv
+import org.apache.spark.util.Utils
+
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * A FIFO queue which keeps at most maxInMemory items in memory.
+  * Items offered beyond that are java-serialized to segment files (at most maxInMemory items each)
+  * and are loaded back one segment at a time once the in-memory part is drained, so the order is kept
+  * and the memory stays bounded.
+  */
+class SpillableQueue[T <: Serializable](maxInMemory: Long, dir: File) {
+  private val memory = new java.util.ArrayDeque[T]()
+  // closed segments and the number of items in them
+  private val segments = new java.util.ArrayDeque[(File, Long)]()
+  private var writer: ObjectOutputStream = null
+  private var writerFile: File = null
+  private var writerCount = 0L
+  private var spilledCount = 0L
+  private var segmentId = 0
+
+  def offer(item: T): Unit = synchronized {
+    // once something is spilled, new items have to go after it
+    if (spilledCount == 0 && memory.size() < maxInMemory) {
+      memory.addLast(item)
+    } else {
+      spill(item)
+    }
+  }
+
+  def peek(): T = synchronized {
+    refill()
+    memory.peekFirst()
+  }
+
+  def poll(): T = synchronized {
+    refill()
+    memory.pollFirst()
+  }
+
+  def size: Long = synchronized {
+    memory.size() + spilledCount
+  }
+
+  def spilled: Long = synchronized {
+    spilledCount
+  }
+
+  def inMemory: Seq[T] = synchronized {
+    val res = ArrayBuffer[T]()
+    val iter = memory.iterator()
+    while (iter.hasNext) {
+      res += iter.next()
+    }
+    res
+  }
+
+  def clear(): Unit = synchronized {
+    memory.clear()
+    if (writer != null) {
+      writer.close()
+      writer = null
+      writerFile.delete()
+    }
+    while (!segments.isEmpty) {
+      segments.pollFirst()._1.delete()
+    }
+    spilledCount = 0
+  }
+
+  private def spill(item: T): Unit = {
+    if (writer == null) {
+      segmentId += 1
+      writerFile = new File(dir, s"segment-${segmentId}")
+      writer = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(writerFile)))
+      writerCount = 0
+    }
+    writer.writeObject(item)
+    // don't keep references to the written objects
+    writer.reset()
+    writerCount += 1
+    spilledCount += 1
+    if (writerCount >= maxInMemory) {
+      closeWriter()
+    }
+  }
+
+  private def closeWriter(): Unit = {
+    if (writer != null) {
+      writer.close()
+      segments.addLast((writerFile, writerCount))
+      writer = null
+    }
+  }
+
+  private def refill(): Unit = {
+    if (memory.isEmpty && spilledCount > 0) {
+      if (segments.isEmpty) closeWriter()
+      val (file, count) = segments.pollFirst()
+      val in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))
+      try {
+        var i = 0L
+        while (i < count) {
+          memory.addLast(in.readObject().asInstanceOf[T])
+          i += 1
+        }
+      } finally {
+        in.close()
+        file.delete()
+      }
+      spilledCount -= count
+    }
+  }
+}
+
+/**
+  * An append-only buffer which can be iterated many times (also concurrently) after finish.
+  * Items beyond maxInMemory are java-serialized to one file.
+  */
+class SpillableBuffer[T <: Serializable](maxInMemory: Long, dir: File, name: String) {
+  private val memory = ArrayBuffer[T]()
+  private val file = new File(dir, name)
+  private var writer: ObjectOutputStream = null
+  private var spilledCount = 0L
+
+  def add(item: T): Unit = {
+    if (memory.size < maxInMemory) {
+      memory += item
+    } else {
+      if (writer == null) {
+        writer = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))
+      }
+      writer.writeObject(item)
+      writer.reset()
+      spilledCount += 1
+    }
+  }
+
+  def finish(): Unit = {
+    if (writer != null) {
+      writer.close()
+      writer = null
+    }
+  }
+
+  def size: Long = memory.size + spilledCount
+
+  /**
+    * Every iterator reads the spilled file with its own stream, so it has to be closed when it
+    * is not read to the end, e.g. a partition fails while sending the batch.
+    */
+  def iterator: SpillableIterator[T] = {
+    val spilled = spilledCount
+    new SpillableIterator[T] {
+      private val inMemory = memory.iterator
+      private var in: ObjectInputStream = null
+      private var read = 0L
+      private var closed = false
+
+      override def hasNext: Boolean = {
+        if (closed) return false
+        val res = inMemory.hasNext || read < spilled
+        if (!res) close()
+        res
+      }
+
+      override def next(): T = {
+        if (!hasNext) throw new NoSuchElementException("the spilled buffer is exhausted")
+        if (inMemory.hasNext) {
+          inMemory.next()
+        } else {
+          if (in == null) {
+            in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))
+          }
+          read += 1
+          in.readObject().asInstanceOf[T]
+        }
+      }
+
+      override def close(): Unit = {
+        closed = true
+        if (in != null) {
+          in.close()
+          in = null
+        }
+      }
+    }
+  }
+
+  def close(): Unit = {
+    finish()
+    memory.clear()
+    file.delete()
+  }
+}
+
+trait SpillableIterator[T] extends Iterator[T] with Closeable
+
+object SpillableQueue {
+  def createSpillDir(prefix: String): File = {
+    val root = if (SparkEnv.get == null) {
+      // SparkEnv.get is null in tests
+      System.getProperty("java.io.tmpdir")
+    } else Utils.getLocalDir(SparkEnv.get.conf)
+    Utils.createTempDir(root, prefix)
+  }
+}
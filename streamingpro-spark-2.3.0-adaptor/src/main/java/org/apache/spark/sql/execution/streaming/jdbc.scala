@@ -22,32 +22,42 @@ package org.apache.spark.sql.execution.streaming
   * Created by allwefantasy on 20/8/2018.
   */
 
-import java.sql.PreparedStatement
-
-import org.apache.spark.TaskContext
 import org.apache.spark.internal.Logging
 import org.apache.spark.sql.catalyst.encoders._
 import org.apache.spark.sql.sources.{DataSourceRegister, StreamSinkProvider}
 import org.apache.spark.sql.streaming.OutputMode
-import org.apache.spark.sql.types._
-import org.apache.spark.sql.{DataFrame, ForeachWriter, Row, SQLContext}
+import org.apache.spark.sql.{DataFrame, SQLContext}
+import org.apache.spark.util.LongAccumulator
 
 
 /*
   named parameter is not support yet.
+
+  Every partition writes in one transaction on a connection of the executor wide JDBCConnectionPool,
+  the statements are flushed every batchSize (default 1000) rows.
+  Set rewriteBatchedStatements=true to send plain inserts as multi-row inserts.
+
+  The rows/s of the last micro batch is in the sink description of the query progress and in
+  _mlsql_.`metrics/jdbcSink`.
  */
 class JDBCSink(_options: Map[String, String]) extends Sink with Logging {
 
+  private var rowsWritten: LongAccumulator = _
+
+  @volatile private var lastProgress: JDBCSinkProgress = _
+
+  def progress: JDBCSinkProgress = lastProgress
+
   override def addBatch(batchId: Long, data: DataFrame): Unit = synchronized {
     val options = _options
     val schema = data.schema
 
     def executeInDriver = {
-      val driver = options("driver")
       val url = options("url")
-      Class.forName(driver)
-      val connection = java.sql.DriverManager.getConnection(url, options("user"), options("password"))
+      val connection = JDBCConnectionPool.borrow(options("driver"), url, options("user"), options("password"))
+      var broken = false
       try {
+        connection.setAutoCommit(true)
         // we suppose that there is only one create if
         val statements = options.filter(f =>"""driver\-statement\-[0-9]+""".r.findFirstMatchIn(f._1).nonEmpty).
           map(f => (f._1.split("-").last.toInt, f._2)).toSeq.sortBy(f => f._1).map(f => f._2).map { f =>
@@ -58,101 +68,58 @@ class JDBCSink(_options: Map[String, String]) extends Sink with Logging {
           f.execute()
           f
         }.map(_.close())
+      } catch {
+        case e: Exception =>
+          broken = true
+          throw e
       } finally {
-        if (connection != null)
-          connection.close()
+        if (broken) connection.close() else JDBCConnectionPool.giveBack(url, options("user"), connection)
       }
 
     }
 
     executeInDriver
 
-    val writer = new ForeachWriter[Row] {
-      var connection: java.sql.Connection = _
-      var statement: java.sql.Statement = _
-
-      var sqlArray: Seq[PreparedStatement] = _
-
-      override def open(partitionId: Long, version: Long): Boolean = {
-        val driver = options("driver")
-        val url = options("url")
-        Class.forName(driver)
-        connection = java.sql.DriverManager.getConnection(url, options("user"), options("password"))
-        connection.setAutoCommit(false)
-        sqlArray = options.filter(f =>"""statement\-[0-9]+""".r.findFirstMatchIn(f._1).nonEmpty).
-          filter(f => !f._1.startsWith("driver")).
-          map(f => (f._1.split("-").last.toInt, f._2)).toSeq.sortBy(f => f._1).map(f => f._2).map { f =>
-          connection.prepareStatement(f)
-        }
-        if (sqlArray.size == 0) {
-          throw new RuntimeException("executor-statement-[number] should be configured")
-        }
-        true
-      }
-
-      def executeUpdate(statement: PreparedStatement, value: Row) = {
-        (0 until statement.getParameterMetaData.getParameterCount).foreach { f =>
-          val sqlIndex = f + 1
-          schema.fields(f).dataType match {
-            case StringType => statement.setString(sqlIndex, value.getString(f))
-            case IntegerType => statement.setInt(sqlIndex, value.getInt(f))
-            case LongType => statement.setLong(sqlIndex, value.getLong(f))
-            case DoubleType => statement.setDouble(sqlIndex, value.getDouble(f))
-            case NullType => statement.setString(sqlIndex, null)
-            case BooleanType => statement.setBoolean(sqlIndex, value.getBoolean(f))
-            case DateType => statement.setDate(sqlIndex, value.getDate(f))
-            case _ => throw new RuntimeException("JDBC is not support this type")
-          }
-
-        }
-        statement.addBatch()
-        true
-      }
-
-      //statement-0 sequence
-      override def process(value: Row): Unit = {
-        sqlArray.map { st =>
-          executeUpdate(st, value)
-        }.size
-      }
-
-      override def close(errorOrNull: Throwable): Unit = {
-        if (connection != null) {
-          try {
-            sqlArray.map(_.execute()).size
-            connection.commit()
-          } catch {
-            case e: Exception =>
-              e.printStackTrace()
-              connection.rollback()
-          } finally {
-            sqlArray.map(_.close())
-            connection.close()
-          }
-
-        }
-
-      }
-    }
-
     val rowEncoder = RowEncoder.apply(schema).resolveAndBind()
+    if (rowsWritten == null) {
+      rowsWritten = data.sparkSession.sparkContext.longAccumulator("jdbc sink rows")
+    }
+    val accumulator = rowsWritten
+    val rowsBefore = accumulator.value
+    val startTime = System.currentTimeMillis()
 
     data.queryExecution.toRdd.foreachPartition { iter =>
-      if (writer.open(TaskContext.getPartitionId(), batchId)) {
-        try {
-          while (iter.hasNext) {
-            writer.process(rowEncoder.fromRow(iter.next()))
-          }
-        } catch {
-          case e: Throwable =>
-            writer.close(e)
-            throw e
+      val writer = new JDBCPartitionWriter(options, schema)
+      writer.open()
+      try {
+        while (iter.hasNext) {
+          writer.write(rowEncoder.fromRow(iter.next()))
         }
-        writer.close(null)
-      } else {
-        writer.close(null)
+      } catch {
+        case e: Throwable =>
+          writer.close(e)
+          throw e
       }
+      writer.close(null)
+      accumulator.add(writer.committedRows)
     }
+
+    lastProgress = JDBCSinkProgress(batchId, accumulator.value - rowsBefore,
+      System.currentTimeMillis() - startTime, accumulator.value)
+    logInfo(f"JDBCSink batch ${batchId} wrote ${lastProgress.numRows} rows in ${lastProgress.durationMs}ms " +
+      f"(${lastProgress.rowsPerSecond}%.1f rows/s)")
+    Option(data.sparkSession.sparkContext.getLocalProperty(StreamExecution.QUERY_ID_KEY)).foreach { queryId =>
+      JDBCSinkMetrics.update(queryId, options("url"), lastProgress)
+    }
+  }
+
+  // reported as the sink description of every StreamingQueryProgress
+  override def toString: String = {
+    val progress = lastProgress
+    val url = JDBCSinkMetrics.displayUrl(_options("url"))
+    if (progress == null) s"JDBCSink[${url}]"
+    else f"JDBCSink[${url}] batchId=${progress.batchId} numRows=${progress.numRows} " +
+      f"durationMs=${progress.durationMs} rowsPerSecond=${progress.rowsPerSecond}%.1f"
   }
 }
 
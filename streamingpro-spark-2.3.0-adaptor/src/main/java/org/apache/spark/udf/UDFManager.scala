@@ -29,4 +29,11 @@ object UDFManager {
   def register(sparkSession: SparkSession, name: String, udf: (Seq[Expression]) => ScalaUDF) = {
     sparkSession.sessionState.functionRegistry.registerFunction(FunctionIdentifier(name), udf)
   }
+
+  /**
+    * for functions which are not evaluated by ScalaUDF, e.g. vectorized python udf.
+    */
+  def registerExpression(sparkSession: SparkSession, name: String, builder: (Seq[Expression]) => Expression) = {
+    sparkSession.sessionState.functionRegistry.registerFunction(FunctionIdentifier(name), builder)
+  }
 }
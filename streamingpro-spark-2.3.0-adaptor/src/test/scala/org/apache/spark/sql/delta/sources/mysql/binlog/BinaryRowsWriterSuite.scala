@@ -0,0 +1,90 @@
+package org.apache.spark.sql.delta.sources.mysql.binlog
+
+import java.io.Serializable
+import java.util
+
+import com.github.shyiko.mysql.binlog.event.{Event, EventHeaderV4, WriteRowsEventData}
+import org.apache.spark.sql.delta.sources.mysql.binlog.io.{BinaryRowsWriter, SchemaTool}
+import org.apache.spark.sql.types._
+import org.apache.spark.unsafe.types.UTF8String
+import org.scalatest.{FlatSpec, Matchers}
+
+class BinaryRowsWriterSuite extends FlatSpec with Matchers {
+
+  private def unsigned(name: String, dataType: DataType, bits: Int) = {
+    StructField(name, dataType, metadata = new MetadataBuilder().putLong(SchemaTool.UNSIGNED_BITS, bits).build())
+  }
+
+  private def insertEvent(schema: StructType, rows: Seq[Array[Serializable]]): RawBinlogEvent = {
+    val data = new WriteRowsEventData()
+    val columns = new util.BitSet()
+    columns.set(0, schema.length)
+    data.setIncludedColumns(columns)
+    data.setRows(new util.ArrayList[Array[Serializable]](util.Arrays.asList(rows: _*)))
+    val table = new TableInfo("db", "table", 1L, schema.json)
+    new RawBinlogEvent(new Event(new EventHeaderV4(), data), table, "mysql-bin.000001", "insert", 4L)
+  }
+
+  "BinaryRowsWriter" should "convert the binlog values to catalyst values" in {
+    def convert(dataType: DataType, value: Serializable) = BinaryRowsWriter.makeConverter(dataType)(value)
+
+    convert(IntegerType, Integer.valueOf(3)) should be(3)
+    convert(LongType, Integer.valueOf(3)) should be(3L)
+    convert(BooleanType, java.lang.Boolean.TRUE) should be(true)
+    convert(DoubleType, Float.box(1.5f)) should be(1.5d)
+    convert(DecimalType(10, 2), new java.math.BigDecimal("12.34")) should be(Decimal(BigDecimal("12.34"), 10, 2))
+    // DATE_AND_TIME_AS_LONG values are milliseconds since epoch
+    convert(DateType, Long.box(86400000L * 3)) should be(3)
+    convert(TimestampType, Long.box(1500L)) should be(1500000L)
+    convert(StringType, "abc".getBytes("utf-8")) should be(UTF8String.fromString("abc"))
+    val bits = new util.BitSet()
+    bits.set(1)
+    convert(LongType, bits) should be(2L)
+    convert(BinaryType, bits) should be(Array[Byte](2))
+  }
+
+  "BinaryRowsWriter" should "read the values of unsigned columns as unsigned" in {
+    def convert(field: StructField, value: Serializable) = BinaryRowsWriter.makeConverter(field)(value)
+
+    convert(unsigned("a", IntegerType, 8), Integer.valueOf(-1)) should be(255)
+    convert(unsigned("a", IntegerType, 24), Integer.valueOf(-1)) should be(16777215)
+    convert(unsigned("a", LongType, 32), Integer.valueOf(-1)) should be(4294967295L)
+    convert(unsigned("a", DecimalType(20, 0), 64), Long.box(-1L)) should be(
+      Decimal(BigDecimal("18446744073709551615"), 20, 0))
+    // signed columns keep the sign
+    convert(StructField("a", LongType), Long.box(-1L)) should be(-1L)
+  }
+
+  "BinaryRowsWriter" should "fail the event when a value can not be converted" in {
+    val schema = StructType(Seq(StructField("id", IntegerType), StructField("name", StringType)))
+    val writer = new BinaryRowsWriter(schema)
+    val good = insertEvent(schema, Seq(Array[Serializable](Integer.valueOf(1), "a".getBytes("utf-8"))))
+    val rows = writer.writeEvent(good, BinLogSocketServerInExecutor.ALL_ROWS)
+    rows.size should be(1)
+    val row = BinaryRowsWriter.toRow(rows.head, schema.length + 2)
+    row.getInt(0) should be(1)
+    row.getUTF8String(1).toString should be("a")
+    row.getUTF8String(2).toString should be("insert")
+
+    val bad = insertEvent(schema, Seq(Array[Serializable]("x".getBytes("utf-8"), "a".getBytes("utf-8"))))
+    intercept[NumberFormatException] {
+      writer.writeEvent(bad, BinLogSocketServerInExecutor.ALL_ROWS)
+    }
+  }
+
+  "BinaryRowsWriter" should "fail the event when the table schema changed" in {
+    val schema = StructType(Seq(StructField("id", IntegerType), StructField("name", StringType)))
+    val writer = new BinaryRowsWriter(schema)
+    val altered = StructType(schema.fields :+ StructField("age", IntegerType))
+    val event = insertEvent(altered, Seq(Array[Serializable](Integer.valueOf(1), "a".getBytes("utf-8"), Integer.valueOf(3))))
+    // the result of the check is cached, every event of the altered table fails
+    (0 until 2).foreach { _ =>
+      val e = intercept[IllegalStateException] {
+        writer.writeEvent(event, BinLogSocketServerInExecutor.ALL_ROWS)
+      }
+      e.getMessage should include("db.table")
+    }
+    val good = insertEvent(schema, Seq(Array[Serializable](Integer.valueOf(1), "a".getBytes("utf-8"))))
+    writer.writeEvent(good, BinLogSocketServerInExecutor.ALL_ROWS).size should be(1)
+  }
+}
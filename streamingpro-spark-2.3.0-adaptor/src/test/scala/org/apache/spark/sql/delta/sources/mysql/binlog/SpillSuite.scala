@@ -0,0 +1,97 @@
+package org.apache.spark.sql.delta.sources.mysql.binlog
+
+import java.io.File
+
+import org.apache.spark.util.Utils
+import org.scalatest.{BeforeAndAfterEach, FlatSpec, Matchers}
+
+case class SpillItem(id: Int)
+
+class SpillSuite extends FlatSpec with Matchers with BeforeAndAfterEach {
+
+  private var dir: File = null
+
+  override def beforeEach(): Unit = {
+    dir = SpillableQueue.createSpillDir("spill-suite")
+  }
+
+  override def afterEach(): Unit = {
+    Utils.deleteRecursively(dir)
+  }
+
+  private def items(range: Range) = range.map(SpillItem)
+
+  "SpillableQueue" should "keep the order of the items in memory and on disk" in {
+    val queue = new SpillableQueue[SpillItem](3, dir)
+    items(0 until 10).foreach(queue.offer)
+    queue.size should be(10)
+    queue.spilled should be(7)
+    queue.inMemory should be(items(0 until 3))
+
+    val polled = (0 until 5).map(_ => queue.poll())
+    polled should be(items(0 until 5))
+
+    // items offered while others are spilled go after them
+    items(10 until 12).foreach(queue.offer)
+    queue.peek() should be(SpillItem(5))
+    Iterator.continually(queue.poll()).takeWhile(_ != null).toList should be(items(5 until 12))
+    queue.size should be(0)
+    dir.listFiles() should be(empty)
+  }
+
+  "SpillableQueue" should "delete the spilled segments when it is cleared" in {
+    val queue = new SpillableQueue[SpillItem](2, dir)
+    items(0 until 7).foreach(queue.offer)
+    dir.listFiles() should not be empty
+    queue.clear()
+    queue.size should be(0)
+    queue.poll() should be(null)
+    dir.listFiles() should be(empty)
+  }
+
+  "SpillableBuffer" should "be iterated many times once finished" in {
+    val buffer = new SpillableBuffer[SpillItem](4, dir, "batch")
+    items(0 until 10).foreach(buffer.add)
+    buffer.finish()
+    buffer.size should be(10)
+    new File(dir, "batch").exists() should be(true)
+
+    buffer.iterator.toList should be(items(0 until 10))
+    // e.g. a retried partition reads the batch again
+    buffer.iterator.toList should be(items(0 until 10))
+    val (a, b) = (buffer.iterator, buffer.iterator)
+    a.zip(b).forall { case (x, y) => x == y } should be(true)
+
+    buffer.close()
+    new File(dir, "batch").exists() should be(false)
+  }
+
+  "SpillableBuffer" should "close the spilled stream of an iterator which is not read to the end" in {
+    val buffer = new SpillableBuffer[SpillItem](4, dir, "batch")
+    items(0 until 10).foreach(buffer.add)
+    buffer.finish()
+
+    val partial = buffer.iterator
+    partial.take(6).toList should be(items(0 until 6))
+    partial.close()
+    partial.hasNext should be(false)
+    // closing twice, or an iterator which never opened the file, is fine
+    partial.close()
+    buffer.iterator.close()
+
+    val full = buffer.iterator
+    full.toList should be(items(0 until 10))
+    full.close()
+    buffer.close()
+    new File(dir, "batch").exists() should be(false)
+  }
+
+  "SpillableBuffer" should "not create a file when it fits in memory" in {
+    val buffer = new SpillableBuffer[SpillItem](4, dir, "batch")
+    items(0 until 4).foreach(buffer.add)
+    buffer.finish()
+    buffer.iterator.toList should be(items(0 until 4))
+    new File(dir, "batch").exists() should be(false)
+    buffer.close()
+  }
+}
@@ -0,0 +1,22 @@
+package org.apache.spark.sql
+
+import java.io.OutputStream
+
+import org.apache.spark.sql.execution.arrow.ArrowBatchStreamWriter
+
+/**
+ * Writes a DataFrame as an Arrow IPC stream: the schema, one record batch per
+ * `spark.sql.execution.arrow.maxRecordsPerBatch` rows and the end-of-stream marker.
+ * The batches are encoded on the executors and fetched one partition at a time.
+ */
+object ArrowResultHelper {
+
+  def isSupported: Boolean = true
+
+  def write(df: DataFrame, out: OutputStream): Unit = {
+    val timeZoneId = df.sparkSession.sessionState.conf.sessionLocalTimeZone
+    val batchWriter = new ArrowBatchStreamWriter(df.schema, out, timeZoneId)
+    batchWriter.writeBatches(df.toArrowBatchRdd.toLocalIterator)
+    batchWriter.end()
+  }
+}
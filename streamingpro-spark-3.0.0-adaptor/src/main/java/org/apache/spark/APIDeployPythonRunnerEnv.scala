@@ -21,7 +21,7 @@ package org.apache.spark
 import java.net.Socket
 import java.util.Properties
 
-import org.apache.spark.api.python.WowPythonWorkerFactory
+import org.apache.spark.api.python.{PythonWorkerPoolStat, WowPythonWorkerFactory}
 
 import scala.collection.mutable
 
@@ -35,6 +35,10 @@ object APIDeployPythonRunnerEnv {
     pythonWorkers.size
   }
 
+  def stats: Seq[PythonWorkerPoolStat] = synchronized {
+    pythonWorkers.values.map(_.stats).toSeq
+  }
+
   def generate_key(daemonCommand: Option[Seq[String]],
                    workerCommand: Option[Seq[String]]) = {
     daemonCommand.get.mkString(" ") + workerCommand.get.mkString(" ")
@@ -200,6 +200,134 @@ object MLSQLConf {
     .booleanConf
     .createWithDefault(true)
 
+  val MLSQL_SCRIPT_PARSE_CACHE_SIZE: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.script.parse.cache.size")
+      .doc("The max number of parse trees (and analyzed statements) of scripts cached by /run/script." +
+        " 0 disables the cache. Hit/miss/eviction counters: load _mlsql_.`metrics/parseCache`.")
+      .intConf
+      .createWithDefault(0)
+
+  val MLSQL_JOB_EXECUTOR_POOL_SIZE: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.job.executor.poolSize")
+      .doc("The number of threads which run async jobs.")
+      .intConf
+      .createWithDefault(100)
+
+  val MLSQL_JOB_EXECUTOR_QUEUE_SIZE: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.job.executor.queueSize")
+      .doc("The max number of pending async jobs. New jobs are rejected when the queue is full.")
+      .intConf
+      .createWithDefault(1000)
+
+  val MLSQL_JOB_EXECUTOR_OWNER_QUEUE_SIZE: OptionalConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.job.executor.ownerQueueSize")
+      .doc("The max number of pending async jobs per owner. Defaults to spark.mlsql.job.executor.queueSize.")
+      .intConf
+      .createOptional
+
+  val MLSQL_JOB_EXECUTOR_VIRTUAL_THREAD: ConfigEntry[Boolean] =
+    MLSQLConfigBuilder("spark.mlsql.job.executor.virtualThread")
+      .doc("Run async jobs in virtual threads. Only takes effect on JDK 21+.")
+      .booleanConf
+      .createWithDefault(false)
+
+  val MLSQL_RESULT_CACHE_ENABLE: ConfigEntry[Boolean] =
+    MLSQLConfigBuilder("spark.mlsql.result.cache.enable")
+      .doc("Cache the results of read-only load/select scripts executed by /run/script with executeMode=query." +
+        " Counters: load _mlsql_.`metrics/resultCache`.")
+      .booleanConf
+      .createWithDefault(false)
+
+  val MLSQL_RESULT_CACHE_MAX_BYTES: ConfigEntry[String] =
+    MLSQLConfigBuilder("spark.mlsql.result.cache.maxBytes")
+      .doc("The max total size of the cached script results, e.g. 256m. The least recently used results are evicted first.")
+      .stringConf
+      .createWithDefault("256m")
+
+  val MLSQL_RESULT_CACHE_TTL: ConfigEntry[String] =
+    MLSQLConfigBuilder("spark.mlsql.result.cache.ttl")
+      .doc("How long a cached script result can be served, e.g. 10m.")
+      .stringConf
+      .createWithDefault("10m")
+
+  val MLSQL_UDF_DIRECT_INVOKE: ConfigEntry[Boolean] =
+    MLSQLConfigBuilder("spark.mlsql.udf.directInvoke")
+      .doc("Call runtime compiled scala/java udf through a generated typed bridge instead of reflection.")
+      .booleanConf
+      .createWithDefault(false)
+
+  val MLSQL_UDF_SHIP_COMPILED_CLASSES: ConfigEntry[Boolean] =
+    MLSQLConfigBuilder("spark.mlsql.udf.shipCompiledClasses")
+      .doc("Broadcast the bytecode of scala/java udf compiled by the driver, so executors define the classes" +
+        " instead of compiling the source again. Compile/load times: load _mlsql_.`metrics/udfCompile`.")
+      .booleanConf
+      .createWithDefault(true)
+
+  val MLSQL_UDF_PYTHON_VECTORIZED_BATCH_SIZE: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.udf.python.vectorized.batchSize")
+      .doc("The number of rows sent to the python worker in one Arrow record batch by vectorized python udf.")
+      .intConf
+      .createWithDefault(10000)
+
+  val MLSQL_UDF_PYTHON_VECTORIZED_MAX_QUEUED_BATCHES: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.udf.python.vectorized.maxQueuedBatches")
+      .doc("The max number of batches of a vectorized python udf which are sent to the python worker but not joined with their results yet. Sending the next batch waits until there is room.")
+      .intConf
+      .createWithDefault(2)
+
+  val MLSQL_PYTHON_WORKER_POOL_PREWARM: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.python.worker.pool.prewarm")
+      .doc("The number of idle python workers forked ahead of time for every python environment used by API predict.")
+      .intConf
+      .createWithDefault(0)
+
+  val MLSQL_PYTHON_WORKER_POOL_PRE_IMPORT: ConfigEntry[String] =
+    MLSQLConfigBuilder("spark.mlsql.python.worker.pool.preImport")
+      .doc("Comma separated python modules, e.g. numpy,pandas, imported by the python daemon before it forks workers.")
+      .stringConf
+      .createWithDefault("")
+
+  val MLSQL_PYTHON_WORKER_POOL_MAX_LIFETIME: ConfigEntry[String] =
+    MLSQLConfigBuilder("spark.mlsql.python.worker.pool.maxLifetime")
+      .doc("Python workers older than this, e.g. 1h, are stopped instead of being reused.")
+      .stringConf
+      .createWithDefault("7d")
+
+  val MLSQL_RAY_DATA_BATCH_SIZE: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.ray.data.batchSize")
+      .doc("The number of rows in one Arrow record batch served to python by the data servers of !ray. Can be overwritten by `!python conf \"dataBatchSize=...\"`.")
+      .intConf
+      .createWithDefault(1000)
+
+  val MLSQL_RAY_DATA_PREFETCH_BATCHES: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.ray.data.prefetchBatches")
+      .doc("The number of record batches a data server of !ray computes ahead of the python side, 0 disables prefetching. Can be overwritten by `!python conf \"dataPrefetchBatches=...\"`.")
+      .intConf
+      .createWithDefault(4)
+
+
+  val MLSQL_KVSTORE_ENCODING: ConfigEntry[String] =
+    MLSQLConfigBuilder("spark.mlsql.kvstore.encoding")
+      .doc("How values of the LevelDB kvstore are encoded: json or smile (binary json, smaller and faster to parse). Values are read with the encoding they were written with.")
+      .stringConf
+      .transform(_.toLowerCase)
+      .checkValues(Set("json", "smile"))
+      .createWithDefault("json")
+
+  val MLSQL_KVSTORE_COMPRESSION: ConfigEntry[String] =
+    MLSQLConfigBuilder("spark.mlsql.kvstore.compression")
+      .doc("How big values of the LevelDB kvstore are compressed: none, lz4 or gzip.")
+      .stringConf
+      .transform(_.toLowerCase)
+      .checkValues(Set("none", "lz4", "gzip"))
+      .createWithDefault("lz4")
+
+  val MLSQL_KVSTORE_COMPRESS_THRESHOLD: ConfigEntry[Int] =
+    MLSQLConfigBuilder("spark.mlsql.kvstore.compressThreshold")
+      .doc("Values of the LevelDB kvstore smaller than this (in bytes) are not compressed.")
+      .intConf
+      .createWithDefault(512)
+
 
   def getAllDefaults: Map[String, String] = {
     entries.entrySet().asScala.map { kv =>
@@ -22,6 +22,7 @@ import java.io._
 import java.net.{InetAddress, ServerSocket, Socket, SocketException}
 import java.nio.charset.StandardCharsets
 import java.util.Arrays
+import java.util.concurrent.atomic.AtomicLong
 
 import scala.collection.mutable
 import scala.collection.JavaConverters._
@@ -32,6 +33,18 @@ import org.apache.spark.util.{RedirectThread, Utils}
 
 /**
   * Created by allwefantasy on 30/7/2018.
+  *
+  * The factory of one python environment (the daemon command activates the conda env) keeps a
+  * pool of idle workers:
+  *
+  * spark.mlsql.python.worker.pool.prewarm    workers forked ahead of time, so a request does not wait
+  * for the interpreter to start.
+  * spark.mlsql.python.worker.pool.preImport  modules (e.g. numpy,pandas) the daemon imports before it
+  * forks, so every worker starts with them loaded.
+  * spark.mlsql.python.worker.pool.maxLifetime workers older than this are stopped instead of reused.
+  * `idleWorkerTimeoutMS` is the max idle time of a worker.
+  *
+  * Hit rate and spawn latency: load _mlsql_.`metrics/pythonWorkerPool`.
   */
 class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
                              workerCommand: Option[Seq[String]],
@@ -53,13 +66,27 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
 
   private val authHelper = new SocketAuthHelper(SparkEnv.get.conf)
 
+  private val conf = SparkEnv.get.conf
+  val prewarm = conf.getInt(MLSQLConf.MLSQL_PYTHON_WORKER_POOL_PREWARM.key, 0)
+  val maxLifetimeMS = conf.getTimeAsMs(MLSQLConf.MLSQL_PYTHON_WORKER_POOL_MAX_LIFETIME.key, "7d")
+  private val preImport = conf.get(MLSQLConf.MLSQL_PYTHON_WORKER_POOL_PRE_IMPORT.key, "")
+
   var daemon: Process = null
   val daemonHost = InetAddress.getByAddress(Array(127, 0, 0, 1))
   var daemonPort: Int = 0
   val daemonWorkers = new mutable.WeakHashMap[Socket, Int]()
-  val idleWorkers = new mutable.Queue[Socket]()
-  var lastActivity = 0L
-  new WowMonitorThread().start()
+  val idleWorkers = new mutable.Queue[IdleWorker]()
+  // the time each worker was forked at, for maxLifetime
+  val workerCreateTime = new mutable.WeakHashMap[Socket, Long]()
+
+  val hits = new AtomicLong(0)
+  val misses = new AtomicLong(0)
+  val expired = new AtomicLong(0)
+  val spawned = new AtomicLong(0)
+  val spawnTimeMs = new AtomicLong(0)
+  val maxSpawnTimeMs = new AtomicLong(0)
+
+  @volatile private var stopped = false
 
   var simpleWorkers = new mutable.WeakHashMap[Socket, Process]()
 
@@ -68,19 +95,75 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
     envVars.getOrElse("PYTHONPATH", ""),
     sys.env.getOrElse("PYTHONPATH", ""))
 
+  new WowMonitorThread().start()
+
   def create(): Socket = {
     if (useDaemon) {
       synchronized {
-        if (idleWorkers.size > 0) {
-          return idleWorkers.dequeue()
+        while (idleWorkers.nonEmpty) {
+          val worker = idleWorkers.dequeue().socket
+          if (!worker.isClosed && !tooOld(worker)) {
+            hits.incrementAndGet()
+            // refill the pool in the background
+            if (prewarm > 0) notifyAll()
+            return worker
+          }
+          stopIdleWorker(worker)
         }
       }
-      createThroughDaemon()
+      misses.incrementAndGet()
+      spawn(createThroughDaemon())
     } else {
-      createSimpleWorker()
+      misses.incrementAndGet()
+      spawn(createSimpleWorker())
     }
   }
 
+  def stats: PythonWorkerPoolStat = synchronized {
+    val requests = hits.get() + misses.get()
+    PythonWorkerPoolStat(flag, idleWorkers.size, prewarm, hits.get(), misses.get(),
+      if (requests == 0) 0 else hits.get().toDouble / requests,
+      spawned.get(), if (spawned.get() == 0) 0 else spawnTimeMs.get().toDouble / spawned.get(),
+      maxSpawnTimeMs.get(), expired.get())
+  }
+
+  private def spawn(f: => Socket): Socket = {
+    val start = System.currentTimeMillis()
+    val worker = f
+    val time = System.currentTimeMillis() - start
+    spawned.incrementAndGet()
+    spawnTimeMs.addAndGet(time)
+    var max = maxSpawnTimeMs.get()
+    while (time > max && !maxSpawnTimeMs.compareAndSet(max, time)) {
+      max = maxSpawnTimeMs.get()
+    }
+    synchronized {
+      workerCreateTime.put(worker, System.currentTimeMillis())
+    }
+    worker
+  }
+
+  private def tooOld(worker: Socket): Boolean = {
+    workerCreateTime.get(worker).exists(_ + maxLifetimeMS < System.currentTimeMillis())
+  }
+
+  /**
+    * Forks workers until there are `prewarm` idle ones.
+    */
+  private def refill(): Unit = {
+    while (useDaemon && synchronized(idleWorkers.size) < prewarm) {
+      val worker = spawn(createThroughDaemon())
+      synchronized {
+        idleWorkers.enqueue(IdleWorker(worker, System.currentTimeMillis()))
+      }
+    }
+  }
+
+  private def daemonEnv: Map[String, String] = {
+    if (preImport.isEmpty || envVars.contains(PRE_IMPORT_ENV)) envVars
+    else envVars + (PRE_IMPORT_ENV -> preImport)
+  }
+
   /**
     * Connect to a worker launched through pyspark/daemon.py, which forks python processes itself
     * to avoid the high cost of forking from Java. This currently only works on UNIX-based systems.
@@ -173,7 +256,7 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
         //Arrays.asList(pythonExec, "-m", "pyspark.daemon")
         val pb = new ProcessBuilder(daemonCommand.get.asJava)
         val workerEnv = pb.environment()
-        workerEnv.putAll(envVars.asJava)
+        workerEnv.putAll(daemonEnv.asJava)
         workerEnv.put("PYTHONPATH", pythonPath)
         workerEnv.put("PYTHON_WORKER_FACTORY_SECRET", authHelper.secret)
         // This is equivalent to setting the -u flag; we use it because ipython doesn't support -u:
@@ -234,35 +317,54 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
   }
 
   /**
-    * Monitor all the idle workers, kill them after timeout.
+    * Monitor all the idle workers, kill them after timeout or when they are too old,
+    * and keep `prewarm` idle workers.
     */
   private class WowMonitorThread extends Thread(s"Idle Worker Monitor for $flag") {
 
     setDaemon(true)
 
     override def run() {
-      while (true) {
-        synchronized {
-          if (lastActivity + idleWorkerTimeoutMS < System.currentTimeMillis()) {
-            cleanupIdleWorkers()
-            lastActivity = System.currentTimeMillis()
+      while (!stopped) {
+        WowPythonWorkerFactory.this.synchronized {
+          val now = System.currentTimeMillis()
+          val (expiredWorkers, alive) = idleWorkers.partition { w =>
+            w.since + idleWorkerTimeoutMS < now || tooOld(w.socket)
+          }
+          if (expiredWorkers.nonEmpty) {
+            idleWorkers.clear()
+            idleWorkers ++= alive
+            expiredWorkers.foreach(w => stopIdleWorker(w.socket))
           }
         }
-        Thread.sleep(10000)
+        try {
+          refill()
+        } catch {
+          case e: Exception =>
+            logWarning(s"Fail to prewarm python workers for $flag", e)
+        }
+        WowPythonWorkerFactory.this.synchronized {
+          WowPythonWorkerFactory.this.wait(10000)
+        }
       }
     }
   }
 
+  private def stopIdleWorker(worker: Socket) {
+    expired.incrementAndGet()
+    workerCreateTime.remove(worker)
+    try {
+      // the worker will exit after closing the socket
+      worker.close()
+    } catch {
+      case e: Exception =>
+        logWarning("Failed to close worker socket", e)
+    }
+  }
+
   private def cleanupIdleWorkers() {
     while (idleWorkers.nonEmpty) {
-      val worker = idleWorkers.dequeue()
-      try {
-        // the worker will exit after closing the socket
-        worker.close()
-      } catch {
-        case e: Exception =>
-          logWarning("Failed to close worker socket", e)
-      }
+      stopIdleWorker(idleWorkers.dequeue().socket)
     }
   }
 
@@ -285,6 +387,10 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
   }
 
   def stop() {
+    synchronized {
+      stopped = true
+      notifyAll()
+    }
     stopDaemon()
   }
 
@@ -310,8 +416,11 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
   def releaseWorker(worker: Socket) {
     if (useDaemon) {
       synchronized {
-        lastActivity = System.currentTimeMillis()
-        idleWorkers.enqueue(worker)
+        if (tooOld(worker)) {
+          stopIdleWorker(worker)
+        } else {
+          idleWorkers.enqueue(IdleWorker(worker, System.currentTimeMillis()))
+        }
       }
     } else {
       // Cleanup the worker socket. This will also cause the Python worker to exit.
@@ -359,4 +468,20 @@ class WowPythonWorkerFactory(daemonCommand: Option[Seq[String]],
 object WowPythonWorkerFactory {
   val PROCESS_WAIT_TIMEOUT_MS = 10000
   val IDLE_WORKER_TIMEOUT_MS = 60000 * 60 * 24 // kill idle workers after 24 hours
+
+  // read by the daemon before it forks workers
+  val PRE_IMPORT_ENV = "MLSQL_PYTHON_PREIMPORT"
 }
+
+case class IdleWorker(socket: Socket, since: Long)
+
+case class PythonWorkerPoolStat(env: String,
+                                idle: Int,
+                                prewarm: Int,
+                                hits: Long,
+                                misses: Long,
+                                hitRate: Double,
+                                spawned: Long,
+                                spawnAvgMs: Double,
+                                spawnMaxMs: Long,
+                                expired: Long)
@@ -0,0 +1,376 @@
+package org.apache.spark.sql.execution.streaming
+
+import java.sql.{Connection, DriverManager, PreparedStatement, Types}
+import java.util.concurrent.{ConcurrentHashMap, LinkedBlockingDeque}
+import java.util.regex.Pattern
+
+import org.apache.spark.internal.Logging
+import org.apache.spark.sql.Row
+import org.apache.spark.sql.types._
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable.ArrayBuffer
+
+/**
+  * Connections shared by all the tasks of one executor (or the driver), keyed by url and user.
+  * At most maxIdle idle connections are kept for every key. A connection which has been idle
+  * for more than VALIDATE_AFTER_IDLE_MS is validated before it is handed out again.
+  */
+object JDBCConnectionPool extends Logging {
+
+  private case class PoolKey(url: String, user: String)
+
+  private case class IdleConnection(connection: Connection, since: Long)
+
+  private val pools = new ConcurrentHashMap[PoolKey, LinkedBlockingDeque[IdleConnection]]()
+
+  val DEFAULT_MAX_IDLE = 8
+  val VALIDATE_AFTER_IDLE_MS = 30 * 1000L
+
+  def borrow(driver: String, url: String, user: String, password: String): Connection = {
+    val pool = poolOf(url, user)
+    var idle = pool.pollFirst()
+    while (idle != null) {
+      if (isUsable(idle)) {
+        return idle.connection
+      }
+      closeQuietly(idle.connection)
+      idle = pool.pollFirst()
+    }
+    Class.forName(driver)
+    DriverManager.getConnection(url, user, password)
+  }
+
+  /**
+    * Give back a connection without pending work. Broken connections should be closed instead.
+    */
+  def giveBack(url: String, user: String, connection: Connection, maxIdle: Int = DEFAULT_MAX_IDLE): Unit = {
+    val pool = poolOf(url, user)
+    if (connection.isClosed || pool.size() >= maxIdle) {
+      closeQuietly(connection)
+    } else {
+      pool.offerFirst(IdleConnection(connection, System.currentTimeMillis()))
+    }
+  }
+
+  def idleSize(url: String, user: String): Int = poolOf(url, user).size()
+
+  def clear(): Unit = {
+    pools.values().asScala.foreach { pool =>
+      var idle = pool.pollFirst()
+      while (idle != null) {
+        closeQuietly(idle.connection)
+        idle = pool.pollFirst()
+      }
+    }
+  }
+
+  private def poolOf(url: String, user: String) = {
+    val key = PoolKey(url, user)
+    var pool = pools.get(key)
+    if (pool == null) {
+      pools.putIfAbsent(key, new LinkedBlockingDeque[IdleConnection]())
+      pool = pools.get(key)
+    }
+    pool
+  }
+
+  private def isUsable(idle: IdleConnection): Boolean = {
+    try {
+      !idle.connection.isClosed &&
+        (System.currentTimeMillis() - idle.since < VALIDATE_AFTER_IDLE_MS || idle.connection.isValid(5))
+    } catch {
+      case e: Exception =>
+        logWarning("Drop a broken pooled jdbc connection", e)
+        false
+    }
+  }
+
+  private def closeQuietly(connection: Connection): Unit = {
+    try {
+      connection.close()
+    } catch {
+      case e: Exception =>
+    }
+  }
+}
+
+object JDBCSetters {
+
+  // statement, row, column of the row, parameter index of the statement
+  type Setter = (PreparedStatement, Row, Int, Int) => Unit
+
+  /**
+    * One setter for each of the first numParams columns of the schema, so the types are
+    * matched once and not for every value.
+    */
+  def makeSetters(schema: StructType, numParams: Int): Array[Setter] = {
+    schema.fields.take(numParams).map { field =>
+      val setter = makeSetter(field.dataType)
+      val nullType = sqlType(field.dataType)
+      val nullableSetter: Setter = (statement, row, column, index) => {
+        if (row.isNullAt(column)) statement.setNull(index, nullType) else setter(statement, row, column, index)
+      }
+      nullableSetter
+    }
+  }
+
+  private def makeSetter(dataType: DataType): Setter = dataType match {
+    case StringType => (statement, row, column, index) => statement.setString(index, row.getString(column))
+    case IntegerType => (statement, row, column, index) => statement.setInt(index, row.getInt(column))
+    case LongType => (statement, row, column, index) => statement.setLong(index, row.getLong(column))
+    case DoubleType => (statement, row, column, index) => statement.setDouble(index, row.getDouble(column))
+    case FloatType => (statement, row, column, index) => statement.setFloat(index, row.getFloat(column))
+    case ShortType => (statement, row, column, index) => statement.setShort(index, row.getShort(column))
+    case ByteType => (statement, row, column, index) => statement.setByte(index, row.getByte(column))
+    case NullType => (statement, row, column, index) => statement.setString(index, null)
+    case BooleanType => (statement, row, column, index) => statement.setBoolean(index, row.getBoolean(column))
+    case DateType => (statement, row, column, index) => statement.setDate(index, row.getDate(column))
+    case TimestampType => (statement, row, column, index) => statement.setTimestamp(index, row.getTimestamp(column))
+    case BinaryType => (statement, row, column, index) => statement.setBytes(index, row.getAs[Array[Byte]](column))
+    case _: DecimalType => (statement, row, column, index) => statement.setBigDecimal(index, row.getDecimal(column))
+    case _ => throw new RuntimeException("JDBC is not support this type")
+  }
+
+  private def sqlType(dataType: DataType): Int = dataType match {
+    case StringType => Types.VARCHAR
+    case IntegerType => Types.INTEGER
+    case LongType => Types.BIGINT
+    case DoubleType => Types.DOUBLE
+    case FloatType => Types.REAL
+    case ShortType => Types.SMALLINT
+    case ByteType => Types.TINYINT
+    case BooleanType => Types.BOOLEAN
+    case DateType => Types.DATE
+    case TimestampType => Types.TIMESTAMP
+    case BinaryType => Types.BINARY
+    case _: DecimalType => Types.DECIMAL
+    case _ => Types.NULL
+  }
+}
+
+/**
+  * Writes the rows of one partition with one statement, flushing every batchSize rows.
+  *
+  * With rewriteBatchedStatements, a statement like `insert into t(a,b) values(?,?)` is sent as
+  * `insert into t(a,b) values(?,?),(?,?),...` with batchSize rows in one round trip, which is
+  * what the MySQL driver does for rewriteBatchedStatements=true. Other statements use jdbc batches.
+  */
+class JDBCStatementWriter(connection: Connection, sql: String, schema: StructType,
+                          batchSize: Int, rewriteBatchedStatements: Boolean) {
+
+  private val statement = connection.prepareStatement(sql)
+  private val numParams = statement.getParameterMetaData.getParameterCount
+  private val setters = JDBCSetters.makeSetters(schema, numParams)
+
+  // at most 65535 placeholders in one statement (MySQL, PostgreSQL)
+  private val rowsPerInsert = Math.max(1, Math.min(batchSize, 65535 / Math.max(1, numParams)))
+  private val multiRowSql = if (rewriteBatchedStatements && rowsPerInsert > 1) {
+    JDBCStatementWriter.multiRowInsert(sql, rowsPerInsert)
+  } else None
+  private var multiRowStatement: PreparedStatement = null
+
+  private val pending = new ArrayBuffer[Row]()
+  private var batched = 0
+
+  def write(row: Row): Unit = {
+    if (multiRowSql.isDefined) {
+      pending += row
+      if (pending.size >= rowsPerInsert) {
+        if (multiRowStatement == null) multiRowStatement = connection.prepareStatement(multiRowSql.get)
+        setRows(multiRowStatement, pending)
+        multiRowStatement.executeUpdate()
+        pending.clear()
+      }
+    } else {
+      setRow(statement, row, 0)
+      statement.addBatch()
+      batched += 1
+      if (batched >= batchSize) {
+        statement.executeBatch()
+        batched = 0
+      }
+    }
+  }
+
+  def flush(): Unit = {
+    if (pending.nonEmpty) {
+      val rest = connection.prepareStatement(JDBCStatementWriter.multiRowInsert(sql, pending.size).get)
+      try {
+        setRows(rest, pending)
+        rest.executeUpdate()
+      } finally {
+        rest.close()
+      }
+      pending.clear()
+    }
+    if (batched > 0) {
+      statement.executeBatch()
+      batched = 0
+    }
+  }
+
+  def close(): Unit = {
+    statement.close()
+    if (multiRowStatement != null) multiRowStatement.close()
+  }
+
+  private def setRows(st: PreparedStatement, rows: Seq[Row]): Unit = {
+    var i = 0
+    while (i < rows.size) {
+      setRow(st, rows(i), i * numParams)
+      i += 1
+    }
+  }
+
+  private def setRow(st: PreparedStatement, row: Row, offset: Int): Unit = {
+    var column = 0
+    while (column < numParams) {
+      setters(column)(st, row, column, offset + column + 1)
+      column += 1
+    }
+  }
+}
+
+object JDBCStatementWriter {
+  private val INSERT_VALUES = Pattern.compile("""(?is)^(\s*insert\s+.+?\s+values\s*)(\([^()]*\))\s*;?\s*$""")
+
+  /**
+    * The insert with its values group repeated numRows times, None if sql is not a plain single-row insert.
+    */
+  def multiRowInsert(sql: String, numRows: Int): Option[String] = {
+    val matcher = INSERT_VALUES.matcher(sql)
+    if (!matcher.matches()) return None
+    val values = matcher.group(2)
+    Some(matcher.group(1) + Seq.fill(numRows)(values).mkString(","))
+  }
+}
+
+/**
+  * Writes one partition of a micro batch with every executor-statement-[number] in one transaction,
+  * on a connection borrowed from JDBCConnectionPool.
+  */
+class JDBCPartitionWriter(options: Map[String, String], schema: StructType) extends Logging {
+
+  private val url = options("url")
+  private val user = options("user")
+  private val batchSize = options.getOrElse("batchSize", "1000").toInt
+  private val rewriteBatchedStatements = options.getOrElse("rewriteBatchedStatements", "false").toBoolean
+  private val maxIdle = options.getOrElse("maxIdleConnections", JDBCConnectionPool.DEFAULT_MAX_IDLE.toString).toInt
+
+  private var connection: Connection = _
+  private var writers: Seq[JDBCStatementWriter] = Seq()
+  var numRows = 0L
+  // rows of this partition which are committed, 0 until close(null) succeeds
+  var committedRows = 0L
+
+  def open(): Unit = {
+    connection = JDBCConnectionPool.borrow(options("driver"), url, user, options("password"))
+    try {
+      connection.setAutoCommit(false)
+      writers = JDBCPartitionWriter.executorStatements(options).map { sql =>
+        new JDBCStatementWriter(connection, sql, schema, batchSize, rewriteBatchedStatements)
+      }
+      if (writers.size == 0) {
+        throw new RuntimeException("executor-statement-[number] should be configured")
+      }
+    } catch {
+      case e: Exception =>
+        close(e)
+        throw e
+    }
+  }
+
+  //statement-0 sequence
+  def write(row: Row): Unit = {
+    writers.foreach(_.write(row))
+    numRows += 1
+  }
+
+  /**
+    * Commits the partition when errorOrNull is null, otherwise rolls it back. A failure of the
+    * final flush or of the commit rolls the transaction back and is rethrown, so the task fails.
+    */
+  def close(errorOrNull: Throwable): Unit = {
+    if (connection == null) return
+    var broken = errorOrNull != null
+    var commitError: Exception = null
+    try {
+      if (errorOrNull == null) {
+        writers.foreach(_.flush())
+        connection.commit()
+        committedRows = numRows
+      } else {
+        connection.rollback()
+      }
+    } catch {
+      case e: Exception =>
+        logError("Fail to write the partition to jdbc", e)
+        broken = true
+        if (errorOrNull == null) commitError = e
+        try {
+          connection.rollback()
+        } catch {
+          case _: Exception =>
+        }
+    } finally {
+      writers.foreach { writer =>
+        try {
+          writer.close()
+        } catch {
+          case _: Exception => broken = true
+        }
+      }
+      if (broken) {
+        try {
+          connection.close()
+        } catch {
+          case _: Exception =>
+        }
+      } else {
+        JDBCConnectionPool.giveBack(url, user, connection, maxIdle)
+      }
+      connection = null
+    }
+    if (commitError != null) throw commitError
+  }
+}
+
+object JDBCPartitionWriter {
+  def executorStatements(options: Map[String, String]): Seq[String] = {
+    options.filter(f =>"""statement\-[0-9]+""".r.findFirstMatchIn(f._1).nonEmpty).
+      filter(f => !f._1.startsWith("driver")).
+      map(f => (f._1.split("-").last.toInt, f._2)).toSeq.sortBy(f => f._1).map(f => f._2)
+  }
+}
+
+/**
+  * Rows written by the last micro batch of a JDBCSink.
+  */
+case class JDBCSinkProgress(batchId: Long, numRows: Long, durationMs: Long, totalRows: Long) {
+  def rowsPerSecond: Double = if (durationMs == 0) 0 else numRows * 1000.0 / durationMs
+}
+
+case class JDBCSinkMetric(queryId: String, url: String, batchId: Long, numRows: Long, durationMs: Long,
+                          rowsPerSecond: Double, totalRows: Long)
+
+/**
+  * The last JDBCSinkProgress of every running query which writes to a JDBCSink, keyed by query id.
+  * Entries are removed when their query terminates.
+  */
+object JDBCSinkMetrics {
+
+  private val metrics = new ConcurrentHashMap[String, JDBCSinkMetric]()
+
+  // the parameters of a jdbc url may carry the user and password
+  def displayUrl(url: String): String = url.takeWhile(_ != '?')
+
+  def update(queryId: String, url: String, progress: JDBCSinkProgress): Unit = {
+    metrics.put(queryId, JDBCSinkMetric(queryId, displayUrl(url), progress.batchId, progress.numRows, progress.durationMs,
+      progress.rowsPerSecond, progress.totalRows))
+  }
+
+  def remove(queryId: String): Unit = metrics.remove(queryId)
+
+  def stats: Seq[JDBCSinkMetric] = metrics.values().asScala.toSeq.sortBy(_.queryId)
+}